@@ -41,8 +41,6 @@ import java.util.TimeZone;
 import org.archive.util.Base32;
 import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
 import org.bouncycastle.crypto.digests.MD5Digest;
-import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
-import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
 import org.bouncycastle.util.encoders.Hex;
 import org.freenetproject.freemail.utils.EmailAddress;
@@ -56,35 +54,38 @@ public class AccountManager {
 	static final String ACCOUNT_FILE = "accprops";
 	private static final int RTS_KEY_LENGTH = 32;
 
-	private static final int ASYM_KEY_MODULUS_LENGTH = 4096;
-	private static final BigInteger ASYM_KEY_EXPONENT = new BigInteger("17", 10);
-	private static final int ASYM_KEY_CERTAINTY = 80;
-
 	public static final String MAILSITE_SUFFIX = "mailsite";
 	public static final String MAILSITE_VERSION = "-1";
 
 	// We keep FreemailAccount objects for all the accounts in this instance of Freemail - they need to be in memory
-	// anyway since there's SingleAccountWatcher thread running for each of them anyway - and we return the same object
+	// anyway since there's SingleAccountWatcher task running for each of them anyway - and we return the same object
 	// each time a request is made for a given account.
 	private Map<String, FreemailAccount> accounts = new HashMap<String, FreemailAccount>();
 
-	//singleAccountWatcherList locks both these lists
 	private final ArrayList<SingleAccountWatcher> singleAccountWatcherList = new ArrayList<SingleAccountWatcher>();
-	private final ArrayList<Thread> singleAccountWatcherThreadList = new ArrayList<Thread>();
 
 	private final File datadir;
 	private final Freemail freemail;
 
+	/** Supplies the key pairs of new accounts, or {@code null} to generate them when needed */
+	private final KeyPairPool keyPool;
+
 	public AccountManager(File _datadir, Freemail freemail) {
+		this(_datadir, freemail, null);
+	}
+
+	AccountManager(File _datadir, Freemail freemail, KeyPairPool keyPool) {
 		datadir = _datadir;
 		if(!datadir.exists()) {
 			datadir.mkdir();
 		}
 
 		this.freemail = freemail;
+		this.keyPool = keyPool;
 
 		for(File accountDir : datadir.listFiles()) {
-			if(!accountDir.isDirectory()) {
+			//Directories starting with a dot, like the key pool, aren't accounts
+			if(!accountDir.isDirectory() || accountDir.getName().startsWith(".")) {
 				continue;
 			}
 
@@ -105,20 +106,17 @@ public class AccountManager {
 
 	public void startTasks() {
 		synchronized(accounts) {
+			//Spread the first passes of the account watchers evenly over the poll interval so
+			//the accounts aren't all polled at the same time
+			long spacing = SingleAccountWatcher.MIN_POLL_DURATION / Math.max(1, accounts.size());
+			long delay = 0;
 			for(FreemailAccount account : accounts.values()) {
 				//Start the tasks needed for this account
 				account.startTasks();
 
 				//Now start a SingleAccountWatcher for this account
-				SingleAccountWatcher saw = new SingleAccountWatcher(account, freemail);
-				Thread t = new Thread(saw, "Freemail Account Watcher for "+account.getIdentity());
-				t.setDaemon(true);
-				t.start();
-
-				synchronized(singleAccountWatcherList) {
-					singleAccountWatcherList.add(saw);
-					singleAccountWatcherThreadList.add(t);
-				}
+				startWatcher(account, delay);
+				delay += spacing;
 			}
 		}
 	}
@@ -174,7 +172,7 @@ public class AccountManager {
 		return new RSAKeyParameters(true, new BigInteger(mod_str, 32), new BigInteger(privexp_str, 32));
 	}
 
-	private static boolean initAccFile(PropsFile accfile, OwnIdentity oid) {
+	private static boolean initAccFile(PropsFile accfile, OwnIdentity oid, AsymmetricCipherKeyPair keypair) {
 		//Initialise RTS KSK
 		// Use a secure RNG for this too.
 		SecureRandom rnd = Freemail.getRNG();
@@ -190,15 +188,6 @@ public class AccountManager {
 			return false;
 		}
 
-		// generate an RSA keypair
-		Logger.normal(AccountManager.class, "Generating cryptographic keypair (this could take a few minutes)...");
-
-		RSAKeyGenerationParameters kparams = new RSAKeyGenerationParameters(ASYM_KEY_EXPONENT, Freemail.getRNG(), ASYM_KEY_MODULUS_LENGTH, ASYM_KEY_CERTAINTY);
-
-		RSAKeyPairGenerator kpg = new RSAKeyPairGenerator();
-		kpg.init(kparams);
-
-		AsymmetricCipherKeyPair keypair = kpg.generateKeyPair();
 		RSAKeyParameters pub = (RSAKeyParameters) keypair.getPublic();
 		RSAKeyParameters priv = (RSAKeyParameters) keypair.getPrivate();
 
@@ -215,6 +204,15 @@ public class AccountManager {
 		return true;
 	}
 
+	private AsymmetricCipherKeyPair takeKeyPair() {
+		if(keyPool != null) {
+			return keyPool.take();
+		}
+
+		Logger.normal(this, "Generating cryptographic keypair (this could take a few minutes)...");
+		return KeyPairPool.generate();
+	}
+
 	public FreemailAccount authenticate(String username, String password) {
 		FreemailAccount account = null;
 		synchronized(accounts) {
@@ -309,7 +307,7 @@ public class AccountManager {
 			}
 
 			accProps = PropsFile.createPropsFile(new File(accountDir, ACCOUNT_FILE));
-			initAccFile(accProps, oid);
+			initAccFile(accProps, oid, takeKeyPair());
 
 			account = new FreemailAccount(oid.getIdentityID(), accountDir, accProps, freemail);
 			account.setNickname(oid.getNickname());
@@ -334,39 +332,25 @@ public class AccountManager {
 		accounts.put(account.getIdentity(), account);
 
 		//Now start a SingleAccountWatcher for this account
-		SingleAccountWatcher saw = new SingleAccountWatcher(account, freemail);
-		Thread t = new Thread(saw, "Freemail Account Watcher for "+account.getIdentity());
-		t.setDaemon(true);
-		t.start();
+		startWatcher(account, 0);
+	}
 
+	private void startWatcher(FreemailAccount account, long delay) {
+		SingleAccountWatcher saw = new SingleAccountWatcher(account, freemail);
 		synchronized(singleAccountWatcherList) {
 			singleAccountWatcherList.add(saw);
-			singleAccountWatcherThreadList.add(t);
 		}
+		saw.start(delay);
 	}
 
 	void terminate() {
+		//The watchers run on the Freemail executor, which is waited for by Freemail.terminate()
 		synchronized(singleAccountWatcherList) {
 			Iterator<SingleAccountWatcher> sawIt = singleAccountWatcherList.iterator();
 			while(sawIt.hasNext()) {
 				sawIt.next().kill();
 				sawIt.remove();
 			}
-
-			Iterator<Thread> threadIt = singleAccountWatcherThreadList.iterator();
-			while(threadIt.hasNext()) {
-				threadIt.next().interrupt();
-			}
-
-			threadIt = singleAccountWatcherThreadList.iterator();
-			while(threadIt.hasNext()) {
-				try {
-					threadIt.next().join();
-				} catch (InterruptedException e) {
-					Logger.error(this, "Got InterruptedException while joining SingleAccountWatcher thread");
-				}
-				threadIt.remove();
-			}
 		}
 	}
 }
@@ -0,0 +1,291 @@
+/*
+ * ConcurrentSlotPoller.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
+import org.freenetproject.freemail.fcp.FCPException;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.utils.Logger;
+
+import freenet.support.api.Bucket;
+
+/**
+ * Polls one or more sequences of slots with all the slot fetches running concurrently, instead
+ * of fetching one slot at a time. The number of fetches in progress is limited by a semaphore,
+ * which should be shared by everything polling on behalf of the same account.
+ *
+ * The results are still handled one at a time and in slot order for each sequence, using a
+ * {@link SlotManager} that is moved along in step, so the slot managers see the same sequence of
+ * {@code getNextSlot()} and {@code slotUsed()} calls as when polling sequentially. When a used
+ * slot extends the poll window, the new slots are fetched in another round.
+ */
+public class ConcurrentSlotPoller {
+	private final HighLevelFCPClient fcpClient;
+	private final Semaphore permits;
+
+	/** The fetches in progress, in the order they were started */
+	private final LinkedList<Pending> inFlight = new LinkedList<Pending>();
+
+	public ConcurrentSlotPoller(HighLevelFCPClient fcpClient, Semaphore permits) {
+		this.fcpClient = fcpClient;
+		this.permits = permits;
+	}
+
+	/**
+	 * Polls the given sequences until there are no more slots to poll in any of them.
+	 * @param sequences the sequences to poll
+	 * @throws ConnectionTerminatedException if the FCP connection has been terminated
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public void poll(Collection<? extends Sequence> sequences) throws ConnectionTerminatedException,
+	                                                                  InterruptedException {
+		try {
+			boolean fetched = true;
+			while(fetched) {
+				fetched = false;
+				for(Sequence sequence : sequences) {
+					if(!sequence.stopped && startRound(sequence)) {
+						fetched = true;
+					}
+				}
+
+				while(!inFlight.isEmpty()) {
+					handleNext();
+				}
+			}
+		} finally {
+			while(!inFlight.isEmpty()) {
+				discard(inFlight.removeFirst());
+			}
+		}
+	}
+
+	/**
+	 * Starts fetching the slots of {@code sequence} that haven't been fetched yet.
+	 * @return {@code true} if any fetches were started
+	 */
+	private boolean startRound(Sequence sequence) throws ConnectionTerminatedException, InterruptedException {
+		//Both slot managers start out from the saved state, one to list the slots to fetch and
+		//one that is moved along as the results are handled
+		SlotManager listing = sequence.createSlotManager();
+		sequence.slotManager = sequence.createSlotManager();
+
+		boolean fetched = false;
+		String slot;
+		while(!sequence.stopped && (slot = listing.getNextSlot()) != null) {
+			Pending pending = new Pending(sequence, slot);
+			if(sequence.polled.add(slot)) {
+				acquirePermit();
+				try {
+					pending.result = sequence.fetch(fcpClient, slot);
+				} catch(ConnectionTerminatedException e) {
+					permits.release();
+					throw e;
+				} catch(InterruptedException e) {
+					permits.release();
+					throw e;
+				}
+				if(pending.result == null) {
+					permits.release();
+				} else {
+					fetched = true;
+				}
+			}
+			inFlight.addLast(pending);
+		}
+		return fetched;
+	}
+
+	private void acquirePermit() throws ConnectionTerminatedException, InterruptedException {
+		//Handle the results we are holding permits for before blocking, or we could end up
+		//waiting for ourselves or for others that are waiting for us
+		while(!permits.tryAcquire()) {
+			if(inFlight.isEmpty()) {
+				permits.acquire();
+				return;
+			}
+			handleNext();
+		}
+	}
+
+	private void handleNext() throws ConnectionTerminatedException, InterruptedException {
+		Pending pending = inFlight.removeFirst();
+		Sequence sequence = pending.sequence;
+		if(sequence.stopped) {
+			discard(pending);
+			return;
+		}
+
+		String slot = sequence.slotManager.getNextSlot();
+		if(!pending.slot.equals(slot)) {
+			//Shouldn't happen, but better stop than mark the wrong slot as used
+			Logger.error(this, "Slot manager returned " + slot + ", expected " + pending.slot);
+			discard(pending);
+			stop(sequence);
+			return;
+		}
+
+		if(pending.result == null) {
+			//Polled in an earlier round, or skipped by the sequence
+			return;
+		}
+
+		Bucket result;
+		try {
+			result = pending.result.get();
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof ConnectionTerminatedException) {
+				throw (ConnectionTerminatedException)cause;
+			}
+			if(!(cause instanceof FCPException)) {
+				throw new AssertionError(cause);
+			}
+			if(!sequence.slotFailed(slot, (FCPException)cause, sequence.slotManager)) {
+				stop(sequence);
+			}
+			return;
+		} finally {
+			permits.release();
+			pending.result = null;
+		}
+
+		if(!sequence.slotFetched(slot, result, sequence.slotManager)) {
+			stop(sequence);
+		}
+	}
+
+	private void stop(Sequence sequence) {
+		sequence.stopped = true;
+		Iterator<Pending> it = inFlight.iterator();
+		while(it.hasNext()) {
+			Pending pending = it.next();
+			if(pending.sequence == sequence) {
+				it.remove();
+				discard(pending);
+			}
+		}
+	}
+
+	/**
+	 * Cancels a fetch whose result won't be handled, freeing the data if it already arrived.
+	 */
+	private void discard(Pending pending) {
+		if(pending.result == null) {
+			return;
+		}
+
+		if(!pending.result.cancel(false)) {
+			try {
+				Bucket data = pending.result.get();
+				if(data != null) {
+					data.free();
+				}
+			} catch(ExecutionException e) {
+				//Nothing to clean up
+			} catch(InterruptedException e) {
+				//Can't happen since the fetch is done, but don't swallow the interrupt
+				Thread.currentThread().interrupt();
+			}
+		}
+		permits.release();
+		pending.result = null;
+	}
+
+	private static class Pending {
+		private final Sequence sequence;
+		private final String slot;
+
+		/** The fetch of the slot, or {@code null} if it was polled in an earlier round or not fetched */
+		private Future<Bucket> result;
+
+		private Pending(Sequence sequence, String slot) {
+			this.sequence = sequence;
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * A sequence of slots to poll. The handlers are called from the thread calling
+	 * {@link ConcurrentSlotPoller#poll(Collection)}, in slot order, with the slot manager
+	 * positioned at the slot that was fetched so that {@code slotUsed()} can be called on it.
+	 */
+	public abstract static class Sequence {
+		private final Set<String> polled = new HashSet<String>();
+		private SlotManager slotManager;
+		private boolean stopped = false;
+
+		/**
+		 * Returns a new slot manager for this sequence, using the slots as they are currently
+		 * saved.
+		 * @return a new slot manager
+		 */
+		protected abstract SlotManager createSlotManager();
+
+		/**
+		 * Returns the key that should be fetched for the given slot.
+		 * @param slot the slot
+		 * @return the key of the slot
+		 */
+		protected abstract String getKey(String slot);
+
+		/**
+		 * Starts fetching the given slot. The default implementation fetches the key returned by
+		 * {@link #getKey(String)}. Sequences can override this to supply the result some other
+		 * way, or to skip the slot in this round by returning {@code null}.
+		 * @param fcpClient the client to fetch with
+		 * @param slot the slot
+		 * @return the fetch of the slot, or {@code null} if the slot shouldn't be fetched
+		 * @throws ConnectionTerminatedException if the FCP connection has been terminated
+		 * @throws InterruptedException if the thread is interrupted
+		 */
+		protected Future<Bucket> fetch(HighLevelFCPClient fcpClient, String slot) throws ConnectionTerminatedException,
+		                                                                                  InterruptedException {
+			return fcpClient.fetchAsync(getKey(slot));
+		}
+
+		/**
+		 * Handles data fetched from a slot. The handler is responsible for freeing the data.
+		 * @param slot the slot
+		 * @param result the fetched data
+		 * @param slotManager the slot manager of this sequence
+		 * @return {@code false} if polling of this sequence should stop
+		 */
+		protected abstract boolean slotFetched(String slot, Bucket result, SlotManager slotManager);
+
+		/**
+		 * Handles a failed fetch.
+		 * @param slot the slot
+		 * @param e the reason the fetch failed
+		 * @param slotManager the slot manager of this sequence
+		 * @return {@code false} if polling of this sequence should stop
+		 */
+		protected abstract boolean slotFailed(String slot, FCPException e, SlotManager slotManager);
+	}
+}
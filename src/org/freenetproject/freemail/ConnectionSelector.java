@@ -0,0 +1,226 @@
+/*
+ * ConnectionSelector.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Serves the connections of a {@link ServerListener} using a small pool of worker threads.
+ * Handlers run on a worker while they process commands, and park their connection here when they
+ * would otherwise block waiting for the next one. A single thread waits for parked connections to
+ * become readable and hands them back to the workers, so idle clients don't hold on to a thread.
+ */
+class ConnectionSelector implements Runnable {
+	/** How often parked connections are checked for idle timeouts */
+	private static final long TIMEOUT_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+	private final Selector selector;
+	private final ThreadPoolExecutor workers;
+
+	/** Handlers that have parked their connection but haven't been registered yet */
+	private final Queue<ServerHandler> pending = new ConcurrentLinkedQueue<ServerHandler>();
+
+	/** Handlers that want to be run again without waiting for their client */
+	private final Queue<ServerHandler> woken = new ConcurrentLinkedQueue<ServerHandler>();
+
+	private volatile boolean running = true;
+
+	ConnectionSelector(String name, int workerThreads) throws IOException {
+		selector = Selector.open();
+		workers = new ThreadPoolExecutor(workerThreads, workerThreads, 1, TimeUnit.MINUTES,
+				new LinkedBlockingQueue<Runnable>(),
+				new Freemail.FreemailThreadFactory("Freemail " + name + " worker", true));
+		workers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Starts running {@code handler} on one of the workers.
+	 * @param handler the handler of a newly accepted connection
+	 */
+	void start(ServerHandler handler) {
+		handler.setSelector(this);
+		execute(handler, handler);
+	}
+
+	/**
+	 * Parks the connection of {@code handler} until the client sends more data, at which point
+	 * the handler is run again. The handler must return from {@code run()} right after calling
+	 * this, and must not have any buffered input.
+	 * @param handler the handler whose connection should be parked
+	 * @throws IOException if the connection couldn't be switched to non-blocking mode
+	 */
+	void park(ServerHandler handler) throws IOException {
+		SocketChannel channel = handler.client.getChannel();
+		channel.configureBlocking(false);
+		handler.parkedSince = System.currentTimeMillis();
+		pending.add(handler);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs {@code handler} again as soon as its connection is parked, or right away if it is
+	 * parked already. See {@link ServerHandler#wakeUp()}.
+	 * @param handler the handler to run
+	 */
+	void wake(ServerHandler handler) {
+		woken.add(handler);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(running) {
+				selector.select(TIMEOUT_CHECK_INTERVAL);
+
+				//Handlers that are run again, either because their client sent something or
+				//because they were woken up
+				Set<ServerHandler> readable = new LinkedHashSet<ServerHandler>();
+
+				ServerHandler handler;
+				while((handler = pending.poll()) != null) {
+					try {
+						SelectionKey key = handler.client.getChannel().register(selector, SelectionKey.OP_READ, handler);
+						if(handler.wakeRequested) {
+							//Woken up while it was parking
+							key.cancel();
+							readable.add(handler);
+						}
+					} catch(ClosedChannelException e) {
+						//Closed while it was parked, so there is nothing more to do
+					}
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					key.cancel();
+					readable.add((ServerHandler)key.attachment());
+				}
+
+				while((handler = woken.poll()) != null) {
+					//Handlers that aren't parked will see the request when they park
+					SelectionKey key = handler.client.getChannel().keyFor(selector);
+					if(key != null && key.isValid()) {
+						key.cancel();
+						readable.add(handler);
+					}
+				}
+
+				List<ServerHandler> timedOut = new ArrayList<ServerHandler>();
+				long now = System.currentTimeMillis();
+				for(SelectionKey key : selector.keys()) {
+					ServerHandler h = (ServerHandler)key.attachment();
+					int timeout = h.getIdleTimeout();
+					if(key.isValid() && timeout > 0 && now - h.parkedSince > timeout) {
+						key.cancel();
+						timedOut.add(h);
+					}
+				}
+
+				if(readable.isEmpty() && timedOut.isEmpty()) {
+					continue;
+				}
+
+				//Cancelled keys are only removed by the next select, and the channels can't be
+				//switched back to blocking mode until they are
+				selector.selectNow();
+
+				for(ServerHandler h : readable) {
+					resume(h, h);
+				}
+				for(final ServerHandler h : timedOut) {
+					resume(h, new Runnable() {
+						@Override
+						public void run() {
+							h.idleTimeout();
+						}
+					});
+				}
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Caught IOException in connection selector: " + e.getMessage(), e);
+		} finally {
+			try {
+				selector.close();
+			} catch(IOException e) {
+				//Nothing more we can do
+			}
+			workers.shutdown();
+		}
+	}
+
+	private void resume(ServerHandler handler, Runnable task) {
+		handler.wakeRequested = false;
+		try {
+			handler.client.getChannel().configureBlocking(true);
+		} catch(IOException e) {
+			Logger.debug(this, "Couldn't resume connection: " + e.getMessage());
+			handler.kill();
+			return;
+		}
+		execute(handler, task);
+	}
+
+	private void execute(ServerHandler handler, Runnable task) {
+		try {
+			workers.execute(task);
+		} catch(RejectedExecutionException e) {
+			//We are shutting down
+			handler.kill();
+		}
+	}
+
+	/**
+	 * Stops the selector. Parked connections are left as they are, so they should be closed by
+	 * the caller.
+	 */
+	void kill() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Waits for the running handlers to finish. This must only be called after {@link #kill()}.
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	void awaitTermination() throws InterruptedException {
+		workers.shutdown();
+		workers.awaitTermination(1, TimeUnit.HOURS);
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * FolderEvents.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Tells interested parties, such as IMAP clients waiting in IDLE, about changes to message
+ * folders: messages that are added or removed and flags that change. The events are published by
+ * {@link MailMessage} when it changes the files of the folder, so they are sent no matter how the
+ * change was made.
+ *
+ * Listeners are called on the thread that made the change, while it is in the middle of its own
+ * work, so they must return quickly and must not call back into the folder.
+ */
+public class FolderEvents {
+	private static final Map<File, List<Listener>> listeners = new HashMap<File, List<Listener>>();
+
+	public interface Listener {
+		void folderChanged(Event event);
+	}
+
+	public static class Event {
+		public enum Type {
+			/** A message was added to the folder */
+			ADDED,
+			/** A message was removed from the folder */
+			REMOVED,
+			/** The flags of a message changed */
+			FLAGS_CHANGED
+		}
+
+		public final Type type;
+		public final int uid;
+
+		/** The flags of the message in IMAP form, only set for {@link Type#FLAGS_CHANGED} */
+		public final String flags;
+
+		public Event(Type type, int uid, String flags) {
+			this.type = type;
+			this.uid = uid;
+			this.flags = flags;
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + uid + (flags == null ? "" : " (" + flags + ")");
+		}
+	}
+
+	/**
+	 * Starts sending the events of the folder stored in {@code dir} to {@code listener}.
+	 * @param dir the directory of the folder
+	 * @param listener the listener to add
+	 */
+	public static void addListener(File dir, Listener listener) {
+		File key = dir.getAbsoluteFile();
+		synchronized(listeners) {
+			List<Listener> folderListeners = listeners.get(key);
+			if(folderListeners == null) {
+				folderListeners = new CopyOnWriteArrayList<Listener>();
+				listeners.put(key, folderListeners);
+			}
+			folderListeners.add(listener);
+		}
+	}
+
+	/**
+	 * Stops sending events of the folder stored in {@code dir} to {@code listener}.
+	 * @param dir the directory of the folder
+	 * @param listener the listener to remove
+	 */
+	public static void removeListener(File dir, Listener listener) {
+		File key = dir.getAbsoluteFile();
+		synchronized(listeners) {
+			List<Listener> folderListeners = listeners.get(key);
+			if(folderListeners == null) {
+				return;
+			}
+			folderListeners.remove(listener);
+			if(folderListeners.isEmpty()) {
+				listeners.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Sends {@code event} to the listeners of the folder stored in {@code dir}.
+	 * @param dir the directory of the folder
+	 * @param event the event to send
+	 */
+	static void publish(File dir, Event event) {
+		List<Listener> folderListeners;
+		synchronized(listeners) {
+			if(listeners.isEmpty()) {
+				return;
+			}
+			folderListeners = listeners.get(dir.getAbsoluteFile());
+		}
+		if(folderListeners == null) {
+			return;
+		}
+
+		for(Listener listener : folderListeners) {
+			try {
+				listener.folderChanged(event);
+			} catch(RuntimeException e) {
+				Logger.error(FolderEvents.class, "Folder listener failed on " + event + ": " + e, e);
+			}
+		}
+	}
+}
@@ -33,11 +33,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.freenetproject.freemail.config.ConfigClient;
 import org.freenetproject.freemail.config.Configurator;
-import org.freenetproject.freemail.fcp.FCPConnection;
+import org.freenetproject.freemail.fcp.FCPNodeRing;
 import org.freenetproject.freemail.fcp.FCPContext;
+import org.freenetproject.freemail.fcp.FCPMessage;
 import org.freenetproject.freemail.imap.IMAPListener;
 import org.freenetproject.freemail.smtp.SMTPListener;
 import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.PropsFile;
 import org.freenetproject.freemail.utils.Timer;
 import org.freenetproject.freemail.wot.WoTConnection;
 
@@ -54,15 +56,28 @@ public abstract class Freemail implements ConfigClient {
 	protected static final String CFGFILE = BASEDIR + "/globalconfig";
 	private static final long LATEST_FILE_FORMAT = 1;
 
+	/** The directory, inside the data directory, that holds the key pairs for new accounts */
+	private static final String KEYPOOL_DIR = ".keypool";
+
 	private File datadir;
 	private static File tempdir;
-	protected static FCPConnection fcpconn = null;
+	private volatile boolean slotSubscriptions;
+	private volatile long wotCacheTime;
+	private volatile int wotMaxRequests;
+	private int accountWatchers;
+
+	/**
+	 * Runs the account watchers. It has a thread per account that may be polled at the same time,
+	 * so watchers don't keep the tasks on the default executor waiting.
+	 */
+	private final ScheduledThreadPoolExecutor accountWatcherExecutor;
+	protected static FCPNodeRing fcpnodes = null;
 
-	private Thread fcpThread;
 	private Thread smtpThread;
 	private Thread imapThread;
 
 	private final AccountManager accountManager;
+	private final KeyPairPool keyPool;
 	private final SMTPListener smtpl;
 	private final IMAPListener imapl;
 
@@ -107,13 +122,32 @@ public abstract class Freemail implements ConfigClient {
 		senderExecutor.setKeepAliveTime(1, TimeUnit.HOURS);
 		senderExecutor.allowCoreThreadTimeOut(true);
 
+		configurator.register(Configurator.SLOT_SUBSCRIPTIONS, this, "false");
+		configurator.register(Configurator.WOT_CACHE_TIME, this, "300");
+		configurator.register(Configurator.WOT_MAX_REQUESTS, this, "4");
+
+		configurator.register(Configurator.ACCOUNT_WATCHERS, this, "4");
+		accountWatcherExecutor = new ScheduledThreadPoolExecutor(Math.max(1, accountWatchers),
+				new FreemailThreadFactory("Freemail account watcher"));
+		accountWatcherExecutor.setKeepAliveTime(10, TimeUnit.MINUTES);
+		accountWatcherExecutor.allowCoreThreadTimeOut(true);
+
 		FCPContext fcpctx = new FCPContext();
 		configurator.register(Configurator.FCP_HOST, fcpctx, "localhost");
 		configurator.register(Configurator.FCP_PORT, fcpctx, "9481");
+		configurator.register(Configurator.FCP_MEMORY_THRESHOLD, fcpctx, Integer.toString(FCPMessage.DEFAULT_MEMORY_THRESHOLD));
+		configurator.register(Configurator.FCP_CONNECTIONS, fcpctx, "1");
+		configurator.register(Configurator.FCP_INSERT_CONNECTIONS, fcpctx, "1");
+		configurator.register(Configurator.FCP_PERSISTENT_REQUESTS, fcpctx, "false");
+		configurator.register(Configurator.FCP_NODES, fcpctx, "");
 
-		Freemail.fcpconn = new FCPConnection(fcpctx);
+		Freemail.fcpnodes = new FCPNodeRing(fcpctx.getNodeContexts());
 
-		accountManager = new AccountManager(datadir, this);
+		keyPool = new KeyPairPool(new File(datadir, KEYPOOL_DIR));
+		configurator.register(Configurator.KEYPOOL_SIZE, keyPool, "2");
+		configurator.register(Configurator.KEYPOOL_THREADS, keyPool, "1");
+
+		accountManager = new AccountManager(datadir, this, keyPool);
 
 		imapl = new IMAPListener(accountManager, configurator);
 		smtpl = new SMTPListener(accountManager, configurator, this);
@@ -127,27 +161,68 @@ public abstract class Freemail implements ConfigClient {
 		return Freemail.tempdir;
 	}
 
-	public static FCPConnection getFCPConnection() {
-		return Freemail.fcpconn;
+	public static FCPNodeRing getFCPNodes() {
+		return Freemail.fcpnodes;
 	}
 
 	public AccountManager getAccountManager() {
 		return accountManager;
 	}
 
+	/**
+	 * Returns how long, in milliseconds, identity lists fetched from WoT may be kept before they
+	 * are refreshed, or 0 if they shouldn't be kept at all.
+	 */
+	protected long getWoTCacheTime() {
+		return wotCacheTime;
+	}
+
+	/**
+	 * Returns the number of requests that may be sent to WoT at the same time.
+	 */
+	protected int getWoTMaxRequests() {
+		return wotMaxRequests;
+	}
+
+	/**
+	 * Returns {@code true} if channels should wait for messages using fetches that the node keeps
+	 * retrying, instead of polling their slots every few minutes.
+	 */
+	public boolean useSlotSubscriptions() {
+		return slotSubscriptions;
+	}
+
 	@Override
 	public void setConfigProp(String key, String val) {
 		if(key.equalsIgnoreCase(Configurator.DATA_DIR)) {
 			datadir = new File(val);
 		} else if(key.equalsIgnoreCase(Configurator.TEMP_DIR)) {
 			tempdir = new File(val);
+		} else if(key.equalsIgnoreCase(Configurator.SLOT_SUBSCRIPTIONS)) {
+			slotSubscriptions = Boolean.parseBoolean(val);
+		} else if(key.equalsIgnoreCase(Configurator.WOT_CACHE_TIME)) {
+			try {
+				wotCacheTime = TimeUnit.SECONDS.toMillis(Long.parseLong(val));
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Invalid " + Configurator.WOT_CACHE_TIME + ": " + val);
+			}
+		} else if(key.equalsIgnoreCase(Configurator.ACCOUNT_WATCHERS)) {
+			try {
+				accountWatchers = Integer.parseInt(val);
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Invalid " + Configurator.ACCOUNT_WATCHERS + ": " + val);
+			}
+		} else if(key.equalsIgnoreCase(Configurator.WOT_MAX_REQUESTS)) {
+			try {
+				wotMaxRequests = Integer.parseInt(val);
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Invalid " + Configurator.WOT_MAX_REQUESTS + ": " + val);
+			}
 		}
 	}
 
 	protected void startFcp() {
-		fcpThread = new Thread(fcpconn, "Freemail FCP Connection");
-		fcpThread.setDaemon(true);
-		fcpThread.start();
+		fcpnodes.start();
 	}
 
 	/** Set once on startup */
@@ -178,6 +253,8 @@ public abstract class Freemail implements ConfigClient {
 	protected void startWorkers() {
 		//Start account watchers, channel tasks etc.
 		accountManager.startTasks();
+
+		keyPool.start();
 	}
 
 	/**
@@ -204,6 +281,9 @@ public abstract class Freemail implements ConfigClient {
 
 		defaultExecutor.shutdownNow();
 		senderExecutor.shutdownNow();
+		accountWatcherExecutor.shutdownNow();
+
+		keyPool.terminate();
 
 		Timer accountManagerTermination = terminateTimer.startSubTimer();
 		accountManager.terminate();
@@ -213,7 +293,7 @@ public abstract class Freemail implements ConfigClient {
 		smtpl.kill();
 		imapl.kill();
 		// now kill the FCP thread - that's what all the other threads will be waiting on
-		fcpconn.kill();
+		fcpnodes.kill();
 		threadTermination.log(this, 1, TimeUnit.SECONDS, "Time spent killing other threads");
 
 		// now clean up all the threads
@@ -235,11 +315,8 @@ public abstract class Freemail implements ConfigClient {
 			imapThreadJoin.log(this, 1, TimeUnit.SECONDS, "Time spent joining IMAP thread");
 
 			Timer fcpThreadJoin = terminateTimer.startSubTimer();
-			if(fcpThread != null) {
-				fcpThread.join();
-				fcpThread = null;
-			}
-			fcpThreadJoin.log(this, 1, TimeUnit.SECONDS, "Time spent joining FCP thread");
+			fcpnodes.join();
+			fcpThreadJoin.log(this, 1, TimeUnit.SECONDS, "Time spent joining FCP threads");
 		} catch (InterruptedException ie) {
 
 		}
@@ -248,11 +325,15 @@ public abstract class Freemail implements ConfigClient {
 		try {
 			defaultExecutor.awaitTermination(1, TimeUnit.HOURS);
 			senderExecutor.awaitTermination(1, TimeUnit.HOURS);
+			accountWatcherExecutor.awaitTermination(1, TimeUnit.HOURS);
 		} catch(InterruptedException e) {
 			Logger.minor(this, "Thread was interrupted while waiting for excutors to terminate.");
 		}
 		executorTermination.log(this, 1, TimeUnit.SECONDS, "Time spent waiting for executor termination");
 
+		//Write the changes that are still held by write-behind PropsFiles
+		PropsFile.flushAll();
+
 		terminateTimer.log(this, 1, TimeUnit.SECONDS, "Time spent in Freemail.terminate()");
 	}
 
@@ -262,30 +343,45 @@ public abstract class Freemail implements ConfigClient {
 			return defaultExecutor;
 		case SENDER:
 			return senderExecutor;
+		case ACCOUNT_WATCHER:
+			return accountWatcherExecutor;
 		default:
 			throw new AssertionError("Missing case " + type);
 		}
 	}
 
-	private static class FreemailThreadFactory implements ThreadFactory {
+	static class FreemailThreadFactory implements ThreadFactory {
 		private final String prefix;
+		private final boolean daemon;
 		AtomicInteger threadCount = new AtomicInteger();
 
 		public FreemailThreadFactory(String prefix) {
+			this(prefix, false);
+		}
+
+		public FreemailThreadFactory(String prefix, boolean daemon) {
 			this.prefix = prefix;
+			this.daemon = daemon;
 		}
 
 		@Override
 		public Thread newThread(Runnable runnable) {
 			String name = prefix + " " + threadCount.getAndIncrement();
 			Logger.debug(this, "Creating new thread: " + name);
-			return new Thread(runnable, name);
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(daemon);
+			return thread;
 		}
 	}
 
 	public static enum TaskType {
 		UNSPECIFIED,
-		SENDER
+		SENDER,
+		/**
+		 * Polling accounts. The number of threads is set by {@link Configurator#ACCOUNT_WATCHERS},
+		 * and changes to it take effect on restart.
+		 */
+		ACCOUNT_WATCHER
 	}
 }
 
@@ -21,6 +21,7 @@ package org.freenetproject.freemail;
 
 import java.io.File;
 import java.util.Locale;
+import java.util.concurrent.Semaphore;
 
 import org.archive.util.Base32;
 import org.freenetproject.freemail.fcp.HighLevelFCPClientFactory;
@@ -31,12 +32,16 @@ import freenet.support.Base64;
 import freenet.support.IllegalBase64Exception;
 
 public class FreemailAccount {
+	/** The maximum number of slot fetches running at the same time for one account */
+	private static final int MAX_CONCURRENT_FETCHES = 10;
+
 	private final String identity;
 	private String nickname = null;
 	private final File accdir;
 	private final PropsFile accprops;
 	private final MessageBank mb;
 	private final MessageHandler messageHandler;
+	private final Semaphore fetchPermits = new Semaphore(MAX_CONCURRENT_FETCHES);
 
 	FreemailAccount(String identity, File _accdir, PropsFile _accprops, Freemail freemail) {
 		if(!FreenetURI.checkSSKHash(identity)) {
@@ -55,7 +60,7 @@ public class FreemailAccount {
 
 		File channelDir = new File(accdir, "channel");
 		messageHandler = new MessageHandler(new File(accdir, "outbox"), freemail, channelDir, this,
-		                                    new HighLevelFCPClientFactory());
+		                                    new HighLevelFCPClientFactory(identity));
 	}
 
 	public void startTasks() {
@@ -101,4 +106,14 @@ public class FreemailAccount {
 	public MessageHandler getMessageHandler() {
 		return messageHandler;
 	}
+
+	/**
+	 * Returns the semaphore limiting the number of slot fetches that can run at the same time on
+	 * behalf of this account. It should be passed to every {@link ConcurrentSlotPoller} polling
+	 * for the account.
+	 * @return the fetch permits of this account
+	 */
+	public Semaphore getFetchPermits() {
+		return fetchPermits;
+	}
 }
@@ -73,11 +73,13 @@ public class FreemailPlugin extends Freemail implements FredPlugin, FredPluginBa
 
 		startFcp();
 
+		//The key pool started by startWorkers() needs the RNG
+		Freemail.setRNG(pr.getNode().secureRandom);
+
 		Timer workers = runTime.startSubTimer();
 		startWorkers();
 		workers.log(this, 1, TimeUnit.SECONDS, "Time spent starting workers");
 
-		Freemail.setRNG(pr.getNode().secureRandom);
 		startServers(true);
 		startIdentityFetch(pr, getAccountManager());
 
@@ -136,7 +138,8 @@ public class FreemailPlugin extends Freemail implements FredPlugin, FredPluginBa
 				return null;
 			}
 
-			wotConnection = WoTConnections.wotConnection(pluginRespirator);
+			wotConnection = WoTConnections.wotConnection(pluginRespirator, getWoTMaxRequests(),
+					getExecutor(TaskType.UNSPECIFIED), getWoTCacheTime());
 		}
 		return wotConnection;
 	}
@@ -0,0 +1,221 @@
+/*
+ * HeaderCache.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.freenetproject.freemail.MailMessage.MailMessageHeader;
+
+/**
+ * Cache of parsed message headers, shared by all {@link MailMessage}s. Messages are listed by
+ * creating new {@code MailMessage} instances, so without the cache every SEARCH, FETCH ENVELOPE
+ * and inbox listing would read and parse the headers of every message again.
+ *
+ * Entries are looked up by folder and uid, and are only used if the modification time and length
+ * of the file still match, so a message that has been rewritten is parsed again. Renaming the file
+ * to store new flags keeps both, so flag changes don't invalidate the entry. The cache is bounded
+ * by the total length of the cached headers, and the least recently used entries are dropped
+ * first.
+ */
+class HeaderCache {
+	/** Maximum total length of the cached header names and values, in characters */
+	private static final long MAX_WEIGHT = 2 * 1024 * 1024;
+
+	private static final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private static long weight = 0;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	private HeaderCache() {
+	}
+
+	/**
+	 * Returns the cached headers of the message stored in {@code file}, or {@code null} if they
+	 * aren't cached or the file has changed since they were.
+	 * @param file the file backing the message
+	 * @return the headers of the message, or {@code null}
+	 */
+	static List<MailMessageHeader> get(File file) {
+		Key key = Key.forFile(file);
+		if(key == null) {
+			return null;
+		}
+
+		long lastModified = file.lastModified();
+		long length = file.length();
+		synchronized(HeaderCache.class) {
+			Entry entry = entries.get(key);
+			if(entry != null && entry.lastModified == lastModified && entry.length == length) {
+				hits.incrementAndGet();
+				return entry.headers;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches the headers of the message stored in {@code file}. The headers are copied into an
+	 * immutable list that is shared by all the messages that later read the same file.
+	 * @param file the file backing the message
+	 * @param lastModified the modification time of the file before the headers were read
+	 * @param length the length of the file before the headers were read
+	 * @param headers the headers that were read from the file
+	 * @return the immutable copy of {@code headers}
+	 */
+	static List<MailMessageHeader> put(File file, long lastModified, long length, List<MailMessageHeader> headers) {
+		MailMessageHeader[] compact = new MailMessageHeader[headers.size()];
+		long entryWeight = 0;
+		int i = 0;
+		for(MailMessageHeader header : headers) {
+			//Header names repeat in every message, so share the strings
+			compact[i++] = new MailMessageHeader(header.name.intern(), header.val);
+			entryWeight += header.name.length() + header.val.length();
+		}
+		List<MailMessageHeader> shared = Collections.unmodifiableList(Arrays.asList(compact));
+
+		Key key = Key.forFile(file);
+		if(key == null || lastModified == 0 || entryWeight > MAX_WEIGHT) {
+			return shared;
+		}
+
+		Entry entry = new Entry(lastModified, length, shared, entryWeight);
+		synchronized(HeaderCache.class) {
+			Entry old = entries.put(key, entry);
+			if(old != null) {
+				weight -= old.weight;
+			}
+			weight += entryWeight;
+
+			Iterator<Entry> it = entries.values().iterator();
+			while(weight > MAX_WEIGHT && it.hasNext()) {
+				weight -= it.next().weight;
+				it.remove();
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Drops the cached headers of the message stored in {@code file}. This must be called before
+	 * the file is rewritten or deleted, since the modification time alone might not change.
+	 * @param file the file backing the message
+	 */
+	static void remove(File file) {
+		Key key = Key.forFile(file);
+		if(key == null) {
+			return;
+		}
+
+		synchronized(HeaderCache.class) {
+			Entry old = entries.remove(key);
+			if(old != null) {
+				weight -= old.weight;
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached headers of all the messages in {@code folder}.
+	 * @param folder the folder that is being deleted
+	 */
+	static void removeFolder(File folder) {
+		File absolute = folder.getAbsoluteFile();
+		synchronized(HeaderCache.class) {
+			Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+			while(it.hasNext()) {
+				Map.Entry<Key, Entry> mapEntry = it.next();
+				if(mapEntry.getKey().folder.equals(absolute)) {
+					weight -= mapEntry.getValue().weight;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	static long getHits() {
+		return hits.get();
+	}
+
+	static long getMisses() {
+		return misses.get();
+	}
+
+	private static class Key {
+		private final File folder;
+		private final int uid;
+
+		private Key(File folder, int uid) {
+			this.folder = folder;
+			this.uid = uid;
+		}
+
+		/**
+		 * Returns the key of the message stored in {@code file}, or {@code null} if the file name
+		 * doesn't start with a uid.
+		 */
+		private static Key forFile(File file) {
+			String name = file.getName();
+			int end = name.indexOf(',');
+			try {
+				int uid = Integer.parseInt(end == -1 ? name : name.substring(0, end));
+				return new Key(file.getAbsoluteFile().getParentFile(), uid);
+			} catch(NumberFormatException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * folder.hashCode() + uid;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key)obj;
+			return uid == other.uid && folder.equals(other.folder);
+		}
+	}
+
+	private static class Entry {
+		private final long lastModified;
+		private final long length;
+		private final List<MailMessageHeader> headers;
+		private final long weight;
+
+		private Entry(long lastModified, long length, List<MailMessageHeader> headers, long weight) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.headers = headers;
+			this.weight = weight;
+		}
+	}
+}
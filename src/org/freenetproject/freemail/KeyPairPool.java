@@ -0,0 +1,309 @@
+/*
+ * KeyPairPool.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.freenetproject.freemail.config.ConfigClient;
+import org.freenetproject.freemail.config.Configurator;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Keeps a few RSA key pairs ready for new accounts, since generating a key pair takes minutes.
+ * The key pairs are generated by low priority background threads and stored in a directory of
+ * their own, so they survive restarts. The directory and the files in it are only accessible by
+ * the owner, which is the same protection the account files holding the keys in use get.
+ */
+class KeyPairPool implements ConfigClient {
+	private static final int ASYM_KEY_MODULUS_LENGTH = 4096;
+	private static final BigInteger ASYM_KEY_EXPONENT = new BigInteger("17", 10);
+	private static final int ASYM_KEY_CERTAINTY = 80;
+
+	private static final String KEY_SUFFIX = ".key";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String CLAIMED_SUFFIX = ".claimed";
+
+	private final File dir;
+
+	/** The number of key pairs to keep ready */
+	private volatile int size = 2;
+
+	/** The number of key pairs that are generated at the same time */
+	private int threads = 1;
+
+	/** Is {@code null} until {@link #start()} is called. Guarded by this */
+	private ThreadPoolExecutor executor = null;
+
+	/** The number of key pairs that are being generated. Guarded by this */
+	private int generating = 0;
+
+	KeyPairPool(File dir) {
+		this.dir = dir;
+	}
+
+	@Override
+	public void setConfigProp(String key, String val) {
+		try {
+			if(key.equalsIgnoreCase(Configurator.KEYPOOL_SIZE)) {
+				size = Math.max(0, Integer.parseInt(val));
+				refill();
+			} else if(key.equalsIgnoreCase(Configurator.KEYPOOL_THREADS)) {
+				setThreads(Math.max(1, Integer.parseInt(val)));
+			}
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Invalid value for " + key + ": " + val);
+		}
+	}
+
+	private synchronized void setThreads(int threads) {
+		this.threads = threads;
+		if(executor == null) {
+			return;
+		}
+
+		//The core size can't be larger than the maximum size, so change them in the right order
+		if(threads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		} else {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * Makes the pool directory accessible only by the owner, so the key pairs are never readable
+	 * by others, not even right after their file has been created, and starts generating key
+	 * pairs until the pool is full. This needs the random number generator
+	 * to be set, see {@link Freemail#setRNG(java.security.SecureRandom)}.
+	 */
+	void start() {
+		if(!dir.exists() && !dir.mkdirs()) {
+			Logger.error(this, "Couldn't create key pool directory " + dir);
+			return;
+		}
+
+		//Done before any key pair is generated, since the owner loses access for a moment as well
+		if(!restrictToOwner(dir) || !dir.setExecutable(false, false) || !dir.setExecutable(true, true)) {
+			//E.g. on file systems without these permissions
+			Logger.minor(this, "Couldn't restrict access to " + dir);
+		}
+
+		//Remove key pairs that were being written or taken when we were stopped
+		deleteAll(TEMP_SUFFIX);
+		deleteAll(CLAIMED_SUFFIX);
+
+		synchronized(this) {
+			executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+					new LinkedBlockingQueue<Runnable>(),
+					new Freemail.FreemailThreadFactory("Freemail key generator", true));
+			executor.allowCoreThreadTimeOut(true);
+		}
+		refill();
+	}
+
+	synchronized void terminate() {
+		if(executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns a key pair from the pool, or generates one if the pool is empty. The returned key
+	 * pair is removed from the pool, and a new one is generated to replace it.
+	 */
+	AsymmetricCipherKeyPair take() {
+		AsymmetricCipherKeyPair keyPair = null;
+		synchronized(this) {
+			for(File file : listKeys()) {
+				//Move the file out of the pool before using the key pair, so it can't be used twice
+				File claimed = new File(dir, file.getName() + CLAIMED_SUFFIX);
+				if(!file.renameTo(claimed)) {
+					Logger.error(this, "Couldn't take key pair " + file + " from the pool");
+					continue;
+				}
+				keyPair = read(claimed);
+				if(!claimed.delete()) {
+					Logger.error(this, "Couldn't delete used key pair " + claimed);
+				}
+				if(keyPair != null) {
+					break;
+				}
+			}
+		}
+		refill();
+
+		if(keyPair == null) {
+			Logger.normal(this, "No key pair ready, generating one (this could take a few minutes)...");
+			keyPair = generate();
+		}
+		return keyPair;
+	}
+
+	static AsymmetricCipherKeyPair generate() {
+		RSAKeyGenerationParameters kparams = new RSAKeyGenerationParameters(ASYM_KEY_EXPONENT,
+				Freemail.getRNG(), ASYM_KEY_MODULUS_LENGTH, ASYM_KEY_CERTAINTY);
+
+		RSAKeyPairGenerator kpg = new RSAKeyPairGenerator();
+		kpg.init(kparams);
+		return kpg.generateKeyPair();
+	}
+
+	private synchronized void refill() {
+		if(executor == null || executor.isShutdown()) {
+			return;
+		}
+
+		int stored = listKeys().length;
+		while(stored + generating < size) {
+			generating++;
+			try {
+				executor.execute(new Generator());
+			} catch(RejectedExecutionException e) {
+				generating--;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Adds {@code keyPair} to the pool.
+	 * @return {@code true} if the key pair was stored
+	 */
+	boolean store(AsymmetricCipherKeyPair keyPair) {
+		RSAKeyParameters pub = (RSAKeyParameters)keyPair.getPublic();
+		RSAKeyParameters priv = (RSAKeyParameters)keyPair.getPrivate();
+		String contents = pub.getModulus().toString(32) + "\n"
+				+ pub.getExponent().toString(32) + "\n"
+				+ priv.getExponent().toString(32) + "\n";
+
+		File temp = null;
+		try {
+			//Nobody else can open the file since the directory is only accessible by us, but keep
+			//the file itself private as well in case the directory is moved or copied
+			temp = File.createTempFile("keypair", TEMP_SUFFIX, dir);
+			restrictToOwner(temp);
+
+			OutputStream os = new FileOutputStream(temp);
+			try {
+				os.write(contents.getBytes("UTF-8"));
+			} finally {
+				os.close();
+			}
+
+			String name = temp.getName();
+			File key = new File(dir, name.substring(0, name.length() - TEMP_SUFFIX.length()) + KEY_SUFFIX);
+			if(!temp.renameTo(key)) {
+				throw new IOException("Couldn't rename " + temp + " to " + key);
+			}
+			return true;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't store key pair: " + e.getMessage());
+			if(temp != null) {
+				temp.delete();
+			}
+			return false;
+		}
+	}
+
+	private AsymmetricCipherKeyPair read(File file) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				BigInteger modulus = new BigInteger(reader.readLine(), 32);
+				BigInteger pubExponent = new BigInteger(reader.readLine(), 32);
+				BigInteger privExponent = new BigInteger(reader.readLine(), 32);
+				return new AsymmetricCipherKeyPair(new RSAKeyParameters(false, modulus, pubExponent),
+						new RSAKeyParameters(true, modulus, privExponent));
+			} finally {
+				reader.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read key pair from " + file + ": " + e.getMessage());
+		} catch(RuntimeException e) {
+			//readLine() returned null or the file was otherwise corrupt
+			Logger.error(this, "Corrupt key pair in " + file + ": " + e);
+		}
+		return null;
+	}
+
+	private static boolean restrictToOwner(File file) {
+		return file.setReadable(false, false) && file.setReadable(true, true)
+				&& file.setWritable(false, false) && file.setWritable(true, true);
+	}
+
+	private void deleteAll(String suffix) {
+		File[] files = dir.listFiles(new SuffixFilter(suffix));
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	private File[] listKeys() {
+		File[] keys = dir.listFiles(new SuffixFilter(KEY_SUFFIX));
+		return keys == null ? new File[0] : keys;
+	}
+
+	private class Generator implements Runnable {
+		@Override
+		public void run() {
+			Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+			try {
+				Logger.minor(this, "Generating key pair for the pool");
+				store(generate());
+			} finally {
+				synchronized(KeyPairPool.this) {
+					generating--;
+				}
+			}
+		}
+	}
+
+	private static class SuffixFilter implements FilenameFilter {
+		private final String suffix;
+
+		private SuffixFilter(String suffix) {
+			this.suffix = suffix;
+		}
+
+		@Override
+		public boolean accept(File dir, String name) {
+			return name.endsWith(suffix);
+		}
+	}
+}
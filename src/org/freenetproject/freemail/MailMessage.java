@@ -29,11 +29,16 @@ import java.io.BufferedReader;
 import java.io.PrintStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
@@ -52,6 +57,7 @@ import java.util.Vector;
 
 import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.Hex;
+import org.freenetproject.freemail.imap.FolderKeywords;
 import org.freenetproject.freemail.imap.IMAPMessageFlags;
 import org.freenetproject.freemail.utils.Logger;
 
@@ -68,33 +74,60 @@ public class MailMessage {
 	private File file;
 	private OutputStream os;
 	private PrintStream ps;
-	private final List<MailMessageHeader> headers;
+	private List<MailMessageHeader> headers;
+
+	/** {@code true} if {@link #headers} is the immutable list shared through {@link HeaderCache} */
+	private boolean headersShared = false;
 	private BufferedReader brdr;
 	private int msg_seqnum = 0;
 	public IMAPMessageFlags flags;
 	private static final Random messageIdRandom = new Random();
 
+	/** The index of the folder this message is stored in, or {@code null} if there isn't one */
+	private final MessageIndex index;
+
+	/** The size of the message as sent to IMAP clients, or -1 if it hasn't been computed yet */
+	private long size;
+
+	/** Builds the MIME structure of the message while it is being written */
+	private MimeStructure.Parser parser;
+
+	/** The MIME structure of the message, or {@code null} if it hasn't been loaded yet */
+	private MimeStructure structure;
+
+
 	public MailMessage(File f, int msg_seqnum) {
+		this(f, msg_seqnum, null, -1);
+	}
+
+	MailMessage(File f, int msg_seqnum, MessageIndex index, long size) {
 		this.file = f;
+		this.index = index;
+		this.size = size;
 		this.headers = new Vector<MailMessageHeader>();
 		this.msg_seqnum=msg_seqnum;
 
 		// initialize flags from filename
-		String[] parts = f.getName().split(",");
-		if(parts.length < 2 && !f.getName().endsWith(",")) {
+		FolderKeywords keywords;
+		if(index != null) {
+			keywords = index.getKeywords();
+		} else {
+			keywords = FolderKeywords.forDirectory(f.getAbsoluteFile().getParentFile());
+		}
+		String name = f.getName();
+		int flagsStart = name.indexOf(',');
+		if(flagsStart == -1) {
 			// treat it as a new message
-			this.flags = new IMAPMessageFlags();
+			this.flags = new IMAPMessageFlags("", keywords);
 			this.flags.setRecent();
-		} else if(parts.length < 2) {
-			// just doesn't have any flags set
-			this.flags = new IMAPMessageFlags();
 		} else {
-			this.flags = new IMAPMessageFlags(parts[1]);
+			this.flags = new IMAPMessageFlags(name.substring(flagsStart + 1), keywords);
 		}
 		this.brdr = null;
 	}
 
 	public void addHeader(String name, String val) {
+		unshareHeaders();
 		this.headers.add(new MailMessageHeader(name, val));
 	}
 
@@ -170,6 +203,7 @@ public class MailMessage {
 	}
 
 	public void removeHeader(String name, String val) {
+		unshareHeaders();
 		Iterator<MailMessageHeader> headerIt = headers.iterator();
 		while(headerIt.hasNext()) {
 			MailMessageHeader header = headerIt.next();
@@ -179,6 +213,13 @@ public class MailMessage {
 		}
 	}
 
+	private void unshareHeaders() {
+		if(headersShared) {
+			headers = new Vector<MailMessageHeader>(headers);
+			headersShared = false;
+		}
+	}
+
 	public String getAllHeadersAsString() {
 		StringBuffer buf = new StringBuffer();
 
@@ -193,8 +234,7 @@ public class MailMessage {
 	}
 
 	public PrintStream writeHeadersAndGetStream() throws FileNotFoundException {
-		this.os = new FileOutputStream(this.file);
-		this.ps = new PrintStream(this.os);
+		openStream();
 
 		for(MailMessageHeader header : headers) {
 			this.ps.println(header.name + ": " + header.val);
@@ -213,12 +253,23 @@ public class MailMessage {
 	 * @throws FileNotFoundException if the backing file doesn't exist
 	 */
 	public PrintStream getRawStream() throws FileNotFoundException {
-		this.os = new FileOutputStream(this.file);
-		this.ps = new PrintStream(this.os);
+		openStream();
 
 		return this.ps;
 	}
 
+	private void openStream() throws FileNotFoundException {
+		HeaderCache.remove(file);
+		MimeStructure.delete(file);
+
+		//Messages are stored with CRLF line endings so they can be sent as is
+		this.parser = new MimeStructure.Parser(new FileOutputStream(this.file));
+		this.os = new CRLFOutputStream(parser);
+		this.ps = new PrintStream(this.os);
+		this.size = -1;
+		this.structure = null;
+	}
+
 	public void commit() {
 		try {
 			this.os.close();
@@ -227,6 +278,19 @@ public class MailMessage {
 		} catch (IOException ioe) {
 
 		}
+
+		//The file is in canonical form, so its size is the size of the message
+		this.size = file.length();
+		if(index != null) {
+			index.setSize(getUID(), size);
+		}
+
+		//Store the structure now so that fetching parts of the message doesn't have to parse it
+		this.structure = parser.finish();
+		this.parser = null;
+		structure.write(file, size);
+
+		publish(FolderEvents.Event.Type.ADDED, null);
 	}
 
 	public void cancel() {
@@ -234,14 +298,47 @@ public class MailMessage {
 			this.os.close();
 		} catch (IOException ioe) {
 		}
-		this.file.delete();
+		HeaderCache.remove(file);
+		MimeStructure.delete(file);
+		deleteFile();
 	}
 
 	public void readHeaders() throws IOException {
+		if(this.headers.size() > 0 || useCachedHeaders()) return;
+
+		long lastModified = file.lastModified();
+		long length = file.length();
 		BufferedReader bufrdr = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+		try {
+			this.readHeaders(bufrdr);
+		} finally {
+			bufrdr.close();
+		}
+		shareHeaders(lastModified, length);
+	}
+
+	/**
+	 * Uses the headers cached for the backing file if there are any.
+	 * @return {@code true} if the cached headers were used
+	 */
+	private boolean useCachedHeaders() {
+		List<MailMessageHeader> cached = HeaderCache.get(file);
+		if(cached == null) {
+			return false;
+		}
 
-		this.readHeaders(bufrdr);
-		bufrdr.close();
+		this.headers = cached;
+		this.headersShared = true;
+		return true;
+	}
+
+	/**
+	 * Replaces the headers that were just read from the backing file by the copy stored in the
+	 * header cache.
+	 */
+	private void shareHeaders(long lastModified, long length) {
+		this.headers = HeaderCache.put(file, lastModified, length, headers);
+		this.headersShared = true;
 	}
 
 	public void readHeaders(BufferedReader bufrdr) throws IOException {
@@ -277,31 +374,140 @@ public class MailMessage {
 	}
 
 	public int getUID() {
-		String[] parts = this.file.getName().split(",");
-
-		return Integer.parseInt(parts[0]);
+		return MessageIndex.uidOf(this.file.getName());
 	}
 
 	public int getSeqNum() {
 		return msg_seqnum;
 	}
 
+	/**
+	 * Returns the size of the message as sent to IMAP clients, i.e. with all line endings
+	 * converted to CRLF. The size is recorded when the message is written and kept in the folder
+	 * index, so the message file is only read if the size isn't known already.
+	 * @return the size of the message
+	 * @throws IOException if the size had to be computed and the message couldn't be read
+	 */
 	public long getSize() throws IOException {
+		if(size < 0) {
+			size = computeSize();
+			if(index != null) {
+				index.setSize(getUID(), size);
+			}
+		}
+		return size;
+	}
+
+	private long computeSize() throws IOException {
 		// this is quite arduous since we have to send the message
 		// with \r\n's, and hence it may not be the size it is on disk
-		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
-		try {
-			long counter = 0;
-			String line;
+		CRLFOutputStream counter = new CRLFOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				//Only the count is needed
+			}
+		});
+		copyFile(counter);
+		counter.close();
+		return counter.getCount();
+	}
+
+	/**
+	 * Writes {@code count} bytes of the message, starting at {@code position}, to
+	 * {@code target}. The message is written with CRLF line endings, so the positions are
+	 * relative to the message as sent to IMAP clients. Messages that are stored in that form are
+	 * copied using {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which lets the
+	 * operating system move the data without copying it through Freemail.
+	 * @param position the offset of the first byte to write
+	 * @param count the maximum number of bytes to write
+	 * @param target where the bytes are written
+	 * @return the number of bytes written
+	 * @throws IOException if the message couldn't be read or written
+	 */
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		long size = getSize();
+		if(position >= size) {
+			return 0;
+		}
+		count = Math.min(count, size - position);
+
+		if(size != file.length()) {
+			//Older versions of Freemail stored messages with the platform line endings, so
+			//those have to be converted while they are sent
+			RangeOutputStream range = new RangeOutputStream(Channels.newOutputStream(target), position, count);
+			CRLFOutputStream crlf = new CRLFOutputStream(range);
+			copyFile(crlf);
+			crlf.finish();
+			return count - range.remaining;
+		}
 
-			while((line = br.readLine()) != null) {
-				counter += line.getBytes("UTF-8").length;
-				counter += "\r\n".getBytes("UTF-8").length;
+		FileInputStream is = new FileInputStream(file);
+		try {
+			FileChannel source = is.getChannel();
+			long written = 0;
+			while(written < count) {
+				long n = source.transferTo(position + written, count - written, target);
+				if(n <= 0) {
+					//The file was truncated behind our back
+					break;
+				}
+				written += n;
 			}
+			return written;
+		} finally {
+			is.close();
+		}
+	}
 
-			return counter;
+	/**
+	 * Returns the MIME structure of the message. The structure is stored when the message is
+	 * written, so it only has to be built here for messages stored by older versions of Freemail.
+	 * @return the structure of the message
+	 * @throws IOException if the structure had to be built and the message couldn't be read
+	 */
+	public MimeStructure getStructure() throws IOException {
+		if(structure == null) {
+			structure = MimeStructure.read(file, getSize());
+		}
+		if(structure == null) {
+			MimeStructure.Parser structureParser = new MimeStructure.Parser(new OutputStream() {
+				@Override
+				public void write(int b) {
+					//Only the structure is needed
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					//Only the structure is needed
+				}
+			});
+			CRLFOutputStream crlf = new CRLFOutputStream(structureParser);
+			copyFile(crlf);
+			crlf.finish();
+			structure = structureParser.finish();
+			structure.write(file, getSize());
+		}
+		return structure;
+	}
+
+	/**
+	 * Returns the range of the message that holds the given IMAP body section.
+	 * @see MimeStructure#getSectionRange(String)
+	 */
+	public long[] getSectionRange(String section) throws IOException {
+		return getStructure().getSectionRange(section);
+	}
+
+	private void copyFile(OutputStream out) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[8192];
+			int read;
+			while((read = is.read(buf)) != -1) {
+				out.write(buf, 0, read);
+			}
 		} finally {
-			br.close();
+			is.close();
 		}
 	}
 
@@ -323,13 +529,12 @@ public class MailMessage {
 	}
 
 	public boolean copyTo(MailMessage msg) {
-		this.closeStream();
-		String line;
 		try {
 			PrintStream copyps = msg.getRawStream();
 			try {
-				while((line = this.readLine()) != null) {
-					copyps.println(line);
+				long size = this.getSize();
+				if(this.transferTo(0, size, Channels.newChannel(copyps)) < size) {
+					throw new IOException("Message " + file + " is shorter than expected");
 				}
 			} finally {
 				copyps.close();
@@ -338,11 +543,9 @@ public class MailMessage {
 		} catch (IOException ioe) {
 			msg.cancel();
 			return false;
-		} finally {
-			closeStream();
 		}
 
-		msg.flags = this.flags;
+		msg.flags.copyFrom(this.flags);
 		msg.storeFlags();
 		return true;
 	}
@@ -351,25 +554,50 @@ public class MailMessage {
 	// or suchlike after calling this method is responsible for the
 	// torrent of exceptions they'll get thrown at them!
 	public void delete() {
-		this.file.delete();
+		HeaderCache.remove(file);
+		MimeStructure.delete(file);
+		deleteFile();
+		publish(FolderEvents.Event.Type.REMOVED, null);
 	}
 
 	public void storeFlags() {
-		String[] parts = this.file.getName().split(",");
-
-		String newname = parts[0] + "," + this.flags.getShortFlagString();
-		File newfile = new File(this.file.getParentFile(), newname);
-
-		if(!file.getName().equals(newfile.getName())) {
-			if(this.file.renameTo(newfile)) {
+		String name = file.getName();
+		int flagsStart = name.indexOf(',');
+		String uid = flagsStart == -1 ? name : name.substring(0, flagsStart);
+		String newname = uid + "," + this.flags.getShortFlagString();
+
+		if(!name.equals(newname)) {
+			File newfile = new File(this.file.getParentFile(), newname);
+			boolean renamed = (index != null) ? index.rename(file, newfile) : file.renameTo(newfile);
+			if(renamed) {
 				Logger.debug(this, "Message moved from " + file + " to " + newfile);
 				this.file = newfile;
+				publish(FolderEvents.Event.Type.FLAGS_CHANGED, flags.getFlags());
 			} else {
 				Logger.error(this, "Rename failed (from " + file + " to " + newfile + ")");
 			}
 		}
 	}
 
+	private void deleteFile() {
+		if(index != null) {
+			//Let the index know the change to the folder was made by us
+			index.delete(file);
+		} else {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Tells the listeners of the folder about a change to this message. Only messages that are
+	 * part of a {@link MessageBank} have listeners.
+	 */
+	private void publish(FolderEvents.Event.Type type, String flagString) {
+		if(index != null) {
+			FolderEvents.publish(file.getParentFile(), new FolderEvents.Event(type, getUID(), flagString));
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "MailMessage backed by " + file;
@@ -584,6 +812,12 @@ public class MailMessage {
 	}
 
 	public BufferedReader getBodyReader() throws IOException {
+		if(headers.size() == 0) {
+			useCachedHeaders();
+		}
+
+		long lastModified = file.lastModified();
+		long length = file.length();
 		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
 
 		//Read past the headers and store them if they haven't been read
@@ -595,6 +829,7 @@ public class MailMessage {
 			}
 		} else {
 			readHeaders(reader);
+			shareHeaders(lastModified, length);
 		}
 
 		try {
@@ -611,9 +846,9 @@ public class MailMessage {
 		}
 	}
 
-	private static class MailMessageHeader {
-		public String name;
-		public String val;
+	static class MailMessageHeader {
+		public final String name;
+		public final String val;
 
 		public MailMessageHeader(String n, String v) {
 			this.name = n;
@@ -955,4 +1190,118 @@ public class MailMessage {
 			bufOffset = 0;
 		}
 	}
+
+	/**
+	 * Converts all line endings to CRLF, treating a lone CR or LF as a line ending the same way
+	 * {@link BufferedReader#readLine()} does. An unterminated last line gets a CRLF as well when
+	 * the stream is finished or closed. The number of bytes written is counted.
+	 */
+	private static class CRLFOutputStream extends FilterOutputStream {
+		private static final byte[] CRLF = {'\r', '\n'};
+
+		private long count = 0;
+		private boolean afterCR = false;
+		private boolean inLine = false;
+		private boolean finished = false;
+
+		CRLFOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			//Write everything between line endings in one go
+			int start = off;
+			for(int i = off; i < off + len; i++) {
+				if(b[i] == '\n' && afterCR) {
+					//Second half of \r\n, the line ending has been written already
+					start = i + 1;
+					afterCR = false;
+				} else if(b[i] == '\r' || b[i] == '\n') {
+					writeOut(b, start, i - start);
+					writeOut(CRLF, 0, CRLF.length);
+					start = i + 1;
+					afterCR = (b[i] == '\r');
+					inLine = false;
+				} else {
+					afterCR = false;
+					inLine = true;
+				}
+			}
+			writeOut(b, start, off + len - start);
+		}
+
+		private void writeOut(byte[] b, int off, int len) throws IOException {
+			if(len > 0) {
+				out.write(b, off, len);
+				count += len;
+			}
+		}
+
+		/**
+		 * Terminates the last line if needed, without closing the underlying stream.
+		 */
+		void finish() throws IOException {
+			if(!finished) {
+				finished = true;
+				if(inLine) {
+					writeOut(CRLF, 0, CRLF.length);
+				}
+			}
+			out.flush();
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				finish();
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Only passes on the bytes in a given range of what is written to it.
+	 */
+	private static class RangeOutputStream extends FilterOutputStream {
+		private long skip;
+		private long remaining;
+
+		RangeOutputStream(OutputStream out, long position, long count) {
+			super(out);
+			this.skip = position;
+			this.remaining = count;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(skip > 0) {
+				int skipped = (int)Math.min(skip, len);
+				skip -= skipped;
+				off += skipped;
+				len -= skipped;
+			}
+
+			int n = (int)Math.min(remaining, len);
+			if(n > 0) {
+				out.write(b, off, n);
+				remaining -= n;
+			}
+		}
+	}
 }
@@ -31,10 +31,12 @@ import org.freenetproject.freemail.utils.PropsFile;
 
 public class MailSite {
 	private final PropsFile accprops;
+	private final String identity;
 	public static final String MAILPAGE = "mailpage";
 
-	MailSite(PropsFile a) {
-		this.accprops = a;
+	MailSite(FreemailAccount account) {
+		this.accprops = account.getProps();
+		this.identity = account.getIdentity();
 	}
 
 	private String getMailPage() {
@@ -80,7 +82,7 @@ public class MailSite {
 		String key = this.accprops.get("mailsite.privkey");
 		if(key == null) return -1;
 
-		HighLevelFCPClient cli = new HighLevelFCPClient();
+		HighLevelFCPClient cli = new HighLevelFCPClient(identity);
 
 		int actualslot = -1;
 		try {
@@ -25,18 +25,18 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.BufferedReader;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.SortedMap;
 import java.util.Vector;
 import java.util.Enumeration;
-import java.util.Comparator;
-import java.util.Arrays;
 
+import org.freenetproject.freemail.imap.FolderKeywords;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
 
@@ -51,6 +51,7 @@ public class MessageBank {
 	private final File dir;
 	private final MessageBank topLevel;
 	private final long uidValidity;
+	private final MessageIndex index;
 
 	public MessageBank(FreemailAccount account) {
 		this.dir = new File(account.getAccountDir(), MESSAGES_DIR);
@@ -58,6 +59,7 @@ public class MessageBank {
 		if(!this.dir.exists()) {
 			this.dir.mkdir();
 		}
+		this.index = MessageIndex.forDirectory(dir);
 
 		//This is the top level message bank
 		topLevel = null;
@@ -67,6 +69,7 @@ public class MessageBank {
 	private MessageBank(File d, MessageBank topLevel) {
 		this.dir = d;
 		this.topLevel = topLevel;
+		this.index = MessageIndex.forDirectory(dir);
 
 		//Read uidvalidity from propsfile or assign a new value
 		PropsFile props = PropsFile.createPropsFile(new File(dir, PROPSFILE));
@@ -90,7 +93,14 @@ public class MessageBank {
 				Logger.error(this, "Illegal uidvalidity value for " + dir + ", assigning value: " + uid);
 			}
 		}
-		props.put("uidvalidity", uid);
+		if(!Long.toString(uid).equals(s)) {
+			//Creating or replacing the props file changes the folder
+			synchronized(index) {
+				index.refresh();
+				props.put("uidvalidity", uid);
+				index.directoryChanged();
+			}
+		}
 		uidValidity = uid;
 	}
 
@@ -112,6 +122,7 @@ public class MessageBank {
 	}
 
 	public synchronized boolean delete() {
+		MimeStructure.deleteFolder(dir);
 		File[] files = this.dir.listFiles();
 
 		for(int i = 0; i < files.length; i++) {
@@ -123,63 +134,170 @@ public class MessageBank {
 			if(!files[i].delete()) return false;
 		}
 
-		return this.dir.delete();
+		MessageIndex.forget(dir);
+		FolderKeywords.forget(dir);
+		HeaderCache.removeFolder(dir);
+		PropsFile.forget(new File(dir, PROPSFILE));
+
+		//Removing the directory changes the parent folder
+		MessageIndex parentIndex = MessageIndex.forDirectory(dir.getParentFile());
+		synchronized(parentIndex) {
+			parentIndex.refresh();
+			boolean deleted = this.dir.delete();
+			parentIndex.directoryChanged();
+			return deleted;
+		}
 	}
 
-	public synchronized MailMessage createMessage() {
-		long newid = this.nextId();
-		File newfile;
-		try {
-			do {
-				newfile = new File(this.dir, Long.toString(newid));
-				newid++;
-			} while(!newfile.createNewFile());
-		} catch (IOException ioe) {
-			newfile = null;
-		}
+	/**
+	 * Starts sending the changes made to this folder to {@code listener}.
+	 * @param listener the listener to add
+	 */
+	public void addListener(FolderEvents.Listener listener) {
+		FolderEvents.addListener(dir, listener);
+	}
 
-		this.writeNextId(newid);
+	public void removeListener(FolderEvents.Listener listener) {
+		FolderEvents.removeListener(dir, listener);
+	}
 
-		if(newfile != null) {
-			MailMessage newmsg = new MailMessage(newfile, 0);
-			return newmsg;
-		}
+	/**
+	 * Returns the uids of the messages in this folder in ascending order, without reading the
+	 * messages themselves.
+	 * @return the uids of the messages in this folder
+	 */
+	public int[] listUids() {
+		return index.listUids().clone();
+	}
 
-		return null;
+	public int getMessageCount() {
+		return index.list().size();
 	}
 
-	public synchronized SortedMap<Integer, MailMessage> listMessages() {
-		File[] files = this.dir.listFiles(new MessageFileNameFilter());
+	/**
+	 * Returns the highest uid in this folder, or 0 if the folder is empty.
+	 * @return the highest uid in this folder
+	 */
+	public int getLastUid() {
+		SortedMap<Integer, MessageIndex.Entry> entries = index.list();
+		return entries.isEmpty() ? 0 : entries.lastKey().intValue();
+	}
+
+	/**
+	 * Returns the keywords that are in use in this folder.
+	 * @return the keywords of this folder
+	 */
+	public FolderKeywords getKeywords() {
+		return index.getKeywords();
+	}
+
+	public MailMessage createMessage() {
+		//Lock the index since it is shared by all MessageBanks of this folder
+		synchronized(index) {
+			index.refresh();
+			long newid = this.nextId();
+			File newfile;
+			try {
+				do {
+					newfile = new File(this.dir, Long.toString(newid));
+					newid++;
+				} while(!newfile.createNewFile());
+			} catch (IOException ioe) {
+				newfile = null;
+			}
+
+			this.writeNextId(newid);
+			MimeStructure.prepareFolder(dir);
+			index.directoryChanged();
 
-		Arrays.sort(files, new UIDComparator());
+			if(newfile != null) {
+				index.put(newfile.getName());
+				MailMessage newmsg = new MailMessage(newfile, 0, index, -1);
+				return newmsg;
+			}
+
+			return null;
+		}
+	}
 
+	/**
+	 * Returns the messages in this folder, ordered and keyed by uid. The listing comes from the
+	 * index of the folder, so the directory isn't scanned.
+	 * @return the messages in this folder
+	 */
+	public SortedMap<Integer, MailMessage> listMessages() {
 		TreeMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
 
 		int seq=1;
-		for(int i = 0; i < files.length; i++) {
-			if(files[i].isDirectory()) continue;
-
-			MailMessage msg = new MailMessage(files[i], seq++);
+		for(Map.Entry<Integer, MessageIndex.Entry> entry : index.list().entrySet()) {
+			MessageIndex.Entry value = entry.getValue();
+			MailMessage msg = new MailMessage(new File(dir, value.name), seq++, index, value.size);
 
-			msgs.put(new Integer(msg.getUID()), msg);
+			msgs.put(entry.getKey(), msg);
 		}
 
 		return msgs;
 	}
 
-	public synchronized MailMessage[] listMessagesArray() {
-		File[] files = this.dir.listFiles(new MessageFileNameFilter());
+	/**
+	 * Returns the messages in the given ranges, ordered and keyed by uid. Only the messages in the
+	 * ranges are created, so picking a few messages from a large folder is cheap.
+	 * @param starts the first number of each range, in ascending order
+	 * @param ends the last number of each range, the ranges must not overlap
+	 * @param uid {@code true} if the ranges are of uids, {@code false} if they are of sequence
+	 *            numbers
+	 * @return the messages in the ranges
+	 */
+	public SortedMap<Integer, MailMessage> listMessages(int[] starts, int[] ends, boolean uid) {
+		SortedMap<Integer, MessageIndex.Entry> entries;
+		int[] uids;
+		synchronized(index) {
+			entries = index.list();
+			uids = index.listUids();
+		}
+
+		TreeMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
+		for(int i = 0; i < starts.length; i++) {
+			if(uid) {
+				SortedMap<Integer, MessageIndex.Entry> range;
+				if(ends[i] == Integer.MAX_VALUE) {
+					range = entries.tailMap(Integer.valueOf(starts[i]));
+				} else {
+					range = entries.subMap(Integer.valueOf(starts[i]), Integer.valueOf(ends[i] + 1));
+				}
+				if(range.isEmpty()) {
+					continue;
+				}
+
+				int seq = Arrays.binarySearch(uids, range.firstKey().intValue()) + 1;
+				for(Map.Entry<Integer, MessageIndex.Entry> entry : range.entrySet()) {
+					msgs.put(entry.getKey(), newMessage(entry.getValue(), seq++));
+				}
+			} else {
+				int last = Math.min(ends[i], uids.length);
+				for(int seq = Math.max(starts[i], 1); seq <= last; seq++) {
+					Integer key = Integer.valueOf(uids[seq - 1]);
+					msgs.put(key, newMessage(entries.get(key), seq));
+				}
+			}
+		}
 
-		Arrays.sort(files, new UIDComparator());
+		return msgs;
+	}
 
-		MailMessage[] msgs = new MailMessage[files.length];
+	private MailMessage newMessage(MessageIndex.Entry entry, int seq) {
+		return new MailMessage(new File(dir, entry.name), seq, index, entry.size);
+	}
 
-		for(int i = 0; i < files.length; i++) {
-			//if(files[i].getName().startsWith(".")) continue;
+	public MailMessage[] listMessagesArray() {
+		SortedMap<Integer, MessageIndex.Entry> entries = index.list();
 
-			MailMessage msg = new MailMessage(files[i], i+1);
+		MailMessage[] msgs = new MailMessage[entries.size()];
 
-			msgs[i] = msg;
+		int i = 0;
+		for(MessageIndex.Entry entry : entries.values()) {
+			msgs[i] = new MailMessage(new File(dir, entry.name), i+1, index, entry.size);
+			i++;
 		}
 
 		return msgs;
@@ -218,21 +336,25 @@ public class MessageBank {
 
 		File targetdir = new File(this.dir, name);
 
-		//Check for a ghost directory left by old versions of Freemail
-		File ghostdir = new File(this.dir, "."+name);
-		if(ghostdir.exists()) {
-			File[] files = ghostdir.listFiles();
-			for(int i = 0; i < files.length; i++) {
-				files[i].delete();
+		boolean created;
+		synchronized(index) {
+			index.refresh();
+
+			//Check for a ghost directory left by old versions of Freemail
+			File ghostdir = new File(this.dir, "."+name);
+			if(ghostdir.exists()) {
+				File[] files = ghostdir.listFiles();
+				for(int i = 0; i < files.length; i++) {
+					files[i].delete();
+				}
+				ghostdir.delete();
 			}
-			ghostdir.delete();
-		}
 
-		if(targetdir.exists()) {
-			return null;
+			created = !targetdir.exists() && targetdir.mkdir();
+			index.directoryChanged();
 		}
 
-		if(targetdir.mkdir()) {
+		if(created) {
 			return new MessageBank(targetdir, topLevel == null ? this : topLevel);
 		}
 		return null;
@@ -270,7 +392,8 @@ public class MessageBank {
 		return uidValidity;
 	}
 
-	private synchronized long nextId() {
+	//Only called by createMessage(), which holds the lock of the index
+	private long nextId() {
 		File nidfile = new File(this.dir, NIDFILE);
 		long retval;
 
@@ -289,7 +412,7 @@ public class MessageBank {
 		return retval;
 	}
 
-	private synchronized void writeNextId(long newid) {
+	private void writeNextId(long newid) {
 		// write the new ID to a temporary file
 		File nidfile = new File(this.dir, NIDTMPFILE);
 		try {
@@ -317,64 +440,48 @@ public class MessageBank {
 		}
 
 		long uid;
-		synchronized(this) {
-			//First read the next value from the UID file
-			File uidFile = new File(dir, UIDVALIDITYFILE);
+		//Lock the index since creating the uidvalidity file changes the folder
+		synchronized(index) {
+			index.refresh();
 			try {
-				BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(uidFile), "UTF-8"));
+				//First read the next value from the UID file
+				File uidFile = new File(dir, UIDVALIDITYFILE);
 				try {
-					uid = Long.parseLong(reader.readLine());
-				} finally {
-					reader.close();
+					BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(uidFile), "UTF-8"));
+					try {
+						uid = Long.parseLong(reader.readLine());
+					} finally {
+						reader.close();
+					}
+				} catch (FileNotFoundException e) {
+					//No values have been assigned yet
+					uid = uidValidity + 1;
+				} catch (NumberFormatException e) {
+					Logger.error(this, "Uid validity file contains illegal value, starting over. This could break IMAP clients");
+					uid = uidValidity + 1;
+				} catch (IOException e) {
+					/* FIXME: This case isn't handled by callers */
+					Logger.error(this, "Caugth IOException while reading uid validity");
+					return -1;
 				}
-			} catch (FileNotFoundException e) {
-				//No values have been assigned yet
-				uid = uidValidity + 1;
-			} catch (NumberFormatException e) {
-				Logger.error(this, "Uid validity file contains illegal value, starting over. This could break IMAP clients");
-				uid = uidValidity + 1;
-			} catch (IOException e) {
-				/* FIXME: This case isn't handled by callers */
-				Logger.error(this, "Caugth IOException while reading uid validity");
-				return -1;
-			}
 
-			//Write the next uid to file
-			PrintStream ps;
-			try {
-				ps = new PrintStream(new FileOutputStream(uidFile));
-			} catch (FileNotFoundException e) {
-				Logger.error(this, "Couldn't create the uidvalidity file");
+				//Write the next uid to file
+				PrintStream ps;
+				try {
+					ps = new PrintStream(new FileOutputStream(uidFile));
+				} catch (FileNotFoundException e) {
+					Logger.error(this, "Couldn't create the uidvalidity file");
 
-				//Return -1, or else we would return the same value next time
-				return -1;
+					//Return -1, or else we would return the same value next time
+					return -1;
+				}
+				ps.print((uid + 1) % 0x100000000l);
+				ps.close();
+			} finally {
+				index.directoryChanged();
 			}
-			ps.print((uid + 1) % 0x100000000l);
-			ps.close();
 		}
 
 		return uid % 0x100000000l;
 	}
-
-	private static class MessageFileNameFilter implements FilenameFilter {
-		@Override
-		public boolean accept(File dir, String name) {
-			if(name.startsWith(".")) return false;
-			if(!name.matches("[0-9]+(,.*)?")) return false;
-			return true;
-		}
-	}
-
-	// compare to filenames by number leading up to ","
-	private static class UIDComparator implements Comparator<File> {
-		@Override
-		public final int compare (File a, File b) {
-			int ia=Integer.parseInt(a.getName().split(",", 2)[0]);
-			int ib=Integer.parseInt(b.getName().split(",", 2)[0]);
-
-			return(ia-ib);
-		}
-	}
-
-
 }
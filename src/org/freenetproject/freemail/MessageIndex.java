@@ -0,0 +1,479 @@
+/*
+ * MessageIndex.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.freenetproject.freemail.imap.FolderKeywords;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Persistent index of the messages stored in a single message folder. The index maps the uid of
+ * each message to the name of the file backing it and the size of the message as sent over IMAP,
+ * and is loaded from disk once and then kept in memory so that listing a folder doesn't require a
+ * directory scan.
+ *
+ * Changes are appended to a journal in the folder, which is rewritten when it has grown much
+ * larger than the index itself. The folder is only rescanned if the journal is missing or
+ * unreadable, or if the directory has been modified by something other than Freemail. Changes
+ * Freemail makes to the directory itself are recorded with {@link #directoryChanged()} so that
+ * they aren't mistaken for external ones.
+ *
+ * There is only one instance per folder, shared by all the {@link MessageBank}s and
+ * {@link MailMessage}s of that folder. Use {@link #forDirectory(File)} to get it.
+ */
+class MessageIndex {
+	private static final String INDEX_FILE = ".index";
+	private static final String INDEX_TMP_FILE = ".index-tmp";
+	private static final String INDEX_VERSION = "freemail-index 2";
+
+	/** Minimum number of journal lines before the journal is compacted */
+	private static final int MIN_COMPACT_LENGTH = 100;
+
+	private static final Map<File, MessageIndex> indexes = new HashMap<File, MessageIndex>();
+
+	private final File dir;
+	private final File indexFile;
+
+	/** The keywords of the folder, shared by the flags of all its messages */
+	private final FolderKeywords keywords;
+
+	/** Maps uid to index entry. Is {@code null} until the index has been loaded */
+	private SortedMap<Integer, Entry> messages = null;
+
+	/** Read-only copy of {@link #messages} returned by {@link #list()}, or {@code null} if it has to be made again */
+	private SortedMap<Integer, Entry> snapshot = null;
+
+	/** The uids of {@link #snapshot} in ascending order, or {@code null} if they have to be listed again */
+	private int[] snapshotUids = null;
+	private SortedMap<Integer, Entry> snapshotUidsSource = null;
+
+	/** Number of records in the journal, used to decide when to compact it */
+	private int journalLength;
+
+	/** The expected length of the index file, used to spot changes made behind our back */
+	private long indexLength;
+
+	/** The modification time of the folder after our last change to it */
+	private long dirLastModified;
+
+	private MessageIndex(File dir) {
+		this.dir = dir;
+		this.indexFile = new File(dir, INDEX_FILE);
+		this.keywords = FolderKeywords.forDirectory(dir);
+		this.keywords.setWriteListener(new Runnable() {
+			@Override
+			public void run() {
+				directoryChanged();
+			}
+		});
+	}
+
+	/**
+	 * Returns the index of the messages stored in {@code dir}.
+	 * @param dir the directory of the folder
+	 * @return the index of the messages stored in {@code dir}
+	 */
+	static MessageIndex forDirectory(File dir) {
+		File key = dir.getAbsoluteFile();
+		synchronized(indexes) {
+			MessageIndex index = indexes.get(key);
+			if(index == null) {
+				index = new MessageIndex(key);
+				indexes.put(key, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Drops the in-memory index of {@code dir}. This should be called when the folder is deleted.
+	 * @param dir the directory of the folder
+	 */
+	static void forget(File dir) {
+		synchronized(indexes) {
+			indexes.remove(dir.getAbsoluteFile());
+		}
+	}
+
+	/**
+	 * Returns the keywords of the folder.
+	 * @return the keywords of the folder
+	 */
+	FolderKeywords getKeywords() {
+		return keywords;
+	}
+
+	/**
+	 * Returns a read-only copy of the index, mapping uid to index entry in ascending uid order.
+	 * The same copy is returned until the index changes.
+	 * @return a copy of the index
+	 */
+	synchronized SortedMap<Integer, Entry> list() {
+		ensureCurrent();
+		if(snapshot == null) {
+			snapshot = Collections.unmodifiableSortedMap(new TreeMap<Integer, Entry>(messages));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the uids of the entries of {@link #list()} in ascending order, so that the uid of a
+	 * message can be found from its sequence number. The array must not be modified.
+	 * @return the uids in the index
+	 */
+	synchronized int[] listUids() {
+		SortedMap<Integer, Entry> entries = list();
+		if(snapshotUidsSource != entries) {
+			int[] uids = new int[entries.size()];
+			int i = 0;
+			for(Integer uid : entries.keySet()) {
+				uids[i++] = uid.intValue();
+			}
+			snapshotUids = uids;
+			snapshotUidsSource = entries;
+		}
+		return snapshotUids;
+	}
+
+	/**
+	 * Brings the index up to date with the directory. This should be called before Freemail
+	 * changes the directory, so that earlier external changes aren't hidden by
+	 * {@link #directoryChanged()}.
+	 */
+	synchronized void refresh() {
+		ensureCurrent();
+	}
+
+	/**
+	 * Records that Freemail has just changed the directory of the folder, e.g. by creating,
+	 * renaming or deleting a file in it, so that the change isn't taken for an external one and
+	 * the folder isn't rescanned. The lock of the index should be held from before the change is
+	 * made until this has been called.
+	 */
+	synchronized void directoryChanged() {
+		if(messages == null) {
+			//Not loaded yet, so there is nothing to keep current
+			return;
+		}
+
+		dirLastModified = dir.lastModified();
+		if(indexFile.lastModified() < dirLastModified) {
+			//Keep the index from looking older than the folder the next time it is loaded
+			indexFile.setLastModified(dirLastModified);
+		}
+	}
+
+	/**
+	 * Renames the message file {@code from} to {@code to} and records the new name.
+	 * @return {@code true} if the file was renamed
+	 */
+	synchronized boolean rename(File from, File to) {
+		ensureCurrent();
+		if(!from.renameTo(to)) {
+			return false;
+		}
+		directoryChanged();
+		put(to.getName());
+		return true;
+	}
+
+	/**
+	 * Deletes the message file {@code file} and removes its message from the index.
+	 */
+	synchronized void delete(File file) {
+		ensureCurrent();
+		file.delete();
+		directoryChanged();
+		remove(uidOf(file.getName()));
+	}
+
+	/**
+	 * Returns the index entry of the message with the given uid, or {@code null} if there is no
+	 * such message.
+	 * @param uid the uid of the message
+	 * @return the index entry of the message
+	 */
+	synchronized Entry get(int uid) {
+		ensureCurrent();
+		return messages.get(Integer.valueOf(uid));
+	}
+
+	/**
+	 * Records that a message file with the given name has been added to the folder, or that the
+	 * file of an existing message has been renamed to {@code name}. The size of a renamed message
+	 * is kept.
+	 * @param name the file name of the message
+	 */
+	synchronized void put(String name) {
+		ensureCurrent();
+		Integer uid = Integer.valueOf(uidOf(name));
+		Entry old = messages.get(uid);
+		put(new Entry(name, old == null ? -1 : old.size));
+	}
+
+	/**
+	 * Records the size of the message with the given uid, as sent to IMAP clients.
+	 * @param uid the uid of the message
+	 * @param size the size of the message
+	 */
+	synchronized void setSize(int uid, long size) {
+		ensureCurrent();
+		Entry old = messages.get(Integer.valueOf(uid));
+		if(old == null || old.size == size) {
+			return;
+		}
+		put(new Entry(old.name, size));
+	}
+
+	private void put(Entry entry) {
+		messages.put(Integer.valueOf(uidOf(entry.name)), entry);
+		snapshot = null;
+		append(entry.toRecord());
+	}
+
+	/**
+	 * Records that the message with the given uid has been removed from the folder.
+	 * @param uid the uid of the message
+	 */
+	synchronized void remove(int uid) {
+		ensureCurrent();
+		if(messages.remove(Integer.valueOf(uid)) != null) {
+			snapshot = null;
+			append("- " + uid);
+		}
+	}
+
+	/**
+	 * Parses the uid from the name of a message file.
+	 * @param name the file name
+	 * @return the uid of the message
+	 * @throws NumberFormatException if the name isn't a valid message file name
+	 */
+	static int uidOf(String name) {
+		int end = name.indexOf(',');
+		return Integer.parseInt(end == -1 ? name : name.substring(0, end));
+	}
+
+	/**
+	 * Makes sure the in-memory index is up to date, reloading it from disk or rescanning the
+	 * directory if needed.
+	 */
+	private void ensureCurrent() {
+		if(messages == null || indexFile.length() != indexLength) {
+			load();
+		} else if(dir.lastModified() != dirLastModified) {
+			Logger.minor(this, "Folder " + dir + " was modified externally, rescanning");
+			keywords.reload();
+			rescan();
+		}
+	}
+
+	private void load() {
+		//The folder may have been replaced, so its keywords have to be read again as well
+		keywords.reload();
+
+		if(!indexFile.exists()) {
+			Logger.minor(this, "No index in " + dir + ", scanning directory");
+			rescan();
+			return;
+		}
+		if(indexFile.lastModified() < dir.lastModified()) {
+			Logger.minor(this, "Index of " + dir + " is older than the folder, rescanning");
+			rescan();
+			return;
+		}
+
+		SortedMap<Integer, Entry> loaded = new TreeMap<Integer, Entry>();
+		int records = 0;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+			try {
+				if(!INDEX_VERSION.equals(reader.readLine())) {
+					throw new IOException("Unknown index version");
+				}
+
+				String line;
+				while((line = reader.readLine()) != null) {
+					if(line.startsWith("+ ")) {
+						Entry entry = Entry.parse(line);
+						loaded.put(Integer.valueOf(uidOf(entry.name)), entry);
+					} else if(line.startsWith("- ")) {
+						loaded.remove(Integer.valueOf(line.substring(2)));
+					} else {
+						throw new IOException("Malformed index line: " + line);
+					}
+					records++;
+				}
+			} finally {
+				reader.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read index of " + dir + ", rescanning: " + e.getMessage());
+			rescan();
+			return;
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Index of " + dir + " contains an illegal uid, rescanning");
+			rescan();
+			return;
+		}
+
+		messages = loaded;
+		snapshot = null;
+		journalLength = records;
+		indexLength = indexFile.length();
+		dirLastModified = dir.lastModified();
+	}
+
+	private void rescan() {
+		SortedMap<Integer, Entry> scanned = new TreeMap<Integer, Entry>();
+
+		File[] files = dir.listFiles(new MessageFileNameFilter());
+		if(files != null) {
+			for(File f : files) {
+				if(f.isDirectory()) continue;
+
+				//Keep the sizes of files we already knew, the rest are computed when needed
+				Integer uid = Integer.valueOf(uidOf(f.getName()));
+				Entry old = (messages == null) ? null : messages.get(uid);
+				boolean known = (old != null) && old.name.equals(f.getName());
+				scanned.put(uid, new Entry(f.getName(), known ? old.size : -1));
+			}
+		}
+
+		messages = scanned;
+		snapshot = null;
+		compact();
+	}
+
+	/**
+	 * Rewrites the journal so that it only contains the current entries.
+	 */
+	private void compact() {
+		File tmpFile = new File(dir, INDEX_TMP_FILE);
+		try {
+			OutputStream os = new FileOutputStream(tmpFile);
+			try {
+				StringBuilder buf = new StringBuilder(INDEX_VERSION).append("\n");
+				for(Entry entry : messages.values()) {
+					buf.append(entry.toRecord()).append("\n");
+				}
+				os.write(buf.toString().getBytes("UTF-8"));
+			} finally {
+				os.close();
+			}
+
+			indexFile.delete();
+			if(!tmpFile.renameTo(indexFile)) {
+				throw new IOException("Couldn't rename " + tmpFile + " to " + indexFile);
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't write index of " + dir + ": " + e.getMessage(), e);
+			tmpFile.delete();
+			indexFile.delete();
+		}
+
+		//The rename updated the folder, so make sure the index isn't considered stale
+		dirLastModified = dir.lastModified();
+		indexFile.setLastModified(dirLastModified);
+
+		journalLength = messages.size();
+		indexLength = indexFile.length();
+	}
+
+	private void append(String record) {
+		//If there is no journal on disk (e.g. because writing it failed earlier) appending would
+		//leave us with a journal that is missing entries, so write it from scratch instead
+		if(indexLength == 0 || (journalLength >= MIN_COMPACT_LENGTH && journalLength > 2 * messages.size())) {
+			compact();
+			return;
+		}
+
+		try {
+			OutputStream os = new FileOutputStream(indexFile, true);
+			try {
+				os.write((record + "\n").getBytes("UTF-8"));
+			} finally {
+				os.close();
+			}
+			journalLength++;
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't update index of " + dir + ": " + e.getMessage(), e);
+			indexFile.delete();
+		}
+
+		indexLength = indexFile.length();
+		dirLastModified = dir.lastModified();
+	}
+
+	@Override
+	public String toString() {
+		return "MessageIndex of " + dir;
+	}
+
+	/**
+	 * A single entry in the index. Entries are immutable.
+	 */
+	static class Entry {
+		/** The name of the file backing the message */
+		final String name;
+
+		/** The size of the message as sent to IMAP clients, or -1 if it isn't known */
+		final long size;
+
+		Entry(String name, long size) {
+			this.name = name;
+			this.size = size;
+		}
+
+		private String toRecord() {
+			return "+ " + size + " " + name;
+		}
+
+		private static Entry parse(String record) throws IOException {
+			String[] parts = record.split(" ", 3);
+			if(parts.length != 3) {
+				throw new IOException("Malformed index line: " + record);
+			}
+			return new Entry(parts[2], Long.parseLong(parts[1]));
+		}
+	}
+
+	static class MessageFileNameFilter implements FilenameFilter {
+		@Override
+		public boolean accept(File dir, String name) {
+			if(name.startsWith(".")) return false;
+			if(!name.matches("[0-9]+(,.*)?")) return false;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,770 @@
+/*
+ * MimeStructure.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * The MIME structure of a message: the tree of its parts, with the content type and other MIME
+ * header fields of each part, and where the header and body of each part are in the message. The
+ * offsets are relative to the message as sent to IMAP clients, i.e. with CRLF line endings, so a
+ * single part can be sent by copying its range of the message.
+ *
+ * The structure is built by {@link Parser} in a single pass over the message, and is stored next
+ * to the message so that it only has to be built once.
+ */
+public class MimeStructure {
+	private static final String STRUCTURE_DIR = ".structure";
+	private static final String STRUCTURE_VERSION = "freemail-structure 1";
+
+	private final Part root;
+
+	private MimeStructure(Part root) {
+		this.root = root;
+	}
+
+	/**
+	 * Returns the part that holds the whole message.
+	 */
+	public Part getRoot() {
+		return root;
+	}
+
+	/**
+	 * Returns the range of the message that holds the given IMAP body section, e.g. "" for the
+	 * whole message, "TEXT", "1.2" or "2.MIME". HEADER.FIELDS sections aren't ranges of the
+	 * message and aren't handled here.
+	 * @param section the section, without the brackets
+	 * @return the offset of the first byte of the section and the offset after the last one, or
+	 *         {@code null} if the section doesn't exist
+	 */
+	public long[] getSectionRange(String section) {
+		String[] parts = section.trim().toUpperCase(Locale.ROOT).split("\\.");
+		if(parts.length == 1 && parts[0].length() == 0) {
+			return new long[] {root.headerStart, root.end};
+		}
+
+		//The message that the leading part numbers lead to, and the part within it
+		Part message = root;
+		Part part = null;
+		int i = 0;
+		for(; i < parts.length; i++) {
+			int number;
+			try {
+				number = Integer.parseInt(parts[i]);
+			} catch(NumberFormatException e) {
+				break;
+			}
+
+			List<Part> numbered;
+			if(message != null) {
+				numbered = message.isMultipart() ? message.children : Collections.singletonList(message);
+			} else if(part.isMultipart()) {
+				numbered = part.children;
+			} else {
+				return null;
+			}
+			if(number < 1 || number > numbered.size()) {
+				return null;
+			}
+
+			part = numbered.get(number - 1);
+			message = part.getMessage();
+		}
+
+		if(i == parts.length) {
+			return new long[] {part.bodyStart, part.end};
+		}
+		if(i != parts.length - 1) {
+			return null;
+		}
+
+		String specifier = parts[i];
+		if(specifier.equals("MIME")) {
+			//Only numbered parts have a MIME header
+			return part == null ? null : new long[] {part.headerStart, part.bodyStart};
+		}
+		if(message == null) {
+			return null;
+		}
+		if(specifier.equals("HEADER")) {
+			return new long[] {message.headerStart, message.bodyStart};
+		}
+		if(specifier.equals("TEXT")) {
+			return new long[] {message.bodyStart, message.end};
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the structure stored for {@code messageFile}.
+	 * @param messageFile the file backing the message
+	 * @param size the size of the message as sent to IMAP clients
+	 * @return the structure, or {@code null} if there is none or it is for a different version of
+	 *         the message
+	 */
+	static MimeStructure read(File messageFile, long size) {
+		File f = fileFor(messageFile);
+		if(!f.exists()) {
+			return null;
+		}
+
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+			try {
+				if(!STRUCTURE_VERSION.equals(reader.readLine())) {
+					return null;
+				}
+				if(!Long.toString(size).equals(reader.readLine())) {
+					return null;
+				}
+
+				//Parts are stored in pre-order, each with its depth in the tree
+				LinkedList<Part> stack = new LinkedList<Part>();
+				Part root = null;
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] fields = line.split(" ");
+					int depth = Integer.parseInt(fields[0]);
+					Part part = Part.parse(fields);
+					while(stack.size() > depth) {
+						stack.removeLast();
+					}
+					if(stack.isEmpty()) {
+						if(root != null) {
+							throw new IOException("More than one root part");
+						}
+						root = part;
+					} else {
+						stack.getLast().children.add(part);
+					}
+					stack.addLast(part);
+				}
+				return root == null ? null : new MimeStructure(root);
+			} finally {
+				reader.close();
+			}
+		} catch(IOException e) {
+			Logger.error(MimeStructure.class, "Couldn't read structure " + f + ": " + e.getMessage());
+		} catch(RuntimeException e) {
+			//Malformed file, e.g. from an interrupted write
+			Logger.error(MimeStructure.class, "Couldn't parse structure " + f + ": " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * Stores this structure for {@code messageFile}.
+	 * @param messageFile the file backing the message
+	 * @param size the size of the message as sent to IMAP clients
+	 */
+	void write(File messageFile, long size) {
+		File f = fileFor(messageFile);
+		File dir = f.getParentFile();
+		if(!dir.exists() && !dir.mkdir()) {
+			Logger.error(this, "Couldn't create " + dir);
+			return;
+		}
+
+		StringBuilder buf = new StringBuilder(STRUCTURE_VERSION).append("\n");
+		buf.append(size).append("\n");
+		root.toRecords(buf, 0);
+
+		try {
+			OutputStream os = new FileOutputStream(f);
+			try {
+				os.write(buf.toString().getBytes("UTF-8"));
+			} finally {
+				os.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't write structure " + f + ": " + e.getMessage());
+			f.delete();
+		}
+	}
+
+	/**
+	 * Deletes the structure stored for {@code messageFile}, if any.
+	 */
+	static void delete(File messageFile) {
+		fileFor(messageFile).delete();
+	}
+
+	/**
+	 * Creates the directory the structures of the folder {@code dir} are stored in, if it doesn't
+	 * exist already. This changes the folder, so it is done while the folder index is locked.
+	 */
+	static void prepareFolder(File dir) {
+		File structureDir = new File(dir, STRUCTURE_DIR);
+		if(!structureDir.exists()) {
+			structureDir.mkdir();
+		}
+	}
+
+	/**
+	 * Deletes all the structures stored in the folder {@code dir}, so that the folder itself can
+	 * be deleted.
+	 */
+	static void deleteFolder(File dir) {
+		File structureDir = new File(dir, STRUCTURE_DIR);
+		File[] files = structureDir.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				f.delete();
+			}
+		}
+		structureDir.delete();
+	}
+
+	/**
+	 * Returns the file that the structure of the message in {@code messageFile} is stored in.
+	 * The structures are kept in a subdirectory of the folder so that storing one doesn't change
+	 * the folder itself, which would make the {@link MessageIndex} rescan it.
+	 */
+	private static File fileFor(File messageFile) {
+		File dir = new File(messageFile.getAbsoluteFile().getParentFile(), STRUCTURE_DIR);
+		return new File(dir, Integer.toString(MessageIndex.uidOf(messageFile.getName())));
+	}
+
+	/**
+	 * A single part of a message. The root of a message is also a part, which holds the whole
+	 * message, and a message/rfc822 part has the part holding the enclosed message as its only
+	 * child.
+	 */
+	public static class Part {
+		private String type = "text";
+		private String subtype = "plain";
+		private final Map<String, String> params = new LinkedHashMap<String, String>();
+		private String id;
+		private String description;
+		private String encoding;
+		private String disposition;
+		private final Map<String, String> dispositionParams = new LinkedHashMap<String, String>();
+
+		private long headerStart;
+		private long bodyStart;
+		private long end;
+		private long lines;
+
+		private final List<Part> children = new ArrayList<Part>();
+
+		/** The lower case type, e.g. "text" */
+		public String getType() {
+			return type;
+		}
+
+		/** The lower case subtype, e.g. "plain" */
+		public String getSubtype() {
+			return subtype;
+		}
+
+		/** The parameters of the content type, with lower case names, in the order they were given */
+		public Map<String, String> getParams() {
+			return Collections.unmodifiableMap(params);
+		}
+
+		/** The Content-ID, or {@code null} */
+		public String getId() {
+			return id;
+		}
+
+		/** The Content-Description, or {@code null} */
+		public String getDescription() {
+			return description;
+		}
+
+		/** The Content-Transfer-Encoding, "7BIT" if not given */
+		public String getEncoding() {
+			return encoding == null ? "7BIT" : encoding;
+		}
+
+		/** The lower case disposition type, e.g. "attachment", or {@code null} */
+		public String getDisposition() {
+			return disposition;
+		}
+
+		public Map<String, String> getDispositionParams() {
+			return Collections.unmodifiableMap(dispositionParams);
+		}
+
+		/** The size of the body of the part in bytes */
+		public long getSize() {
+			return end - bodyStart;
+		}
+
+		/** The number of lines in the body of the part */
+		public long getLines() {
+			return lines;
+		}
+
+		public long getHeaderStart() {
+			return headerStart;
+		}
+
+		public long getBodyStart() {
+			return bodyStart;
+		}
+
+		public long getEnd() {
+			return end;
+		}
+
+		public boolean isMultipart() {
+			return type.equals("multipart");
+		}
+
+		/**
+		 * Returns the parts of a multipart part, in order.
+		 */
+		public List<Part> getChildren() {
+			return isMultipart() ? Collections.unmodifiableList(children) : Collections.<Part>emptyList();
+		}
+
+		/**
+		 * Returns the part holding the enclosed message if this is a message/rfc822 part, or
+		 * {@code null} otherwise.
+		 */
+		public Part getMessage() {
+			if(type.equals("message") && subtype.equals("rfc822") && !children.isEmpty()) {
+				return children.get(0);
+			}
+			return null;
+		}
+
+		private void toRecords(StringBuilder buf, int depth) {
+			buf.append(depth);
+			buf.append(' ').append(headerStart);
+			buf.append(' ').append(bodyStart);
+			buf.append(' ').append(end);
+			buf.append(' ').append(lines);
+			appendField(buf, type);
+			appendField(buf, subtype);
+			appendField(buf, id);
+			appendField(buf, description);
+			appendField(buf, encoding);
+			appendField(buf, disposition);
+			appendParams(buf, params);
+			appendParams(buf, dispositionParams);
+			buf.append('\n');
+
+			for(Part child : children) {
+				child.toRecords(buf, depth + 1);
+			}
+		}
+
+		private static void appendParams(StringBuilder buf, Map<String, String> params) {
+			buf.append(' ').append(params.size());
+			for(Map.Entry<String, String> param : params.entrySet()) {
+				appendField(buf, param.getKey());
+				appendField(buf, param.getValue());
+			}
+		}
+
+		private static void appendField(StringBuilder buf, String value) {
+			buf.append(' ');
+			if(value == null) {
+				buf.append('-');
+				return;
+			}
+			try {
+				buf.append('=').append(URLEncoder.encode(value, "UTF-8"));
+			} catch(UnsupportedEncodingException e) {
+				//JVMs are required to support UTF-8, so we can assume it is always available
+				throw new AssertionError("JVM doesn't support UTF-8 charset");
+			}
+		}
+
+		private static Part parse(String[] fields) throws UnsupportedEncodingException {
+			Part part = new Part();
+			int i = 1;
+			part.headerStart = Long.parseLong(fields[i++]);
+			part.bodyStart = Long.parseLong(fields[i++]);
+			part.end = Long.parseLong(fields[i++]);
+			part.lines = Long.parseLong(fields[i++]);
+			part.type = parseField(fields[i++]);
+			part.subtype = parseField(fields[i++]);
+			part.id = parseField(fields[i++]);
+			part.description = parseField(fields[i++]);
+			part.encoding = parseField(fields[i++]);
+			part.disposition = parseField(fields[i++]);
+			i = parseParams(fields, i, part.params);
+			parseParams(fields, i, part.dispositionParams);
+			return part;
+		}
+
+		private static int parseParams(String[] fields, int i, Map<String, String> params)
+				throws UnsupportedEncodingException {
+			int count = Integer.parseInt(fields[i++]);
+			for(int j = 0; j < count; j++) {
+				String name = parseField(fields[i++]);
+				params.put(name, parseField(fields[i++]));
+			}
+			return i;
+		}
+
+		private static String parseField(String field) throws UnsupportedEncodingException {
+			if(field.equals("-")) {
+				return null;
+			}
+			return URLDecoder.decode(field.substring(1), "UTF-8");
+		}
+	}
+
+	/**
+	 * Builds the structure of the message written to it while passing the message on, in a single
+	 * pass and without keeping more than a line of the message in memory. The message must be
+	 * written with CRLF line endings for the offsets to be right.
+	 */
+	static class Parser extends FilterOutputStream {
+		/** Lines are only kept up to this length, the rest is counted but not looked at */
+		private static final int MAX_LINE = 16 * 1024;
+		/** Header fields are only kept up to this length */
+		private static final int MAX_FIELD = 16 * 1024;
+
+		private final byte[] line = new byte[MAX_LINE];
+		private int lineLength = 0;
+		private long lineStart = 0;
+		private long position = 0;
+		private long lineCount = 0;
+		private int lastTerminator = 0;
+
+		/** The parts that haven't ended yet, outermost first */
+		private final LinkedList<OpenPart> open = new LinkedList<OpenPart>();
+		private final Part root;
+
+		Parser(OutputStream out) {
+			super(out);
+			root = new Part();
+			open.add(new OpenPart(root, false, 0));
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+
+			int start = off;
+			for(int i = off; i < off + len; i++) {
+				if(b[i] == '\n') {
+					append(b, start, i + 1 - start);
+					endOfLine();
+					start = i + 1;
+				}
+			}
+			append(b, start, off + len - start);
+		}
+
+		private void append(byte[] b, int off, int len) {
+			int n = Math.min(len, MAX_LINE - lineLength);
+			System.arraycopy(b, off, line, lineLength, n);
+			lineLength += n;
+			position += len;
+		}
+
+		/**
+		 * Returns the structure of what has been written so far, ending all the parts that are
+		 * still open.
+		 */
+		MimeStructure finish() {
+			if(position > lineStart) {
+				//Last line without a line ending
+				lastTerminator = 0;
+				endOfLine();
+			}
+
+			while(!open.isEmpty()) {
+				OpenPart part = open.removeLast();
+				part.end(position, lineCount);
+			}
+			return new MimeStructure(root);
+		}
+
+		private void endOfLine() {
+			String text = lineText();
+			long end = position;
+			int terminator = text.endsWith("\r\n") ? 2 : (text.endsWith("\n") ? 1 : 0);
+			text = text.substring(0, text.length() - terminator);
+
+			if(!handleBoundary(text)) {
+				OpenPart current = open.getLast();
+				current.line(text, end, lineCount);
+			}
+
+			lineCount++;
+			lineStart = end;
+			lastTerminator = terminator;
+			lineLength = 0;
+		}
+
+		/**
+		 * Checks if {@code text} is a boundary of one of the open multiparts, and if so ends the
+		 * parts it ends and starts the next part if there is one.
+		 */
+		private boolean handleBoundary(String text) {
+			if(!text.startsWith("--")) {
+				return false;
+			}
+
+			for(int i = open.size() - 1; i >= 0; i--) {
+				OpenPart multipart = open.get(i);
+				if(multipart.boundary == null || !text.startsWith(multipart.boundary, 2)) {
+					continue;
+				}
+
+				String rest = text.substring(2 + multipart.boundary.length());
+				boolean last = rest.startsWith("--");
+				if(last) {
+					rest = rest.substring(2);
+				}
+				if(rest.trim().length() != 0) {
+					continue;
+				}
+
+				//The line ending before the boundary is part of the boundary
+				long partEnd = lineStart - lastTerminator;
+				while(open.size() > i + 1) {
+					open.removeLast().end(partEnd, lineCount);
+				}
+
+				if(last) {
+					multipart.state = State.EPILOGUE;
+				} else {
+					multipart.state = State.BODY;
+					Part child = new Part();
+					multipart.part.children.add(child);
+					open.add(new OpenPart(child, multipart.part.subtype.equals("digest"), position));
+				}
+				return true;
+			}
+			return false;
+		}
+
+		private String lineText() {
+			try {
+				//Header fields should be ASCII, and ISO-8859-1 keeps any other bytes as they are
+				return new String(line, 0, lineLength, "ISO-8859-1");
+			} catch(UnsupportedEncodingException e) {
+				throw new AssertionError("JVM doesn't support ISO-8859-1 charset");
+			}
+		}
+
+		private enum State {
+			HEADER,
+			BODY,
+			PREAMBLE,
+			EPILOGUE
+		}
+
+		/**
+		 * A part that is still being parsed.
+		 */
+		private class OpenPart {
+			private final Part part;
+			private final boolean inDigest;
+			private State state = State.HEADER;
+			private long bodyStartLine;
+
+			/** The boundary if this is a multipart */
+			private String boundary = null;
+
+			private String fieldName = null;
+			private StringBuilder fieldValue = null;
+			private boolean seenContentType = false;
+
+			private OpenPart(Part part, boolean inDigest, long headerStart) {
+				this.part = part;
+				this.inDigest = inDigest;
+				part.headerStart = headerStart;
+				if(inDigest) {
+					part.type = "message";
+					part.subtype = "rfc822";
+				}
+			}
+
+			private void line(String text, long lineEnd, long lineNumber) {
+				if(state != State.HEADER) {
+					return;
+				}
+
+				if(text.length() == 0) {
+					endHeader();
+					part.bodyStart = lineEnd;
+					bodyStartLine = lineNumber + 1;
+					startBody(lineEnd);
+					return;
+				}
+
+				if((text.charAt(0) == ' ' || text.charAt(0) == '\t') && fieldValue != null) {
+					if(fieldValue.length() < MAX_FIELD) {
+						fieldValue.append(' ').append(text.trim());
+					}
+					return;
+				}
+
+				endHeader();
+				int colon = text.indexOf(':');
+				if(colon > 0) {
+					String name = text.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+					if(name.startsWith("content-")) {
+						fieldName = name;
+						fieldValue = new StringBuilder(text.substring(colon + 1).trim());
+					}
+				}
+			}
+
+			private void endHeader() {
+				if(fieldName == null) {
+					return;
+				}
+
+				String value = fieldValue.toString();
+				if(fieldName.equals("content-type") && !seenContentType) {
+					seenContentType = true;
+					Map<String, String> params = new LinkedHashMap<String, String>();
+					String type = parseValue(value, params);
+					int slash = type.indexOf('/');
+					if(slash > 0 && slash < type.length() - 1) {
+						part.type = type.substring(0, slash).trim();
+						part.subtype = type.substring(slash + 1).trim();
+						part.params.putAll(params);
+					}
+				} else if(fieldName.equals("content-id")) {
+					part.id = value;
+				} else if(fieldName.equals("content-description")) {
+					part.description = value;
+				} else if(fieldName.equals("content-transfer-encoding")) {
+					part.encoding = value.toUpperCase(Locale.ROOT);
+				} else if(fieldName.equals("content-disposition")) {
+					part.disposition = parseValue(value, part.dispositionParams);
+				}
+
+				fieldName = null;
+				fieldValue = null;
+			}
+
+			private void startBody(long bodyStart) {
+				if(!seenContentType && !inDigest) {
+					part.params.put("charset", "us-ascii");
+				}
+
+				if(part.isMultipart() && part.params.get("boundary") != null) {
+					boundary = part.params.get("boundary");
+					state = State.PREAMBLE;
+				} else if(part.type.equals("message") && part.subtype.equals("rfc822")) {
+					state = State.BODY;
+					Part message = new Part();
+					part.children.add(message);
+					open.add(new OpenPart(message, false, bodyStart));
+				} else {
+					state = State.BODY;
+				}
+			}
+
+			private void end(long partEnd, long lineNumber) {
+				if(state == State.HEADER) {
+					//The header never ended, so there is no body
+					endHeader();
+					part.bodyStart = Math.max(part.headerStart, partEnd);
+					bodyStartLine = lineNumber;
+					if(!seenContentType && !inDigest) {
+						part.params.put("charset", "us-ascii");
+					}
+				}
+				part.end = Math.max(part.bodyStart, partEnd);
+				part.lines = Math.max(0, lineNumber - bodyStartLine);
+			}
+		}
+
+		/**
+		 * Parses a header field value of the form {@code value; name=value; name="value"},
+		 * returning the lower case first value and adding the parameters to {@code params}.
+		 */
+		private static String parseValue(String field, Map<String, String> params) {
+			List<String> items = new ArrayList<String>();
+			StringBuilder item = new StringBuilder();
+			boolean quoted = false;
+			int comment = 0;
+			for(int i = 0; i < field.length(); i++) {
+				char c = field.charAt(i);
+				if(quoted) {
+					if(c == '\\' && i + 1 < field.length()) {
+						item.append(field.charAt(++i));
+					} else if(c == '"') {
+						quoted = false;
+					} else {
+						item.append(c);
+					}
+				} else if(comment > 0) {
+					if(c == '(') {
+						comment++;
+					} else if(c == ')') {
+						comment--;
+					}
+				} else if(c == '"') {
+					quoted = true;
+				} else if(c == '(') {
+					comment++;
+				} else if(c == ';') {
+					items.add(item.toString());
+					item = new StringBuilder();
+				} else {
+					item.append(c);
+				}
+			}
+			items.add(item.toString());
+
+			for(int i = 1; i < items.size(); i++) {
+				String param = items.get(i);
+				int eq = param.indexOf('=');
+				if(eq <= 0) {
+					continue;
+				}
+				String name = param.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+				if(!params.containsKey(name)) {
+					params.put(name, param.substring(eq + 1).trim());
+				}
+			}
+			return items.get(0).trim().toLowerCase(Locale.ROOT);
+		}
+	}
+}
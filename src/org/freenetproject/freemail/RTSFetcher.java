@@ -27,9 +27,12 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Calendar;
+import java.util.List;
 import java.util.TimeZone;
 import java.math.BigInteger;
 
@@ -55,6 +58,9 @@ import org.freenetproject.freemail.utils.DateStringFactory;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
 
+import freenet.support.api.Bucket;
+import freenet.support.io.BucketTools;
+
 
 public class RTSFetcher implements SlotSaveCallback {
 	private String rtskey;
@@ -113,15 +119,22 @@ public class RTSFetcher implements SlotSaveCallback {
 	private void fetch() throws ConnectionTerminatedException, InterruptedException {
 		int i;
 		RTSLog log = new RTSLog(new File(this.contact_dir, LOGFILE));
+		List<DaySequence> days = new ArrayList<DaySequence>();
 		for(i = 1 - MAX_DAYS_BACK; i <= 0; i++) {
 			String datestr = DateStringFactory.getOffsetKeyString(i);
 			if(log.getPasses(datestr) < PASSES_PER_DAY) {
-				boolean successfulPoll = this.fetch_day(log, datestr);
-				// don't count passes for today since more
-				// mail may arrive
-				if(i < 0 && successfulPoll) {
-					log.incPasses(datestr);
-				}
+				days.add(new DaySequence(log, datestr, i < 0));
+			}
+		}
+
+		//Poll all the days at once, sharing the fetch limit of the account
+		new ConcurrentSlotPoller(new HighLevelFCPClient(account.getIdentity()), account.getFetchPermits()).poll(days);
+
+		for(DaySequence day : days) {
+			// don't count passes for today since more
+			// mail may arrive
+			if(day.countPass && day.success) {
+				log.incPasses(day.date);
 			}
 		}
 
@@ -139,69 +152,102 @@ public class RTSFetcher implements SlotSaveCallback {
 	}
 
 	/**
-	 * @return true if the day was sucessfully polled, false if there were network-type errors and the polling shouldn't count
-	 *              as a valid check of that day's slots.
+	 * The RTS slots of a single day.
 	 */
-	private boolean fetch_day(RTSLog log, String date) throws ConnectionTerminatedException,
-	                                                          InterruptedException {
-		HighLevelFCPClient fcpcli;
-		fcpcli = new HighLevelFCPClient();
-
-		String keybase;
-		keybase = this.rtskey + date + "-";
-
-		MySlotSaveData cbdata = new MySlotSaveData();
-		cbdata.log = log;
-		cbdata.date = date;
-
-		NaturalSlotManager sm = new NaturalSlotManager(this, cbdata, log.getSlots(date));
+	private class DaySequence extends ConcurrentSlotPoller.Sequence {
+		private final RTSLog log;
+		private final String date;
+		private final String keybase;
+		private final boolean countPass;
+		private final MySlotSaveData cbdata = new MySlotSaveData();
+
+		private int pollAhead = POLL_AHEAD;
+
+		/**
+		 * false if there were network-type errors and the polling shouldn't count as a valid
+		 * check of this day's slots.
+		 */
+		private boolean success = true;
+
+		private DaySequence(RTSLog log, String date, boolean countPass) {
+			this.log = log;
+			this.date = date;
+			this.keybase = rtskey + date + "-";
+			this.countPass = countPass;
+			cbdata.log = log;
+			cbdata.date = date;
+		}
 
-		sm.setPollAhead(POLL_AHEAD);
+		@Override
+		protected SlotManager createSlotManager() {
+			NaturalSlotManager sm = new NaturalSlotManager(RTSFetcher.this, cbdata, log.getSlots(date));
+			sm.setPollAhead(pollAhead);
+			return sm;
+		}
 
-		int slot;
-		boolean success = true;
-		while((slot = sm.getNextSlotNat()) > 0) {
+		@Override
+		protected String getKey(String slot) {
 			Logger.minor(this, "trying to fetch "+keybase+slot);
+			return keybase + slot;
+		}
 
-			try {
-				File result = fcpcli.fetch(keybase+slot);
-
-				Logger.normal(this, keybase+slot+": got RTS!");
+		@Override
+		protected boolean slotFetched(String slot, Bucket result, SlotManager sm) {
+			Logger.normal(this, keybase+slot+": got RTS!");
 
-				File rts_dest = new File(this.contact_dir, RTS_UNPROC_PREFIX + "-" + log.getAndIncUnprocNextId()+",0");
+			File rts_dest = new File(contact_dir, RTS_UNPROC_PREFIX + "-" + log.getAndIncUnprocNextId()+",0");
 
-				// stick this message in the RTS 'inbox'
-				if(result.renameTo(rts_dest)) {
-					// provided that worked, we can move on to the next RTS message
-					sm.slotUsed();
-				}
-			} catch (FCPFetchException fe) {
-				if(fe.isFatal()) {
-					Logger.error(this, keybase+slot+": fatal fetch error - marking slot as used.");
-					sm.slotUsed();
-				} else if(fe.getCode() == FCPFetchException.ALL_DATA_NOT_FOUND) {
-					// This could be the node not managing to find the CHK containing the actual data (since RTS messages are
-					// over 1KB, the node will opaquely insert them as a KSK redirect to a CHK, since a KSK/SSK can only hold
-					// 1KB of data). It could also be someone inserting dummy redirects to our RTS queue. We'll have to keep
-					// checking it, but we have to check slots until we find some that are really empty, we'd never manage
-					// to fetch anything if they are dead keys.
-					Logger.error(this, keybase+slot+": All Data not found - leaving slot in queue and will poll an extra key");
-					sm.incPollAhead();
-				} else if(fe.getCode() == FCPFetchException.DATA_NOT_FOUND || fe.getCode() == FCPFetchException.RECENTLY_FAILED) {
-					Logger.minor(this, keybase+slot+": no RTS.");
-				} else if(fe.isNetworkError()) {
-					// Freenet is having special moment. This doesn't count as a valid poll.
-					success = false;
-				} else {
-					// We've covered most things above, so I think this should a fairly exceptional case. Let's log it at error.
-					Logger.error(this, keybase+slot+": other non-fatal fetch error:"+fe.getMessage());
+			// stick this message in the RTS 'inbox'
+			try {
+				OutputStream os = new FileOutputStream(rts_dest);
+				try {
+					BucketTools.copyTo(result, os, -1);
+				} finally {
+					os.close();
 				}
-			} catch (FCPException e) {
+				// provided that worked, we can move on to the next RTS message
+				sm.slotUsed();
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't store RTS message in " + rts_dest + ": " + e.getMessage());
+				rts_dest.delete();
+			} finally {
+				result.free();
+			}
+			return true;
+		}
+
+		@Override
+		protected boolean slotFailed(String slot, FCPException e, SlotManager sm) {
+			if(!(e instanceof FCPFetchException)) {
 				Logger.error(this, "Unknown error while checking RTS: " + e.getMessage());
 				success = false;
+				return true;
+			}
+
+			FCPFetchException fe = (FCPFetchException)e;
+			if(fe.isFatal()) {
+				Logger.error(this, keybase+slot+": fatal fetch error - marking slot as used.");
+				sm.slotUsed();
+			} else if(fe.getCode() == FCPFetchException.ALL_DATA_NOT_FOUND) {
+				// This could be the node not managing to find the CHK containing the actual data (since RTS messages are
+				// over 1KB, the node will opaquely insert them as a KSK redirect to a CHK, since a KSK/SSK can only hold
+				// 1KB of data). It could also be someone inserting dummy redirects to our RTS queue. We'll have to keep
+				// checking it, but we have to check slots until we find some that are really empty, we'd never manage
+				// to fetch anything if they are dead keys.
+				Logger.error(this, keybase+slot+": All Data not found - leaving slot in queue and will poll an extra key");
+				pollAhead++;
+				sm.incPollAhead();
+			} else if(fe.getCode() == FCPFetchException.DATA_NOT_FOUND || fe.getCode() == FCPFetchException.RECENTLY_FAILED) {
+				Logger.minor(this, keybase+slot+": no RTS.");
+			} else if(fe.isNetworkError()) {
+				// Freenet is having special moment. This doesn't count as a valid poll.
+				success = false;
+			} else {
+				// We've covered most things above, so I think this should a fairly exceptional case. Let's log it at error.
+				Logger.error(this, keybase+slot+": other non-fatal fetch error:"+fe.getMessage());
 			}
+			return true;
 		}
-		return success;
 	}
 
 	@Override
@@ -319,10 +365,10 @@ public class RTSFetcher implements SlotSaveCallback {
 		byte[] our_hash = new byte[sha256.getDigestSize()];
 		sha256.doFinal(our_hash, 0);
 
-		HighLevelFCPClient fcpcli = new HighLevelFCPClient();
+		HighLevelFCPClient fcpcli = new HighLevelFCPClient(account.getIdentity());
 
 		Logger.normal(this, "Trying to fetch sender's mailsite: "+their_mailsite);
-		File msfile;
+		Bucket msfile;
 		try {
 			msfile = fcpcli.fetch(their_mailsite);
 		} catch (FCPFetchException fe) {
@@ -337,13 +383,23 @@ public class RTSFetcher implements SlotSaveCallback {
 			return false;
 		}
 
-		PropsFile mailsite = PropsFile.createPropsFile(msfile);
+		PropsFile mailsite;
+		try {
+			mailsite = PropsFile.createPropsFile(msfile.getInputStream(), false);
+		} catch (IOException e) {
+			Logger.error(this, "Couldn't read fetched mailsite: " + e.getMessage());
+
+			//Try again later
+			rtsfile.delete();
+			return false;
+		} finally {
+			msfile.free();
+		}
 		String their_exponent = mailsite.get("asymkey.pubexponent");
 		String their_modulus = mailsite.get("asymkey.modulus");
 
 		if(their_exponent == null || their_modulus == null) {
 			Logger.normal(this, "Mailsite fetched successfully but missing vital information! Discarding this RTS.");
-			msfile.delete();
 			rtsfile.delete();
 			return true;
 		}
@@ -357,7 +413,6 @@ public class RTSFetcher implements SlotSaveCallback {
 			their_hash = deccipher.processBlock(their_encrypted_sig, 0, deccipher.getInputBlockSize());
 		} catch (InvalidCipherTextException icte) {
 			Logger.normal(this, "It was not possible to decrypt the signature of this RTS message. Discarding the RTS message.");
-			msfile.delete();
 			rtsfile.delete();
 			return true;
 		}
@@ -366,7 +421,6 @@ public class RTSFetcher implements SlotSaveCallback {
 		// match!
 		if(their_hash.length < our_hash.length) {
 			Logger.normal(this, "The signature of the RTS message is not valid (our hash: "+our_hash.length+"bytes, their hash: "+their_hash.length+"bytes. Discarding the RTS message.");
-			msfile.delete();
 			rtsfile.delete();
 			return true;
 		}
@@ -374,7 +428,6 @@ public class RTSFetcher implements SlotSaveCallback {
 		for(i = 0; i < our_hash.length; i++) {
 			if(their_hash[i] != our_hash[i]) {
 				Logger.normal(this, "The signature of the RTS message is not valid. Discarding the RTS message.");
-				msfile.delete();
 				rtsfile.delete();
 				return true;
 			}
@@ -384,7 +437,6 @@ public class RTSFetcher implements SlotSaveCallback {
 		// Now verify the message is for us
 		if(!account.getIdentity().equals(rtsprops.get("to"))) {
 			Logger.normal(this, "Recieved an RTS message that was not intended for the recipient. Discarding.");
-			msfile.delete();
 			rtsfile.delete();
 			return true;
 		}
@@ -392,9 +444,6 @@ public class RTSFetcher implements SlotSaveCallback {
 		Logger.normal(this, "Original message intended for us :)");
 
 		//Clean up temp files
-		if(!msfile.delete()) {
-			Logger.error(this, "Couldn't delete fetched mailsite: " + msfile);
-		}
 		if(!rtsfile.delete()) {
 			Logger.error(this, "Couldn't delete rts file: " + rtsfile);
 		}
@@ -41,6 +41,8 @@ public class RTSLog {
 
 	public RTSLog(File f) {
 		this.logfile = PropsFile.createPropsFile(f);
+		//The slots are saved every time one is used, so let those writes be batched
+		this.logfile.setWriteBehind(true);
 		if(!this.logfile.exists()) {
 			String birth = DateStringFactory.getOffsetKeyString(0);
 			this.logfile.put("birth", birth);
@@ -113,11 +115,16 @@ public class RTSLog {
 			}
 		}
 
-		Enumeration<String> e = hitlist.elements();
-		while(e.hasMoreElements()) {
-			String victim = e.nextElement();
+		this.logfile.beginTransaction();
+		try {
+			Enumeration<String> e = hitlist.elements();
+			while(e.hasMoreElements()) {
+				String victim = e.nextElement();
 
-			this.logfile.remove(victim);
+				this.logfile.remove(victim);
+			}
+		} finally {
+			this.logfile.commit();
 		}
 	}
 
@@ -143,7 +150,9 @@ public class RTSLog {
 			retval = Integer.parseInt(nid);
 		}
 
+		//The id is used as a file name right away, so it must not be handed out again after a crash
 		this.logfile.put(UNPROC_NEXTID, Integer.toString(retval + 1));
+		this.logfile.flush();
 
 		return retval;
 	}
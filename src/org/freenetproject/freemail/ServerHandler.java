@@ -21,11 +21,33 @@ package org.freenetproject.freemail;
 
 import java.net.Socket;
 import java.io.IOException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.utils.Logger;
+
+public abstract class ServerHandler implements Runnable {
+	/**
+	 * Runs the tasks given to {@link #sendLater(Runnable)}. A task may block on a slow client, so
+	 * each running task gets a thread, and threads are only kept for a while after their last task.
+	 */
+	private static final ThreadPoolExecutor notifier = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+			1, TimeUnit.MINUTES, new SynchronousQueue<Runnable>(),
+			new Freemail.FreemailThreadFactory("Freemail connection notifier", true));
 
-public abstract class ServerHandler {
 	protected final Socket client;
 	protected volatile boolean stopping = false;
 
+	/** The selector serving this connection, or {@code null} if it has a thread of its own */
+	private volatile ConnectionSelector selector = null;
+
+	/** When the connection was last parked, used by the selector for idle timeouts */
+	volatile long parkedSince;
+
+	/** Set by {@link #wakeUp()}, and cleared by the selector when the handler is run again */
+	volatile boolean wakeRequested = false;
+
 	public ServerHandler(Socket c) {
 		client = c;
 	}
@@ -42,4 +64,85 @@ public abstract class ServerHandler {
 
 		}
 	}
+
+	void setSelector(ConnectionSelector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * Called by handlers when they are about to wait for the next command from the client, and
+	 * have no buffered input left. If the connection is served by a selector it is parked, and
+	 * {@code run()} must return right away since it will be called again when the client sends
+	 * more data. Otherwise the handler should go on and read from the client as usual.
+	 *
+	 * @return {@code true} if the connection was parked
+	 */
+	protected boolean park() {
+		ConnectionSelector s = selector;
+		if(s == null || client.getChannel() == null) {
+			return false;
+		}
+
+		try {
+			s.park(this);
+			return true;
+		} catch (IOException ioe) {
+			Logger.debug(this, "Couldn't park connection, falling back to blocking read: " + ioe.getMessage());
+			try {
+				client.getChannel().configureBlocking(true);
+			} catch (IOException e) {
+				kill();
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Makes sure the handler is run again soon, so it can send data to the client that the client
+	 * didn't ask for, e.g. because another connection changed something. If the connection is
+	 * parked it is resumed as if the client had sent something, and if the handler is running it
+	 * is resumed as soon as it parks again. Handlers must look for such data each time before they
+	 * park.
+	 *
+	 * @return {@code true} if the handler will be run, or {@code false} if the connection has a
+	 *         thread of its own that is blocked reading from the client, in which case the data
+	 *         has to be sent using {@link #sendLater(Runnable)}
+	 */
+	protected boolean wakeUp() {
+		ConnectionSelector s = selector;
+		if(s == null || client.getChannel() == null) {
+			return false;
+		}
+
+		wakeRequested = true;
+		s.wake(this);
+		return true;
+	}
+
+	/**
+	 * Runs {@code task} on a separate thread. This is used to send data the client didn't ask for
+	 * when {@link #wakeUp()} returns {@code false}, since the code that found the data (e.g. the
+	 * one delivering a message) must not wait for a slow client.
+	 * @param task the task that sends the data
+	 */
+	protected void sendLater(Runnable task) {
+		notifier.execute(task);
+	}
+
+	/**
+	 * Returns the number of milliseconds the client may be idle before it is disconnected, or 0
+	 * if there is no limit.
+	 * @return the idle timeout in milliseconds
+	 */
+	protected int getIdleTimeout() {
+		return 0;
+	}
+
+	/**
+	 * Called when the client has been idle for longer than {@link #getIdleTimeout()}. The default
+	 * implementation closes the connection.
+	 */
+	protected void idleTimeout() {
+		kill();
+	}
 }
@@ -20,20 +20,171 @@
 package org.freenetproject.freemail;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Locale;
+
+import org.freenetproject.freemail.utils.Logger;
 
 public abstract class ServerListener {
+	/** Gives each connection a thread of its own */
+	public static final String ENGINE_THREAD = "thread";
+
+	/** Serves the connections from a pool of worker threads, see {@link ConnectionSelector} */
+	public static final String ENGINE_SELECTOR = "selector";
+
+	public static final String DEFAULT_ENGINE = ENGINE_THREAD;
+	public static final int DEFAULT_BACKLOG = 10;
+	public static final int DEFAULT_MAX_CONNECTIONS = 0;
+	public static final int DEFAULT_WORKER_THREADS = 4;
+
 	protected ServerSocket sock;
 	private final ArrayList<ServerHandler> handlers;
 	private final ArrayList<Thread> handlerThreads;
 
+	private String engine = DEFAULT_ENGINE;
+	private int backlog = DEFAULT_BACKLOG;
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int workerThreads = DEFAULT_WORKER_THREADS;
+	private volatile ConnectionSelector selector;
+	private Thread selectorThread;
+
 	protected ServerListener() {
 		handlers = new ArrayList<ServerHandler>();
 		handlerThreads = new ArrayList<Thread>();
 	}
 
+	/**
+	 * Creates the handler for a newly accepted connection.
+	 * @param client the socket of the new connection
+	 * @return the handler for the connection
+	 * @throws IOException if the handler couldn't be created
+	 */
+	protected abstract ServerHandler createHandler(Socket client) throws IOException;
+
+	/**
+	 * Sets how connections are served, either {@link #ENGINE_THREAD} or {@link #ENGINE_SELECTOR}.
+	 * This only takes effect the next time the listener is started.
+	 * @param engine the name of the engine
+	 */
+	protected void setEngine(String engine) {
+		String name = engine.trim().toLowerCase(Locale.ROOT);
+		if(!name.equals(ENGINE_THREAD) && !name.equals(ENGINE_SELECTOR)) {
+			Logger.error(this, "Unknown connection engine " + engine + ", using " + DEFAULT_ENGINE);
+			name = DEFAULT_ENGINE;
+		}
+		this.engine = name;
+	}
+
+	/**
+	 * Sets the maximum length of the queue of connections waiting to be accepted. This only takes
+	 * effect the next time the listener is started.
+	 * @param backlog the backlog of the server socket
+	 */
+	protected void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Sets the maximum number of open connections, where 0 means no limit. New connections are
+	 * closed right away while the limit is reached.
+	 * @param maxConnections the maximum number of open connections
+	 */
+	protected void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Sets the number of worker threads used by the selector engine. This only takes effect the
+	 * next time the listener is started.
+	 * @param workerThreads the number of worker threads
+	 */
+	protected void setWorkerThreads(int workerThreads) {
+		this.workerThreads = Math.max(1, workerThreads);
+	}
+
+	/**
+	 * Parses an integer config value, logging and returning {@code defaultValue} if it is
+	 * invalid.
+	 */
+	protected int parseConfigInt(String key, String val, int defaultValue) {
+		try {
+			return Integer.parseInt(val.trim());
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Illegal value for " + key + ": " + val);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Binds to the given address and serves connections until {@link #kill()} is called.
+	 * @param name the name of the protocol, used in thread names
+	 * @param bindAddress the address to listen on
+	 * @param bindPort the port to listen on
+	 * @param acceptTimeout the timeout of the server socket, or 0 for no timeout
+	 * @throws IOException if the server socket couldn't be created
+	 */
+	protected void acceptConnections(String name, String bindAddress, int bindPort, int acceptTimeout)
+			throws IOException {
+		//Use a channel so client sockets have channels too, which the selector and
+		//FileChannel.transferTo() need
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		sock = channel.socket();
+		sock.bind(new InetSocketAddress(InetAddress.getByName(bindAddress), bindPort), backlog);
+		if(acceptTimeout > 0) {
+			sock.setSoTimeout(acceptTimeout);
+		}
+
+		if(engine.equals(ENGINE_SELECTOR)) {
+			selector = new ConnectionSelector(name, workerThreads);
+			selectorThread = new Thread(selector, "Freemail " + name + " selector");
+			selectorThread.setDaemon(true);
+			selectorThread.start();
+		}
+
+		try {
+			while(!sock.isClosed()) {
+				try {
+					Socket clientSocket = sock.accept();
+					reapHandlers();
+					if(maxConnections > 0 && handlerCount() >= maxConnections) {
+						Logger.normal(this, "Too many " + name + " connections, closing connection from "
+								+ clientSocket.getInetAddress());
+						clientSocket.close();
+						continue;
+					}
+
+					ServerHandler handler = createHandler(clientSocket);
+					if(selector != null) {
+						addHandler(handler, null);
+						selector.start(handler);
+					} else {
+						Thread thread = new Thread(handler, "Freemail " + name + " Handler for " + clientSocket.getInetAddress());
+						thread.setDaemon(true);
+						thread.start();
+						addHandler(handler, thread);
+					}
+				} catch (SocketTimeoutException ste) {
+
+				} catch (IOException ioe) {
+
+				}
+
+				reapHandlers();
+			}
+		} finally {
+			if(selector != null) {
+				selector.kill();
+			}
+		}
+	}
+
 	/**
 	 * Terminate the run method
 	 */
@@ -42,6 +193,9 @@ public abstract class ServerListener {
 			if(sock != null) sock.close();
 		} catch (IOException ioe) {
 
+		}
+		if(selector != null) {
+			selector.kill();
 		}
 		// kill all our handlers too
 		synchronized(handlers) {
@@ -67,13 +221,30 @@ public abstract class ServerListener {
 				}
 			}
 		}
+
+		if(selector != null) {
+			try {
+				selectorThread.join();
+				selector.awaitTermination();
+			} catch (InterruptedException ie) {
+
+			}
+		}
 	}
 
 	protected void addHandler(ServerHandler hdlr, Thread thrd) {
 		synchronized(handlers) {
 			handlers.add(hdlr);
 		}
-		handlerThreads.add(thrd);
+		if(thrd != null) {
+			handlerThreads.add(thrd);
+		}
+	}
+
+	private int handlerCount() {
+		synchronized(handlers) {
+			return handlers.size();
+		}
 	}
 
 	protected void reapHandlers() {
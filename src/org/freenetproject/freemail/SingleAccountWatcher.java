@@ -23,6 +23,9 @@ package org.freenetproject.freemail;
 
 import java.io.File;
 import java.lang.InterruptedException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
@@ -33,15 +36,27 @@ import org.freenetproject.freemail.wot.WoTProperties;
 
 import freenet.pluginmanager.PluginNotFoundException;
 
+/**
+ * Polls the RTS slots of an account and keeps its mailsite inserted. The watcher runs as a task
+ * on the account watcher executor that schedules itself again after each pass. That executor has
+ * a fixed number of threads, so the number of accounts doesn't decide the number of threads or how
+ * many accounts are polled at once.
+ */
 public class SingleAccountWatcher implements Runnable {
 	/**
-	 * Whether the thread this service runs in should stop.
+	 * Whether this watcher should stop.
 	 */
 	protected volatile boolean stopping = false;
 
 	public static final String RTS_DIR = "rts";
-	private static final int MIN_POLL_DURATION = 5 * 60 * 1000; // in milliseconds
+	static final int MIN_POLL_DURATION = 5 * 60 * 1000; // in milliseconds
 	private static final int MAILSITE_UPLOAD_INTERVAL = 60 * 60 * 1000;
+
+	private final ScheduledExecutorService executor;
+
+	/** The scheduled or running pass, cancelled by {@link #kill()} */
+	private volatile ScheduledFuture<?> nextRun = null;
+
 	private final RTSFetcher rtsf;
 	private long mailsite_last_upload;
 	private final FreemailAccount account;
@@ -52,6 +67,7 @@ public class SingleAccountWatcher implements Runnable {
 	SingleAccountWatcher(FreemailAccount acc, Freemail freemail) {
 		this.account = acc;
 		this.freemail = freemail;
+		this.executor = freemail.getExecutor(Freemail.TaskType.ACCOUNT_WATCHER);
 		this.mailsite_last_upload = 0;
 
 		rtsdir = new File(account.getAccountDir(), RTS_DIR);
@@ -75,37 +91,53 @@ public class SingleAccountWatcher implements Runnable {
 		}
 	}
 
+	/**
+	 * Schedules the first pass after {@code delay} milliseconds.
+	 */
+	void start(long delay) {
+		schedule(delay);
+	}
+
 	@Override
 	public void run() {
-		while(!stopping) {
-			try {
-				long start = System.currentTimeMillis();
-				WoTConnection wotConnection = freemail.getWotConnection();
+		if(stopping) {
+			return;
+		}
 
-				insertMailsite(wotConnection);
-				setWoTContext(wotConnection);
+		long start = System.currentTimeMillis();
+		try {
+			WoTConnection wotConnection = freemail.getWotConnection();
 
-				if(stopping) {
-					break;
-				}
-				Logger.debug(this, "polling rts");
-				this.rtsf.poll();
-				if(stopping) {
-					break;
-				}
+			insertMailsite(wotConnection);
+			setWoTContext(wotConnection);
 
-				long runtime = System.currentTimeMillis() - start;
+			if(stopping) {
+				return;
+			}
+			Logger.debug(this, "polling rts");
+			this.rtsf.poll();
+		} catch (ConnectionTerminatedException cte) {
 
-				if(MIN_POLL_DURATION - runtime > 0) {
-					Thread.sleep(MIN_POLL_DURATION - runtime);
-				}
-			} catch (ConnectionTerminatedException cte) {
+		} catch (InterruptedException ie) {
+			Logger.debug(this, "SingleAccountWatcher interrupted, stopping");
+			kill();
+			return;
+		}
 
-			} catch (InterruptedException ie) {
-				Logger.debug(this, "SingleAccountWatcher interrupted, stopping");
-				kill();
-				break;
-			}
+		long runtime = System.currentTimeMillis() - start;
+		schedule(Math.max(0, MIN_POLL_DURATION - runtime));
+	}
+
+	private void schedule(long delay) {
+		if(stopping) {
+			return;
+		}
+
+		try {
+			nextRun = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			//The executor has been shut down, so Freemail is stopping
+			stopping = true;
 		}
 	}
 
@@ -139,7 +171,7 @@ public class SingleAccountWatcher implements Runnable {
 				//Same as for the WoT approach
 			}
 
-			MailSite ms = new MailSite(account.getProps());
+			MailSite ms = new MailSite(account);
 			Timer mailsiteInsert = Timer.start();
 			int edition = ms.publish(editionHint);
 			mailsiteInsert.log(this, 1, TimeUnit.HOURS, "Time spent inserting mailsite");
@@ -182,9 +214,14 @@ public class SingleAccountWatcher implements Runnable {
 	}
 
 	/**
-	 * Terminate the run method
+	 * Stops the watcher, interrupting the current pass if there is one.
 	 */
 	public void kill() {
 		stopping = true;
+
+		ScheduledFuture<?> run = nextRun;
+		if(run != null) {
+			run.cancel(true);
+		}
 	}
 }
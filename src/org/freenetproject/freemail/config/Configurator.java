@@ -33,17 +33,36 @@ import org.freenetproject.freemail.utils.PropsFile;
  */
 
 public class Configurator {
+	public static final String ACCOUNT_WATCHERS = "account_watchers";
 	public static final String DATA_DIR = "datadir";
 	public static final String FCP_HOST = "fcp_host";
 	public static final String FCP_PORT = "fcp_port";
+	public static final String FCP_MEMORY_THRESHOLD = "fcp_memory_threshold";
+	public static final String FCP_CONNECTIONS = "fcp_connections";
+	public static final String FCP_INSERT_CONNECTIONS = "fcp_insert_connections";
+	public static final String FCP_PERSISTENT_REQUESTS = "fcp_persistent_requests";
+	public static final String FCP_NODES = "fcp_nodes";
 	public static final String GLOBAL_DATA_DIR = "globaldatadir";
 	public static final String IMAP_BIND_ADDRESS = "imap_bind_address";
 	public static final String IMAP_BIND_PORT = "imap_bind_port";
+	public static final String IMAP_BACKLOG = "imap_backlog";
+	public static final String IMAP_CONNECTION_ENGINE = "imap_connection_engine";
+	public static final String IMAP_MAX_CONNECTIONS = "imap_max_connections";
+	public static final String IMAP_WORKER_THREADS = "imap_worker_threads";
+	public static final String KEYPOOL_SIZE = "keypool_size";
+	public static final String KEYPOOL_THREADS = "keypool_threads";
 	public static final String LOG_LEVEL = "loglevel";
+	public static final String SLOT_SUBSCRIPTIONS = "slot_subscriptions";
 	public static final String SMTP_BIND_ADDRESS = "smtp_bind_address";
 	public static final String SMTP_BIND_PORT = "smtp_bind_port";
+	public static final String SMTP_BACKLOG = "smtp_backlog";
+	public static final String SMTP_CONNECTION_ENGINE = "smtp_connection_engine";
+	public static final String SMTP_MAX_CONNECTIONS = "smtp_max_connections";
+	public static final String SMTP_WORKER_THREADS = "smtp_worker_threads";
 	public static final String TEMP_DIR = "tempdir";
 	public static final String FILE_FORMAT = "fileformat";
+	public static final String WOT_CACHE_TIME = "wot_cache_time";
+	public static final String WOT_MAX_REQUESTS = "wot_max_requests";
 
 	private final PropsFile props;
 	private final HashMap<String, ConfigClient> callbacks;
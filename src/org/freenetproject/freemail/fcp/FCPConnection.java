@@ -25,9 +25,17 @@ import java.io.OutputStream;
 import java.io.InputStream;
 import java.net.Socket;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.freenetproject.freemail.support.io.BufferedLineReadingInputStream;
 import org.freenetproject.freemail.utils.Logger;
 
 
@@ -42,11 +50,38 @@ public class FCPConnection implements Runnable {
 	private InputStream is;
 	private Socket conn;
 	private int nextMsgId;
-	private final HashMap<String, FCPClient> clients;
+
+	/**
+	 * Held while writing a message to the node. This is separate from the lock on the connection
+	 * itself, so that uploading a large payload doesn't stop other threads from creating and
+	 * registering requests, or the reader thread from dispatching replies, in the meantime.
+	 */
+	private final Object writeLock = new Object();
+	/** Maps the identifier of each outstanding request to the client waiting for it */
+	private final ConcurrentHashMap<String, FCPClient> clients;
+
+	/**
+	 * The outstanding requests that are on the global queue of the node. These are kept by the
+	 * node when the connection is lost, so their clients are not told about it, and the requests
+	 * are picked up again once the connection is back.
+	 */
+	private final ConcurrentHashMap<String, FCPMessage> persistentRequests;
+	/** Prefix of the identifiers of persistent requests, which must be unique on the global queue */
+	private final String persistentPrefix = "Freemail-" + UUID.randomUUID() + "-";
+	private final AtomicInteger nextPersistentId = new AtomicInteger(1);
+	private final boolean watchGlobal;
+	private volatile long reconnectDelay = 10000;
+	/**
+	 * The persistent requests that the node has listed since the connection came back, or
+	 * {@code null} if the node isn't listing them. Only used by the thread reading from the node.
+	 */
+	private Set<String> listedRequests = null;
 
 	public FCPConnection(FCPContext ctx) {
 		this.fcpctx = ctx;
-		this.clients = new HashMap<String, FCPClient>();
+		this.clients = new ConcurrentHashMap<String, FCPClient>();
+		this.persistentRequests = new ConcurrentHashMap<String, FCPMessage>();
+		this.watchGlobal = ctx.usePersistentRequests();
 
 		this.tryConnect();
 	}
@@ -57,12 +92,14 @@ public class FCPConnection implements Runnable {
 		try {
 			this.nextMsgId = 1;
 			this.conn = this.fcpctx.getConn();
-			this.is = this.conn.getInputStream();
+			this.is = new BufferedLineReadingInputStream(this.conn.getInputStream());
 			this.os = this.conn.getOutputStream();
 
 			FCPMessage hello = new FCPMessage(this.nextMsgId, "ClientHello");
 			this.nextMsgId++;
-			hello.writeto(this.os);
+			synchronized(writeLock) {
+				hello.writeto(this.os);
+			}
 			FCPMessage reply = this.getMessage();
 			if(reply.getType() == null) {
 				Logger.error(this, "Connection closed");
@@ -72,6 +109,10 @@ public class FCPConnection implements Runnable {
 			if(!reply.getType().equals("NodeHello")) {
 				Logger.error(this, "Warning - got '"+reply.getType()+"' from node, expecting 'NodeHello'");
 			}
+
+			if(this.watchGlobal) {
+				watchGlobal();
+			}
 		} catch (IOException ioe) {
 			this.conn = null;
 			this.is = null;
@@ -98,17 +139,20 @@ public class FCPConnection implements Runnable {
 				this.conn = null;
 				this.os = null;
 				this.is = null;
-				// tell all our clients it's all over
-				Iterator<FCPClient> i = this.clients.values().iterator();
-				while(i.hasNext()) {
-					FCPClient cli = i.next();
-					cli.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+				this.listedRequests = null;
+				// tell all our clients it's all over, except those whose requests the node keeps
+				for(Map.Entry<String, FCPClient> entry : this.clients.entrySet()) {
+					if(!stopping && this.persistentRequests.containsKey(entry.getKey())) {
+						continue;
+					}
+					if(this.clients.remove(entry.getKey(), entry.getValue())) {
+						entry.getValue().requestFinished(new FCPMessage(entry.getKey(), "ConnectionClosed"));
+					}
 				}
-				this.clients.clear();
 				// wait a bit
 				if(!stopping) {
 					try {
-						Thread.sleep(10000);
+						Thread.sleep(reconnectDelay);
 					} catch (InterruptedException ie) {
 						Logger.debug(this, "FCPConnection interrupted, stopping");
 						kill();
@@ -120,10 +164,27 @@ public class FCPConnection implements Runnable {
 	}
 
 	/**
-	 * Terminate the run method
+	 * Sets how long to wait before connecting again after losing the connection to the node.
+	 */
+	void setReconnectDelay(long millis) {
+		this.reconnectDelay = millis;
+	}
+
+	/**
+	 * Terminate the run method. Persistent requests that are still outstanding are removed from
+	 * the global queue of the node, since the identifiers are different each time Freemail runs
+	 * so the requests could never be picked up again.
 	 */
 	public void kill() {
-		stopping = true;
+		synchronized(this) {
+			//Keeps doRequest() from adding more persistent requests
+			stopping = true;
+		}
+		for(String identifier : this.persistentRequests.keySet()) {
+			sendRemoveRequest(identifier, true);
+		}
+		this.persistentRequests.clear();
+
 		try {
 			// we can safely close the socket from this thread: any read operations other threads are in will throw a SocketException
 			if(conn != null) {
@@ -147,30 +208,304 @@ public class FCPConnection implements Runnable {
 		}
 	}
 
-	public synchronized void doRequest(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException,
-	                                                                         ConnectionTerminatedException, FCPBadFileException {
-		if(stopping) throw new ConnectionTerminatedException("This FCP Connection has been terminated");
-		if(this.os == null) throw new NoNodeConnectionException("No Connection");
-		this.clients.put(msg.getId(), cli);
+	public void doRequest(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException,
+	                                                            ConnectionTerminatedException, FCPBadFileException {
+		OutputStream out;
+		Socket socket;
+		synchronized(this) {
+			if(stopping) throw new ConnectionTerminatedException("This FCP Connection has been terminated");
+			if(this.os == null) throw new NoNodeConnectionException("No Connection");
+			out = this.os;
+			socket = this.conn;
+			this.clients.put(msg.getId(), cli);
+			if(msg.isGlobal()) {
+				this.persistentRequests.put(msg.getId(), msg);
+			}
+		}
+
 		try {
-			msg.writeto(this.os);
+			synchronized(writeLock) {
+				msg.writeto(out);
+			}
 		} catch (IOException ioe) {
+			this.clients.remove(msg.getId());
+			this.persistentRequests.remove(msg.getId());
+			//Part of the message might have been sent, so the connection can't be used again.
+			//Closing it makes the reader thread reconnect
+			try {
+				if(socket != null) socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
 			throw new NoNodeConnectionException(ioe.getMessage());
+		} catch (FCPBadFileException bfe) {
+			this.clients.remove(msg.getId());
+			this.persistentRequests.remove(msg.getId());
+			throw bfe;
 		}
 	}
 
+	/**
+	 * Sends a request to the node and returns a {@code Future} that completes with the reply. The
+	 * reply is the completion message with the same identifier as the request, or a message of
+	 * type ConnectionClosed if the connection to the node is lost first. Cancelling the
+	 * {@code Future} has the same effect as {@link #cancelRequest(FCPMessage)}.
+	 * Any number of requests can be outstanding at the same time.
+	 *
+	 * @param msg the request
+	 * @return a {@code Future} that completes with the reply
+	 * @throws NoNodeConnectionException if there is no connection to the node
+	 * @throws ConnectionTerminatedException if this connection has been terminated
+	 * @throws FCPBadFileException if the data of the request couldn't be read
+	 */
+	public Future<FCPMessage> submit(FCPMessage msg) throws NoNodeConnectionException,
+	                                                        ConnectionTerminatedException, FCPBadFileException {
+		return submit(msg, null);
+	}
+
+	/**
+	 * Like {@link #submit(FCPMessage)}, but also runs {@code listener} when the reply arrives,
+	 * unless the {@code Future} has been cancelled. The listener is run by the thread reading
+	 * from the node, so it must not block.
+	 *
+	 * @param msg the request
+	 * @param listener run when the request completes, may be {@code null}
+	 * @return a {@code Future} that completes with the reply
+	 * @throws NoNodeConnectionException if there is no connection to the node
+	 * @throws ConnectionTerminatedException if this connection has been terminated
+	 * @throws FCPBadFileException if the data of the request couldn't be read
+	 */
+	public Future<FCPMessage> submit(FCPMessage msg, Runnable listener) throws NoNodeConnectionException,
+	                                                                           ConnectionTerminatedException,
+	                                                                           FCPBadFileException {
+		ReplyFuture reply = new ReplyFuture(msg, listener);
+		doRequest(reply, msg);
+		return reply;
+	}
+
+	/**
+	 * Returns the number of requests that have been sent on this connection and are still waiting
+	 * for a reply.
+	 */
+	public int getInFlight() {
+		return clients.size();
+	}
+
+	/**
+	 * Returns {@code true} if this connection is currently connected to the node.
+	 */
+	public synchronized boolean isConnected() {
+		return this.os != null && !stopping;
+	}
+
 	/**
 	 * Give up on a request.
 	 * This doesn't actually send a cancel command to the node
 	 * (I don't think such a thing exists) but it does remove our
 	 * request/client map entry. We need this for requests that never
-	 * complete, so we don't leak memory.
+	 * complete, so we don't leak memory. Persistent requests are
+	 * removed from the node as well, since the node would otherwise
+	 * keep them forever.
 	 */
-	public synchronized void cancelRequest(FCPMessage msg) {
+	public void cancelRequest(FCPMessage msg) {
 		this.clients.remove(msg.getId());
+		if(this.persistentRequests.remove(msg.getId()) != null) {
+			sendRemoveRequest(msg.getId(), true);
+		}
+	}
+
+	/**
+	 * Give up on a request and ask the node to stop working on it. This should be used for
+	 * requests that the node keeps retrying, since the node would otherwise carry on with them
+	 * until the connection is closed.
+	 */
+	public void removeRequest(FCPMessage msg) {
+		cancelRequest(msg);
+		if(!msg.isGlobal()) {
+			//Persistent requests are removed by cancelRequest
+			sendRemoveRequest(msg.getId(), false);
+		}
+	}
+
+	private void sendRemoveRequest(String identifier, boolean global) {
+		FCPMessage remove = new FCPMessage(identifier, "RemoveRequest");
+		remove.headers.put("Global", Boolean.toString(global));
+		if(!send(remove)) {
+			//The node forgets connection requests when the connection is lost, and persistent
+			//requests that have been given up on are ignored when listed after reconnecting
+			Logger.debug(this, "Couldn't send RemoveRequest for " + identifier);
+		}
 	}
 
-	private void dispatch(FCPMessage msg) {
+	/**
+	 * Sends a message that has no payload and isn't waiting for a reply.
+	 * @return {@code false} if there is no connection to the node or the message couldn't be sent
+	 */
+	private boolean send(FCPMessage msg) {
+		OutputStream out;
+		synchronized(this) {
+			out = this.os;
+		}
+		if(out == null) {
+			return false;
+		}
+
+		try {
+			synchronized(writeLock) {
+				msg.writeto(out);
+			}
+			return true;
+		} catch (IOException ioe) {
+			Logger.debug(this, "Couldn't send " + msg.getType() + ": " + ioe.getMessage());
+			return false;
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since there is no data
+			throw new AssertionError();
+		}
+	}
+
+	/**
+	 * Returns a request that the node keeps on its global queue until it is removed, instead of
+	 * dropping it when the connection is lost. Once the connection is back the request is picked
+	 * up where the node left it, or sent again if the node no longer has it. Such requests can
+	 * only be used if persistent requests were enabled in the {@link FCPContext} when this
+	 * connection was created, since the node only tells us about them if we ask it to.
+	 * @param type the type of the request, ClientGet or ClientPut
+	 * @return the request
+	 */
+	public FCPMessage getPersistentMessage(String type) {
+		FCPMessage m = new FCPMessage(this.persistentPrefix + this.nextPersistentId.getAndIncrement(), type);
+		m.headers.put("Persistence", "reboot");
+		m.headers.put("Global", "true");
+		return m;
+	}
+
+	/**
+	 * Returns {@code true} if fetches and inserts should be sent as persistent requests, see
+	 * {@link #getPersistentMessage(String)}.
+	 */
+	public boolean usePersistentRequests() {
+		return this.watchGlobal;
+	}
+
+	/**
+	 * Asks the node to send us the messages of requests on the global queue, and to list the
+	 * requests that are on it if any of ours might have been left there when the connection
+	 * was lost.
+	 */
+	private void watchGlobal() throws IOException {
+		FCPMessage watch = new FCPMessage(this.nextMsgId++, "WatchGlobal");
+		watch.headers.put("Enabled", "true");
+		watch.headers.put("VerbosityMask", "0");
+		write(watch);
+
+		if(!this.persistentRequests.isEmpty()) {
+			this.listedRequests = new HashSet<String>();
+			write(new FCPMessage(this.nextMsgId++, "ListPersistentRequests"));
+		}
+	}
+
+	private void write(FCPMessage msg) throws IOException {
+		try {
+			synchronized(writeLock) {
+				msg.writeto(this.os);
+			}
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since there is no data
+			throw new AssertionError();
+		}
+	}
+
+	/**
+	 * Sends the persistent requests that the node didn't list again, since the node has lost
+	 * them, e.g. because it was restarted.
+	 */
+	private void resubmitUnlisted() throws IOException {
+		Set<String> listed = this.listedRequests;
+		this.listedRequests = null;
+
+		for(FCPMessage request : this.persistentRequests.values()) {
+			if(listed.contains(request.getId())) {
+				continue;
+			}
+
+			Logger.debug(this, "Node has lost request " + request.getId() + ", sending it again");
+			try {
+				synchronized(writeLock) {
+					request.writeto(this.os);
+				}
+			} catch (FCPBadFileException bfe) {
+				FCPClient cli = this.clients.remove(request.getId());
+				this.persistentRequests.remove(request.getId());
+				if(cli != null) {
+					cli.requestFinished(new FCPMessage(request.getId(), "ConnectionClosed"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handles the messages about persistent requests that aren't passed on to the client as they
+	 * are.
+	 * @return {@code true} if the message has been handled
+	 */
+	private boolean dispatchPersistent(FCPMessage request, FCPMessage msg) throws IOException {
+		String type = msg.getType();
+		if(type.equalsIgnoreCase("PersistentGet") || type.equalsIgnoreCase("PersistentPut")) {
+			if(this.listedRequests != null) {
+				this.listedRequests.add(msg.getId());
+			}
+			return false;
+		}
+
+		if(type.equalsIgnoreCase("DataFound") && request.getType().equalsIgnoreCase("ClientGet")) {
+			//The data of persistent requests has to be asked for
+			FCPMessage status = new FCPMessage(msg.getId(), "GetRequestStatus");
+			status.headers.put("Global", "true");
+			status.headers.put("OnlyData", "true");
+			write(status);
+			return true;
+		}
+
+		if(type.equalsIgnoreCase("IdentifierCollision")) {
+			//The node already had the request, e.g. because it was listed after sending it
+			//failed, so wait for it to finish
+			Logger.debug(this, "Request " + msg.getId() + " was already on the global queue");
+			FCPMessage status = new FCPMessage(msg.getId(), "GetRequestStatus");
+			status.headers.put("Global", "true");
+			write(status);
+			return true;
+		}
+
+		if(msg.isCompletionMessage()) {
+			//The node keeps finished requests until they are removed
+			this.persistentRequests.remove(msg.getId());
+			FCPMessage remove = new FCPMessage(msg.getId(), "RemoveRequest");
+			remove.headers.put("Global", "true");
+			write(remove);
+		}
+		return false;
+	}
+
+	private void dispatch(FCPMessage msg) throws IOException {
+		if(msg.getType().equalsIgnoreCase("EndListPersistentRequests")) {
+			if(this.listedRequests != null) {
+				resubmitUnlisted();
+			}
+			return;
+		}
+
+		if(msg.getId() == null) {
+			msg.release();
+			return;
+		}
+
+		FCPMessage request = this.persistentRequests.get(msg.getId());
+		if(request != null && dispatchPersistent(request, msg)) {
+			msg.release();
+			return;
+		}
+
 		FCPClient cli = this.clients.get(msg.getId());
 		if(cli == null) {
 			// normally we'd leave it up to the client
@@ -194,6 +529,48 @@ public class FCPConnection implements Runnable {
 	}
 
 	private FCPMessage getMessage() throws IOException {
-		return new FCPMessage(this.is);
+		return new FCPMessage(this.is, this.fcpctx.getMemoryThreshold());
+	}
+
+	/**
+	 * Completes with the reply to a request, see {@link FCPConnection#submit(FCPMessage)}.
+	 */
+	private class ReplyFuture extends FutureTask<FCPMessage> implements FCPClient {
+		private final FCPMessage request;
+		private final Runnable listener;
+
+		private ReplyFuture(FCPMessage request, Runnable listener) {
+			super(new Callable<FCPMessage>() {
+				@Override
+				public FCPMessage call() {
+					throw new AssertionError("ReplyFuture is completed by the connection, not run");
+				}
+			});
+			this.request = request;
+			this.listener = listener;
+		}
+
+		@Override
+		public void requestFinished(FCPMessage msg) {
+			set(msg);
+			if(isCancelled()) {
+				//Nobody will read the reply, so delete any data that came with it
+				msg.release();
+			}
+		}
+
+		@Override
+		public void requestStatus(FCPMessage msg) {
+			//Only the completion message is of interest
+		}
+
+		@Override
+		protected void done() {
+			if(isCancelled()) {
+				cancelRequest(request);
+			} else if(listener != null) {
+				listener.run();
+			}
+		}
 	}
 }
@@ -0,0 +1,176 @@
+/*
+ * FCPConnectionPool.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of connections to the node, each with its own thread reading replies. Fetches and other
+ * short requests use one group of connections, and inserts use another, so that a large insert
+ * being uploaded doesn't hold up fetches that are waiting for the same socket. Within each group
+ * requests go to the connection with the fewest requests in flight, preferring connections that
+ * are connected to the node.
+ */
+public class FCPConnectionPool {
+	private final List<FCPConnection> fetchConnections;
+	private final List<FCPConnection> insertConnections;
+	private final List<FCPConnection> all;
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	/**
+	 * Creates the pool and connects to the node. The connections don't handle replies until
+	 * {@link #start()} has been called.
+	 *
+	 * @param ctx the context used to connect to the node
+	 * @param fetchConnections the number of connections used for fetches, at least 1
+	 * @param insertConnections the number of connections used only for inserts. If this is 0
+	 *                          inserts use the fetch connections
+	 */
+	public FCPConnectionPool(FCPContext ctx, int fetchConnections, int insertConnections) {
+		if(fetchConnections < 1) {
+			throw new IllegalArgumentException("At least one fetch connection is needed");
+		}
+		if(insertConnections < 0) {
+			throw new IllegalArgumentException("Negative number of insert connections");
+		}
+
+		List<FCPConnection> fetch = new ArrayList<FCPConnection>(fetchConnections);
+		for(int i = 0; i < fetchConnections; i++) {
+			fetch.add(new FCPConnection(ctx));
+		}
+		List<FCPConnection> insert = new ArrayList<FCPConnection>(insertConnections);
+		for(int i = 0; i < insertConnections; i++) {
+			insert.add(new FCPConnection(ctx));
+		}
+
+		List<FCPConnection> connections = new ArrayList<FCPConnection>(fetch);
+		connections.addAll(insert);
+
+		this.fetchConnections = Collections.unmodifiableList(fetch);
+		this.insertConnections = insert.isEmpty() ? this.fetchConnections : Collections.unmodifiableList(insert);
+		this.all = Collections.unmodifiableList(connections);
+	}
+
+	/**
+	 * Starts the threads that read from the node.
+	 */
+	public synchronized void start() {
+		if(!threads.isEmpty()) {
+			throw new IllegalStateException("Pool has already been started");
+		}
+
+		for(int i = 0; i < all.size(); i++) {
+			Thread t = new Thread(all.get(i), "Freemail FCP Connection " + (i + 1));
+			t.setDaemon(true);
+			t.start();
+			threads.add(t);
+		}
+	}
+
+	/**
+	 * Closes all the connections. Requests that are still waiting for a reply complete with a
+	 * ConnectionClosed message.
+	 */
+	public void kill() {
+		for(FCPConnection conn : all) {
+			conn.kill();
+		}
+
+		//Wake up threads that are waiting to reconnect
+		synchronized(this) {
+			for(Thread t : threads) {
+				t.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the threads started by {@link #start()} to stop after {@link #kill()}.
+	 */
+	public void join() throws InterruptedException {
+		List<Thread> toJoin;
+		synchronized(this) {
+			toJoin = new ArrayList<Thread>(threads);
+			threads.clear();
+		}
+
+		for(Thread t : toJoin) {
+			t.join();
+		}
+	}
+
+	/**
+	 * Returns the connection that the next fetch, or other request that the caller is waiting
+	 * for, should be sent on.
+	 */
+	public FCPConnection getFetchConnection() {
+		return leastLoaded(fetchConnections);
+	}
+
+	/**
+	 * Returns the connection that the next insert should be sent on.
+	 */
+	public FCPConnection getInsertConnection() {
+		return leastLoaded(insertConnections);
+	}
+
+	/**
+	 * Returns {@code true} if at least one of the connections in the pool is connected to the
+	 * node. The connections try to reconnect by themselves, so this can be used to tell whether
+	 * the node is up.
+	 */
+	public boolean isConnected() {
+		for(FCPConnection conn : all) {
+			if(conn.isConnected()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the total number of requests in flight on all the connections in the pool.
+	 */
+	public int getInFlight() {
+		int count = 0;
+		for(FCPConnection conn : all) {
+			count += conn.getInFlight();
+		}
+		return count;
+	}
+
+	private static FCPConnection leastLoaded(List<FCPConnection> connections) {
+		FCPConnection best = null;
+		boolean bestConnected = false;
+		int bestLoad = Integer.MAX_VALUE;
+		for(FCPConnection conn : connections) {
+			boolean connected = conn.isConnected();
+			int load = conn.getInFlight();
+			if(best == null || (connected && !bestConnected) || (connected == bestConnected && load < bestLoad)) {
+				best = conn;
+				bestConnected = connected;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+}
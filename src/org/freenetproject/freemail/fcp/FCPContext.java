@@ -21,19 +21,113 @@ package org.freenetproject.freemail.fcp;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.freenetproject.freemail.config.ConfigClient;
 import org.freenetproject.freemail.config.Configurator;
+import org.freenetproject.freemail.utils.Logger;
 
 
 public class FCPContext implements ConfigClient {
 	private String hostname;
 	private int port;
+	private volatile int memoryThreshold = FCPMessage.DEFAULT_MEMORY_THRESHOLD;
+	private int fetchConnections = 1;
+	private int insertConnections = 1;
+	private volatile boolean persistentRequests = false;
+	private String nodes = "";
+
+	public FCPContext() {
+	}
+
+	/**
+	 * Creates a context for another node, with the same settings as {@code other}.
+	 */
+	private FCPContext(FCPContext other, String hostname, int port) {
+		this.hostname = hostname;
+		this.port = port;
+		this.memoryThreshold = other.memoryThreshold;
+		this.fetchConnections = other.fetchConnections;
+		this.insertConnections = other.insertConnections;
+		this.persistentRequests = other.persistentRequests;
+	}
 
 	public Socket getConn() throws IOException {
 		return new Socket(this.hostname, this.port);
 	}
 
+	/**
+	 * Returns the host and port of the node, e.g. for log messages.
+	 */
+	public String getAddress() {
+		return hostname + ":" + port;
+	}
+
+	/**
+	 * Returns a context for each of the nodes that Freemail should use. The nodes are listed as
+	 * host:port pairs separated by commas, and the port can be left out if it is the same as the
+	 * one of the default node. If no nodes are listed, the only node is the default one.
+	 */
+	public List<FCPContext> getNodeContexts() {
+		List<FCPContext> contexts = new ArrayList<FCPContext>();
+		for(String node : nodes.split(",")) {
+			node = node.trim();
+			if(node.length() == 0) {
+				continue;
+			}
+
+			String nodeHost = node;
+			int nodePort = port;
+			int colon = node.lastIndexOf(':');
+			if(colon != -1) {
+				nodeHost = node.substring(0, colon);
+				try {
+					nodePort = Integer.parseInt(node.substring(colon + 1));
+				} catch (NumberFormatException nfe) {
+					Logger.error(this, "Ignoring node with invalid port: " + node);
+					continue;
+				}
+			}
+			contexts.add(new FCPContext(this, nodeHost, nodePort));
+		}
+
+		if(contexts.isEmpty()) {
+			contexts.add(this);
+		}
+		return contexts;
+	}
+
+	/**
+	 * Returns the size of the largest payload that should be kept in memory instead of being
+	 * written to a temporary file.
+	 */
+	public int getMemoryThreshold() {
+		return memoryThreshold;
+	}
+
+	/**
+	 * Returns the number of connections to the node that should be used for fetches.
+	 */
+	public int getFetchConnections() {
+		return fetchConnections;
+	}
+
+	/**
+	 * Returns the number of connections to the node that should be used only for inserts.
+	 */
+	public int getInsertConnections() {
+		return insertConnections;
+	}
+
+	/**
+	 * Returns {@code true} if inserts and fetches should be put on the global queue of the node,
+	 * so that they survive losing the connection to the node.
+	 */
+	public boolean usePersistentRequests() {
+		return persistentRequests;
+	}
+
 	@Override
 	public void setConfigProp(String key, String val) {
 		if(key.equalsIgnoreCase(Configurator.FCP_HOST)) {
@@ -44,6 +138,28 @@ public class FCPContext implements ConfigClient {
 			} catch (NumberFormatException nfe) {
 				// just leave it as it was
 			}
+		} else if(key.equalsIgnoreCase(Configurator.FCP_MEMORY_THRESHOLD)) {
+			try {
+				memoryThreshold = Math.max(0, Integer.parseInt(val));
+			} catch (NumberFormatException nfe) {
+				// just leave it as it was
+			}
+		} else if(key.equalsIgnoreCase(Configurator.FCP_CONNECTIONS)) {
+			try {
+				fetchConnections = Math.max(1, Integer.parseInt(val));
+			} catch (NumberFormatException nfe) {
+				// just leave it as it was
+			}
+		} else if(key.equalsIgnoreCase(Configurator.FCP_INSERT_CONNECTIONS)) {
+			try {
+				insertConnections = Math.max(0, Integer.parseInt(val));
+			} catch (NumberFormatException nfe) {
+				// just leave it as it was
+			}
+		} else if(key.equalsIgnoreCase(Configurator.FCP_PERSISTENT_REQUESTS)) {
+			persistentRequests = Boolean.parseBoolean(val);
+		} else if(key.equalsIgnoreCase(Configurator.FCP_NODES)) {
+			nodes = val;
 		}
 	}
 }
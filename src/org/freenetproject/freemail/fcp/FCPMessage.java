@@ -23,29 +23,47 @@ package org.freenetproject.freemail.fcp;
 
 import java.io.OutputStream;
 import java.io.InputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.Enumeration;
-import java.util.Collections;
+import java.util.Map;
 
 import org.freenetproject.freemail.Freemail;
-import org.freenetproject.freemail.support.io.LineReader;
 import org.freenetproject.freemail.support.io.LineReadingInputStream;
 
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileBucket;
+
 
 
 public class FCPMessage {
+	/** Payloads up to this many bytes are kept in memory unless configured otherwise */
+	public static final int DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+
+	/** Buffer used to copy payloads to and from disk or the node, reused by each thread */
+	private static final ThreadLocal<byte[]> copyBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[32 * 1024];
+		}
+	};
+
 	private String messagetype;
 	private String identifier;
 	public final HashMap<String, String> headers;
-	private File data;
-	private InputStream outData;
+	private Bucket data;
+	private Bucket outData;
 
 
 	public FCPMessage(int id, String type) {
-		this.identifier = Integer.toString(id);
+		this(Integer.toString(id), type);
+	}
+
+	FCPMessage(String identifier, String type) {
+		this.identifier = identifier;
 		this.headers = new HashMap<String, String>();
 		this.messagetype = type;
 		this.data = null;
@@ -53,14 +71,31 @@ public class FCPMessage {
 	}
 
 	public FCPMessage(InputStream is) throws IOException {
+		this(is, DEFAULT_MEMORY_THRESHOLD);
+	}
+
+	/**
+	 * Reads a message from {@code is}. A payload of at most {@code memoryThreshold} bytes is kept
+	 * in memory, larger payloads are written to a temporary file.
+	 * @param is the stream to read from
+	 * @param memoryThreshold the size of the largest payload that is kept in memory
+	 * @throws IOException if reading from {@code is} fails
+	 */
+	public FCPMessage(InputStream is, int memoryThreshold) throws IOException {
 		this.headers = new HashMap<String, String>();
 		this.outData = null;
 
 		this.messagetype = null;
 
-		//r isn't closed since LineReadingInputStream would close is
+		//r isn't closed since LineReadingInputStream would close is. Streams that are already
+		//line reading are used as is, since a buffered one may hold the start of the next message
 		@SuppressWarnings("resource")
-		LineReader r = new LineReadingInputStream(is);
+		LineReadingInputStream r;
+		if(is instanceof LineReadingInputStream) {
+			r = (LineReadingInputStream)is;
+		} else {
+			r = new LineReadingInputStream(is);
+		}
 
 		String line;
 		while((line = r.readLine(200, 200, false)) != null) {
@@ -73,14 +108,14 @@ public class FCPMessage {
 			} else if(line.equals("Data")) {
 				try {
 					int len = Integer.decode(this.headers.get("DataLength")).intValue();
-					this.readData(is, len);
+					this.readData(r, len, memoryThreshold);
 				} catch (NumberFormatException nfe) {
 				}
 				return;
 			} else {
-				String[] parts = line.split("=");
-				if(parts.length == 2)
-					this.addHeader(parts[0], parts[1]);
+				int eq = line.indexOf('=');
+				if(eq != -1 && eq < line.length() - 1)
+					this.addHeader(line.substring(0, eq), line.substring(eq + 1));
 			}
 		}
 	}
@@ -101,38 +136,77 @@ public class FCPMessage {
 		return this.identifier;
 	}
 
-	public File getData() {
+	/**
+	 * Returns the payload of this message, or {@code null} if there isn't one. It's up to the
+	 * caller to free the bucket once it is done with it.
+	 * @return the payload of this message
+	 */
+	public Bucket getData() {
 		return this.data;
 	}
 
-	public void setData(InputStream d) {
+	/**
+	 * Sets the payload that is sent with this message. The length of the payload is taken from
+	 * {@link Bucket#size()}, so it must not change until the message has been sent.
+	 * @param d the payload
+	 */
+	public void setData(Bucket d) {
 		this.outData = d;
 	}
 
-	private void readData(InputStream is, int len) {
+	private void readData(InputStream is, int len, int memoryThreshold) throws IOException {
+		if(len < 0) {
+			//We can't tell where the next message starts
+			throw new IOException("Invalid DataLength: " + len);
+		}
+
+		if(len <= memoryThreshold) {
+			try {
+				byte[] payload = new byte[len];
+				int offset = 0;
+				while(offset < len) {
+					int read = is.read(payload, offset, len - offset);
+					if(read < 0)
+						throw new EOFException();
+					offset += read;
+				}
+				this.data = new ArrayBucket(payload);
+			} catch (IOException ioe) {
+				this.data = null;
+			}
+			return;
+		}
+
+		File file;
 		try {
-			this.data = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
+			file = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
 		} catch (Exception e) {
 			this.data = null;
 			return;
 		}
 		try {
-			FileOutputStream fos = new FileOutputStream(this.data);
-
-			byte[] buf = new byte[1024];
-			while(len > 0) {
-				int toRead = len;
-				if(toRead > buf.length)
-					toRead = buf.length;
-				int read = is.read(buf, 0, toRead);
-				fos.write(buf, 0, read);
-				len -= read;
+			FileOutputStream fos = new FileOutputStream(file);
+			try {
+				byte[] buf = copyBuffer.get();
+				while(len > 0) {
+					int toRead = len;
+					if(toRead > buf.length)
+						toRead = buf.length;
+					int read = is.read(buf, 0, toRead);
+					if(read < 0)
+						throw new EOFException();
+					fos.write(buf, 0, read);
+					len -= read;
+				}
+			} finally {
+				fos.close();
 			}
-			fos.close();
 		} catch (IOException ioe) {
+			file.delete();
 			this.data = null;
 			return;
 		}
+		this.data = new FileBucket(file, false, false, false, true);
 	}
 
 	public boolean isCompletionMessage() {
@@ -153,14 +227,30 @@ public class FCPMessage {
 		return false;
 	}
 
+	/**
+	 * Returns {@code true} if this message is about a request on the global queue of the node.
+	 */
+	public boolean isGlobal() {
+		return "true".equalsIgnoreCase(this.headers.get("Global"));
+	}
+
 	public void release() {
 		if(this.data != null) {
-			this.data.delete();
+			this.data.free();
 		}
 	}
 
+	/**
+	 * Writes this message and its payload to {@code os}. The payload is copied in large blocks,
+	 * with the first block also holding the header, so a small message is sent in a single
+	 * write.
+	 * @param os the stream to write to
+	 * @throws IOException if writing fails, or if the payload was shorter than its size said, in
+	 *             which case the stream is out of sync and shouldn't be used again
+	 * @throws FCPBadFileException if the payload couldn't be opened. Nothing has been written
+	 */
 	public void writeto(OutputStream os) throws IOException, FCPBadFileException {
-		StringBuffer buf = new StringBuffer();
+		StringBuilder buf = new StringBuilder();
 
 		buf.append(this.messagetype);
 		buf.append("\r\n");
@@ -170,38 +260,61 @@ public class FCPMessage {
 			buf.append("ExpectedVersion=2.0\r\n");
 		}
 
-		buf.append("Identifier="+this.identifier+"\r\n");
-
-		for(Enumeration<String> e = Collections.enumeration(this.headers.keySet()); e.hasMoreElements(); ) {
-			String hdr = e.nextElement();
-			String val = this.headers.get(hdr);
+		buf.append("Identifier=").append(this.identifier).append("\r\n");
 
-			buf.append(hdr+"="+val+"\r\n");
+		for(Map.Entry<String, String> header : this.headers.entrySet()) {
+			buf.append(header.getKey()).append('=').append(header.getValue()).append("\r\n");
 		}
 
+		InputStream data = null;
+		long length = 0;
 		if(this.outData != null) {
-			buf.append("UploadFrom=direct\r\n");
+			length = this.outData.size();
 			try {
-				buf.append("DataLength="+this.outData.available()+"\r\n");
+				data = this.outData.getInputStream();
 			} catch (IOException ioe) {
 				throw new FCPBadFileException();
 			}
+			buf.append("UploadFrom=direct\r\n");
+			buf.append("DataLength=").append(length).append("\r\n");
 			buf.append("Data\r\n");
 		} else {
 			buf.append("EndMessage\r\n");
 		}
-		if(buf.length() > 0) {
-			//Logger.normal(this,buf.toString());
-			os.write(buf.toString().getBytes("UTF-8"));
+
+		//Logger.normal(this,buf.toString());
+		byte[] header = buf.toString().getBytes("UTF-8");
+		if(data == null) {
+			os.write(header);
+			return;
 		}
-		if(this.outData != null) {
-			byte[] bytebuf = new byte[1024];
 
-			int read;
-			while((read = this.outData.read(bytebuf)) > 0) {
-				os.write(bytebuf, 0, read);
+		try {
+			byte[] copy = copyBuffer.get();
+			int filled = 0;
+			if(header.length <= copy.length) {
+				System.arraycopy(header, 0, copy, 0, header.length);
+				filled = header.length;
+			} else {
+				os.write(header);
+			}
+
+			long remaining = length;
+			while(true) {
+				while(remaining > 0 && filled < copy.length) {
+					int read = data.read(copy, filled, (int)Math.min(copy.length - filled, remaining));
+					if(read < 0) {
+						throw new EOFException("Payload ended " + remaining + " bytes early");
+					}
+					filled += read;
+					remaining -= read;
+				}
+				os.write(copy, 0, filled);
+				filled = 0;
+				if(remaining == 0) break;
 			}
-			this.outData.close();
+		} finally {
+			data.close();
 		}
 	}
 }
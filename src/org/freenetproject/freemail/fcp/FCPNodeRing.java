@@ -0,0 +1,171 @@
+/*
+ * FCPNodeRing.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.bouncycastle.crypto.digests.MD5Digest;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * The nodes that Freemail talks to, each with its own {@link FCPConnectionPool}. Requests are
+ * spread over the nodes by their shard key, normally the identity of the account, using
+ * consistent hashing: each node is placed at a number of points on a ring, and a key belongs to
+ * the first node after the hash of the key. Adding or removing a node only moves the keys next to
+ * its points, so most accounts stay on the node that already has their requests.
+ *
+ * If the node that a key belongs to can't be reached, the key goes to the next node on the ring
+ * that can, until the first node is back.
+ */
+public class FCPNodeRing {
+	/** The number of points each node has on the ring, which evens out the share of each node */
+	private static final int POINTS_PER_NODE = 64;
+
+	private final List<FCPConnectionPool> pools;
+	private final TreeMap<Long, FCPConnectionPool> ring = new TreeMap<Long, FCPConnectionPool>();
+
+	/**
+	 * Connects to each of the nodes. The connections don't handle replies until {@link #start()}
+	 * has been called.
+	 * @param contexts the nodes to connect to, see {@link FCPContext#getNodeContexts()}
+	 */
+	public FCPNodeRing(List<FCPContext> contexts) {
+		if(contexts.isEmpty()) {
+			throw new IllegalArgumentException("At least one node is needed");
+		}
+
+		List<FCPConnectionPool> nodePools = new ArrayList<FCPConnectionPool>(contexts.size());
+		for(FCPContext ctx : contexts) {
+			FCPConnectionPool pool = new FCPConnectionPool(ctx, ctx.getFetchConnections(), ctx.getInsertConnections());
+			nodePools.add(pool);
+
+			for(int i = 0; i < POINTS_PER_NODE; i++) {
+				FCPConnectionPool old = ring.put(hash(ctx.getAddress() + "#" + i), pool);
+				if(old != null && old != pool) {
+					//Very unlikely, and only means the old node has one point less
+					Logger.debug(this, "Hash collision between nodes on the ring");
+				}
+			}
+		}
+		this.pools = Collections.unmodifiableList(nodePools);
+	}
+
+	public void start() {
+		for(FCPConnectionPool pool : pools) {
+			pool.start();
+		}
+	}
+
+	public void kill() {
+		for(FCPConnectionPool pool : pools) {
+			pool.kill();
+		}
+	}
+
+	public void join() throws InterruptedException {
+		for(FCPConnectionPool pool : pools) {
+			pool.join();
+		}
+	}
+
+	/**
+	 * Returns the connections of each of the nodes, in the order they were configured.
+	 */
+	public List<FCPConnectionPool> getPools() {
+		return pools;
+	}
+
+	/**
+	 * Returns the connections to the node that requests with the given shard key should be sent
+	 * to. This is the node the key belongs to if it is connected, or else the next connected node
+	 * on the ring. If no node is connected the key's own node is returned, so the request waits
+	 * for it to come back.
+	 * @param shardKey the key that decides the node, e.g. the identity of an account
+	 * @return the connections to use
+	 */
+	public FCPConnectionPool getPool(String shardKey) {
+		if(pools.size() == 1) {
+			return pools.get(0);
+		}
+
+		long hash = hash(shardKey);
+		FCPConnectionPool first = null;
+		for(FCPConnectionPool pool : walk(hash)) {
+			if(first == null) {
+				first = pool;
+			}
+			if(pool.isConnected()) {
+				if(pool != first) {
+					Logger.debug(this, "Node for shard key " + shardKey + " is down, using another one");
+				}
+				return pool;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Returns each node once, in the order they are found going round the ring from
+	 * {@code hash}.
+	 */
+	private List<FCPConnectionPool> walk(long hash) {
+		List<FCPConnectionPool> order = new ArrayList<FCPConnectionPool>(pools.size());
+		addNew(order, ring.tailMap(hash, true).values());
+		addNew(order, ring.headMap(hash, false).values());
+		return order;
+	}
+
+	private void addNew(List<FCPConnectionPool> order, Collection<FCPConnectionPool> points) {
+		for(FCPConnectionPool pool : points) {
+			if(order.size() == pools.size()) {
+				return;
+			}
+			if(!order.contains(pool)) {
+				order.add(pool);
+			}
+		}
+	}
+
+	private static long hash(String key) {
+		byte[] bytes;
+		try {
+			bytes = key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			//JVMs are required to support UTF-8, so we can assume it is always available
+			throw new AssertionError("JVM doesn't support UTF-8 charset");
+		}
+
+		MD5Digest md5 = new MD5Digest();
+		md5.update(bytes, 0, bytes.length);
+		byte[] digest = new byte[md5.getDigestSize()];
+		md5.doFinal(digest, 0);
+
+		long hash = 0;
+		for(int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xff);
+		}
+		return hash;
+	}
+}
@@ -22,61 +22,140 @@
 package org.freenetproject.freemail.fcp;
 
 import java.io.File;
-import java.io.InputStream;
-import java.io.FileInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.FileNotFoundException;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.utils.Logger;
 
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileBucket;
 
-public class HighLevelFCPClient implements FCPClient {
+
+public class HighLevelFCPClient {
 	private static final int FCP_TOO_MANY_PATH_COMPONENTS = 11;
 	private static final int FCP_PERMANANT_REDIRECT = 27;
 
-	private FCPConnection conn;
-
-	private final List<FCPMessage> doneMsgs = new LinkedList<FCPMessage>();
+	private final FCPNodeRing nodes;
+	private final String shardKey;
 
 	public HighLevelFCPClient() {
-		this.conn = Freemail.getFCPConnection();
+		this("");
+	}
+
+	/**
+	 * Creates a client whose requests go to the node that {@code shardKey} belongs to, see
+	 * {@link FCPNodeRing#getPool(String)}.
+	 */
+	public HighLevelFCPClient(String shardKey) {
+		this(Freemail.getFCPNodes(), shardKey);
+	}
+
+	/**
+	 * Creates a client that sends each request on the least loaded suitable connection to the
+	 * node that {@code shardKey} belongs to. The node is looked up for each request, so the
+	 * requests move to another node while the node is down.
+	 */
+	public HighLevelFCPClient(FCPNodeRing nodes, String shardKey) {
+		this.nodes = nodes;
+		this.shardKey = shardKey;
 	}
 
-	// It's up to the client to delete this File once they're
+	// It's up to the client to free this Bucket once they're
 	// done with it
-	public File fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException,
-	                                     InterruptedException {
-		FCPMessage msg = this.conn.getMessage("ClientGet");
+	public Bucket fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException,
+	                                       InterruptedException {
+		return getResult(fetchAsync(key));
+	}
+
+	/**
+	 * Starts fetching {@code key} and returns a {@code Future} for the result, which is the same
+	 * as {@link #fetch(String)} would return. The request is sent before this method returns, so
+	 * any number of fetches can be in progress at once without a thread waiting for each of them.
+	 * A failed fetch makes {@link Future#get()} throw an {@code ExecutionException} with the
+	 * {@link FCPException} as the cause.
+	 *
+	 * @param key the key to fetch
+	 * @return a {@code Future} for the fetched data
+	 * @throws ConnectionTerminatedException if the FCP connection has been terminated
+	 * @throws InterruptedException if interrupted while waiting for a connection to the node
+	 */
+	public Future<Bucket> fetchAsync(String key) throws ConnectionTerminatedException, InterruptedException {
+		FCPConnection conn = nodes.getPool(shardKey).getFetchConnection();
+		FCPMessage msg = newRequest(conn, "ClientGet");
 		msg.headers.put("URI", key);
 		msg.headers.put("ReturnType", "direct");
-		msg.headers.put("Persistence", "connection");
 
-		while(true) {
-			try {
-				this.conn.doRequest(this, msg);
-				break;
-			} catch (NoNodeConnectionException nnce) {
-				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(10000);
-			} catch (FCPBadFileException bfe) {
-				// won't be thrown since this is a get,
-				// but keep the compiler happy
-			}
+		Future<FCPMessage> reply;
+		try {
+			reply = submit(conn, msg, 10000);
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since this is a get
+			throw new AssertionError();
 		}
 
-		FCPMessage reply;
+		return new ReplyFuture<Bucket>(reply) {
+			@Override
+			protected Bucket convert(FCPMessage msg) throws ConnectionTerminatedException, FCPException,
+			                                                InterruptedException {
+				return fetchResult(msg);
+			}
+		};
+	}
+
+	/**
+	 * Starts a fetch of {@code key} that the node keeps retrying until the data is found, instead
+	 * of giving up when the data isn't there yet. This lets the caller wait for data to be
+	 * inserted without polling the key over and over. The fetch only ends by itself if the data is
+	 * found, if it fails in a way that retrying won't fix, or if the connection to the node is
+	 * lost. Cancelling the {@code Future} tells the node to stop the fetch.
+	 *
+	 * @param key the key to fetch
+	 * @param listener run when the fetch completes, unless it has been cancelled. It is run by
+	 *                 the thread reading from the node, so it must not block. May be {@code null}
+	 * @return a {@code Future} for the fetched data
+	 * @throws ConnectionTerminatedException if the FCP connection has been terminated
+	 * @throws InterruptedException if interrupted while waiting for a connection to the node
+	 */
+	public Future<Bucket> watchAsync(String key, Runnable listener) throws ConnectionTerminatedException,
+	                                                                       InterruptedException {
+		final FCPConnection conn = nodes.getPool(shardKey).getFetchConnection();
+		final FCPMessage request = newRequest(conn, "ClientGet");
+		request.headers.put("URI", key);
+		request.headers.put("ReturnType", "direct");
+		request.headers.put("MaxRetries", "-1");
+
+		Future<FCPMessage> reply;
 		try {
-			reply = getReply(msg.getId());
-		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in fetch, stopping");
-			conn.cancelRequest(msg);
-			throw e;
+			reply = submit(conn, request, listener, 10000);
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since this is a get
+			throw new AssertionError();
 		}
 
+		return new ReplyFuture<Bucket>(reply) {
+			@Override
+			protected Bucket convert(FCPMessage msg) throws ConnectionTerminatedException, FCPException,
+			                                                InterruptedException {
+				return fetchResult(msg);
+			}
+
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = super.cancel(mayInterruptIfRunning);
+				if(cancelled) {
+					conn.removeRequest(request);
+				}
+				return cancelled;
+			}
+		};
+	}
+
+	private Bucket fetchResult(FCPMessage reply) throws ConnectionTerminatedException, FCPException,
+	                                                    InterruptedException {
 		if(reply.getType().equalsIgnoreCase("AllData")) {
 			return reply.getData();
 		} else if(reply.getType().equalsIgnoreCase("GetFailed")) {
@@ -94,45 +173,89 @@ public class HighLevelFCPClient implements FCPClient {
 		}
 	}
 
-	private FCPMessage getReply(String identifier) throws InterruptedException {
-		synchronized (doneMsgs) {
-			while(true) {
-				Iterator<FCPMessage> it = doneMsgs.iterator();
-				while(it.hasNext()) {
-					FCPMessage msg = it.next();
-					if(identifier.equals(msg.getId())) {
-						it.remove();
-						return msg;
-					}
-				}
-
-				doneMsgs.wait();
-			}
+	/**
+	 * Creates a fetch or insert on {@code conn}. If persistent requests are enabled the request is
+	 * put on the global queue of the node, so that the work the node has done isn't lost if the
+	 * connection to the node is.
+	 */
+	private FCPMessage newRequest(FCPConnection conn, String type) {
+		if(conn.usePersistentRequests()) {
+			return conn.getPersistentMessage(type);
 		}
+
+		FCPMessage msg = conn.getMessage(type);
+		msg.headers.put("Persistence", "connection");
+		return msg;
 	}
 
-	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
-		FCPMessage msg = this.conn.getMessage("GenerateSSK");
+	/**
+	 * Sends {@code msg} to the node on {@code conn}, which must be the connection that created the
+	 * message, waiting for the connection to the node if it is down.
+	 */
+	private Future<FCPMessage> submit(FCPConnection conn, FCPMessage msg, long retryDelay)
+			throws ConnectionTerminatedException, FCPBadFileException, InterruptedException {
+		return submit(conn, msg, null, retryDelay);
+	}
 
+	private Future<FCPMessage> submit(FCPConnection conn, FCPMessage msg, Runnable listener, long retryDelay)
+			throws ConnectionTerminatedException, FCPBadFileException, InterruptedException {
 		while(true) {
 			try {
-				this.conn.doRequest(this, msg);
-				break;
+				return conn.submit(msg, listener);
 			} catch (NoNodeConnectionException nnce) {
 				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(5000);
-			} catch (FCPBadFileException bfe) {
-				// won't be thrown since no data
+				Thread.sleep(retryDelay);
 			}
 		}
+	}
 
-		FCPMessage reply;
+	/**
+	 * Waits for the result of a request, cancelling the request if interrupted.
+	 */
+	private <T> T getResult(Future<T> future) throws ConnectionTerminatedException, FCPException,
+	                                                 InterruptedException {
 		try {
-			reply = getReply(msg.getId());
-		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in makeSSK, stopping");
-			conn.cancelRequest(msg);
+			return future.get();
+		} catch (InterruptedException e) {
+			Logger.debug(this, "HighLevelFCPClient interrupted while waiting for reply, stopping");
+			future.cancel(false);
 			throw e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof FCPException) {
+				throw (FCPException)cause;
+			}
+			if(cause instanceof ConnectionTerminatedException) {
+				throw (ConnectionTerminatedException)cause;
+			}
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new AssertionError(cause);
+		}
+	}
+
+	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
+		FCPConnection conn = nodes.getPool(shardKey).getFetchConnection();
+		FCPMessage msg = conn.getMessage("GenerateSSK");
+
+		Future<FCPMessage> future;
+		try {
+			future = submit(conn, msg, 5000);
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown since no data
+			throw new AssertionError();
+		}
+
+		FCPMessage reply;
+		try {
+			reply = getResult(future);
+		} catch (FCPException e) {
+			// the connection never fails the Future
+			throw new AssertionError(e);
 		}
 
 		if(reply.getType().equalsIgnoreCase("SSKKeypair")) {
@@ -146,47 +269,56 @@ public class HighLevelFCPClient implements FCPClient {
 		}
 	}
 
-	public FCPPutFailedException put(InputStream data, String key) throws FCPBadFileException,
-	                                                                      ConnectionTerminatedException,
-	                                                                      FCPException, InterruptedException {
-		FCPMessage msg = this.conn.getMessage("ClientPut");
+	public FCPPutFailedException put(Bucket data, String key) throws FCPBadFileException,
+	                                                                 ConnectionTerminatedException,
+	                                                                 FCPException, InterruptedException {
+		return getResult(putAsync(data, key));
+	}
+
+	/**
+	 * Starts inserting {@code data} to {@code key} and returns a {@code Future} for the result,
+	 * which is the same as {@link #put(Bucket, String)} would return. The data has been sent
+	 * to the node when this method returns. The size of the bucket is sent as the length of the
+	 * data, so the bucket must not change while the data is being sent.
+	 *
+	 * @param data the data to insert
+	 * @param key the key to insert the data to
+	 * @return a {@code Future} for the result of the insert
+	 * @throws FCPBadFileException if the data couldn't be read
+	 * @throws ConnectionTerminatedException if the FCP connection has been terminated
+	 * @throws InterruptedException if interrupted while waiting for a connection to the node
+	 */
+	public Future<FCPPutFailedException> putAsync(Bucket data, String key) throws FCPBadFileException,
+	                                                                              ConnectionTerminatedException,
+	                                                                              InterruptedException {
+		FCPConnection conn = nodes.getPool(shardKey).getInsertConnection();
+		FCPMessage msg = newRequest(conn, "ClientPut");
 		msg.headers.put("URI", key);
-		msg.headers.put("Persistence", "connection");
 		msg.setData(data);
 
-		while(true) {
-			try {
-				this.conn.doRequest(this, msg);
-				break;
-			} catch (NoNodeConnectionException nnce) {
-				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(5000);
+		return new ReplyFuture<FCPPutFailedException>(submit(conn, msg, 5000)) {
+			@Override
+			protected FCPPutFailedException convert(FCPMessage reply) throws FCPException {
+				if(reply.getType().equalsIgnoreCase("PutSuccessful")) {
+					return null;
+				} else if(reply.getType().equalsIgnoreCase("PutFailed")) {
+					return new FCPPutFailedException(reply);
+				} else {
+					throw FCPException.create(reply);
+				}
 			}
-		}
-
-		FCPMessage reply;
-		try {
-			reply = getReply(msg.getId());
-		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in put, stopping");
-			conn.cancelRequest(msg);
-			throw e;
-		}
-
-		if(reply.getType().equalsIgnoreCase("PutSuccessful")) {
-			return null;
-		} else if(reply.getType().equalsIgnoreCase("PutFailed")) {
-			return new FCPPutFailedException(reply);
-		} else {
-			throw FCPException.create(reply);
-		}
+		};
 	}
 
 	public int SlotInsert(File data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
 	                                                                                    InterruptedException {
+		if(!data.canRead()) {
+			return -1;
+		}
+		Bucket bucket = new FileBucket(data, true, false, false, false);
+
 		int slot = minslot;
 		boolean carryon = true;
-		FileInputStream fis;
 		if(basekey.startsWith("USK@")) {
 			basekey = basekey.replace("USK@", "SSK@");
 
@@ -197,15 +329,9 @@ public class HighLevelFCPClient implements FCPClient {
 		while(carryon) {
 			Logger.debug(this, "trying slotinsert to "+basekey+"-"+slot+suffix);
 
-			try {
-				fis = new FileInputStream(data);
-			} catch (FileNotFoundException fnfe) {
-				return -1;
-			}
-
 			FCPPutFailedException emsg;
 			try {
-				emsg = this.put(fis, basekey+"-"+slot+suffix);
+				emsg = this.put(bucket, basekey+"-"+slot+suffix);
 			} catch (FCPBadFileException bfe) {
 				return -1;
 			} catch (FCPException e) {
@@ -229,9 +355,10 @@ public class HighLevelFCPClient implements FCPClient {
 
 	public int slotInsert(byte[] data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
 	                                                                                      InterruptedException {
+		Bucket bucket = new ArrayBucket(data);
+
 		int slot = minslot;
 		boolean carryon = true;
-		ByteArrayInputStream bis;
 		if(basekey.startsWith("USK@")) {
 			basekey = basekey.replace("USK@", "SSK@");
 
@@ -242,11 +369,9 @@ public class HighLevelFCPClient implements FCPClient {
 		while(carryon) {
 			Logger.debug(this, "trying slotinsert to "+basekey+"-"+slot+suffix);
 
-			bis = new ByteArrayInputStream(data);
-
 			FCPPutFailedException emsg;
 			try {
-				emsg = this.put(bis, basekey+"-"+slot+suffix);
+				emsg = this.put(bucket, basekey+"-"+slot+suffix);
 			} catch (FCPBadFileException bfe) {
 				return -1;
 			} catch (FCPException e) {
@@ -268,16 +393,65 @@ public class HighLevelFCPClient implements FCPClient {
 		return -1;
 	}
 
-	@Override
-	public void requestStatus(FCPMessage msg) {
+	/**
+	 * Turns the reply to a request into the result of a higher level operation. The conversion
+	 * is done once, by the first thread that asks for the result.
+	 */
+	private abstract static class ReplyFuture<T> implements Future<T> {
+		private final Future<FCPMessage> reply;
+		private boolean converted = false;
+		private T result;
+		private ExecutionException failure;
+
+		private ReplyFuture(Future<FCPMessage> reply) {
+			this.reply = reply;
+		}
 
-	}
+		protected abstract T convert(FCPMessage msg) throws ConnectionTerminatedException, FCPException,
+		                                                    InterruptedException;
 
-	@Override
-	public void requestFinished(FCPMessage msg) {
-		synchronized(doneMsgs) {
-			doneMsgs.add(msg);
-			doneMsgs.notifyAll();
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return reply.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return reply.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return reply.isDone();
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			return convertOnce(reply.get());
+		}
+
+		@Override
+		public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+		                                                 TimeoutException {
+			return convertOnce(reply.get(timeout, unit));
+		}
+
+		private synchronized T convertOnce(FCPMessage msg) throws InterruptedException, ExecutionException {
+			if(!converted) {
+				try {
+					result = convert(msg);
+				} catch (ConnectionTerminatedException e) {
+					failure = new ExecutionException(e);
+				} catch (FCPException e) {
+					failure = new ExecutionException(e);
+				}
+				converted = true;
+			}
+
+			if(failure != null) {
+				throw failure;
+			}
+			return result;
 		}
 	}
 }
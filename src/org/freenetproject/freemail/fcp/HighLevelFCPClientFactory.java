@@ -19,8 +19,24 @@
 
 package org.freenetproject.freemail.fcp;
 
+import org.freenetproject.freemail.Freemail;
+
 public class HighLevelFCPClientFactory {
+	private final String shardKey;
+
+	public HighLevelFCPClientFactory() {
+		this("");
+	}
+
+	/**
+	 * Creates a factory for clients whose requests go to the node that {@code shardKey} belongs
+	 * to, see {@link FCPNodeRing#getPool(String)}.
+	 */
+	public HighLevelFCPClientFactory(String shardKey) {
+		this.shardKey = shardKey;
+	}
+
 	public HighLevelFCPClient newInstance() {
-		return new HighLevelFCPClient();
+		return new HighLevelFCPClient(Freemail.getFCPNodes(), shardKey);
 	}
 }
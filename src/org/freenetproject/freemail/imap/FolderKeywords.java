@@ -0,0 +1,256 @@
+/*
+ * FolderKeywords.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * The user defined keywords (flags that don't start with a backslash) of a single message
+ * folder. Each keyword gets a number when it is first used, which is what the flags of a message
+ * store, and which is written to the message file name as the lower case letter {@code 'a' + n}.
+ * This keeps the file names short and leaves the upper case letters for the system flags, but
+ * limits each folder to {@link #MAX_KEYWORDS} keywords.
+ *
+ * The keywords are stored in a file in the folder, one per line, in order of their number. There
+ * is only one instance per folder, use {@link #forDirectory(File)} to get it.
+ */
+public class FolderKeywords {
+	/** The number of keywords that can be stored in a message file name */
+	public static final int MAX_KEYWORDS = 26;
+
+	private static final String KEYWORDS_FILE = ".keywords";
+
+	private static final Map<File, FolderKeywords> folders = new HashMap<File, FolderKeywords>();
+
+	private final File file;
+
+	/** The keywords in order of their number. Is {@code null} until the file has been read */
+	private List<String> keywords = null;
+
+	/** Maps the lower case keyword to its number */
+	private final Map<String, Integer> numbers = new HashMap<String, Integer>();
+
+	/** Run after the keywords have been written, see {@link #setWriteListener(Runnable)} */
+	private volatile Runnable writeListener = null;
+
+	private FolderKeywords(File dir) {
+		this.file = new File(dir, KEYWORDS_FILE);
+	}
+
+	/**
+	 * Returns the keywords of the folder stored in {@code dir}.
+	 * @param dir the directory of the folder
+	 * @return the keywords of the folder
+	 */
+	public static FolderKeywords forDirectory(File dir) {
+		File key = dir.getAbsoluteFile();
+		synchronized(folders) {
+			FolderKeywords keywords = folders.get(key);
+			if(keywords == null) {
+				keywords = new FolderKeywords(key);
+				folders.put(key, keywords);
+			}
+			return keywords;
+		}
+	}
+
+	/**
+	 * Drops the keywords of {@code dir} from memory. This should be called when the folder is
+	 * deleted.
+	 * @param dir the directory of the folder
+	 */
+	public static void forget(File dir) {
+		synchronized(folders) {
+			folders.remove(dir.getAbsoluteFile());
+		}
+	}
+
+	/**
+	 * Sets a task that is run each time the keywords file has been written. Creating the file
+	 * changes the folder, and the folder index uses this to tell that change apart from changes
+	 * made by others. The task is run without holding the lock of this instance.
+	 * @param listener the task to run, or {@code null}
+	 */
+	public void setWriteListener(Runnable listener) {
+		writeListener = listener;
+	}
+
+	/**
+	 * Returns the keyword with the given number, or {@code null} if there is none.
+	 */
+	public synchronized String get(int number) {
+		load();
+		if(number >= keywords.size() || keywords.get(number).length() == 0) {
+			return null;
+		}
+		return keywords.get(number);
+	}
+
+	/**
+	 * Returns the number of the given keyword, comparing case-insensitively.
+	 * @param keyword the keyword to look up
+	 * @param create if the keyword should be added if it isn't known already
+	 * @return the number of the keyword, or -1 if it isn't known and wasn't added
+	 */
+	public int getNumber(String keyword, boolean create) {
+		int number;
+		synchronized(this) {
+			load();
+			Integer known = numbers.get(keyword.toLowerCase(Locale.ROOT));
+			if(known != null) {
+				return known.intValue();
+			}
+			if(!create) {
+				return -1;
+			}
+			if(keywords.size() >= MAX_KEYWORDS) {
+				Logger.error(this, "Too many keywords in " + file.getParentFile() + ", can't add " + keyword);
+				return -1;
+			}
+
+			add(keyword.intern());
+			store();
+			number = keywords.size() - 1;
+		}
+
+		//The folder index takes its own lock, which must not be taken while holding ours
+		Runnable listener = writeListener;
+		if(listener != null) {
+			listener.run();
+		}
+		return number;
+	}
+
+	/**
+	 * Returns {@code true} if there is room to add those of {@code newKeywords} that aren't known
+	 * already.
+	 */
+	public synchronized boolean hasRoomFor(Collection<String> newKeywords) {
+		load();
+		Set<String> unknown = new HashSet<String>();
+		for(String keyword : newKeywords) {
+			String lower = keyword.toLowerCase(Locale.ROOT);
+			if(!numbers.containsKey(lower)) {
+				unknown.add(lower);
+			}
+		}
+		return keywords.size() + unknown.size() <= MAX_KEYWORDS;
+	}
+
+	/**
+	 * Returns {@code true} if no more keywords can be added to the folder.
+	 */
+	public synchronized boolean isFull() {
+		load();
+		return keywords.size() >= MAX_KEYWORDS;
+	}
+
+	/**
+	 * Returns all the keywords of the folder, separated by spaces.
+	 */
+	public synchronized String getAllAsString() {
+		load();
+		StringBuilder buf = new StringBuilder();
+		for(String keyword : keywords) {
+			if(keyword.length() == 0) {
+				continue;
+			}
+			if(buf.length() > 0) {
+				buf.append(' ');
+			}
+			buf.append(keyword);
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Makes the keywords be read from disk again the next time they are used, e.g. because the
+	 * folder was changed by something other than Freemail.
+	 */
+	public synchronized void reload() {
+		keywords = null;
+		numbers.clear();
+	}
+
+	private void add(String keyword) {
+		numbers.put(keyword.toLowerCase(Locale.ROOT), Integer.valueOf(keywords.size()));
+		keywords.add(keyword);
+	}
+
+	private void load() {
+		if(keywords != null) {
+			return;
+		}
+
+		keywords = new ArrayList<String>();
+		if(!file.exists()) {
+			return;
+		}
+
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while((line = reader.readLine()) != null && keywords.size() < MAX_KEYWORDS) {
+					//Keep empty lines so the numbers of the following keywords don't change
+					add(line.intern());
+				}
+			} finally {
+				reader.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't read keywords from " + file + ": " + e.getMessage());
+		}
+	}
+
+	private void store() {
+		StringBuilder buf = new StringBuilder();
+		for(String keyword : keywords) {
+			buf.append(keyword).append('\n');
+		}
+
+		try {
+			OutputStream os = new FileOutputStream(file);
+			try {
+				os.write(buf.toString().getBytes("UTF-8"));
+			} finally {
+				os.close();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't store keywords in " + file + ": " + e.getMessage());
+		}
+	}
+}
@@ -25,81 +25,161 @@ package org.freenetproject.freemail.imap;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.SortedMap;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.lang.NumberFormatException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.archive.util.Base32;
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.FolderEvents;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.MailMessage;
 import org.freenetproject.freemail.MessageBank;
+import org.freenetproject.freemail.MimeStructure;
 import org.freenetproject.freemail.ServerHandler;
 import org.freenetproject.freemail.utils.EmailAddress;
 import org.freenetproject.freemail.utils.Logger;
 
 import freenet.support.Base64;
 
-public class IMAPHandler extends ServerHandler implements Runnable {
-	private static final String CAPABILITY = "IMAP4rev1 CHILDREN NAMESPACE";
+public class IMAPHandler extends ServerHandler {
+	private static final String CAPABILITY = "IMAP4rev1 CHILDREN NAMESPACE IDLE";
+
+	/** The header fields that are used in the envelope of a message */
+	private static final String[] ENVELOPE_FIELDS = {"date", "subject", "from", "x-freemail-sender",
+			"reply-to", "to", "cc", "bcc", "in-reply-to", "message-id"};
 
 	private final PrintStream ps;
 	private final BufferedReader bufrdr;
+
+	/** Used for sending message data, which is copied directly from the message files */
+	private final WritableByteChannel channel;
 	private MessageBank mb;
 	private MessageBank inbox;
 	private final AccountManager accountManager;
 
+	/** Set when the welcome message has been sent, since run() is called again after parking */
+	private boolean started = false;
+
+	/** The tag of the IDLE command while the client is idling, {@code null} otherwise */
+	private String idleTag = null;
+
+	/** The folder that was selected when IDLE started */
+	private MessageBank idleFolder = null;
+
+	/**
+	 * The uids of the selected folder that the client has been told about, in ascending order,
+	 * see {@link #knownCount}
+	 */
+	private int[] knownUids = null;
+	private int knownCount = 0;
+
+	/** Changes to the idle folder that haven't been sent to the client yet */
+	private final ConcurrentLinkedQueue<FolderEvents.Event> idleEvents =
+			new ConcurrentLinkedQueue<FolderEvents.Event>();
+
+	/** Set while {@link #idleUpdater} is waiting to be run */
+	private final AtomicBoolean idleUpdatePending = new AtomicBoolean();
+
+	private final Runnable idleUpdater = new Runnable() {
+		@Override
+		public void run() {
+			//Clear the flag first, so events added from now on are sure to be sent
+			idleUpdatePending.set(false);
+			sendIdleUpdates();
+		}
+	};
+
+	/**
+	 * Only queues the events, since it is called by whoever changed the folder. The events are
+	 * sent by our own thread if the connection is served by a selector, and otherwise by
+	 * {@link #idleUpdater} since our thread is blocked reading from the client.
+	 */
+	private final FolderEvents.Listener idleListener = new FolderEvents.Listener() {
+		@Override
+		public void folderChanged(FolderEvents.Event event) {
+			idleEvents.add(event);
+			if(!wakeUp() && idleUpdatePending.compareAndSet(false, true)) {
+				sendLater(idleUpdater);
+			}
+		}
+	};
+
 	IMAPHandler(AccountManager accMgr, Socket client) throws IOException {
 		super(client);
 		accountManager = accMgr;
 		this.ps = new PrintStream(client.getOutputStream());
+		if(client.getChannel() != null) {
+			this.channel = client.getChannel();
+		} else {
+			this.channel = Channels.newChannel(client.getOutputStream());
+		}
 		this.bufrdr = new BufferedReader(new InputStreamReader(client.getInputStream()));
 		this.mb = null;
 	}
 
 	@Override
 	public void run() {
-		this.sendWelcome();
+		if(!started) {
+			started = true;
+			this.sendWelcome();
 
-		try {
-			client.setSoTimeout((int) TimeUnit.MINUTES.toMillis(30));
-		} catch (SocketException se1) {
-			Logger.warning(this, "Could not set timeout on client socket!", se1);
+			try {
+				client.setSoTimeout(getIdleTimeout());
+			} catch (SocketException se1) {
+				Logger.warning(this, "Could not set timeout on client socket!", se1);
+			}
 		}
 
 		String line;
 		try {
 			while (!stopping && !this.client.isClosed()) {
 				try {
+					if(!this.bufrdr.ready()) {
+						sendIdleUpdates();
+						this.ps.flush();
+						if(park()) {
+							//We'll be run again when the client sends the next command
+							return;
+						}
+					}
+
 					line = this.bufrdr.readLine();
 					if (line == null) {
 						break;
 					}
+					if(idleTag != null) {
+						endIdle(line);
+						continue;
+					}
 					IMAPMessage msg = new IMAPMessage(line);
 					dispatch(msg);
 				} catch (IMAPBadMessageException bme) {
 					continue;
 				} catch (SocketTimeoutException ste1) {
-					sendState("BYE Automatically disconnected, too much idleness");
-					ps.flush();
-					stopping = true;
+					idleTimeout();
 					continue;
 				}
 			}
@@ -111,6 +191,26 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				Logger.error(this, "Caught IOException while reading imap data: " + ioe.getMessage(), ioe);
 			}
 		}
+		stopIdle();
+	}
+
+	@Override
+	public void kill() {
+		//Close the connection first, so an update that is blocked sending to the client fails
+		super.kill();
+		stopIdle();
+	}
+
+	@Override
+	protected int getIdleTimeout() {
+		return (int) TimeUnit.MINUTES.toMillis(30);
+	}
+
+	@Override
+	protected void idleTimeout() {
+		sendState("BYE Automatically disconnected, too much idleness");
+		ps.flush();
+		kill();
 	}
 
 	private void sendWelcome() {
@@ -159,6 +259,8 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			this.handleAppend(msg);
 		} else if(msg.type.equals("search")) {
 			handleSearch(msg);
+		} else if(msg.type.equals("idle")) {
+			handleIdle(msg);
 		} else {
 			Logger.error(this, "Unknown IMAP command: " + msg.type);
 			this.reply(msg, "NO Sorry - not implemented");
@@ -326,13 +428,27 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			this.mb = tempmb;
 		}
 
-		this.sendState("FLAGS ("+IMAPMessageFlags.getAllFlagsAsString()+")");
-		this.sendState("OK [PERMANENTFLAGS ("+IMAPMessageFlags.getPermanentFlagsAsString()+")] Limited");
+		FolderKeywords folderKeywords = this.mb.getKeywords();
+		String keywords = folderKeywords.getAllAsString();
+		if(keywords.length() > 0) {
+			keywords = " " + keywords;
+		}
+		this.sendState("FLAGS ("+IMAPMessageFlags.getAllFlagsAsString()+keywords+")");
+		//Clients may create new keywords, up to the limit of the folder
+		String newKeywords = folderKeywords.isFull() ? "" : " \\*";
+		this.sendState("OK [PERMANENTFLAGS ("+IMAPMessageFlags.getPermanentFlagsAsString()+keywords+newKeywords+")] Limited");
 
 		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
 
 		int numrecent = 0;
 		int numexists = msgs.size();
+		int[] uids = new int[numexists];
+		int i = 0;
+		for(MailMessage m : msgs.values()) {
+			uids[i++] = m.getUID();
+		}
+		setKnownUids(uids);
+
 		while(msgs.size() > 0) {
 			Integer current = msgs.firstKey();
 			MailMessage m =msgs.get(msgs.firstKey());
@@ -358,6 +474,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 	}
 
 	private void handleNoop(IMAPMessage msg) {
+		if(this.mb != null) {
+			sendFolderChanges(this.mb.listUids());
+		}
 		this.reply(msg, "OK NOOP completed");
 	}
 
@@ -371,6 +490,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
+		sendFolderChanges(this.mb.listUids());
 		this.reply(msg, "OK Check completed");
 	}
 
@@ -388,9 +508,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
+		int messageCount = this.mb.getMessageCount();
 
-		if(msgs.size() == 0) {
+		if(messageCount == 0) {
 			this.reply(msg, "OK Fetch completed");
 			return;
 		}
@@ -400,11 +520,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		MailMessage lastMessage = msgs.get(msgs.lastKey());
-		SortedSet<Integer> sequenceNumbers;
+		SequenceSet sequenceNumbers;
 		try {
-			sequenceNumbers = parseSequenceSet(msg.args[0],
-					uid ? lastMessage.getUID() : lastMessage.getSeqNum());
+			sequenceNumbers = parseSequenceSet(msg.args[0], uid ? this.mb.getLastUid() : messageCount);
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -414,24 +532,14 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 
 		if(!uid) {
-			if(sequenceNumbers.first() < 1 || sequenceNumbers.last() > lastMessage.getSeqNum()) {
+			if(sequenceNumbers.first() < 1 || sequenceNumbers.last() > messageCount) {
 				reply(msg, "NO Invalid message ID");
 				return;
 			}
 		}
 
 		//Return the messages in the range
-		for(MailMessage message : msgs.values()) {
-			if(uid) {
-				if(!sequenceNumbers.contains(message.getUID())) {
-					continue;
-				}
-			} else {
-				if(!sequenceNumbers.contains(message.getSeqNum())) {
-					continue;
-				}
-			}
-
+		for(MailMessage message : sequenceNumbers.select(this.mb, uid).values()) {
 			if(!this.fetchSingle(message, msg.args, 1, uid)) {
 				this.reply(msg, "BAD Unknown attribute in list or unterminated list");
 				return;
@@ -493,16 +601,14 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
-		if(msgs.size() == 0) {
+		if(this.mb.getMessageCount() == 0) {
 			this.reply(msg, "NO No such message");
 			return;
 		}
 
-		Set<Integer> ts;
+		SequenceSet ts;
 		try {
-			MailMessage lastMessage = msgs.get(msgs.lastKey());
-			ts = parseSequenceSet(msg.args[1], lastMessage.getUID());
+			ts = parseSequenceSet(msg.args[1], this.mb.getLastUid());
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -511,14 +617,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			if(!ts.contains(msgIt.next().getUID())) {
-				msgIt.remove();
-			}
-		}
-
-		if(!this.doStore(msg.args, 2, msgs.values(), msg, true)) {
+		if(!this.doStore(msg.args, 2, ts.select(this.mb, true).values(), msg, true)) {
 			return;
 		}
 
@@ -621,11 +720,13 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			this.ps.flush();
 			a = a.substring("body.peek".length());
 			return this.sendBody(mmsg, a, false);
-		} else if(attr.startsWith("bodystructure")) {
-			// TODO: we blatantly lie about the message structure
-			this.ps.print(a.substring(0, "bodystructure".length()));
-			this.ps.print(" (\"TEXT\" \"PLAIN\" (\"CHARSET\" \"ISO-8859-1\") NIL NIL \"8BIT\" 1024 10)");
-			return true;
+		} else if(attr.equals("bodystructure") || attr.equals("body")) {
+			try {
+				val = getBodyStructure(mmsg, mmsg.getStructure().getRoot(), attr.equals("bodystructure"));
+			} catch (IOException ioe) {
+				Logger.error(this, "Caught IOException while reading message structure: " + ioe.getMessage(), ioe);
+				return false;
+			}
 		} else if(attr.startsWith("body")) {
 			// TODO: this is not quite right since it will match bodyanything
 			mmsg.flags.setSeen();
@@ -639,10 +740,26 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				return true;
 			}
 			return false;
+		} else if(attr.equals("rfc822")) {
+			this.ps.print(a);
+			if(this.sendBody(mmsg, "[]", true)) {
+				mmsg.flags.setSeen();
+				mmsg.storeFlags();
+				return true;
+			}
+			return false;
 		} else if(attr.startsWith("rfc822.header")) {
 			this.ps.print(a.substring(0, "rfc822.header".length()));
 			this.ps.flush();
 			return this.sendBody(mmsg, "header", true);
+		} else if(attr.equals("rfc822.text")) {
+			this.ps.print(a);
+			if(this.sendBody(mmsg, "text", true)) {
+				mmsg.flags.setSeen();
+				mmsg.storeFlags();
+				return true;
+			}
+			return false;
 		} else if(attr.startsWith("internaldate")) {
 			/*
 			 * FIXME: Internaldate should not return Date from the message
@@ -695,133 +812,201 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		if(attr.charAt(attr.length() - 1) == ']')
 			attr = attr.substring(0, attr.length() - 1);
 
-		if(attr.trim().length() == 0) {
-			try {
-				if(!hasSentDataName) {
-					this.ps.print("[]");
-				}
-				if(range_start!=-1) {
-					this.ps.print("<"+range_start+">");
-				}
+		String[] parts = IMAPMessage.doSplit(attr, '(', ')');
+		if(parts.length > 1 && parts[0].equalsIgnoreCase("header.fields")) {
+			return sendHeaderFields(mmsg, parts[1], hasSentDataName);
+		}
 
-				long partsize=0;
-				if(range_start==-1) {
-					partsize=mmsg.getSize();
-				} else {
-					partsize=range_len;
-					if(mmsg.getSize()-range_start<partsize) {
-						partsize=mmsg.getSize()-range_start;
-					}
-				}
+		//Everything else is a range of the message
+		String section = attr.trim();
+		long[] sectionRange;
+		try {
+			sectionRange = mmsg.getSectionRange(section);
+		} catch (IOException ioe) {
+			Logger.error(this, "Caught IOException while reading message structure: " + ioe.getMessage(), ioe);
+			return false;
+		}
+		if(sectionRange == null) {
+			return false;
+		}
 
-				this.ps.print(" {"+partsize+"}\r\n");
-
-				String line;
-				while((line = mmsg.readLine()) != null) {
-					line=line+"\r\n";
-					if(range_start>0) {
-						if(range_start>=line.length()) {
-							range_start-=line.length();
-							line="";
-						} else {
-							line=line.substring(range_start);
-							range_start=0;
-						}
-					}
-					if(range_start==0 || range_start==-1) {
-						if(range_len==-1) {
-							this.ps.print(line);
-						} else {
-							if(range_len>0) {
-								if(range_len<line.length()) {
-									line=line.substring(0, range_len);
-									range_len=line.length();
-								}
-								this.ps.print(line);
-								range_len-=line.length();
-								if(range_len<0) {
-									range_len=0;
-								}
-							}
-						}
-					}
+		if(!hasSentDataName) {
+			this.ps.print("[" + section.toUpperCase(Locale.ROOT) + "]");
+		}
+		if(range_start!=-1) {
+			this.ps.print("<"+range_start+">");
+		}
+
+		long size=sectionRange[1] - sectionRange[0];
+		long start=0;
+		long count=size;
+		if(range_start!=-1) {
+			start=Math.min(range_start, size);
+			count=Math.min(range_len, size-start);
+		}
+
+		this.ps.print(" {"+count+"}\r\n");
+
+		try {
+			//Copy the bytes of the section straight to the client
+			this.ps.flush();
+			long sent = mmsg.transferTo(sectionRange[0] + start, count, channel);
+			if(sent < count) {
+				//The message changed since its size was recorded. The client expects exactly the
+				//number of bytes we announced, so pad the literal to keep the session in sync
+				Logger.error(this, "Message " + mmsg + " is shorter than expected, sent " + sent
+						+ " of " + count + " bytes");
+				for(long i = sent; i < count; i++) {
+					this.ps.write(' ');
 				}
-			} catch (IOException ioe) {
-				return false;
-			} finally {
-				mmsg.closeStream();
 			}
-			return true;
+		} catch (IOException ioe) {
+			return false;
+		} finally {
+			mmsg.closeStream();
+		}
+		return true;
+	}
+
+	private boolean sendHeaderFields(MailMessage mmsg, String fieldList, boolean hasSentDataName) {
+		if(!hasSentDataName) {
+			this.ps.print("[HEADER.FIELDS "+fieldList+"]");
+		}
+		if(fieldList.charAt(0) == '(')
+			fieldList = fieldList.substring(1);
+		if(fieldList.charAt(fieldList.length() - 1) == ')')
+			fieldList = fieldList.substring(0, fieldList.length() - 1);
+
+		try {
+			mmsg.readHeaders();
+		} catch (IOException ioe) {
+			//FIXME: Handle IOException properly
+			Logger.error(this, "Caught IOException while reading message headers: " + ioe.getMessage(), ioe);
 		}
 
 		StringBuffer buf = new StringBuffer("");
+		String[] fields = fieldList.split(" ");
+		for(int j = 0; j < fields.length; j++) {
+			buf.append(mmsg.getHeaders(fields[j]));
+		}
+		buf.append("\r\n");
 
-		String[] parts = IMAPMessage.doSplit(attr, '(', ')');
-		if(parts.length > 0) {
-			if(parts[0].equalsIgnoreCase("header.fields")) {
-				if(!hasSentDataName) {
-					this.ps.print("[HEADER.FIELDS "+parts[1]+"]");
-				}
-				if(parts[1].charAt(0) == '(')
-					parts[1] = parts[1].substring(1);
-				if(parts[1].charAt(parts[1].length() - 1) == ')')
-					parts[1] = parts[1].substring(0, parts[1].length() - 1);
+		this.ps.print(" {"+buf.length()+"}\r\n"+buf.toString());
+		return true;
+	}
 
-				try {
-					mmsg.readHeaders();
-				} catch (IOException ioe) {
-					//FIXME: Handle IOException properly
-					Logger.error(this, "Caught IOException while reading message headers: " + ioe.getMessage(), ioe);
-				}
+	/**
+	 * Returns the BODYSTRUCTURE (or BODY, without the extension data) of the given part of the
+	 * message, as described in RFC 3501 section 7.4.2.
+	 */
+	private String getBodyStructure(MailMessage mmsg, MimeStructure.Part part, boolean extensions)
+			throws IOException {
+		StringBuilder buf = new StringBuilder("(");
+
+		if(part.isMultipart()) {
+			List<MimeStructure.Part> children = part.getChildren();
+			if(children.isEmpty()) {
+				//A multipart must have at least one part, so show it as an empty one
+				buf.append("(\"TEXT\" \"PLAIN\" NIL NIL NIL \"7BIT\" 0 0)");
+			}
+			for(MimeStructure.Part child : children) {
+				buf.append(getBodyStructure(mmsg, child, extensions));
+			}
+			buf.append(" ").append(IMAPifyString(part.getSubtype().toUpperCase(Locale.ROOT)));
+			if(extensions) {
+				buf.append(" ").append(IMAPifyParams(part.getParams()));
+				buf.append(" ").append(IMAPifyDisposition(part));
+			}
+			buf.append(")");
+			return buf.toString();
+		}
+
+		buf.append(IMAPifyString(part.getType().toUpperCase(Locale.ROOT))).append(" ");
+		buf.append(IMAPifyString(part.getSubtype().toUpperCase(Locale.ROOT))).append(" ");
+		buf.append(IMAPifyParams(part.getParams())).append(" ");
+		buf.append(IMAPifyString(part.getId())).append(" ");
+		buf.append(IMAPifyString(part.getDescription())).append(" ");
+		buf.append(IMAPifyString(part.getEncoding())).append(" ");
+		buf.append(part.getSize());
+
+		MimeStructure.Part message = part.getMessage();
+		if(message != null) {
+			buf.append(" ").append(getEnvelope(readHeaderFields(mmsg, message)));
+			buf.append(" ").append(getBodyStructure(mmsg, message, extensions));
+			buf.append(" ").append(part.getLines());
+		} else if(part.getType().equals("text")) {
+			buf.append(" ").append(part.getLines());
+		}
+
+		if(extensions) {
+			//No MD5, since checking it is left to the client anyway
+			buf.append(" NIL ").append(IMAPifyDisposition(part));
+		}
+		buf.append(")");
+		return buf.toString();
+	}
 
-				String[] fields = parts[1].split(" ");
-				for(int j = 0; j < fields.length; j++) {
-					buf.append(mmsg.getHeaders(fields[j]));
-				}
-				buf.append("\r\n");
-			} else if(parts[0].equalsIgnoreCase("header")) {
-				if(!hasSentDataName) {
-					this.ps.print("[HEADER]");
-				}
+	private String IMAPifyParams(Map<String, String> params) {
+		if(params.isEmpty()) return "NIL";
 
-				// send all the header fields
-				try {
-					mmsg.readHeaders();
-				} catch (IOException ioe) {
-					//FIXME: Handle IOException properly
-					Logger.error(this, "Caught IOException while reading message headers: " + ioe.getMessage(), ioe);
-				}
+		StringBuilder buf = new StringBuilder("(");
+		for(Map.Entry<String, String> param : params.entrySet()) {
+			if(buf.length() > 1) {
+				buf.append(" ");
+			}
+			buf.append(IMAPifyString(param.getKey().toUpperCase(Locale.ROOT))).append(" ");
+			buf.append(IMAPifyString(param.getValue()));
+		}
+		buf.append(")");
+		return buf.toString();
+	}
 
-				buf.append(mmsg.getAllHeadersAsString());
-				buf.append("\r\n");
-			} else if(parts[0].equalsIgnoreCase("text")) {
-				if(!hasSentDataName) {
-					this.ps.print("[TEXT]");
-				}
+	private String IMAPifyDisposition(MimeStructure.Part part) {
+		if(part.getDisposition() == null) return "NIL";
 
-				// just send the text of the message without headers
-				mmsg.closeStream();
-				String line;
-				// fast forward past the headers
-				try {
-					while((line = mmsg.readLine()) != null) {
-						if(line.length() == 0) break;
-					}
-					while((line = mmsg.readLine()) != null) {
-						buf.append(line+"\r\n");
-					}
-				} catch (IOException ioe) {
-					// just return whatever we got
-				} finally {
-					mmsg.closeStream();
+		return "(" + IMAPifyString(part.getDisposition().toUpperCase(Locale.ROOT)) + " "
+				+ IMAPifyParams(part.getDispositionParams()) + ")";
+	}
+
+	/**
+	 * Reads the header of an enclosed message, returning the first value of each field keyed by
+	 * the lower case field name.
+	 */
+	private Map<String, String> readHeaderFields(MailMessage mmsg, MimeStructure.Part message)
+			throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		long length = message.getBodyStart() - message.getHeaderStart();
+		mmsg.transferTo(message.getHeaderStart(), length, Channels.newChannel(header));
+
+		Map<String, String> fields = new HashMap<String, String>();
+		BufferedReader reader = new BufferedReader(new StringReader(header.toString("UTF-8")));
+		String name = null;
+		String value = null;
+		String line;
+		while((line = reader.readLine()) != null && line.length() > 0) {
+			if(line.startsWith(" ") || line.startsWith("\t")) {
+				if(value != null) {
+					value += " " + line.trim();
 				}
+				continue;
 			}
 
-			this.ps.print(" {"+buf.length()+"}\r\n"+buf.toString());
-			return true;
-		}
+			if(name != null && !fields.containsKey(name)) {
+				fields.put(name, value);
+			}
+			name = null;
+			value = null;
 
-		return false;
+			String[] parts = line.split(": ", 2);
+			if(parts.length == 2) {
+				name = parts[0].toLowerCase(Locale.ROOT);
+				value = parts[1];
+			}
+		}
+		if(name != null && !fields.containsKey(name)) {
+			fields.put(name, value);
+		}
+		return fields;
 	}
 
 	private void handleStore(IMAPMessage msg) {
@@ -839,12 +1024,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
-
-		Set<Integer> ts;
+		SequenceSet ts;
 		try {
-			MailMessage lastMessage = msgs.get(msgs.lastKey());
-			ts = parseSequenceSet(msg.args[0], lastMessage.getUID());
+			ts = parseSequenceSet(msg.args[0], this.mb.getMessageCount());
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -853,14 +1035,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			if(!ts.contains(msgIt.next().getSeqNum())) {
-				msgIt.remove();
-			}
-		}
-
-		if(!doStore(msg.args, 1, msgs.values(), msg, false)) {
+		if(!doStore(msg.args, 1, ts.select(this.mb, false).values(), msg, false)) {
 			return;
 		}
 
@@ -883,25 +1058,31 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		if(args[offset + 1].startsWith("("))
 			args[offset + 1] = args[offset + 1].substring(1);
 
-		boolean setFlagTo;
-		if(args[offset].startsWith("-")) {
-			setFlagTo = false;
-		} else if(args[offset].startsWith("+")) {
-			setFlagTo = true;
-		} else {
-			for(MailMessage message : mmsgs) {
-				message.flags.clear();
+		List<String> flags = new ArrayList<String>();
+		for(int i = offset + 1; i < args.length; i++) {
+			String flag = args[i];
+			if(flag.endsWith(")")) {
+				flag = flag.substring(0, flag.length() - 1);
 			}
-			setFlagTo = true;
+			flags.add(flag);
 		}
 
+		boolean setFlagTo = !args[offset].startsWith("-");
 
-		for(int i = offset; i < args.length; i++) {
-			String flag = args[i];
-			if(flag.endsWith(")")) {
-				flag = flag.substring(0, flag.length() - 1);
+		//Refuse the whole command if the new keywords don't fit, instead of storing part of it.
+		//All the messages are in the same folder, so checking one of them is enough
+		if(setFlagTo && !mmsgs.isEmpty() && !mmsgs.iterator().next().flags.canSetAll(flags)) {
+			this.reply(msg, "NO Too many keywords in this folder");
+			return false;
+		}
+
+		if(!args[offset].startsWith("-") && !args[offset].startsWith("+")) {
+			for(MailMessage message : mmsgs) {
+				message.flags.clear();
 			}
+		}
 
+		for(String flag : flags) {
 			for(MailMessage message : mmsgs) {
 				message.flags.set(flag, setFlagTo);
 				message.storeFlags();
@@ -943,6 +1124,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
+		sendFolderChanges(this.mb.listUids());
 		this.expunge(true);
 		this.reply(msg, "OK Expunge complete");
 	}
@@ -959,6 +1141,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 		this.expunge(false);
 		this.mb = null;
+		setKnownUids(null);
 
 		this.reply(msg, "OK Mailbox closed");
 	}
@@ -966,16 +1149,169 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 	private void expunge(boolean verbose) {
 		MailMessage[] mmsgs = this.mb.listMessagesArray();
 
-		int count_correction=0;
 		for(int i = 0; i < mmsgs.length; i++) {
 			if(mmsgs[i].flags.isDeleted()) {
 				mmsgs[i].delete();
-				if(verbose) this.sendState((i+1-count_correction)+" EXPUNGE");
-				count_correction++;
+				//Use the sequence number the client knows the message by
+				int pos = forgetUid(mmsgs[i].getUID());
+				if(verbose && pos >= 0) this.sendState((pos+1)+" EXPUNGE");
 			}
 		}
 	}
 
+	private void handleIdle(IMAPMessage msg) {
+		if(!this.verifyAuth(msg)) {
+			return;
+		}
+
+		if(this.mb == null) {
+			this.reply(msg, "NO No mailbox selected");
+			return;
+		}
+
+		//Listen before listing the folder so nothing is missed, changes that are already in the
+		//listing are ignored when they arrive. The folder is listed without holding our lock
+		//since listeners may be called with the folder locked.
+		idleEvents.clear();
+		mb.addListener(idleListener);
+		int[] uids = mb.listUids();
+
+		synchronized(this) {
+			//Catch the client up on what changed before IDLE, the events only cover what follows
+			sendFolderChanges(uids);
+			idleFolder = mb;
+			idleTag = msg.tag;
+			this.ps.print("+ idling\r\n");
+		}
+		sendIdleUpdates();
+	}
+
+	/**
+	 * Ends IDLE after the client sent {@code line}, which should be DONE.
+	 */
+	private synchronized void endIdle(String line) {
+		sendIdleUpdates();
+		String tag = idleTag;
+		stopIdle();
+
+		if(line.trim().equalsIgnoreCase("DONE")) {
+			Logger.debug(this, "Reply: " + tag + " OK IDLE terminated");
+			this.ps.print(tag + " OK IDLE terminated\r\n");
+		} else {
+			Logger.debug(this, "Reply: " + tag + " BAD Expected DONE");
+			this.ps.print(tag + " BAD Expected DONE\r\n");
+		}
+	}
+
+	private synchronized void stopIdle() {
+		if(idleTag == null) {
+			return;
+		}
+
+		idleFolder.removeListener(idleListener);
+		idleTag = null;
+		idleFolder = null;
+		idleEvents.clear();
+	}
+
+	/**
+	 * Sends the changes to the idle folder that have happened since the last call to the client.
+	 */
+	private synchronized void sendIdleUpdates() {
+		if(idleTag == null) {
+			return;
+		}
+
+		boolean sent = false;
+		FolderEvents.Event event;
+		while((event = idleEvents.poll()) != null) {
+			int pos = Arrays.binarySearch(knownUids, 0, knownCount, event.uid);
+			switch(event.type) {
+			case ADDED:
+				if(pos >= 0) {
+					//Already in the listing taken when IDLE started
+					continue;
+				}
+				pos = -pos - 1;
+				if(knownCount == knownUids.length) {
+					knownUids = Arrays.copyOf(knownUids, knownCount * 2 + 8);
+				}
+				System.arraycopy(knownUids, pos, knownUids, pos + 1, knownCount - pos);
+				knownUids[pos] = event.uid;
+				knownCount++;
+				sendState(knownCount + " EXISTS");
+				break;
+			case REMOVED:
+				pos = forgetUid(event.uid);
+				if(pos < 0) {
+					continue;
+				}
+				sendState((pos + 1) + " EXPUNGE");
+				break;
+			case FLAGS_CHANGED:
+				if(pos < 0) {
+					continue;
+				}
+				sendState((pos + 1) + " FETCH (FLAGS (" + event.flags + "))");
+				break;
+			}
+			sent = true;
+		}
+
+		if(sent) {
+			ps.flush();
+		}
+	}
+
+	private synchronized void setKnownUids(int[] uids) {
+		knownUids = uids;
+		knownCount = (uids == null) ? 0 : uids.length;
+	}
+
+	/**
+	 * Removes {@code uid} from the uids the client knows about.
+	 * @return the index {@code uid} had, or -1 if the client didn't know about it
+	 */
+	private synchronized int forgetUid(int uid) {
+		if(knownUids == null) {
+			return -1;
+		}
+
+		int pos = Arrays.binarySearch(knownUids, 0, knownCount, uid);
+		if(pos < 0) {
+			return -1;
+		}
+		System.arraycopy(knownUids, pos + 1, knownUids, pos, knownCount - pos - 1);
+		knownCount--;
+		return pos;
+	}
+
+	/**
+	 * Sends EXPUNGE and EXISTS for the messages that have been removed from or added to the
+	 * selected folder since the client was last told, and remembers {@code uids} as what the
+	 * client knows.
+	 * @param uids the current uids of the selected folder, in ascending order
+	 */
+	private synchronized void sendFolderChanges(int[] uids) {
+		if(knownUids == null) {
+			setKnownUids(uids);
+			return;
+		}
+
+		int kept = 0;
+		for(int i = 0; i < knownCount; i++) {
+			if(Arrays.binarySearch(uids, knownUids[i]) < 0) {
+				sendState((kept + 1) + " EXPUNGE");
+			} else {
+				kept++;
+			}
+		}
+		if(uids.length != kept) {
+			sendState(uids.length + " EXISTS");
+		}
+		setKnownUids(uids);
+	}
+
 	private void handleNamespace(IMAPMessage msg) {
 		if(!this.verifyAuth(msg)) {
 			return;
@@ -1157,12 +1493,11 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
-		MailMessage lastMessage = msgs.get(msgs.lastKey());
+		int messageCount = this.mb.getMessageCount();
 
-		SortedSet<Integer> ts;
+		SequenceSet ts;
 		try {
-			ts = parseSequenceSet(msg.args[0], uid ? lastMessage.getUID() : lastMessage.getSeqNum());
+			ts = parseSequenceSet(msg.args[0], uid ? this.mb.getLastUid() : messageCount);
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -1172,33 +1507,19 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 
 		if(!uid) {
-			if(ts.first() < 1 || ts.last() > lastMessage.getSeqNum()) {
+			if(ts.first() < 1 || ts.last() > messageCount) {
 				reply(msg, "NO Invalid message ID");
 				return;
 			}
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			MailMessage message = msgIt.next();
-			if(uid) {
-				if(!ts.contains(message.getUID())) {
-					msgIt.remove();
-				}
-			} else {
-				if(!ts.contains(message.getSeqNum())) {
-					msgIt.remove();
-				}
-			}
-		}
-
 		MessageBank target = getMailboxFromPath(trimQuotes(msg.args[1]));
 		if(target == null) {
 			this.reply(msg, "NO [TRYCREATE] No such mailbox.");
 			return;
 		}
 
-		for(MailMessage src : msgs.values()) {
+		for(MailMessage src : ts.select(this.mb, uid).values()) {
 			MailMessage copy = target.createMessage();
 
 			src.copyTo(copy);
@@ -1321,15 +1642,8 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		Map<Integer, MailMessage> messages = mb.listMessages();
-		try {
-			for(MailMessage message : messages.values()) {
-				message.readHeaders();
-			}
-		} catch(IOException e) {
-			sendState("BAD Internal server error while searching messages");
-			reply(msg, "NO Internal server error while searching messages");
-		}
+		int lastUid = mb.getLastUid();
+		int lastSeqNum = mb.getMessageCount();
 
 		{
 			/*
@@ -1368,6 +1682,32 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 		//Index of the next search key
 		int offset = 0;
+
+		//If the search starts with a sequence set only the messages in it are listed, the other
+		//sets are applied to what is left
+		SortedMap<Integer, MailMessage> messages;
+		boolean firstUidSet = msg.args[0].equalsIgnoreCase("UID") && msg.args.length > 1;
+		if(firstUidSet || isSequenceSet(msg.args[0])) {
+			SequenceSet numbers = parseSearchSet(msg, msg.args[firstUidSet ? 1 : 0],
+					firstUidSet ? lastUid : lastSeqNum);
+			if(numbers == null) {
+				return;
+			}
+			messages = numbers.select(mb, firstUidSet);
+			offset = firstUidSet ? 2 : 1;
+		} else {
+			messages = mb.listMessages();
+		}
+
+		try {
+			for(MailMessage message : messages.values()) {
+				message.readHeaders();
+			}
+		} catch(IOException e) {
+			sendState("BAD Internal server error while searching messages");
+			reply(msg, "NO Internal server error while searching messages");
+		}
+
 		while(offset < msg.args.length) {
 			//If it starts or ends with a paran, fail
 			if(msg.args[offset].startsWith("(") || msg.args[offset].endsWith(")")) {
@@ -1381,6 +1721,29 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				continue;
 			}
 
+			//Sequence sets, of sequence numbers or of uids
+			boolean uidSet = msg.args[offset].equalsIgnoreCase("UID") && offset + 1 < msg.args.length;
+			if(uidSet || isSequenceSet(msg.args[offset])) {
+				String set = uidSet ? msg.args[offset + 1] : msg.args[offset];
+				SequenceSet numbers = parseSearchSet(msg, set, uidSet ? lastUid : lastSeqNum);
+				if(numbers == null) {
+					return;
+				}
+
+				if(uidSet) {
+					numbers.retainKeys(messages);
+				} else {
+					Iterator<MailMessage> it = messages.values().iterator();
+					while(it.hasNext()) {
+						if(!numbers.contains(it.next().getSeqNum())) {
+							it.remove();
+						}
+					}
+				}
+				offset += uidSet ? 2 : 1;
+				continue;
+			}
+
 			//Check the various flag state filters
 			if(msg.args[offset].equalsIgnoreCase("ANSWERED")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_ANSWERED, true);
@@ -1522,6 +1885,21 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		reply(msg, "OK Search completed");
 	}
 
+	/**
+	 * Parses a sequence set given as a search key, replying BAD to {@code msg} if it is illegal.
+	 * @return the parsed set, or {@code null} if it was illegal
+	 */
+	private SequenceSet parseSearchSet(IMAPMessage msg, String set, int maxSeqNum) {
+		try {
+			return parseSequenceSet(set, maxSeqNum);
+		} catch(NumberFormatException e) {
+			reply(msg, "BAD Illegal sequence number set");
+		} catch (IllegalSequenceNumberException e) {
+			reply(msg, "BAD Illegal sequence number set");
+		}
+		return null;
+	}
+
 	private void filterMessagesOnFlag(Collection<MailMessage> messages, String flag, boolean state) {
 		Iterator<MailMessage> it = messages.iterator();
 		while(it.hasNext()) {
@@ -1548,8 +1926,6 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 	}
 
 	private String getEnvelope(MailMessage mmsg) {
-		StringBuffer buf = new StringBuffer("(");
-
 		try {
 			mmsg.readHeaders();
 		} catch (IOException ioe) {
@@ -1557,21 +1933,34 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			Logger.error(this, "Caught IOException while reading message headers: " + ioe.getMessage(), ioe);
 		}
 
-		buf.append(IMAPifyString(mmsg.getFirstHeader("Date"))+" ");
-		buf.append(IMAPifyString(mmsg.getFirstHeader("Subject"))+" ");
+		Map<String, String> fields = new HashMap<String, String>();
+		for(String name : ENVELOPE_FIELDS) {
+			fields.put(name, mmsg.getFirstHeader(name));
+		}
+		return getEnvelope(fields);
+	}
+
+	/**
+	 * Returns the envelope of a message given its header fields, keyed by lower case name.
+	 */
+	private String getEnvelope(Map<String, String> fields) {
+		StringBuffer buf = new StringBuffer("(");
+
+		buf.append(IMAPifyString(fields.get("date"))+" ");
+		buf.append(IMAPifyString(fields.get("subject"))+" ");
 		// from
-		buf.append(this.IMAPifyAddress(mmsg.getFirstHeader("From"))+" ");
+		buf.append(this.IMAPifyAddress(fields.get("from"))+" ");
 		// sender (this should probably be the Freemail address that
 		// we got it from, except I haven't found a mail client that
 		// actually uses this part yet, so it might be pointless
-		buf.append(this.IMAPifyAddress(mmsg.getFirstHeader("x-freemail-sender"))+" ");
-		buf.append(this.IMAPifyAddress(mmsg.getFirstHeader("Reply-To"))+" ");
-
-		buf.append(this.IMAPifyAddress(mmsg.getFirstHeader("To"))+" ");
-		buf.append(this.IMAPifyAddress(mmsg.getFirstHeader("CC"))+" ");
-		buf.append(this.IMAPifyAddress(mmsg.getFirstHeader("BCC"))+" ");
-		buf.append(IMAPifyString(mmsg.getFirstHeader("In-Reply-To"))+" ");
-		buf.append(IMAPifyString(mmsg.getFirstHeader("Message-ID")));
+		buf.append(this.IMAPifyAddress(fields.get("x-freemail-sender"))+" ");
+		buf.append(this.IMAPifyAddress(fields.get("reply-to"))+" ");
+
+		buf.append(this.IMAPifyAddress(fields.get("to"))+" ");
+		buf.append(this.IMAPifyAddress(fields.get("cc"))+" ");
+		buf.append(this.IMAPifyAddress(fields.get("bcc"))+" ");
+		buf.append(IMAPifyString(fields.get("in-reply-to"))+" ");
+		buf.append(IMAPifyString(fields.get("message-id")));
 		buf.append(")");
 
 		return buf.toString();
@@ -1579,7 +1968,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 	private String IMAPifyString(String in) {
 		if(in == null) return "NIL";
-		return "\""+in.trim()+"\"";
+		return "\""+in.trim().replace("\\", "\\\\").replace("\"", "\\\"")+"\"";
 	}
 
 	private String IMAPifyAddress(String address) {
@@ -1627,8 +2016,8 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		return true;
 	}
 
-	private SortedSet<Integer> parseSequenceSet(String seqNum, int maxSeqNum) throws IllegalSequenceNumberException {
-		SortedSet<Integer> result = new TreeSet<Integer>();
+	private SequenceSet parseSequenceSet(String seqNum, int maxSeqNum) throws IllegalSequenceNumberException {
+		SequenceSet.Builder result = new SequenceSet.Builder();
 
 		//Split on , to get the ranges
 		for(String range : seqNum.split(",")) {
@@ -1654,18 +2043,16 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				throw new IllegalSequenceNumberException("Sequence number must be greater than zero");
 			}
 
-			if(from > to) {
-				int temp = from;
-				from = to;
-				to = temp;
-			}
-
-			for(int i = from; i <= to; i++) {
-				result.add(i);
-			}
+			result.add(from, to);
 		}
 
-		return result;
+		return result.build();
+	}
+
+	private static boolean isSequenceSet(String arg) {
+		if(arg.length() == 0) return false;
+		char first = arg.charAt(0);
+		return (first >= '0' && first <= '9') || first == '*';
 	}
 
 	private int parseSequenceNumber(String seqNum, int maxSeqNum) {
@@ -21,13 +21,11 @@
 
 package org.freenetproject.freemail.imap;
 
-import java.net.ServerSocket;
-import java.net.InetAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.io.IOException;
 
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.ServerHandler;
 import org.freenetproject.freemail.ServerListener;
 import org.freenetproject.freemail.config.ConfigClient;
 import org.freenetproject.freemail.config.Configurator;
@@ -44,6 +42,10 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 		accountManager = accMgr;
 		cfg.register(Configurator.IMAP_BIND_ADDRESS, this, "127.0.0.1");
 		cfg.register(Configurator.IMAP_BIND_PORT, this, Integer.toString(LISTENPORT));
+		cfg.register(Configurator.IMAP_CONNECTION_ENGINE, this, DEFAULT_ENGINE);
+		cfg.register(Configurator.IMAP_BACKLOG, this, Integer.toString(DEFAULT_BACKLOG));
+		cfg.register(Configurator.IMAP_MAX_CONNECTIONS, this, Integer.toString(DEFAULT_MAX_CONNECTIONS));
+		cfg.register(Configurator.IMAP_WORKER_THREADS, this, Integer.toString(DEFAULT_WORKER_THREADS));
 	}
 
 	@Override
@@ -52,6 +54,14 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 			this.bindaddress = val;
 		} else if(key.equalsIgnoreCase(Configurator.IMAP_BIND_PORT)) {
 			this.bindport = Integer.parseInt(val);
+		} else if(key.equalsIgnoreCase(Configurator.IMAP_CONNECTION_ENGINE)) {
+			setEngine(val);
+		} else if(key.equalsIgnoreCase(Configurator.IMAP_BACKLOG)) {
+			setBacklog(parseConfigInt(key, val, DEFAULT_BACKLOG));
+		} else if(key.equalsIgnoreCase(Configurator.IMAP_MAX_CONNECTIONS)) {
+			setMaxConnections(parseConfigInt(key, val, DEFAULT_MAX_CONNECTIONS));
+		} else if(key.equalsIgnoreCase(Configurator.IMAP_WORKER_THREADS)) {
+			setWorkerThreads(parseConfigInt(key, val, DEFAULT_WORKER_THREADS));
 		}
 	}
 
@@ -65,23 +75,11 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 	}
 
 	public void realrun() throws IOException {
-		sock = new ServerSocket(this.bindport, 10, InetAddress.getByName(this.bindaddress));
-		sock.setSoTimeout(60000);
-		while(!sock.isClosed()) {
-			try {
-				Socket clientSocket = sock.accept();
-				IMAPHandler newcli = new IMAPHandler(accountManager, clientSocket);
-				Thread newthread = new Thread(newcli, "Freemail IMAP Handler for " + clientSocket.getInetAddress());
-				newthread.setDaemon(true);
-				newthread.start();
-				addHandler(newcli, newthread);
-			} catch (SocketTimeoutException ste) {
-
-			} catch (IOException ioe) {
-
-			}
+		acceptConnections("IMAP", this.bindaddress, this.bindport, 60000);
+	}
 
-			reapHandlers();
-		}
+	@Override
+	protected ServerHandler createHandler(Socket client) throws IOException {
+		return new IMAPHandler(accountManager, client);
 	}
 }
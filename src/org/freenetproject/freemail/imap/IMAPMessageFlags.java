@@ -21,8 +21,9 @@
 
 package org.freenetproject.freemail.imap;
 
-import java.util.Locale;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 public class IMAPMessageFlags {
 	public static final char[] allShortFlags = {
@@ -61,140 +62,257 @@ public class IMAPMessageFlags {
 			FLAG_RECENT,
 	};
 
-	public static String getAllFlagsAsString() {
-		int i;
-		StringBuffer buf = new StringBuffer();
-		boolean first = true;
-
-		for(i = 0; i < allFlags.length; i++) {
-			if(!first)
-				buf.append(" ");
-			first = false;
-			buf.append(allFlags[i]);
+	/* Bits of the system flags, matching the order of allFlags */
+	private static final int SEEN = 1 << 0;
+	private static final int DELETED = 1 << 3;
+	private static final int RECENT = 1 << 5;
+
+	/** The flag string of each combination of system flags, indexed by bitmask */
+	private static final String[] flagStrings = new String[1 << allFlags.length];
+
+	/** The short flag string of each combination of system flags, indexed by bitmask */
+	private static final String[] shortFlagStrings = new String[1 << allFlags.length];
+
+	static {
+		for(int mask = 0; mask < flagStrings.length; mask++) {
+			StringBuilder flagString = new StringBuilder();
+			StringBuilder shortFlagString = new StringBuilder();
+			for(int i = 0; i < allFlags.length; i++) {
+				if((mask & (1 << i)) != 0) {
+					if(flagString.length() > 0) flagString.append(' ');
+					flagString.append(allFlags[i]);
+					shortFlagString.append(allShortFlags[i]);
+				}
+			}
+			flagStrings[mask] = flagString.toString();
+			shortFlagStrings[mask] = shortFlagString.toString();
 		}
+	}
 
-		return buf.toString();
+	private static final String allFlagsString = join(allFlags);
+	private static final String permanentFlagsString = join(permanentFlags);
+
+	public static String getAllFlagsAsString() {
+		return allFlagsString;
 	}
 
 	public static String getPermanentFlagsAsString() {
-		int i;
-		StringBuffer buf = new StringBuffer();
-		boolean first = true;
+		return permanentFlagsString;
+	}
 
-		for(i = 0; i < permanentFlags.length; i++) {
-			if(!first)
-				buf.append(" ");
-			first = false;
-			buf.append(permanentFlags[i]);
+	private static String join(String[] flagList) {
+		StringBuilder buf = new StringBuilder();
+		for(String flag : flagList) {
+			if(buf.length() > 0) buf.append(' ');
+			buf.append(flag);
 		}
-
 		return buf.toString();
 	}
 
-	private Vector<String> flags;
+	/** The system flags that are set, bit i is set if {@code allFlags[i]} is */
+	private int flags;
+
+	/** The keywords that are set, bit i is set if keyword number i of the folder is */
+	private int keywordFlags;
+
+	/** The keywords of the folder, or {@code null} if keywords aren't supported */
+	private final FolderKeywords keywords;
 
 	public IMAPMessageFlags() {
-		this.flags = new Vector<String>();
+		this.keywords = null;
 	}
 
 	public IMAPMessageFlags(String shortflags) {
-		this.flags = new Vector<String>();
-		for(int i = 0; i < allShortFlags.length; i++) {
-			if(shortflags.indexOf(allShortFlags[i]) >= 0) {
-				this.flags.add(allFlags[i]);
+		this(shortflags, null);
+	}
+
+	/**
+	 * Creates flags from their short form, as stored in the message file name.
+	 * @param shortflags the short flags, upper case letters for system flags and lower case
+	 *                   letters for keywords
+	 * @param keywords the keywords of the folder the message is in, or {@code null} if keywords
+	 *                 aren't supported
+	 */
+	public IMAPMessageFlags(String shortflags, FolderKeywords keywords) {
+		this.keywords = keywords;
+		for(int i = 0; i < shortflags.length(); i++) {
+			char c = shortflags.charAt(i);
+			if(c >= 'a' && c < 'a' + FolderKeywords.MAX_KEYWORDS) {
+				if(keywords != null) {
+					keywordFlags |= 1 << (c - 'a');
+				}
+				continue;
+			}
+			for(int j = 0; j < allShortFlags.length; j++) {
+				if(allShortFlags[j] == c) {
+					flags |= 1 << j;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the flags to those of {@code other}, which may belong to a message in another folder.
+	 */
+	public void copyFrom(IMAPMessageFlags other) {
+		this.flags = other.flags;
+		this.keywordFlags = 0;
+		if(keywords == null || other.keywords == null) {
+			return;
+		}
+		for(int i = 0; i < FolderKeywords.MAX_KEYWORDS; i++) {
+			if((other.keywordFlags & (1 << i)) != 0) {
+				String keyword = other.keywords.get(i);
+				if(keyword != null) {
+					set(keyword, true);
+				}
 			}
 		}
 	}
 
 	public void set(String flag, boolean value) {
-		flag = sanitize_flag(flag);
+		int bit = systemFlagBit(flag);
+		if(bit != 0) {
+			if(value) {
+				flags |= bit;
+			} else {
+				flags &= ~bit;
+			}
+			return;
+		}
 
-		if(flag == null) return;
+		//Everything else is a keyword, if it is a valid one
+		if(keywords == null || !isValidKeyword(flag)) return;
 
+		int number = keywords.getNumber(flag, value);
+		if(number < 0) return;
 		if(value) {
-			this.flags.add(flag);
+			keywordFlags |= 1 << number;
 		} else {
-			this.flags.remove(flag);
+			keywordFlags &= ~(1 << number);
 		}
 	}
 
 	public String getShortFlagString() {
-		String retval = new String("");
+		if(keywordFlags == 0) {
+			return shortFlagStrings[flags];
+		}
 
-		for(int i = 0; i < allFlags.length; i++) {
-			if(this.flags.contains(allFlags[i])) {
-				retval += allShortFlags[i];
+		StringBuilder buf = new StringBuilder(shortFlagStrings[flags]);
+		for(int i = 0; i < FolderKeywords.MAX_KEYWORDS; i++) {
+			if((keywordFlags & (1 << i)) != 0) {
+				buf.append((char)('a' + i));
 			}
 		}
-
-		return retval;
+		return buf.toString();
 	}
 
 	public String getFlags() {
-		String retval = "";
+		if(keywordFlags == 0) {
+			return flagStrings[flags];
+		}
 
-		for(int i = 0; i < allFlags.length; i++) {
-			if(this.flags.contains(allFlags[i])) {
-				if(retval.length() > 0) retval += " ";
-				retval += allFlags[i];
+		StringBuilder buf = new StringBuilder(flagStrings[flags]);
+		for(int i = 0; i < FolderKeywords.MAX_KEYWORDS; i++) {
+			if((keywordFlags & (1 << i)) != 0) {
+				String keyword = keywords.get(i);
+				if(keyword == null) continue;
+				if(buf.length() > 0) buf.append(' ');
+				buf.append(keyword);
 			}
 		}
-
-		return retval;
+		return buf.toString();
 	}
 
 	public void clear() {
-		this.flags.clear();
+		this.flags = 0;
+		this.keywordFlags = 0;
 	}
 
-	public boolean get(String flag) {
-		flag = sanitize_flag(flag);
-
-		if(flag == null) return false;
+	/**
+	 * Returns {@code false} if setting all of {@code flags} would need more new keywords than the
+	 * folder has room for, in which case {@link #set(String, boolean)} would ignore some of them.
+	 */
+	public boolean canSetAll(Collection<String> flags) {
+		if(keywords == null) {
+			return true;
+		}
 
-		if(this.flags.contains(flag)) return true;
-		return false;
+		List<String> newKeywords = new ArrayList<String>();
+		for(String flag : flags) {
+			if(systemFlagBit(flag) == 0 && isValidKeyword(flag)) {
+				newKeywords.add(flag);
+			}
+		}
+		return keywords.hasRoomFor(newKeywords);
 	}
 
-	// take a flag, check it's real flag, and if so,
-	// return it in the proper capitalisation
-	private static String sanitize_flag(String flag) {
-		String realFlag = null;
+	public boolean get(String flag) {
+		int bit = systemFlagBit(flag);
+		if(bit != 0) {
+			return (flags & bit) != 0;
+		}
+
+		if(keywords == null || keywordFlags == 0) return false;
+		int number = keywords.getNumber(flag, false);
+		return number >= 0 && (keywordFlags & (1 << number)) != 0;
+	}
 
+	/**
+	 * Returns the bit of the given system flag, compared case-insensitively, or 0 if it isn't a
+	 * system flag.
+	 */
+	private static int systemFlagBit(String flag) {
 		for(int i = 0; i < allFlags.length; i++) {
-			if(allFlags[i].toLowerCase(Locale.ROOT).equals(flag.toLowerCase(Locale.ROOT))) {
-				realFlag = allFlags[i];
+			if(allFlags[i].equalsIgnoreCase(flag)) {
+				return 1 << i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Checks that {@code flag} can be used as a keyword, i.e. that it is an atom (RFC 3501 section
+	 * 9) that doesn't start with a backslash.
+	 */
+	private static boolean isValidKeyword(String flag) {
+		if(flag.length() == 0) return false;
+		for(int i = 0; i < flag.length(); i++) {
+			char c = flag.charAt(i);
+			if(c <= ' ' || c >= 0x7f || "(){%*\"\\]".indexOf(c) >= 0) {
+				return false;
 			}
 		}
-		return realFlag;
+		return true;
 	}
 
 	public boolean isSeen() {
-		return get(FLAG_SEEN);
+		return (flags & SEEN) != 0;
 	}
 
 	public void setSeen() {
-		set(FLAG_SEEN, true);
+		flags |= SEEN;
 	}
 
 	public boolean isDeleted() {
-		return get(FLAG_DELETED);
+		return (flags & DELETED) != 0;
 	}
 
 	public void setDeleted() {
-		set(FLAG_DELETED, true);
+		flags |= DELETED;
 	}
 
 	public boolean isRecent() {
-		return get(FLAG_RECENT);
+		return (flags & RECENT) != 0;
 	}
 
 	public void setRecent() {
-		set(FLAG_RECENT, true);
+		flags |= RECENT;
 	}
 
 	public void clearRecent() {
-		set(FLAG_RECENT, false);
+		flags &= ~RECENT;
 	}
 
 }
@@ -0,0 +1,214 @@
+/*
+ * SequenceSet.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.MessageBank;
+
+/**
+ * An immutable set of message sequence numbers or uids, as given in IMAP commands. The set is
+ * stored as sorted, non-overlapping ranges, so {@code 1:*} takes the same space no matter how
+ * many messages the folder holds.
+ */
+class SequenceSet implements Iterable<Integer> {
+	/** The first number of each range, in ascending order */
+	private final int[] starts;
+
+	/** The last number of each range */
+	private final int[] ends;
+
+	private SequenceSet(int[] starts, int[] ends) {
+		this.starts = starts;
+		this.ends = ends;
+	}
+
+	public boolean isEmpty() {
+		return starts.length == 0;
+	}
+
+	/**
+	 * Returns the lowest number in the set.
+	 * @throws NoSuchElementException if the set is empty
+	 */
+	public int first() {
+		if(isEmpty()) throw new NoSuchElementException();
+		return starts[0];
+	}
+
+	/**
+	 * Returns the highest number in the set.
+	 * @throws NoSuchElementException if the set is empty
+	 */
+	public int last() {
+		if(isEmpty()) throw new NoSuchElementException();
+		return ends[ends.length - 1];
+	}
+
+	public boolean contains(int number) {
+		//Find the last range that starts at or before number
+		int i = Arrays.binarySearch(starts, number);
+		if(i >= 0) return true;
+		i = -i - 2;
+		return i >= 0 && number <= ends[i];
+	}
+
+	/**
+	 * Removes the entries of {@code map} whose keys aren't in this set. This is used to select
+	 * messages by uid from a folder listing, and only looks at the entries outside the ranges.
+	 * @param map the map to filter, keyed by number
+	 */
+	public <V> void retainKeys(SortedMap<Integer, V> map) {
+		if(isEmpty()) {
+			map.clear();
+			return;
+		}
+
+		map.headMap(Integer.valueOf(starts[0])).clear();
+		for(int i = 0; i < starts.length - 1; i++) {
+			map.subMap(Integer.valueOf(ends[i] + 1), Integer.valueOf(starts[i + 1])).clear();
+		}
+		if(last() < Integer.MAX_VALUE) {
+			map.tailMap(Integer.valueOf(last() + 1)).clear();
+		}
+	}
+
+	/**
+	 * Returns the messages of {@code folder} that are in this set, keyed by uid. Only the selected
+	 * messages are listed, however large the folder is.
+	 * @param folder the folder to select from
+	 * @param uid {@code true} if the set holds uids, {@code false} if it holds sequence numbers
+	 * @return the selected messages
+	 */
+	public SortedMap<Integer, MailMessage> select(MessageBank folder, boolean uid) {
+		return folder.listMessages(starts, ends, uid);
+	}
+
+	/**
+	 * Returns the numbers in the set in ascending order. The numbers are produced as the iterator
+	 * is advanced.
+	 */
+	@Override
+	public Iterator<Integer> iterator() {
+		return new Iterator<Integer>() {
+			private int range = 0;
+			private long next = isEmpty() ? 0 : starts[0];
+
+			@Override
+			public boolean hasNext() {
+				return range < starts.length;
+			}
+
+			@Override
+			public Integer next() {
+				if(!hasNext()) throw new NoSuchElementException();
+
+				int current = (int)next;
+				if(next == ends[range]) {
+					range++;
+					if(range < starts.length) {
+						next = starts[range];
+					}
+				} else {
+					next++;
+				}
+				return Integer.valueOf(current);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		for(int i = 0; i < starts.length; i++) {
+			if(i > 0) buf.append(',');
+			buf.append(starts[i]);
+			if(ends[i] != starts[i]) {
+				buf.append(':').append(ends[i]);
+			}
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Collects the ranges of a sequence set, which may be given in any order and may overlap.
+	 */
+	static class Builder {
+		private int[] starts = new int[4];
+		private int[] ends = new int[4];
+		private int count = 0;
+
+		/**
+		 * Adds the numbers from {@code from} to {@code to}, both included, to the set.
+		 */
+		Builder add(int from, int to) {
+			if(from > to) {
+				int temp = from;
+				from = to;
+				to = temp;
+			}
+
+			if(count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+			starts[count] = from;
+			ends[count] = to;
+			count++;
+			return this;
+		}
+
+		SequenceSet build() {
+			//Sort the ranges by start, packing each range into a long to keep start and end together
+			long[] ranges = new long[count];
+			for(int i = 0; i < count; i++) {
+				ranges[i] = ((long)starts[i] << 32) | (ends[i] & 0xffffffffL);
+			}
+			Arrays.sort(ranges);
+
+			//Merge ranges that overlap or touch
+			int[] mergedStarts = new int[count];
+			int[] mergedEnds = new int[count];
+			int merged = 0;
+			for(long range : ranges) {
+				int start = (int)(range >> 32);
+				int end = (int)range;
+				if(merged > 0 && (long)start <= (long)mergedEnds[merged - 1] + 1) {
+					mergedEnds[merged - 1] = Math.max(mergedEnds[merged - 1], end);
+				} else {
+					mergedStarts[merged] = start;
+					mergedEnds[merged] = end;
+					merged++;
+				}
+			}
+
+			return new SequenceSet(Arrays.copyOf(mergedStarts, merged), Arrays.copyOf(mergedEnds, merged));
+		}
+	}
+}
@@ -53,7 +53,7 @@ import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.wot.Identity;
 import org.freenetproject.freemail.wot.IdentityMatcher;
 
-public class SMTPHandler extends ServerHandler implements Runnable {
+public class SMTPHandler extends ServerHandler {
 	private final OutputStream os;
 	private final PrintStream ps;
 	private final BufferedReader bufrdr;
@@ -65,6 +65,9 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 
 	private Vector<Identity> to;
 
+	/** Set when the welcome message has been sent, since run() is called again after parking */
+	private boolean started = false;
+
 	public SMTPHandler(AccountManager accMgr, Socket client, IdentityMatcher identityMatcher) throws IOException {
 		super(client);
 		accountmanager = accMgr;
@@ -79,11 +82,27 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 
 	@Override
 	public void run() {
-		this.sendWelcome();
+		if(!started) {
+			started = true;
+			this.sendWelcome();
+		}
 
 		String line;
 		try {
-			while(!stopping && !this.client.isClosed() && (line = this.bufrdr.readLine()) != null) {
+			while(!stopping && !this.client.isClosed()) {
+				if(!this.bufrdr.ready()) {
+					this.ps.flush();
+					if(park()) {
+						//We'll be run again when the client sends the next command
+						return;
+					}
+				}
+
+				line = this.bufrdr.readLine();
+				if(line == null) {
+					break;
+				}
+
 				SMTPCommand msg = null;
 				try {
 					//Logger.normal(this,line);
@@ -21,13 +21,12 @@
 
 package org.freenetproject.freemail.smtp;
 
-import java.net.ServerSocket;
-import java.net.InetAddress;
 import java.io.IOException;
 import java.net.Socket;
 
 import org.freenetproject.freemail.AccountManager;
 import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.ServerHandler;
 import org.freenetproject.freemail.ServerListener;
 import org.freenetproject.freemail.config.ConfigClient;
 import org.freenetproject.freemail.config.Configurator;
@@ -47,6 +46,10 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 		this.freemail = freemail;
 		cfg.register(Configurator.SMTP_BIND_ADDRESS, this, "127.0.0.1");
 		cfg.register(Configurator.SMTP_BIND_PORT, this, Integer.toString(LISTENPORT));
+		cfg.register(Configurator.SMTP_CONNECTION_ENGINE, this, DEFAULT_ENGINE);
+		cfg.register(Configurator.SMTP_BACKLOG, this, Integer.toString(DEFAULT_BACKLOG));
+		cfg.register(Configurator.SMTP_MAX_CONNECTIONS, this, Integer.toString(DEFAULT_MAX_CONNECTIONS));
+		cfg.register(Configurator.SMTP_WORKER_THREADS, this, Integer.toString(DEFAULT_WORKER_THREADS));
 	}
 
 	@Override
@@ -64,25 +67,24 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 			this.bindaddress = val;
 		} else if(key.equalsIgnoreCase(Configurator.SMTP_BIND_PORT)) {
 			this.bindport = Integer.parseInt(val);
+		} else if(key.equalsIgnoreCase(Configurator.SMTP_CONNECTION_ENGINE)) {
+			setEngine(val);
+		} else if(key.equalsIgnoreCase(Configurator.SMTP_BACKLOG)) {
+			setBacklog(parseConfigInt(key, val, DEFAULT_BACKLOG));
+		} else if(key.equalsIgnoreCase(Configurator.SMTP_MAX_CONNECTIONS)) {
+			setMaxConnections(parseConfigInt(key, val, DEFAULT_MAX_CONNECTIONS));
+		} else if(key.equalsIgnoreCase(Configurator.SMTP_WORKER_THREADS)) {
+			setWorkerThreads(parseConfigInt(key, val, DEFAULT_WORKER_THREADS));
 		}
 	}
 
 	public void realrun() throws IOException {
-		sock = new ServerSocket(this.bindport, 10, InetAddress.getByName(this.bindaddress));
-		while(!sock.isClosed()) {
-			try {
-				IdentityMatcher matcher = new IdentityMatcher(freemail.getWotConnection());
-				Socket clientSocket = sock.accept();
-				SMTPHandler newcli = new SMTPHandler(accountManager, clientSocket, matcher);
-				Thread newthread = new Thread(newcli, "Freemail SMTP Handler for " + clientSocket.getInetAddress());
-				newthread.setDaemon(true);
-				newthread.start();
-				addHandler(newcli, newthread);
-			} catch (IOException ioe) {
-
-			}
+		acceptConnections("SMTP", this.bindaddress, this.bindport, 0);
+	}
 
-			reapHandlers();
-		}
+	@Override
+	protected ServerHandler createHandler(Socket client) throws IOException {
+		IdentityMatcher matcher = new IdentityMatcher(freemail.getWotConnection());
+		return new SMTPHandler(accountManager, client, matcher);
 	}
 }
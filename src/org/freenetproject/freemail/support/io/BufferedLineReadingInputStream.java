@@ -0,0 +1,197 @@
+/*
+ * BufferedLineReadingInputStream.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link LineReadingInputStream} that reads the underlying stream in blocks instead of one byte
+ * at a time, and finds the end of each line by scanning the block. The bytes that have been read
+ * into the buffer but not returned as part of a line are returned by the read methods, so the
+ * stream can be used to read data that follows the lines, but the underlying stream must not be
+ * read directly once this stream has been used.
+ */
+public class BufferedLineReadingInputStream extends LineReadingInputStream {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private final byte[] buffer;
+	private int pos = 0;
+	private int limit = 0;
+
+	/** Holds the start of lines that didn't fit in what was left of the buffer */
+	private byte[] lineBuf = null;
+
+	private int lastBytesRead;
+
+	public BufferedLineReadingInputStream(InputStream in) {
+		this(in, 8192);
+	}
+
+	public BufferedLineReadingInputStream(InputStream in, int size) {
+		super(in);
+		this.buffer = new byte[size];
+	}
+
+	/**
+	 * Read a \n or \r\n terminated line of UTF-8 or ISO-8859-1.
+	 */
+	@Override
+	public String readLine(int maxLength, int bufferSize, boolean utf) throws IOException {
+		Charset charset = utf ? UTF_8 : ISO_8859_1;
+		lastBytesRead = 0;
+
+		int lineLength = 0;
+		while(true) {
+			if(pos == limit && !fill()) {
+				if(lineLength == 0) return null;
+				return new String(lineBuf, 0, lineLength, charset);
+			}
+
+			int end = pos;
+			while(end < limit && buffer[end] != '\n') {
+				end++;
+			}
+
+			int count = end - pos;
+			if(lineLength + count > bufferSize) throw new TooLongException();
+
+			if(end < limit) {
+				//Found the end of the line
+				lastBytesRead += count + 1;
+				String line;
+				if(lineLength == 0) {
+					line = decode(buffer, pos, count, charset);
+				} else {
+					System.arraycopy(buffer, pos, lineBuf, lineLength, count);
+					line = decode(lineBuf, 0, lineLength + count, charset);
+				}
+				pos = end + 1;
+				return line;
+			}
+
+			//The line continues past the end of the buffer, so keep what we have
+			int needed = Math.min(bufferSize, lineLength + count + buffer.length);
+			if(lineBuf == null || lineBuf.length < needed) {
+				byte[] newBuf = new byte[needed];
+				if(lineBuf != null) {
+					System.arraycopy(lineBuf, 0, newBuf, 0, lineLength);
+				}
+				lineBuf = newBuf;
+			}
+			System.arraycopy(buffer, pos, lineBuf, lineLength, count);
+			lineLength += count;
+			lastBytesRead += count;
+			pos = limit;
+		}
+	}
+
+	/**
+	 * Decodes a line, dropping the \r of a \r\n line ending.
+	 */
+	private static String decode(byte[] bytes, int offset, int length, Charset charset) {
+		if(length > 0 && bytes[offset + length - 1] == '\r') {
+			length--;
+		}
+		return new String(bytes, offset, length, charset);
+	}
+
+	private boolean fill() throws IOException {
+		pos = 0;
+		limit = 0;
+		int read = in.read(buffer, 0, buffer.length);
+		if(read <= 0) {
+			return false;
+		}
+		limit = read;
+		return true;
+	}
+
+	@Override
+	public int getLastBytesRead() {
+		return lastBytesRead;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(pos == limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+
+		if(pos == limit) {
+			//Large reads don't need to go through the buffer
+			if(len >= buffer.length) {
+				return in.read(b, off, len);
+			}
+			if(!fill()) {
+				return -1;
+			}
+		}
+
+		int count = Math.min(len, limit - pos);
+		System.arraycopy(buffer, pos, b, off, count);
+		pos += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if(n <= 0) {
+			return 0;
+		}
+
+		if(pos < limit) {
+			int count = (int)Math.min(n, limit - pos);
+			pos += count;
+			return count;
+		}
+		return in.skip(n);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (limit - pos) + in.available();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		//Not supported
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+}
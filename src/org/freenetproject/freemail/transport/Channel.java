@@ -25,17 +25,25 @@ package org.freenetproject.freemail.transport;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -52,6 +60,7 @@ import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.ConcurrentSlotPoller;
 import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.Freemail.TaskType;
 import org.freenetproject.freemail.FreemailAccount;
@@ -99,6 +108,12 @@ class Channel {
 	/** The amount of time to wait before retrying after a transient failure. */
 	private static final long TASK_RETRY_DELAY = 5 * 60 * 1000; //5 minutes
 
+	/**
+	 * How often the fetcher runs when it subscribes to the slots instead of polling them. New
+	 * messages are handled as soon as they arrive, so this only has to catch slots expiring.
+	 */
+	private static final long SUBSCRIPTION_CHECK_DELAY = 60 * 60 * 1000; //1 hour
+
 	//The keys used in the props file
 	private static class PropsKeys {
 		private static final String PRIVATE_KEY = "privateKey";
@@ -162,6 +177,11 @@ class Channel {
 		}
 		channelProps = PropsFile.createPropsFile(channelPropsFile);
 
+		//The fetch slots and states change often, so batch those writes. Changes that must be on
+		//disk before something is inserted are committed explicitly
+		channelProps.setWriteBehind(true);
+		channelProps.setSyncOnWrite(true);
+
 		//Check if the channel has timed out
 		synchronized(channelProps) {
 			String rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
@@ -241,6 +261,7 @@ class Channel {
 				return;
 			}
 
+			channelProps.beginTransaction();
 			if(channelProps.get(PropsKeys.PRIVATE_KEY) == null) {
 				channelProps.put(PropsKeys.PRIVATE_KEY, privateKey);
 				channelProps.put(PropsKeys.PUBLIC_KEY, publicKey);
@@ -259,6 +280,7 @@ class Channel {
 
 			channelProps.put(PropsKeys.TIMEOUT, rtsProps.get(RTSKeys.TIMEOUT));
 			channelProps.put(PropsKeys.RECIPIENT_STATE, "rts-received");
+			channelProps.commit();
 		}
 
 		//Queue the CTS insert
@@ -282,6 +304,7 @@ class Channel {
 	public static boolean deleteChannel(File channelDir) {
 		File channelPropsFile = new File(channelDir, CHANNEL_PROPS_NAME);
 		channelPropsFile.delete();
+		PropsFile.forget(channelPropsFile);
 
 		File ackLog = new File(channelDir, ACK_LOG);
 		ackLog.delete();
@@ -306,9 +329,6 @@ class Channel {
 			boolean inserted;
 			try {
 				inserted = insertMessage(bucket, "cts");
-			} catch(IOException e) {
-				//The getInputStream() method of ArrayBucket doesn't throw
-				throw new AssertionError();
 			} catch (InterruptedException e) {
 				Logger.debug(this, "CTSInserter interrupted, quitting");
 				return;
@@ -459,10 +479,9 @@ class Channel {
 	 * was inserted, {@code false} otherwise.
 	 * @param message the message that should be inserted
 	 * @return {@code true} if the message was inserted, {@code false} otherwise
-	 * @throws IOException if the getInputStream() method of message throws IOException
 	 * @throws InterruptedException if the current thread was interrupted while inserting the message
 	 */
-	private boolean insertMessage(Bucket message, String prefix) throws IOException, InterruptedException {
+	private boolean insertMessage(Bucket message, String prefix) throws InterruptedException {
 		String privateKey;
 		String sendCode;
 		synchronized (channelProps) {
@@ -493,8 +512,10 @@ class Channel {
 					/* If not, assign the next free slot */
 					sendSlot = channelProps.get(PropsKeys.SEND_SLOT);
 					String nextSlot = calculateNextSlot(sendSlot);
+					channelProps.beginTransaction();
 					channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
 					channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
+					channelProps.commit();
 
 					Logger.debug(this, "Assigned slot " + sendSlot + " to message " + prefix);
 				}
@@ -502,65 +523,62 @@ class Channel {
 
 			String insertKey = privateKey + sendCode + "-" + sendSlot;
 
-			InputStream messageStream = null;
+			Logger.minor(this, "Inserting data");
+			Logger.debug(this, "Insert key is " + insertKey);
+			FCPPutFailedException fcpMessage;
 			try {
-				messageStream = message.getInputStream();
-				Logger.minor(this, "Inserting data");
-				Logger.debug(this, "Insert key is " + insertKey);
-				FCPPutFailedException fcpMessage;
-				try {
-					Timer messageInsert = Timer.start();
-					fcpMessage = fcpClient.put(messageStream, insertKey);
-					messageInsert.log(this, 1, TimeUnit.HOURS, "Time spent inserting message");
-				} catch(FCPBadFileException e) {
-					Logger.error(this, "Caugth FCPBadFileException while inserting message", e);
-					return false;
-				} catch(ConnectionTerminatedException e) {
-					/* Expected if Freemail is shutting down */
-					Logger.debug(this, "Caugth " + e);
-					return false;
-				} catch (FCPException e) {
-					Logger.error(this, "Unexpected error while inserting data: " + e.getMessage());
-					return false;
-				}
+				Timer messageInsert = Timer.start();
+				fcpMessage = fcpClient.put(message, insertKey);
+				messageInsert.log(this, 1, TimeUnit.HOURS, "Time spent inserting message");
+			} catch(FCPBadFileException e) {
+				Logger.error(this, "Caugth FCPBadFileException while inserting message", e);
+				return false;
+			} catch(ConnectionTerminatedException e) {
+				/* Expected if Freemail is shutting down */
+				Logger.debug(this, "Caugth " + e);
+				return false;
+			} catch (FCPException e) {
+				Logger.error(this, "Unexpected error while inserting data: " + e.getMessage());
+				return false;
+			}
 
-				if(fcpMessage == null) {
-					Logger.minor(this, "Insert successful");
+			if(fcpMessage == null) {
+				Logger.minor(this, "Insert successful");
 
-					synchronized (channelProps) {
-						if(!channelProps.remove(prefix + PropsKeys.MSG_SLOT)) {
-							Logger.error(this, "Couldn't remove slot, will try again later");
+				synchronized (channelProps) {
+					channelProps.remove(prefix + PropsKeys.MSG_SLOT);
+					if(!channelProps.flush()) {
+						Logger.error(this, "Couldn't remove slot, will try again later");
 
-							/*
-							 * The insert succeeded, but we can't leave the slot in the props file
-							 * since that would break the forward secrecy of the slot system. By
-							 * returning false we will try again later (using the same slot) and
-							 * hopefully we can delete it then.
-							 */
-							return false;
-						}
+						/*
+						 * The insert succeeded, but we can't leave the slot in the props file
+						 * since that would break the forward secrecy of the slot system. By
+						 * returning false we will try again later (using the same slot) and
+						 * hopefully we can delete it then.
+						 */
+						return false;
 					}
-
-					return true;
 				}
 
-				if(fcpMessage.errorcode == FCPPutFailedException.COLLISION) {
-					synchronized(channelProps) {
-						sendSlot = channelProps.get(PropsKeys.SEND_SLOT);
-						String nextSlot = calculateNextSlot(sendSlot);
-						channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
-						channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
-					}
+				return true;
+			}
 
-					Logger.debug(this, "Insert collided, assigned new slot " + sendSlot + " to message " + prefix);
+			if(fcpMessage.errorcode == FCPPutFailedException.COLLISION) {
+				synchronized(channelProps) {
+					sendSlot = channelProps.get(PropsKeys.SEND_SLOT);
+					String nextSlot = calculateNextSlot(sendSlot);
+					channelProps.beginTransaction();
+					channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
+					channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
+					channelProps.commit();
 				}
 
-				/* TODO: Log at a higher level for more serious errors */
-				Logger.minor(this, "Insert failed, error code " + fcpMessage.errorcode);
-				return false;
-			} finally {
-				Closer.close(messageStream);
+				Logger.debug(this, "Insert collided, assigned new slot " + sendSlot + " to message " + prefix);
 			}
+
+			/* TODO: Log at a higher level for more serious errors */
+			Logger.minor(this, "Insert failed, error code " + fcpMessage.errorcode);
+			return false;
 		}
 	}
 
@@ -619,9 +637,37 @@ class Channel {
 
 	private class Fetcher implements Runnable {
 		private final AtomicLong lastRun = new AtomicLong();
+		private final AtomicReference<ScheduledFuture<?>> nextRun = new AtomicReference<ScheduledFuture<?>>();
+
+		/**
+		 * The subscriptions to the slots of the channel, by slot. Only used when subscribing to
+		 * the slots instead of polling them. Guarded by {@code this}.
+		 */
+		private final Map<String, Future<Bucket>> subscriptions = new HashMap<String, Future<Bucket>>();
+
+		/**
+		 * Maps slots whose subscription failed to the time they can be subscribed to again.
+		 * Guarded by {@code this}.
+		 */
+		private final Map<String, Long> failedSubscriptions = new HashMap<String, Long>();
+
+		/** Set while a run triggered by a completed subscription is waiting to start */
+		private final AtomicBoolean subscriptionRunPending = new AtomicBoolean();
+
+		/** Runs the fetcher when a subscription completes */
+		private final Runnable subscriptionListener = new Runnable() {
+			@Override
+			public void run() {
+				if(subscriptionRunPending.compareAndSet(false, true)) {
+					execute();
+				}
+			}
+		};
 
 		@Override
 		public synchronized void run() {
+			subscriptionRunPending.set(false);
+
 			long curTime = System.currentTimeMillis();
 			long last = lastRun.getAndSet(curTime);
 			if(last != 0) {
@@ -659,6 +705,7 @@ class Channel {
 				//later than we stop sending. See JavaDoc for CHANNEL_TIMEOUT for details
 				if(timeout < (System.currentTimeMillis() - CHANNEL_TIMEOUT)) {
 					Logger.debug(this, "Channel has timed out, won't fetch");
+					cancelSubscriptions();
 					return;
 				}
 			}
@@ -673,9 +720,6 @@ class Channel {
 				return;
 			}
 
-			HashSlotManager slotManager = new HashSlotManager(new ChannelSlotSaveImpl(channelProps, PropsKeys.FETCH_SLOT), null, slots);
-			slotManager.setPollAhead(POLL_AHEAD);
-
 			String basekey;
 			synchronized(channelProps) {
 				basekey = channelProps.get(PropsKeys.PUBLIC_KEY);
@@ -698,79 +742,118 @@ class Channel {
 			}
 			basekey += fetchCode + "-";
 
-			String slot;
-			while((slot = slotManager.getNextSlot()) != null) {
-				String key = basekey + slot;
-
-				Logger.debug(this, "Attempting to fetch mail on key " + key);
-				File result;
-				try {
-					result = fcpClient.fetch(key);
-				} catch(ConnectionTerminatedException e) {
-					Logger.debug(this, "Connection terminated");
-					return;
-				} catch(FCPFetchException e) {
-					if(e.getCode() == FCPFetchException.INVALID_URI) {
-						//Could be a local bug or we could have gotten a bad key in the RTS
-						//TODO: This won't fix itself, so make sure the user notices
-						Logger.error(this, "Fetch failed because the URI was invalid");
-						return;
-					}
+			boolean subscribe = freemail.useSlotSubscriptions();
+			if(!subscribe) {
+				cancelSubscriptions();
+			}
 
-					if(e.isFatal()) {
-						Logger.normal(this, "Fatal fetch failure, marking slot as used");
-						slotManager.slotUsed();
-					}
+			SlotSequence sequence = new SlotSequence(basekey, subscribe);
+			ConcurrentSlotPoller poller = new ConcurrentSlotPoller(fcpClient, account.getFetchPermits());
+			try {
+				poller.poll(Collections.singletonList(sequence));
+			} catch(ConnectionTerminatedException e) {
+				Logger.debug(this, "Connection terminated");
+				cancelSubscriptions();
+				return;
+			}
+			if(sequence.failed) {
+				cancelSubscriptions();
+				return;
+			}
 
-					Logger.minor(this, "No mail in slot (fetch returned " + e.getMessage() + ")");
-					continue;
-				} catch (FCPException e) {
-					Logger.error(this, "Unexpected error while trying to fetch message: " + e.getMessage());
+			//Reschedule
+			if(subscribe) {
+				dropStaleSubscriptions(sequence.createSlotManager());
+				if(failedSubscriptions.isEmpty()) {
+					schedule(SUBSCRIPTION_CHECK_DELAY, TimeUnit.MILLISECONDS);
 					return;
 				}
-				Logger.debug(this, "Fetch successful");
-
-				PropsFile messageProps = PropsFile.createPropsFile(result, true);
-				String messageType = messageProps.get("messagetype");
+			}
+			schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+		}
 
-				if(messageType == null) {
-					Logger.error(this, "Got message without messagetype, discarding");
-					slotManager.slotUsed();
-					result.delete();
-					continue;
+		/**
+		 * Returns the subscription to {@code slot} if it has completed, so that the result can be
+		 * handled. If there is no subscription to the slot, one is started. Returns {@code null}
+		 * if the slot is still being waited for.
+		 */
+		private Future<Bucket> subscription(String slot, String key) throws ConnectionTerminatedException,
+		                                                                    InterruptedException {
+			Future<Bucket> subscription = subscriptions.get(slot);
+			if(subscription == null) {
+				Long retryAt = failedSubscriptions.get(slot);
+				if(retryAt != null && retryAt.longValue() > System.currentTimeMillis()) {
+					return null;
 				}
+				failedSubscriptions.remove(slot);
 
-				if(messageType.equals("message")) {
-					if(handleMessage(result)) {
-						slotManager.slotUsed();
-					}
-				} else if(messageType.equals("cts")) {
-					Logger.minor(this, "Successfully received CTS");
+				Logger.debug(this, "Subscribing to key " + key);
+				subscriptions.put(slot, fcpClient.watchAsync(key, subscriptionListener));
+				return null;
+			}
 
-					boolean success;
-					synchronized(channelProps) {
-						success = channelProps.put(PropsKeys.SENDER_STATE, "cts-received");
-					}
+			if(!subscription.isDone()) {
+				return null;
+			}
+			subscriptions.remove(slot);
+			return subscription;
+		}
 
-					if(success) {
-						slotManager.slotUsed();
-					}
-				} else if(messageType.equals("ack")) {
-					if(handleAck(result)) {
-						slotManager.slotUsed();
-					}
-				} else {
-					Logger.error(this, "Got message of unknown type: " + messageType);
-					slotManager.slotUsed();
-				}
+		/**
+		 * Makes sure {@code slot} isn't subscribed to again until the retry delay has passed, so
+		 * that a subscription that keeps failing doesn't turn into a busy loop.
+		 */
+		private void subscriptionFailed(String slot) {
+			failedSubscriptions.put(slot, Long.valueOf(System.currentTimeMillis() + TASK_RETRY_DELAY));
+		}
 
-				if(!result.delete()) {
-					Logger.error(this, "Deletion of " + result + " failed");
+		/**
+		 * Cancels the subscriptions to slots that are no longer polled, e.g. because they have
+		 * expired.
+		 */
+		private void dropStaleSubscriptions(SlotManager slotManager) {
+			Set<String> polled = new HashSet<String>();
+			String slot;
+			while((slot = slotManager.getNextSlot()) != null) {
+				polled.add(slot);
+			}
+
+			Iterator<Entry<String, Future<Bucket>>> it = subscriptions.entrySet().iterator();
+			while(it.hasNext()) {
+				Entry<String, Future<Bucket>> entry = it.next();
+				if(!polled.contains(entry.getKey())) {
+					cancelSubscription(entry.getValue());
+					it.remove();
 				}
 			}
+			failedSubscriptions.keySet().retainAll(polled);
+		}
 
-			//Reschedule
-			schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+		private void cancelSubscriptions() {
+			for(Future<Bucket> subscription : subscriptions.values()) {
+				cancelSubscription(subscription);
+			}
+			subscriptions.clear();
+			failedSubscriptions.clear();
+		}
+
+		private void cancelSubscription(Future<Bucket> subscription) {
+			if(subscription.cancel(false)) {
+				return;
+			}
+
+			//Already completed, so free the data since nobody will handle it
+			try {
+				Bucket data = subscription.get();
+				if(data != null) {
+					data.free();
+				}
+			} catch(ExecutionException e) {
+				//Nothing to clean up
+			} catch(InterruptedException e) {
+				//Can't happen since the subscription is done, but don't swallow the interrupt
+				Thread.currentThread().interrupt();
+			}
 		}
 
 		public void execute() {
@@ -785,7 +868,12 @@ class Channel {
 		public void schedule(long delay, TimeUnit unit) {
 			Logger.debug(this, "Scheduling Fetcher for execution in " + delay + " " + unit.toString().toLowerCase(Locale.ROOT));
 			try {
-				executor.schedule(fetcher, delay, unit);
+				//Replace the previously scheduled run so that extra runs don't each keep
+				//rescheduling themselves
+				ScheduledFuture<?> previous = nextRun.getAndSet(executor.schedule(fetcher, delay, unit));
+				if(previous != null) {
+					previous.cancel(false);
+				}
 			} catch(RejectedExecutionException e) {
 				Logger.debug(this, "Caugth RejectedExecutionException while scheduling Fetcher");
 			}
@@ -868,6 +956,7 @@ class Channel {
 					timeout = System.currentTimeMillis() + CHANNEL_TIMEOUT;
 				}
 
+				channelProps.beginTransaction();
 				channelProps.put(PropsKeys.PUBLIC_KEY, publicKey);
 				channelProps.put(PropsKeys.PRIVATE_KEY, privateKey);
 				channelProps.put(PropsKeys.SEND_SLOT, initiatorSlot);
@@ -875,6 +964,7 @@ class Channel {
 				channelProps.put(PropsKeys.SEND_CODE, "i");
 				channelProps.put(PropsKeys.FETCH_CODE, "r");
 				channelProps.put(PropsKeys.TIMEOUT, "" + timeout);
+				channelProps.commit();
 			}
 
 			//Check the timeout. If the channel is already in
@@ -942,7 +1032,7 @@ class Channel {
 			mailsiteKey = mailsiteKey + "/mailsite/-" + mailisteEdition + "/mailpage";
 
 			//Fetch the mailsite
-			File mailsite;
+			Bucket mailsite;
 			try {
 				Logger.debug(this, "Fetching mailsite from " + mailsiteKey);
 				mailsite = fcpClient.fetch(mailsiteKey);
@@ -959,7 +1049,16 @@ class Channel {
 			}
 
 			//Get RTS KSK
-			PropsFile mailsiteProps = PropsFile.createPropsFile(mailsite, false);
+			PropsFile mailsiteProps;
+			try {
+				mailsiteProps = PropsFile.createPropsFile(mailsite.getInputStream(), false);
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't read fetched mailsite: " + e.getMessage());
+				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+				return;
+			} finally {
+				mailsite.free();
+			}
 			String rtsKey = mailsiteProps.get("rtsksk");
 			if(rtsKey == null) {
 				Logger.error(this, "Mailsite is missing RTS KSK");
@@ -1032,12 +1131,6 @@ class Channel {
 
 			byte[] rtsMessage = encryptMessage(signedMessage, keyModulus, keyExponent);
 
-			//Clean up the fetched mailsite
-			mailsiteProps = null;
-			if(!mailsite.delete()) {
-				Logger.error(this, "Couldn't delete " + mailsite);
-			}
-
 			//Insert
 			int slot;
 			try {
@@ -1250,9 +1343,7 @@ class Channel {
 		}
 	}
 
-	private boolean handleMessage(File msg) {
-		// parse the Freemail header(s) out.
-		PropsFile msgprops = PropsFile.createPropsFile(msg, true);
+	private boolean handleMessage(PropsFile msgprops) {
 		String s_id = msgprops.get("id");
 		if(s_id == null) {
 			Logger.error(this, "Message is missing id. Discarding.");
@@ -1338,9 +1429,6 @@ class Channel {
 			boolean inserted;
 			try {
 				inserted = insertMessage(bucket, "ack" + ackId);
-			} catch(IOException e) {
-				//The getInputStream() method of ArrayBucket doesn't throw
-				throw new AssertionError("getInputStream() method of ArrayBucket threw IOException");
 			} catch (InterruptedException e) {
 				Logger.debug(this, "AckInserter interrupted, quitting");
 				return;
@@ -1365,8 +1453,7 @@ class Channel {
 		}
 	}
 
-	private boolean handleAck(File result) {
-		PropsFile ackProps = PropsFile.createPropsFile(result);
+	private boolean handleAck(PropsFile ackProps) {
 		String ackString = ackProps.get("id");
 		if(ackString == null) {
 			Logger.error(this, "Received ack without id, discarding");
@@ -1384,6 +1471,145 @@ class Channel {
 		return true;
 	}
 
+	/**
+	 * The slots polled by the {@link Fetcher}.
+	 */
+	private class SlotSequence extends ConcurrentSlotPoller.Sequence {
+		private final String basekey;
+
+		/** If set, the slots are subscribed to instead of being polled */
+		private final boolean subscribe;
+
+		/** Set if polling stopped because of an error that won't go away by itself */
+		private boolean failed = false;
+
+		private SlotSequence(String basekey, boolean subscribe) {
+			this.basekey = basekey;
+			this.subscribe = subscribe;
+		}
+
+		@Override
+		protected SlotManager createSlotManager() {
+			String slots;
+			synchronized(channelProps) {
+				slots = channelProps.get(PropsKeys.FETCH_SLOT);
+			}
+
+			HashSlotManager slotManager = new HashSlotManager(new ChannelSlotSaveImpl(channelProps, PropsKeys.FETCH_SLOT), null, slots);
+			slotManager.setPollAhead(POLL_AHEAD);
+			return slotManager;
+		}
+
+		@Override
+		protected String getKey(String slot) {
+			String key = basekey + slot;
+			Logger.debug(this, "Attempting to fetch mail on key " + key);
+			return key;
+		}
+
+		@Override
+		protected Future<Bucket> fetch(HighLevelFCPClient client, String slot) throws ConnectionTerminatedException,
+		                                                                              InterruptedException {
+			if(!subscribe) {
+				return super.fetch(client, slot);
+			}
+			return fetcher.subscription(slot, basekey + slot);
+		}
+
+		@Override
+		protected boolean slotFailed(String slot, FCPException e, SlotManager slotManager) {
+			if(subscribe) {
+				fetcher.subscriptionFailed(slot);
+			}
+
+			if(!(e instanceof FCPFetchException)) {
+				if(subscribe) {
+					//Most likely the connection to the node was lost, which ends all the
+					//subscriptions. They are started again once the retry delay has passed
+					Logger.minor(this, "Subscription to slot ended: " + e.getMessage());
+					return true;
+				}
+				Logger.error(this, "Unexpected error while trying to fetch message: " + e.getMessage());
+				failed = true;
+				return false;
+			}
+
+			FCPFetchException fe = (FCPFetchException)e;
+			if(fe.getCode() == FCPFetchException.INVALID_URI) {
+				//Could be a local bug or we could have gotten a bad key in the RTS
+				//TODO: This won't fix itself, so make sure the user notices
+				Logger.error(this, "Fetch failed because the URI was invalid");
+				failed = true;
+				return false;
+			}
+
+			if(fe.isFatal()) {
+				Logger.normal(this, "Fatal fetch failure, marking slot as used");
+				slotManager.slotUsed();
+			}
+
+			Logger.minor(this, "No mail in slot (fetch returned " + fe.getMessage() + ")");
+			return true;
+		}
+
+		@Override
+		protected boolean slotFetched(String slot, Bucket result, SlotManager slotManager) {
+			Logger.debug(this, "Fetch successful");
+
+			// parse the Freemail header(s) out.
+			PropsFile messageProps;
+			try {
+				messageProps = PropsFile.createPropsFile(result.getInputStream(), true);
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't read fetched message: " + e.getMessage());
+				result.free();
+				return true;
+			}
+
+			try {
+				handleFetched(messageProps, slotManager);
+			} finally {
+				messageProps.closeReader();
+				result.free();
+			}
+			return true;
+		}
+
+		private void handleFetched(PropsFile messageProps, SlotManager slotManager) {
+			String messageType = messageProps.get("messagetype");
+
+			if(messageType == null) {
+				Logger.error(this, "Got message without messagetype, discarding");
+				slotManager.slotUsed();
+				return;
+			}
+
+			if(messageType.equals("message")) {
+				if(handleMessage(messageProps)) {
+					slotManager.slotUsed();
+				}
+			} else if(messageType.equals("cts")) {
+				Logger.minor(this, "Successfully received CTS");
+
+				boolean success;
+				synchronized(channelProps) {
+					success = channelProps.put(PropsKeys.SENDER_STATE, "cts-received");
+				}
+
+				if(success) {
+					slotManager.slotUsed();
+				}
+			} else if(messageType.equals("ack")) {
+				if(handleAck(messageProps)) {
+					slotManager.slotUsed();
+				}
+			} else {
+				Logger.error(this, "Got message of unknown type: " + messageType);
+				slotManager.slotUsed();
+			}
+		}
+	}
+
 	private class HashSlotManager extends SlotManager {
 		HashSlotManager(SlotSaveCallback cb, Object userdata, String slotlist) {
 			super(cb, userdata, slotlist);
@@ -252,8 +252,10 @@ public class MessageHandler {
 
 			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 			synchronized(props) {
+				props.beginTransaction();
 				props.put(identifier + IndexKeys.RECIPIENT, recipient.getIdentityID());
 				props.put(identifier + IndexKeys.MSG_NUM, Long.toString(msgNum));
+				props.commit();
 			}
 
 			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
@@ -485,10 +487,12 @@ public class MessageHandler {
 					synchronized(props) {
 						long curTime = System.currentTimeMillis();
 						String firstSentTime = props.get(identifier + IndexKeys.FIRST_SEND_TIME);
+						props.beginTransaction();
 						if(firstSentTime == null) {
 							props.put(identifier + IndexKeys.FIRST_SEND_TIME, "" + curTime);
 						}
 						props.put(identifier + IndexKeys.LAST_SEND_TIME, "" + curTime);
+						props.commit();
 					}
 
 					retryIn = RESEND_TIME;
@@ -533,10 +537,12 @@ public class MessageHandler {
 	private void deleteIndexEntries(File rcptOutbox, String identifier) {
 		PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 		synchronized(props) {
+			props.beginTransaction();
 			props.remove(identifier + IndexKeys.FIRST_SEND_TIME);
 			props.remove(identifier + IndexKeys.LAST_SEND_TIME);
 			props.remove(identifier + IndexKeys.RECIPIENT);
 			props.remove(identifier + IndexKeys.MSG_NUM);
+			props.commit();
 		}
 	}
 
@@ -24,43 +24,97 @@ package org.freenetproject.freemail.utils;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
-import java.util.Hashtable;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A file of key=value pairs that is kept in memory. By default every change is written to disk
+ * before {@code put()} or {@code remove()} returns. Files that change often can be switched to
+ * write-behind mode with {@link #setWriteBehind(boolean)}, in which case changes are collected
+ * and written by a background thread shortly afterwards. Callers that need the data to be on
+ * disk at a specific point can call {@link #flush()}, or group several changes into a single
+ * write using {@link #beginTransaction()} and {@link #commit()}.
+ *
+ * The file is replaced atomically, by writing the new contents to a temporary file and renaming
+ * it over the old one.
+ */
 public class PropsFile {
 	// substitute static methods for constructor
 
-	private static final Hashtable<String, PropsFile> propsList=new Hashtable<String, PropsFile>();
+	/**
+	 * The instances currently in use, keyed by normalized absolute path. The values are weak
+	 * references, so an instance is dropped once nobody uses it, and the next call to
+	 * {@link #createPropsFile(File, boolean)} reads the file again. Instances with changes that
+	 * haven't been written yet are kept alive by the pending flush.
+	 */
+	private static final ConcurrentMap<String, CacheRef> propsList = new ConcurrentHashMap<String, CacheRef>();
+	private static final ReferenceQueue<PropsFile> clearedRefs = new ReferenceQueue<PropsFile>();
 
-	private static int reapCounter = 0;
-	/// We go through the list and remove stale entries once in this many times a PropsFile is created
-	private static final int reapEvery = 20;
+	private static final AtomicLong cacheHits = new AtomicLong();
+	private static final AtomicLong cacheMisses = new AtomicLong();
 
-	public static synchronized PropsFile createPropsFile(File f, boolean stopAtBlank) {
-		if(reapCounter == reapEvery) {
-			reapOld();
-			reapCounter = 0;
-		} else {
-			++reapCounter;
+	/** How long changes to a write-behind file are collected before they are written */
+	private static final long FLUSH_DELAY = 2000;
+
+	private static final ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Freemail PropsFile flusher");
+			t.setDaemon(true);
+			return t;
 		}
+	});
+	static {
+		//Don't keep a thread around when there is nothing to write
+		flusher.setKeepAliveTime(1, TimeUnit.MINUTES);
+		flusher.allowCoreThreadTimeOut(true);
+	}
 
-		String fn=f.getPath();
+	public static PropsFile createPropsFile(File f, boolean stopAtBlank) {
+		purgeCleared();
 
-		PropsFile pf=propsList.get(fn);
+		String key = cacheKey(f);
+		while(true) {
+			CacheRef ref = propsList.get(key);
+			PropsFile pf = (ref == null) ? null : ref.get();
+			if(pf != null) {
+				cacheHits.incrementAndGet();
+				return pf;
+			}
 
-		if(pf!=null) {
-			return pf;
-		} else {
-			pf=new PropsFile(f, stopAtBlank);
-			propsList.put(fn, pf);
-			return pf;
+			//Only one thread gets to add the new instance, the others use that one
+			PropsFile created = new PropsFile(f, stopAtBlank);
+			CacheRef createdRef = new CacheRef(key, created);
+			boolean added;
+			if(ref == null) {
+				added = (propsList.putIfAbsent(key, createdRef) == null);
+			} else {
+				added = propsList.replace(key, ref, createdRef);
+			}
+			if(added) {
+				cacheMisses.incrementAndGet();
+				return created;
+			}
+			created.closeReader();
 		}
 	}
 
@@ -68,17 +122,113 @@ public class PropsFile {
 		return createPropsFile(f, false);
 	}
 
-	public static void reapOld() {
-		Logger.debug(PropsFile.class, "Cleaning up stale PropsFiles");
+	/**
+	 * Reads the data from {@code is} into a new instance that isn't backed by a file. Changes to
+	 * the returned instance are only kept in memory, and it isn't cached, so this is meant for
+	 * reading data that has been fetched. If {@code stopAtBlank} is set the caller must read the
+	 * rest of the stream using {@link #getReader()}, otherwise the stream is closed.
+	 * @param is the stream to read from
+	 * @param stopAtBlank stop reading at the first blank line
+	 * @return the new instance
+	 * @throws IOException if reading from {@code is} fails
+	 */
+	public static PropsFile createPropsFile(InputStream is, boolean stopAtBlank) throws IOException {
+		PropsFile pf = new PropsFile(null, false);
+		pf.bufrdr = pf.read(new BufferedReader(new InputStreamReader(is, "UTF-8")), stopAtBlank);
+		return pf;
+	}
 
-		Iterator<Map.Entry<String, PropsFile>> i = propsList.entrySet().iterator();
+	/**
+	 * Drops the cached instance of {@code f}. This should be called when the file is deleted, so
+	 * that a file created in the same place later isn't served from the old instance.
+	 * @param f the file
+	 */
+	public static void forget(File f) {
+		propsList.remove(cacheKey(f));
+	}
 
-		while(i.hasNext()) {
-			Map.Entry<String, PropsFile> entry = i.next();
-			File f = new File(entry.getKey());
-			if(!f.exists()) {
-				Logger.debug(PropsFile.class, "Removing "+f.getPath());
-				i.remove();
+	/**
+	 * Returns the number of times {@link #createPropsFile(File, boolean)} returned an instance
+	 * that was already in use.
+	 */
+	public static long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * Returns the number of times {@link #createPropsFile(File, boolean)} had to read the file.
+	 */
+	public static long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * Removes the entries of instances that have been garbage collected.
+	 */
+	private static void purgeCleared() {
+		Reference<? extends PropsFile> ref;
+		while((ref = clearedRefs.poll()) != null) {
+			CacheRef cacheRef = (CacheRef)ref;
+			propsList.remove(cacheRef.key, cacheRef);
+		}
+	}
+
+	/**
+	 * Returns the absolute path of {@code f} with any . and .. components removed. Unlike
+	 * {@link File#getCanonicalPath()} this doesn't touch the file system.
+	 */
+	private static String cacheKey(File f) {
+		String path = f.getAbsolutePath();
+		if(path.indexOf(File.separator + ".") == -1 && path.indexOf(File.separator + File.separator) == -1) {
+			return path;
+		}
+
+		String[] parts = path.split(Pattern.quote(File.separator), -1);
+		LinkedList<String> normalized = new LinkedList<String>();
+		for(int i = 0; i < parts.length; i++) {
+			String part = parts[i];
+			if(i > 0 && (part.length() == 0 || part.equals("."))) {
+				continue;
+			}
+			if(part.equals("..")) {
+				if(normalized.size() > 1) {
+					normalized.removeLast();
+				}
+				continue;
+			}
+			normalized.add(part);
+		}
+
+		StringBuilder key = new StringBuilder(path.length());
+		boolean first = true;
+		for(String part : normalized) {
+			if(!first) {
+				key.append(File.separator);
+			}
+			key.append(part);
+			first = false;
+		}
+		return key.toString();
+	}
+
+	private static class CacheRef extends WeakReference<PropsFile> {
+		private final String key;
+
+		private CacheRef(String key, PropsFile pf) {
+			super(pf, clearedRefs);
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Writes all the pending changes of files in write-behind mode. This should be called before
+	 * shutting down.
+	 */
+	public static void flushAll() {
+		for(CacheRef ref : propsList.values()) {
+			PropsFile pf = ref.get();
+			if(pf != null) {
+				pf.flush();
 			}
 		}
 	}
@@ -89,6 +239,20 @@ public class PropsFile {
 	private String commentPrefix;
 	private String header;
 
+	private boolean writeBehind = false;
+	private boolean syncOnWrite = false;
+
+	/** Set when there are changes that haven't been written yet */
+	private boolean dirty = false;
+	private boolean flushScheduled = false;
+	private int transactionDepth = 0;
+
+	/**
+	 * Set once the file has been read or written. Pending changes to a file that has since been
+	 * deleted are dropped by the background flush, so that deleted files aren't brought back.
+	 */
+	private boolean onDisk = false;
+
 	/** Pass true into stopAtBlank to cause the reader to stop upon encountering
 	 * a blank line. It's the the caller's responsibility to get
 	 * (using the getReader() method) the stream and close it properly.
@@ -97,7 +261,8 @@ public class PropsFile {
 		this.file = f;
 		this.data = null;
 
-		if(f.exists()) {
+		if(f != null && f.exists()) {
+			this.onDisk = true;
 			try {
 				this.bufrdr = this.read(stopAtBlank);
 			} catch (IOException ioe) {
@@ -115,10 +280,33 @@ public class PropsFile {
 		this.header = hdr;
 	}
 
+	/**
+	 * Selects whether changes are written in the background instead of before {@code put()} and
+	 * {@code remove()} return. Turning write-behind off writes any pending changes.
+	 * @param writeBehind {@code true} to write changes in the background
+	 */
+	public synchronized void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+		if(!writeBehind) {
+			flush();
+		}
+	}
+
+	/**
+	 * Selects whether the file is synced to the storage device each time it is written, so that
+	 * the changes survive a crash of the operating system and not only of Freemail.
+	 * @param syncOnWrite {@code true} to sync the file after each write
+	 */
+	public synchronized void setSyncOnWrite(boolean syncOnWrite) {
+		this.syncOnWrite = syncOnWrite;
+	}
+
 	private synchronized BufferedReader read(boolean stopAtBlank) throws IOException {
-		this.data = new HashMap<String, String>();
+		return read(new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8")), stopAtBlank);
+	}
 
-		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+	private synchronized BufferedReader read(BufferedReader br, boolean stopAtBlank) throws IOException {
+		this.data = new HashMap<String, String>();
 
 		String line = null;
 		while((line = br.readLine()) != null) {
@@ -158,41 +346,156 @@ public class PropsFile {
 			}
 		}
 
-		PrintWriter pw = new PrintWriter(new FileOutputStream(this.file));
+		File tmpFile = new File(parentDir, file.getName() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		boolean written = false;
+		try {
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(fos, "UTF-8"));
+
+			if(this.header != null) pw.println(this.header);
+
+			Iterator<Map.Entry<String, String>> i = this.data.entrySet().iterator();
+			while(i.hasNext()) {
+				Map.Entry<String, String> e = i.next();
+				String key = e.getKey();
+				String val = e.getValue();
+
+				pw.println(key+"="+val);
+			}
 
-		if(this.header != null) pw.println(this.header);
+			pw.flush();
+			if(pw.checkError()) {
+				throw new IOException("Error while writing " + tmpFile);
+			}
+			if(syncOnWrite) {
+				fos.getFD().sync();
+			}
+			written = true;
+		} finally {
+			fos.close();
+			if(!written) {
+				tmpFile.delete();
+			}
+		}
 
-		Iterator<Map.Entry<String, String>> i = this.data.entrySet().iterator();
-		while(i.hasNext()) {
-			Map.Entry<String, String> e = i.next();
-			String key = e.getKey();
-			String val = e.getValue();
+		if(!tmpFile.renameTo(file)) {
+			//On some platforms renameTo() won't replace an existing file
+			file.delete();
+			if(!tmpFile.renameTo(file)) {
+				tmpFile.delete();
+				throw new IOException("Couldn't rename " + tmpFile + " to " + file);
+			}
+		}
 
-			pw.println(key+"="+val);
+		this.dirty = false;
+		this.onDisk = true;
+	}
+
+	/**
+	 * Writes any changes that haven't been written yet.
+	 * @return {@code true} if the file is up to date on disk
+	 */
+	public synchronized boolean flush() {
+		if(!this.dirty) return true;
+
+		try {
+			this.write();
+		} catch (IOException ioe) {
+			Logger.error(this, "Couldn't write " + file + ": " + ioe.getMessage(), ioe);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts a transaction. Changes made before the matching call to {@link #commit()} are only
+	 * written when the transaction is committed, so a group of changes is written once. Callers
+	 * should hold the lock on this object for the duration of the transaction, and transactions
+	 * can be nested.
+	 */
+	public synchronized void beginTransaction() {
+		this.transactionDepth++;
+	}
+
+	/**
+	 * Ends a transaction started by {@link #beginTransaction()}. When the outermost transaction
+	 * is committed the changes are written to disk before this method returns, also in
+	 * write-behind mode.
+	 * @return {@code true} if the changes were written, or if this was a nested transaction
+	 */
+	public synchronized boolean commit() {
+		if(this.transactionDepth == 0) {
+			throw new IllegalStateException("No transaction in progress");
 		}
+		this.transactionDepth--;
+		if(this.transactionDepth > 0) return true;
 
-		pw.close();
+		return flush();
 	}
 
-	public String get(String key) {
+	/**
+	 * Returns {@code true} if there are changes that haven't been written yet.
+	 */
+	public synchronized boolean isDirty() {
+		return this.dirty;
+	}
+
+	/**
+	 * Records that the data has changed and writes it or arranges for it to be written.
+	 */
+	private boolean changed() {
+		if(this.file == null) {
+			//Read from a stream, so there is nowhere to write the changes
+			return true;
+		}
+
+		this.dirty = true;
+		if(this.transactionDepth > 0) {
+			return true;
+		}
+		if(!this.writeBehind) {
+			return flush();
+		}
+
+		if(!this.flushScheduled) {
+			this.flushScheduled = true;
+			flusher.schedule(new Runnable() {
+				@Override
+				public void run() {
+					backgroundFlush();
+				}
+			}, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+	private synchronized void backgroundFlush() {
+		this.flushScheduled = false;
+		File parentDir = file.getParentFile();
+		if((this.onDisk && !this.file.exists()) || (parentDir != null && !parentDir.exists())) {
+			Logger.debug(this, file + " was deleted, dropping pending changes");
+			this.dirty = false;
+			return;
+		}
+		if(this.transactionDepth == 0) {
+			flush();
+		}
+	}
+
+	public synchronized String get(String key) {
 		if(this.data == null) return null;
 
 		return this.data.get(key);
 	}
 
-	public boolean put(String key, String val) {
+	public synchronized boolean put(String key, String val) {
 		if(this.data == null) {
 			this.data = new HashMap<String, String>();
 		}
 
 		Object o = this.data.put(key, val);
 		if(o == null || !o.equals(val)) {
-			try {
-				this.write();
-			} catch (IOException ioe) {
-				ioe.printStackTrace();
-				return false;
-			}
+			return changed();
 		}
 		return true;
 	}
@@ -201,29 +504,30 @@ public class PropsFile {
 		return this.put(key, Long.toString(val));
 	}
 
-	public boolean exists() {
-		return this.file.exists();
+	public synchronized boolean exists() {
+		if(this.file == null) {
+			return this.data != null;
+		}
+		return this.dirty || this.file.exists();
 	}
 
 	public Set<String> listProps() {
 		return this.data.keySet();
 	}
 
-	public boolean remove(String key) {
+	public synchronized boolean remove(String key) {
 		if(this.data.containsKey(key)) {
 			this.data.remove(key);
-			try {
-				this.write();
-			} catch (IOException ioe) {
-				ioe.printStackTrace();
-				return false;
-			}
+			return changed();
 		}
 		return true;
 	}
 
 	@Override
 	public String toString() {
+		if(file == null) {
+			return "PropsFile read from stream";
+		}
 		return file.getPath();
 	}
 }
@@ -0,0 +1,248 @@
+/*
+ * CachingWoTConnection.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.wot;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.freenetproject.freemail.utils.Logger;
+
+import freenet.pluginmanager.PluginNotFoundException;
+
+/**
+ * WoTConnection that keeps the lists of identities in memory, since fetching them means sending
+ * every identity known to WoT over the plugin connection. Each list is fetched from WoT the
+ * first time it is used, and is then refreshed in the background every {@code maxAge}
+ * milliseconds for as long as it keeps being used, so reads never wait for WoT once the list is
+ * known. Lists that weren't used since the last refresh are dropped instead of refreshed.
+ *
+ * The other calls are passed straight through, and changing a property or context of an
+ * identity drops all the lists since it might change which identities are included.
+ */
+public class CachingWoTConnection implements WoTConnection {
+	private final WoTConnection wotConnection;
+	private final ScheduledExecutorService executor;
+	private final long maxAge;
+
+	private final ConcurrentMap<String, Entry<?>> cache = new ConcurrentHashMap<String, Entry<?>>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong refreshes = new AtomicLong();
+
+	/**
+	 * @param wotConnection the connection used for fetching the identities
+	 * @param executor the executor that runs the background refreshes
+	 * @param maxAge how often, in milliseconds, the lists are refreshed, which is how old the
+	 *        returned identities may be
+	 */
+	public CachingWoTConnection(WoTConnection wotConnection, ScheduledExecutorService executor, long maxAge) {
+		this.wotConnection = wotConnection;
+		this.executor = executor;
+		this.maxAge = maxAge;
+	}
+
+	@Override
+	public List<OwnIdentity> getAllOwnIdentities() throws PluginNotFoundException {
+		return get("own", new Fetcher<List<OwnIdentity>>() {
+			@Override
+			public List<OwnIdentity> fetch() throws PluginNotFoundException {
+				List<OwnIdentity> identities = wotConnection.getAllOwnIdentities();
+				return identities == null ? null : Collections.unmodifiableList(identities);
+			}
+		});
+	}
+
+	@Override
+	public Set<Identity> getAllTrustedIdentities(final String trusterId) throws PluginNotFoundException {
+		if(trusterId == null) {
+			throw new NullPointerException("Parameter trusterId must not be null");
+		}
+
+		return get("trusted " + trusterId, new Fetcher<Set<Identity>>() {
+			@Override
+			public Set<Identity> fetch() throws PluginNotFoundException {
+				Set<Identity> identities = wotConnection.getAllTrustedIdentities(trusterId);
+				return identities == null ? null : Collections.unmodifiableSet(identities);
+			}
+		});
+	}
+
+	@Override
+	public Set<Identity> getAllUntrustedIdentities(final String trusterId) throws PluginNotFoundException {
+		if(trusterId == null) {
+			throw new NullPointerException("Parameter trusterId must not be null");
+		}
+
+		return get("untrusted " + trusterId, new Fetcher<Set<Identity>>() {
+			@Override
+			public Set<Identity> fetch() throws PluginNotFoundException {
+				Set<Identity> identities = wotConnection.getAllUntrustedIdentities(trusterId);
+				return identities == null ? null : Collections.unmodifiableSet(identities);
+			}
+		});
+	}
+
+	@Override
+	public Identity getIdentity(String identity, String truster) throws PluginNotFoundException {
+		return wotConnection.getIdentity(identity, truster);
+	}
+
+	@Override
+	public boolean setProperty(String identity, String key, String value) throws PluginNotFoundException {
+		try {
+			return wotConnection.setProperty(identity, key, value);
+		} finally {
+			invalidate();
+		}
+	}
+
+	@Override
+	public String getProperty(String identity, String key) throws PluginNotFoundException {
+		return wotConnection.getProperty(identity, key);
+	}
+
+	@Override
+	public boolean setContext(String identity, String context) throws PluginNotFoundException {
+		try {
+			return wotConnection.setContext(identity, context);
+		} finally {
+			invalidate();
+		}
+	}
+
+	/**
+	 * Drops all the cached lists, so they are fetched from WoT again the next time they are used.
+	 */
+	public void invalidate() {
+		cache.clear();
+	}
+
+	/** Returns the number of reads that were answered from the cache */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** Returns the number of reads that had to wait for WoT */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** Returns the number of background refreshes that have completed */
+	public long getRefreshes() {
+		return refreshes.get();
+	}
+
+	private <T> T get(String key, Fetcher<T> fetcher) throws PluginNotFoundException {
+		@SuppressWarnings("unchecked")
+		Entry<T> entry = (Entry<T>)cache.get(key);
+		if(entry != null) {
+			entry.used = true;
+			hits.incrementAndGet();
+			return entry.value;
+		}
+
+		misses.incrementAndGet();
+		T value = fetcher.fetch();
+		if(value == null) {
+			//Errors aren't cached, so the next read tries again
+			return null;
+		}
+
+		entry = new Entry<T>(key, fetcher, value);
+		if(cache.putIfAbsent(key, entry) == null) {
+			scheduleRefresh(entry);
+		}
+		return value;
+	}
+
+	private void scheduleRefresh(final Entry<?> entry) {
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					refresh(entry);
+				}
+			}, maxAge, TimeUnit.MILLISECONDS);
+		} catch(RejectedExecutionException e) {
+			//Shutting down, so don't keep serving the list without refreshing it
+			cache.remove(entry.key, entry);
+		}
+	}
+
+	private <T> void refresh(Entry<T> entry) {
+		if(cache.get(entry.key) != entry) {
+			//Invalidated since the refresh was scheduled
+			return;
+		}
+		if(!entry.used) {
+			Logger.debug(this, "Dropping unused identity list " + entry.key);
+			cache.remove(entry.key, entry);
+			return;
+		}
+		entry.used = false;
+
+		T value;
+		try {
+			value = entry.fetcher.fetch();
+		} catch(PluginNotFoundException e) {
+			//Let the next read see the error
+			Logger.minor(this, "WoT unavailable, dropping identity list " + entry.key);
+			cache.remove(entry.key, entry);
+			return;
+		}
+
+		if(value != null) {
+			entry.value = value;
+			refreshes.incrementAndGet();
+		} else {
+			Logger.minor(this, "Refreshing identity list " + entry.key + " failed, keeping the old one");
+		}
+
+		Logger.debug(this, "Identity cache: " + hits.get() + " hits, " + misses.get() + " misses");
+		scheduleRefresh(entry);
+	}
+
+	private interface Fetcher<T> {
+		T fetch() throws PluginNotFoundException;
+	}
+
+	private static class Entry<T> {
+		private final String key;
+		private final Fetcher<T> fetcher;
+		private volatile T value;
+
+		/** Set when the list is read, and cleared when it is refreshed */
+		private volatile boolean used = true;
+
+		private Entry(String key, Fetcher<T> fetcher, T value) {
+			this.key = key;
+			this.fetcher = fetcher;
+			this.value = value;
+		}
+	}
+}
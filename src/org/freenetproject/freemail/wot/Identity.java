@@ -31,6 +31,7 @@ public class Identity {
 	private final String identityID;
 	private final String requestURI;
 	private final String nickname;
+	private volatile String base32IdentityID = null;
 
 	public Identity(String identityID, String requestURI, String nickname) {
 		this.identityID = identityID;
@@ -43,12 +44,18 @@ public class Identity {
 	}
 
 	public String getBase32IdentityID() {
-		try {
-			return Base32.encode(Base64.decode(identityID)).toLowerCase(Locale.ROOT);
-		} catch (IllegalBase64Exception e) {
-			//Can't happen since we always get the id from WoT
-			throw new AssertionError();
+		//Computed on first use, a race only means it is computed more than once
+		String base32 = base32IdentityID;
+		if(base32 == null) {
+			try {
+				base32 = Base32.encode(Base64.decode(identityID)).toLowerCase(Locale.ROOT);
+			} catch (IllegalBase64Exception e) {
+				//Can't happen since we always get the id from WoT
+				throw new AssertionError();
+			}
+			base32IdentityID = base32;
 		}
+		return base32;
 	}
 
 	public String getRequestURI() {
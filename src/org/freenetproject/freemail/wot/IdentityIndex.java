@@ -0,0 +1,166 @@
+/*
+ * IdentityIndex.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.wot;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The identities known to an OwnIdentity, indexed by the ways {@link IdentityMatcher} matches
+ * recipient addresses against them. Full ids are looked up in hash maps, and partial addresses
+ * are looked up by binary search in the sorted lists of {@code nickname@id.freemail} addresses,
+ * so matching a recipient doesn't depend on the number of identities.
+ *
+ * Building the index means computing the addresses of every identity, so the last index of each
+ * truster is kept and reused for as long as WoTConnection returns the same identity lists, which
+ * it does when the lists are cached.
+ */
+class IdentityIndex {
+	private static final ConcurrentMap<String, IdentityIndex> indexes = new ConcurrentHashMap<String, IdentityIndex>();
+
+	/** The lists the index was built from, used to tell if it can be reused */
+	private final Set<Identity> trusted;
+	private final Set<Identity> untrusted;
+	private final List<OwnIdentity> own;
+
+	private final Map<String, Identity> byBase64Id = new HashMap<String, Identity>();
+	private final Map<String, Identity> byBase32Id = new HashMap<String, Identity>();
+	private final AddressList base64Addresses;
+	private final AddressList base32Addresses;
+
+	private IdentityIndex(Set<Identity> trusted, Set<Identity> untrusted, List<OwnIdentity> own) {
+		this.trusted = trusted;
+		this.untrusted = untrusted;
+		this.own = own;
+
+		Set<Identity> identities = new LinkedHashSet<Identity>();
+		identities.addAll(trusted);
+		identities.addAll(untrusted);
+		identities.addAll(own);
+
+		String[] base64 = new String[identities.size()];
+		String[] base32 = new String[identities.size()];
+		Identity[] all = new Identity[identities.size()];
+		int i = 0;
+		for(Identity identity : identities) {
+			String base32Id = identity.getBase32IdentityID();
+			byBase64Id.put(identity.getIdentityID(), identity);
+			byBase32Id.put(base32Id, identity);
+			base64[i] = identity.getNickname() + "@" + identity.getIdentityID() + ".freemail";
+			base32[i] = identity.getNickname() + "@" + base32Id + ".freemail";
+			all[i] = identity;
+			i++;
+		}
+		base64Addresses = new AddressList(base64, all);
+		base32Addresses = new AddressList(base32, all);
+	}
+
+	/**
+	 * Returns the index of the given identities, reusing the last one built for {@code truster}
+	 * if it was built from the same lists.
+	 */
+	static IdentityIndex forTruster(String truster, Set<Identity> trusted, Set<Identity> untrusted,
+			List<OwnIdentity> own) {
+		IdentityIndex index = indexes.get(truster);
+		if(index != null && index.trusted == trusted && index.untrusted == untrusted && index.own == own) {
+			return index;
+		}
+
+		index = new IdentityIndex(trusted, untrusted, own);
+		indexes.put(truster, index);
+		return index;
+	}
+
+	/**
+	 * Adds the identities with an id that is exactly {@code id} to {@code matches}.
+	 */
+	void findBase64Id(String id, Collection<Identity> matches) {
+		Identity identity = byBase64Id.get(id);
+		if(identity != null) {
+			matches.add(identity);
+		}
+	}
+
+	void findBase32Id(String id, Collection<Identity> matches) {
+		Identity identity = byBase32Id.get(id);
+		if(identity != null) {
+			matches.add(identity);
+		}
+	}
+
+	/**
+	 * Adds the identities whose {@code nickname@id.freemail} address starts with {@code prefix}
+	 * to {@code matches}.
+	 */
+	void findBase64Prefix(String prefix, Collection<Identity> matches) {
+		base64Addresses.findPrefix(prefix, matches);
+	}
+
+	void findBase32Prefix(String prefix, Collection<Identity> matches) {
+		base32Addresses.findPrefix(prefix, matches);
+	}
+
+	/**
+	 * Addresses sorted in ascending order, with the identity of each address.
+	 */
+	private static class AddressList {
+		private final String[] addresses;
+		private final Identity[] identities;
+
+		private AddressList(final String[] unsorted, Identity[] owners) {
+			Integer[] order = new Integer[unsorted.length];
+			for(int i = 0; i < order.length; i++) {
+				order[i] = Integer.valueOf(i);
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return unsorted[a.intValue()].compareTo(unsorted[b.intValue()]);
+				}
+			});
+
+			addresses = new String[unsorted.length];
+			identities = new Identity[unsorted.length];
+			for(int i = 0; i < order.length; i++) {
+				addresses[i] = unsorted[order[i].intValue()];
+				identities[i] = owners[order[i].intValue()];
+			}
+		}
+
+		private void findPrefix(String prefix, Collection<Identity> matches) {
+			//All the addresses that start with prefix sort right after where prefix would be
+			int i = Arrays.binarySearch(addresses, prefix);
+			if(i < 0) {
+				i = -i - 1;
+			}
+			for(; i < addresses.length && addresses[i].startsWith(prefix); i++) {
+				matches.add(identities[i]);
+			}
+		}
+	}
+}
@@ -22,7 +22,7 @@ package org.freenetproject.freemail.wot;
 
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -52,79 +52,56 @@ public class IdentityMatcher {
 			return allMatches;
 		}
 
-		Set<Identity> wotIdentities = new HashSet<Identity>();
-		wotIdentities.addAll(trustedIds);
-		wotIdentities.addAll(untrustedIds);
-		wotIdentities.addAll(ownIds);
-
-		for(Identity wotIdentity : wotIdentities) {
-			for(String recipient : recipients) {
-				if(matchIdentity(recipient, wotIdentity, methods)) {
-					allMatches.get(recipient).add(wotIdentity);
-				}
+		IdentityIndex index = IdentityIndex.forTruster(wotOwnIdentity, trustedIds, untrustedIds, ownIds);
+		for(String recipient : recipients) {
+			Set<Identity> matches = new LinkedHashSet<Identity>();
+			for(MatchMethod method : methods) {
+				findMatches(index, recipient, method, matches);
 			}
+			allMatches.get(recipient).addAll(matches);
 		}
 
 		return allMatches;
 	}
 
-	private boolean matchIdentity(String recipient, Identity wotIdentity, EnumSet<MatchMethod> methods) {
-		for(MatchMethod method : methods) {
-			switch(method) {
-			case PARTIAL_BASE32:
-				if(matchBase32Address(recipient, wotIdentity)) {
-					return true;
-				}
-				break;
-			case PARTIAL_BASE64:
-				if(matchBase64Address(recipient, wotIdentity)) {
-					return true;
-				}
-				break;
-			case FULL_BASE32:
-				if(matchFullAddress(recipient, wotIdentity.getBase32IdentityID())) {
-					return true;
-				}
-				break;
-			case FULL_BASE64:
-				if(matchFullAddress(recipient, wotIdentity.getIdentityID())) {
-					return true;
-				}
-				break;
-			default:
-				throw new AssertionError();
-			}
+	private void findMatches(IdentityIndex index, String recipient, MatchMethod method, Set<Identity> matches) {
+		switch(method) {
+		case PARTIAL_BASE32:
+			index.findBase32Prefix(lowerCaseDomain(recipient), matches);
+			break;
+		case PARTIAL_BASE64:
+			index.findBase64Prefix(recipient, matches);
+			break;
+		case FULL_BASE32:
+			index.findBase32Id(stripFullAddress(recipient), matches);
+			break;
+		case FULL_BASE64:
+			index.findBase64Id(stripFullAddress(recipient), matches);
+			break;
+		default:
+			throw new AssertionError();
 		}
-
-		return false;
-	}
-
-	private boolean matchBase64Address(String recipient, Identity identity) {
-		String identityAddress = identity.getNickname() + "@" + identity.getIdentityID() + ".freemail";
-		return identityAddress.startsWith(recipient);
 	}
 
-	private boolean matchBase32Address(String recipient, Identity identity) {
-		String base32Id = identity.getBase32IdentityID();
-		String identityAddress = identity.getNickname() + "@" + base32Id + ".freemail";
-
-		//Change the recipient address to lower case, but leave the nickname in the original case
+	/**
+	 * Changes the domain part of the address to lower case, but leaves the nickname in the
+	 * original case, since base32 ids are compared in lower case.
+	 */
+	private String lowerCaseDomain(String recipient) {
 		if(recipient.contains("@")) {
 			String recipientNickname = recipient.substring(0, recipient.indexOf("@"));
 			String recipientDomain = recipient.substring(recipient.indexOf("@") + 1);
 			recipient = recipientNickname + "@" + recipientDomain.toLowerCase(Locale.ROOT);
 		}
-
-		return identityAddress.startsWith(recipient);
+		return recipient;
 	}
 
 	/**
-	 * Matches addresses of the format [local part@]&lt;identityId&gt;[.freemail]
-	 * @param recipient the address to check
-	 * @param identityId the identity to check against
-	 * @return {@code true} if recipient matches identity
+	 * Returns the identity id of addresses of the format [local part@]&lt;identityId&gt;[.freemail]
+	 * @param recipient the address to strip
+	 * @return the identity id part of the address
 	 */
-	private boolean matchFullAddress(String recipient, String identityId) {
+	private String stripFullAddress(String recipient) {
 		//Remove the optional local part
 		if(recipient.contains("@")) {
 			recipient = recipient.substring(recipient.indexOf("@") + 1);
@@ -135,7 +112,7 @@ public class IdentityMatcher {
 			recipient = recipient.substring(0, recipient.length() - ".freemail".length());
 		}
 
-		return recipient.equals(identityId);
+		return recipient;
 	}
 
 	public enum MatchMethod {
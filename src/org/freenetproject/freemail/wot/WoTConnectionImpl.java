@@ -26,6 +26,12 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.SimpleFieldSetFactory;
@@ -38,21 +44,36 @@ import freenet.pluginmanager.PluginTalker;
 import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
 
+/**
+ * Sends requests to the WoT plugin. Each request is sent on a plugin connection with an
+ * identifier of its own, which WoT passes back with the reply, so any number of threads can have
+ * requests waiting for WoT at the same time, up to the limit given to the constructor.
+ */
 class WoTConnectionImpl implements WoTConnection {
 	private static final String WOT_PLUGIN_NAME = "plugins.WebOfTrust.WebOfTrust";
 	private static final String CONNECTION_IDENTIFIER = "Freemail";
 
-	private final PluginTalker pluginTalker;
+	/** How long to wait for a reply before the request is treated as failed */
+	private static final long REQUEST_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+	private final PluginRespirator pluginRespirator;
+	private final WoTConnectionTalker talker = new WoTConnectionTalker();
+
+	/** Limits the number of requests WoT is working on for us at the same time */
+	private final Semaphore requestSlots;
+
+	private final AtomicLong nextRequest = new AtomicLong();
 
-	private Message reply = null;
-	private final Object replyLock = new Object();
+	/** The requests that are waiting for a reply, by connection identifier */
+	private final ConcurrentMap<String, PendingRequest> pending = new ConcurrentHashMap<String, PendingRequest>();
 
-	WoTConnectionImpl(PluginRespirator pr) throws PluginNotFoundException {
-		pluginTalker = pr.getPluginTalker(new WoTConnectionTalker(), WOT_PLUGIN_NAME, CONNECTION_IDENTIFIER);
+	WoTConnectionImpl(PluginRespirator pr, int maxRequests) {
+		pluginRespirator = pr;
+		requestSlots = new Semaphore(Math.max(1, maxRequests), true);
 	}
 
 	@Override
-	public List<OwnIdentity> getAllOwnIdentities() {
+	public List<OwnIdentity> getAllOwnIdentities() throws PluginNotFoundException {
 		Message response = sendBlocking(
 				new Message(
 						new SimpleFieldSetFactory().put("Message", "GetOwnIdentities").create(),
@@ -88,16 +109,16 @@ class WoTConnectionImpl implements WoTConnection {
 	}
 
 	@Override
-	public Set<Identity> getAllTrustedIdentities(String trusterId) {
+	public Set<Identity> getAllTrustedIdentities(String trusterId) throws PluginNotFoundException {
 		return getAllIdentities(trusterId, TrustSelection.TRUSTED);
 	}
 
 	@Override
-	public Set<Identity> getAllUntrustedIdentities(String trusterId) {
+	public Set<Identity> getAllUntrustedIdentities(String trusterId) throws PluginNotFoundException {
 		return getAllIdentities(trusterId, TrustSelection.UNTRUSTED);
 	}
 
-	private Set<Identity> getAllIdentities(String trusterId, TrustSelection selection) {
+	private Set<Identity> getAllIdentities(String trusterId, TrustSelection selection) throws PluginNotFoundException {
 		if(trusterId == null) {
 			throw new NullPointerException("Parameter trusterId must not be null");
 		}
@@ -146,7 +167,7 @@ class WoTConnectionImpl implements WoTConnection {
 	}
 
 	@Override
-	public Identity getIdentity(String identity, String trusterId) {
+	public Identity getIdentity(String identity, String trusterId) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -176,7 +197,7 @@ class WoTConnectionImpl implements WoTConnection {
 	}
 
 	@Override
-	public boolean setProperty(String identity, String key, String value) {
+	public boolean setProperty(String identity, String key, String value) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -201,7 +222,7 @@ class WoTConnectionImpl implements WoTConnection {
 	}
 
 	@Override
-	public String getProperty(String identity, String key) {
+	public String getProperty(String identity, String key) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -234,7 +255,7 @@ class WoTConnectionImpl implements WoTConnection {
 	}
 
 	@Override
-	public boolean setContext(String identity, String context) {
+	public boolean setContext(String identity, String context) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -254,14 +275,13 @@ class WoTConnectionImpl implements WoTConnection {
 		return "ContextAdded".equals(response.sfs.get("Message"));
 	}
 
-	private Message sendBlocking(final Message msg, String expectedMessageType) {
+	private Message sendBlocking(final Message msg, String expectedMessageType) throws PluginNotFoundException {
 		return sendBlocking(msg, Collections.singleton(expectedMessageType));
 	}
 
-	private Message sendBlocking(final Message msg, Set<String> expectedMessageTypes) {
+	private Message sendBlocking(final Message msg, Set<String> expectedMessageTypes) throws PluginNotFoundException {
 		assert (msg != null);
 
-		//Synchronize on this so only one message can be sent at a time
 		//Log the contents of the message before sending (debug because of private keys etc)
 		Iterator<String> msgContentIterator = msg.sfs.keyIterator();
 		while(msgContentIterator.hasNext()) {
@@ -269,30 +289,28 @@ class WoTConnectionImpl implements WoTConnection {
 			Logger.debug(this, key + "=" + msg.sfs.get(key));
 		}
 
-		//Synchronize on pluginTalker so only one message can be sent at a time
 		final Message retValue;
 		Timer requestTimer;
-		synchronized(this) {
-			synchronized(replyLock) {
+		requestSlots.acquireUninterruptibly();
+		try {
+			String identifier = CONNECTION_IDENTIFIER + "-" + nextRequest.incrementAndGet();
+			PendingRequest request = new PendingRequest();
+			pending.put(identifier, request);
+			try {
 				requestTimer = Timer.start();
-
-				assert (reply == null) : "Reply was " + reply;
-				reply = null;
-
+				PluginTalker pluginTalker = pluginRespirator.getPluginTalker(talker, WOT_PLUGIN_NAME, identifier);
 				pluginTalker.send(msg.sfs, msg.data);
-
-				while(reply == null) {
-					try {
-						replyLock.wait();
-					} catch (InterruptedException e) {
-						//Just check again
-					}
-				}
-
-				retValue = reply;
-				reply = null;
-
+				retValue = request.await(REQUEST_TIMEOUT);
+			} finally {
+				pending.remove(identifier);
 			}
+		} finally {
+			requestSlots.release();
+		}
+
+		if(retValue == null) {
+			Logger.error(this, "Timed out waiting for WoT to reply to " + msg.sfs.get("Message"));
+			return null;
 		}
 		requestTimer.log(this, "Time spent waiting for WoT request " + msg.sfs.get("Message") + " (reply was "
 				+ retValue.sfs.get("Message") + ")");
@@ -333,15 +351,44 @@ class WoTConnectionImpl implements WoTConnection {
 		}
 	}
 
+	private static class PendingRequest {
+		private final CountDownLatch replied = new CountDownLatch(1);
+		private volatile Message reply = null;
+
+		private void setReply(Message reply) {
+			this.reply = reply;
+			replied.countDown();
+		}
+
+		/**
+		 * Waits for the reply for at most {@code timeout} milliseconds, returning {@code null} if
+		 * none arrived.
+		 */
+		private Message await(long timeout) {
+			long deadline = System.currentTimeMillis() + timeout;
+			while(true) {
+				long remaining = deadline - System.currentTimeMillis();
+				try {
+					if(remaining <= 0 || replied.await(remaining, TimeUnit.MILLISECONDS)) {
+						return reply;
+					}
+				} catch (InterruptedException e) {
+					//Just check again
+				}
+			}
+		}
+	}
+
 	private class WoTConnectionTalker implements FredPluginTalker {
 		@Override
-		public void onReply(String pluginname, String indentifier, SimpleFieldSet params, Bucket data) {
-			synchronized(replyLock) {
-				assert reply == null : "Reply should be null, but was " + reply;
-
-				reply = new Message(params, data);
-				replyLock.notify();
+		public void onReply(String pluginname, String identifier, SimpleFieldSet params, Bucket data) {
+			PendingRequest request = pending.get(identifier);
+			if(request == null) {
+				Logger.error(this, "Got reply from WoT for unknown request " + identifier
+						+ " (" + params.get("Message") + "), it probably timed out");
+				return;
 			}
+			request.setReply(new Message(params, data));
 		}
 	}
 
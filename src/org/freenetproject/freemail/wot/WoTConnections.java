@@ -20,10 +20,22 @@
 
 package org.freenetproject.freemail.wot;
 
+import java.util.concurrent.ScheduledExecutorService;
+
 import freenet.pluginmanager.PluginRespirator;
 
 public class WoTConnections {
-	public static WoTConnection wotConnection(PluginRespirator pr) {
-		return new ConcurrentWoTConnection(pr);
+	/**
+	 * Returns a connection that sends at most {@code maxRequests} requests to WoT at the same
+	 * time, and that keeps the identity lists for {@code cacheTime} milliseconds, refreshing them
+	 * using {@code executor}. If {@code cacheTime} is 0 nothing is kept.
+	 */
+	public static WoTConnection wotConnection(PluginRespirator pr, int maxRequests,
+			ScheduledExecutorService executor, long cacheTime) {
+		WoTConnection connection = new WoTConnectionImpl(pr, maxRequests);
+		if(cacheTime <= 0) {
+			return connection;
+		}
+		return new CachingWoTConnection(connection, executor, cacheTime);
 	}
 }
@@ -0,0 +1,98 @@
+/*
+ * FakeFCPNode.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package fakes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Listens on a local port and answers ClientHello on every connection, ignoring everything else
+ * that is sent to it.
+ */
+public class FakeFCPNode {
+	private final ServerSocket serverSocket;
+	private final Thread acceptor;
+	private final List<Socket> connections = new ArrayList<Socket>();
+
+	public FakeFCPNode() throws IOException {
+		serverSocket = new ServerSocket(0);
+		acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						final Socket s = serverSocket.accept();
+						synchronized(connections) {
+							connections.add(s);
+						}
+						new Thread() {
+							@Override
+							public void run() {
+								answerHello(s);
+							}
+						}.start();
+					}
+				} catch(IOException e) {
+					//Server socket closed
+				}
+			}
+		};
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stops listening and closes all the connections to the node.
+	 */
+	public void close() throws IOException, InterruptedException {
+		serverSocket.close();
+		acceptor.join();
+		synchronized(connections) {
+			for(Socket s : connections) {
+				s.close();
+			}
+		}
+	}
+
+	private static void answerHello(Socket s) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+			String line;
+			while((line = reader.readLine()) != null && !line.equals("EndMessage")) {
+				//Skip the rest of ClientHello
+			}
+			s.getOutputStream().write("NodeHello\r\nEndMessage\r\n".getBytes("UTF-8"));
+			s.getOutputStream().flush();
+			while(reader.readLine() != null) {
+				//Ignore requests
+			}
+		} catch(IOException e) {
+			//Connection closed
+		}
+	}
+}
@@ -19,15 +19,15 @@
 
 package fakes;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -41,6 +41,11 @@ import org.freenetproject.freemail.fcp.HighLevelFCPClient;
 import org.freenetproject.freemail.fcp.SSKKeyPair;
 import org.freenetproject.freemail.utils.Logger;
 
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileBucket;
+
 public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	private final Map<String, File> fetchResults;
 
@@ -96,7 +101,7 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	}
 
 	@Override
-	public synchronized File fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException, InterruptedException {
+	public synchronized Bucket fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException, InterruptedException {
 		Logger.debug(this, "fetch(key=" + key + ")");
 
 		if(fetchResults == null) {
@@ -113,7 +118,7 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 			throw e;
 		}
 
-		File result = fetchResults.get(key);
+		Bucket result = new FileBucket(fetchResults.get(key), true, false, false, false);
 
 		fetches.add(new Fetch(key, result));
 		notifyAll();
@@ -122,6 +127,43 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 		return result;
 	}
 
+	@Override
+	public Future<Bucket> fetchAsync(final String key) throws ConnectionTerminatedException, InterruptedException {
+		//Fetches complete immediately, the result is recorded when the fetch is started
+		FutureTask<Bucket> task = new FutureTask<Bucket>(new Callable<Bucket>() {
+			@Override
+			public Bucket call() throws Exception {
+				return fetch(key);
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	@Override
+	public Future<Bucket> watchAsync(String key, Runnable listener) throws ConnectionTerminatedException,
+	                                                                     InterruptedException {
+		Logger.debug(this, "watchAsync(key=" + key + ")");
+
+		synchronized(this) {
+			if(fetchResults == null || !fetchResults.containsKey(key)) {
+				//Never completes, like a subscription to a slot that stays empty
+				return new FutureTask<Bucket>(new Callable<Bucket>() {
+					@Override
+					public Bucket call() {
+						throw new AssertionError();
+					}
+				});
+			}
+		}
+
+		Future<Bucket> result = fetchAsync(key);
+		if(listener != null) {
+			listener.run();
+		}
+		return result;
+	}
+
 	@Override
 	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
 		Logger.debug(this, "makeSSK()");
@@ -133,9 +175,9 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	}
 
 	@Override
-	public synchronized FCPPutFailedException put(InputStream data, String key) throws FCPBadFileException,
-	                                                                      ConnectionTerminatedException,
-	                                                                      FCPException, InterruptedException {
+	public synchronized FCPPutFailedException put(Bucket data, String key) throws FCPBadFileException,
+	                                                                 ConnectionTerminatedException,
+	                                                                 FCPException, InterruptedException {
 		Logger.debug(this, "put(key=" + key + ")");
 
 		inserts.add(new Insert(key, data));
@@ -163,7 +205,7 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 		                            + ", minslot=" + minslot
 		                            + ", suffix=" + suffix + ")");
 		try {
-			put(new ByteArrayInputStream(data), basekey + "-" + minslot);
+			put(new ArrayBucket(data), basekey + "-" + minslot);
 		} catch (FCPBadFileException e) {
 			throw new AssertionError();
 		} catch (FCPException e) {
@@ -172,27 +214,15 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 		return minslot;
 	}
 
-	@Override
-	public void requestStatus(FCPMessage msg) {
-		Logger.debug(this, "requestStatus(msg=" + msg + ")");
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public void requestFinished(FCPMessage msg) {
-		Logger.debug(this, "requestFinished(msg=" + msg + ")");
-		throw new UnsupportedOperationException();
-	}
-
 	private abstract class KeyEvent {
 		public String key;
 	}
 
 	public class Fetch extends KeyEvent {
-		public final File result;
+		public final Bucket result;
 		public final Exception exception;
 
-		public Fetch(String key, File result) {
+		public Fetch(String key, Bucket result) {
 			this.key = key;
 			this.result = result;
 			this.exception = null;
@@ -213,23 +243,14 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	public class Insert extends KeyEvent {
 		public final byte[] data;
 
-		public Insert(String key, InputStream data) {
+		public Insert(String key, Bucket data) {
 			this.key = key;
 
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			byte[] buffer = new byte[1024];
-			while(true) {
-				try {
-					int read = data.read(buffer, 0, buffer.length);
-					if(read < 0) {
-						break;
-					}
-					baos.write(buffer, 0, read);
-				} catch (IOException e) {
-					throw new AssertionError();
-				}
+			try {
+				this.data = BucketTools.toByteArray(data);
+			} catch (IOException e) {
+				throw new AssertionError();
 			}
-			this.data = baos.toByteArray();
 		}
 
 		@Override
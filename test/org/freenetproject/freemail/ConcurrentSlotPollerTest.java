@@ -0,0 +1,180 @@
+/*
+ * ConcurrentSlotPollerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+import org.freenetproject.freemail.fcp.FCPException;
+import org.freenetproject.freemail.fcp.FCPFetchException;
+import org.freenetproject.freemail.fcp.FCPMessage;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+
+public class ConcurrentSlotPollerTest {
+	/*
+	 * Slots 2 and 4 have data, so using them extends the window and slots 5 to 8 have to be
+	 * polled in a second round.
+	 */
+	@Test
+	public void usedSlotsExtendTheWindow() throws Exception {
+		LazyClient client = new LazyClient("key-2", "key-4");
+		TestSequence seq = new TestSequence("1");
+
+		new ConcurrentSlotPoller(client, new Semaphore(10)).poll(Collections.singletonList(seq));
+
+		assertEquals(Arrays.asList("2", "4"), seq.fetched);
+		assertEquals(Arrays.asList("key-1", "key-2", "key-3", "key-4", "key-5", "key-6", "key-7", "key-8"), client.started);
+		assertEquals("1=", seq.saved.substring(0, 2));
+		assertTrue(seq.saved.endsWith(",5"));
+	}
+
+	@Test
+	public void fetchesAreLimitedByPermits() throws Exception {
+		LazyClient client = new LazyClient();
+		List<TestSequence> sequences = new ArrayList<TestSequence>();
+		for(int i = 0; i < 5; i++) {
+			sequences.add(new TestSequence("1"));
+		}
+
+		Semaphore permits = new Semaphore(2);
+		new ConcurrentSlotPoller(client, permits).poll(sequences);
+
+		assertEquals(20, client.started.size());
+		assertEquals(2, client.maxOutstanding);
+		assertEquals(2, permits.availablePermits());
+	}
+
+	@Test
+	public void stoppedSequenceReleasesPermits() throws Exception {
+		LazyClient client = new LazyClient();
+		TestSequence seq = new TestSequence("1");
+		seq.stopOnFailure = true;
+
+		Semaphore permits = new Semaphore(10);
+		new ConcurrentSlotPoller(client, permits).poll(Collections.singletonList(seq));
+
+		assertEquals(Arrays.asList("1"), seq.failed);
+		assertEquals(10, permits.availablePermits());
+	}
+
+	/**
+	 * Client where each fetch runs when its result is asked for, so the number of fetches in
+	 * progress is the number of futures that haven't been waited for.
+	 */
+	private static class LazyClient extends HighLevelFCPClient {
+		private final Set<String> found;
+		private final List<String> started = new ArrayList<String>();
+		private int outstanding = 0;
+		private int maxOutstanding = 0;
+
+		private LazyClient(String... found) {
+			this.found = new HashSet<String>(Arrays.asList(found));
+		}
+
+		@Override
+		public Future<Bucket> fetchAsync(final String key) {
+			started.add(key);
+			outstanding++;
+			maxOutstanding = Math.max(maxOutstanding, outstanding);
+
+			return new FutureTask<Bucket>(new Callable<Bucket>() {
+				@Override
+				public Bucket call() throws Exception {
+					if(!found.contains(key)) {
+						throw new FCPFetchException(new FCPMessage(0, "GetFailed"));
+					}
+					return new ArrayBucket(key.getBytes("UTF-8"));
+				}
+			}) {
+				@Override
+				public Bucket get() throws InterruptedException, ExecutionException {
+					if(!isDone()) {
+						outstanding--;
+						run();
+					}
+					return super.get();
+				}
+
+				@Override
+				public boolean cancel(boolean mayInterruptIfRunning) {
+					if(!isDone()) {
+						outstanding--;
+					}
+					return super.cancel(mayInterruptIfRunning);
+				}
+			};
+		}
+	}
+
+	private static class TestSequence extends ConcurrentSlotPoller.Sequence implements SlotSaveCallback {
+		private final List<String> fetched = new ArrayList<String>();
+		private final List<String> failed = new ArrayList<String>();
+		private String saved;
+		private boolean stopOnFailure = false;
+
+		private TestSequence(String slots) {
+			this.saved = slots;
+		}
+
+		@Override
+		protected SlotManager createSlotManager() {
+			return new NaturalSlotManager(this, null, saved);
+		}
+
+		@Override
+		protected String getKey(String slot) {
+			return "key-" + slot;
+		}
+
+		@Override
+		protected boolean slotFetched(String slot, Bucket result, SlotManager slotManager) {
+			fetched.add(slot);
+			slotManager.slotUsed();
+			result.free();
+			return true;
+		}
+
+		@Override
+		protected boolean slotFailed(String slot, FCPException e, SlotManager slotManager) {
+			failed.add(slot);
+			return !stopOnFailure;
+		}
+
+		@Override
+		public void saveSlots(String slots, Object userdata) {
+			saved = slots;
+		}
+	}
+}
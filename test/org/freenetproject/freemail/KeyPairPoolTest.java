@@ -0,0 +1,123 @@
+/*
+ * KeyPairPoolTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.freenetproject.freemail.config.Configurator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class KeyPairPoolTest {
+	private static final String POOL_DIR = "keypool_dir";
+
+	private File poolDir;
+	private KeyPairPool pool;
+
+	@Before
+	public void before() {
+		poolDir = new File(POOL_DIR);
+		if(poolDir.exists()) {
+			System.out.println("WARNING: Key pool directory exists, deleting");
+			Utils.delete(poolDir);
+		}
+
+		//Keep the pool empty so the tests don't wait for real key pairs
+		pool = new KeyPairPool(poolDir);
+		pool.setConfigProp(Configurator.KEYPOOL_SIZE, "0");
+		pool.start();
+	}
+
+	@After
+	public void after() {
+		pool.terminate();
+		Utils.delete(poolDir);
+	}
+
+	@Test
+	public void storedKeyPairIsTaken() {
+		BigInteger modulus = modulus();
+		assertTrue(pool.store(keyPair(modulus, 3, 667)));
+		assertEquals(1, poolDir.listFiles().length);
+
+		AsymmetricCipherKeyPair taken = pool.take();
+		RSAKeyParameters pub = (RSAKeyParameters)taken.getPublic();
+		RSAKeyParameters priv = (RSAKeyParameters)taken.getPrivate();
+		assertEquals(modulus, pub.getModulus());
+		assertEquals(BigInteger.valueOf(3), pub.getExponent());
+		assertEquals(modulus, priv.getModulus());
+		assertEquals(BigInteger.valueOf(667), priv.getExponent());
+		assertTrue(priv.isPrivate());
+
+		assertEquals(0, poolDir.listFiles().length);
+	}
+
+	@Test
+	public void corruptKeyPairIsSkipped() throws IOException {
+		FileOutputStream os = new FileOutputStream(new File(poolDir, "corrupt.key"));
+		os.write("not a key\n".getBytes("UTF-8"));
+		os.close();
+		BigInteger modulus = modulus();
+		assertTrue(pool.store(keyPair(modulus, 5, 1193)));
+
+		AsymmetricCipherKeyPair taken = pool.take();
+		assertEquals(modulus, ((RSAKeyParameters)taken.getPublic()).getModulus());
+
+		//The corrupt file is only removed if it was read before the valid one
+		for(File file : poolDir.listFiles()) {
+			assertEquals("corrupt.key", file.getName());
+		}
+	}
+
+	@Test
+	public void partialKeyPairsAreRemovedOnStart() throws IOException {
+		pool.terminate();
+		new FileOutputStream(new File(poolDir, "partial.tmp")).close();
+		new FileOutputStream(new File(poolDir, "taken.key.claimed")).close();
+
+		pool = new KeyPairPool(poolDir);
+		pool.setConfigProp(Configurator.KEYPOOL_SIZE, "0");
+		pool.start();
+		assertEquals(0, poolDir.listFiles().length);
+	}
+
+	/** Returns a modulus that is quick to make, but that passes the checks of RSAKeyParameters */
+	private static BigInteger modulus() {
+		Random random = new Random();
+		return BigInteger.probablePrime(256, random).multiply(BigInteger.probablePrime(256, random));
+	}
+
+	private static AsymmetricCipherKeyPair keyPair(BigInteger modulus, long pubExponent, long privExponent) {
+		return new AsymmetricCipherKeyPair(
+				new RSAKeyParameters(false, modulus, BigInteger.valueOf(pubExponent)),
+				new RSAKeyParameters(true, modulus, BigInteger.valueOf(privExponent)));
+	}
+}
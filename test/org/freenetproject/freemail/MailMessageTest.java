@@ -21,10 +21,13 @@ package org.freenetproject.freemail;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -129,6 +132,94 @@ public class MailMessageTest {
 		assertEquals(expected, msg.getFirstHeader("References"));
 	}
 
+	@Test
+	public void headersAreSharedBetweenInstances() throws IOException {
+		File messageFile = new File(msgDir, "1");
+		PrintWriter pw = new PrintWriter(messageFile);
+		pw.print("Subject: Cached\r\n");
+		pw.print("\r\n");
+		pw.print("Body\r\n");
+		pw.close();
+
+		MailMessage first = new MailMessage(messageFile, 0);
+		first.readHeaders();
+
+		long hits = HeaderCache.getHits();
+		MailMessage second = new MailMessage(messageFile, 0);
+		second.readHeaders();
+		assertEquals(hits + 1, HeaderCache.getHits());
+		assertEquals("Cached", second.getFirstHeader("Subject"));
+
+		//Changing one instance mustn't change the cached copy
+		second.addHeader("X-Test", "value");
+		MailMessage third = new MailMessage(messageFile, 0);
+		third.readHeaders();
+		assertNull(third.getFirstHeader("X-Test"));
+		assertEquals("value", second.getFirstHeader("X-Test"));
+	}
+
+	@Test
+	public void rewrittenMessageIsParsedAgain() throws IOException {
+		File messageFile = new File(msgDir, "2");
+		MailMessage msg = new MailMessage(messageFile, 0);
+		PrintStream ps = msg.getRawStream();
+		ps.print("Subject: First\r\n\r\n");
+		ps.close();
+		msg.commit();
+		new MailMessage(messageFile, 0).readHeaders();
+
+		ps = msg.getRawStream();
+		ps.print("Subject: Other\r\n\r\n");
+		ps.close();
+		msg.commit();
+
+		MailMessage reread = new MailMessage(messageFile, 0);
+		reread.readHeaders();
+		assertEquals("Other", reread.getFirstHeader("Subject"));
+	}
+
+	@Test
+	public void messageIsStoredWithCRLF() throws IOException {
+		File messageFile = new File(msgDir, "0");
+		messageFile.createNewFile();
+
+		MailMessage msg = new MailMessage(messageFile, 0);
+		PrintStream ps = msg.getRawStream();
+		ps.print("Subject: Test\n\rLine\r\nLast line");
+		ps.close();
+		msg.commit();
+
+		assertEquals("Subject: Test\r\n\r\nLine\r\nLast line\r\n", read(msg, 0, Long.MAX_VALUE));
+		assertEquals(messageFile.length(), msg.getSize());
+	}
+
+	@Test
+	public void transferRangeOfOldMessage() throws IOException {
+		//Older versions stored messages with \n line endings
+		File messageFile = new File(msgDir, "0");
+		messageFile.createNewFile();
+
+		PrintWriter pw = new PrintWriter(messageFile);
+		pw.print("To: local@domain\n");
+		pw.print("\n");
+		pw.print("Body");
+		pw.close();
+
+		MailMessage msg = new MailMessage(messageFile, 0);
+		assertEquals(26, msg.getSize());
+		assertEquals("To: local@domain\r\n\r\nBody\r\n", read(msg, 0, 26));
+		assertEquals("\n\r\nBo", read(msg, 17, 5));
+		assertEquals("y\r\n", read(msg, 23, 100));
+		assertEquals("", read(msg, 30, 10));
+	}
+
+	private static String read(MailMessage msg, long position, long count) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long written = msg.transferTo(position, count, Channels.newChannel(out));
+		assertEquals(out.size(), written);
+		return out.toString("UTF-8");
+	}
+
 	@Test
 	public void encodeDecodeMultipleStrings() throws UnsupportedEncodingException {
 		List<String> input = new LinkedList<String>();
@@ -22,12 +22,16 @@ package org.freenetproject.freemail;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.SortedMap;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import org.freenetproject.freemail.FreemailAccount;
+import org.freenetproject.freemail.MailMessage;
 import org.freenetproject.freemail.MessageBank;
 
 import data.TestId1Data;
@@ -81,4 +85,159 @@ public class MessageBankTest {
 		//This would fail because .subsubfolder couldn't be deleted
 		assertTrue(subFolder.delete());
 	}
+
+	@Test
+	public void indexTracksChanges() {
+		for(int i = 0; i < 3; i++) {
+			assertNotNull(rootMessageBank.createMessage());
+		}
+
+		SortedMap<Integer, MailMessage> messages = rootMessageBank.listMessages();
+		assertEquals(3, messages.size());
+
+		messages.get(2).delete();
+		MailMessage third = messages.get(3);
+		third.flags.setSeen();
+		third.storeFlags();
+
+		//The same folder through a different MessageBank must see the same changes
+		MessageBank inbox = new MessageBank(new FreemailAccount(TestId1Data.Identity.ID, accountDir, null, null));
+		messages = inbox.listMessages();
+		assertEquals(2, messages.size());
+		assertTrue(messages.containsKey(1));
+		assertTrue(messages.get(3).flags.isSeen());
+		assertEquals(2, messages.get(3).getSeqNum());
+	}
+
+	@Test
+	public void rescanWhenIndexIsMissing() {
+		for(int i = 0; i < 3; i++) {
+			assertNotNull(rootMessageBank.createMessage());
+		}
+		rootMessageBank.listMessages().get(1).delete();
+
+		File inboxDir = new File(accountDir, "inbox");
+		assertTrue(new File(inboxDir, ".index").delete());
+
+		SortedMap<Integer, MailMessage> messages = rootMessageBank.listMessages();
+		assertEquals(2, messages.size());
+		assertTrue(messages.containsKey(2));
+		assertTrue(messages.containsKey(3));
+	}
+
+	@Test
+	public void rescanAfterExternalChange() throws IOException {
+		assertNotNull(rootMessageBank.createMessage());
+		assertEquals(1, rootMessageBank.listMessages().size());
+
+		File inboxDir = new File(accountDir, "inbox");
+		assertTrue(new File(inboxDir, "17,S").createNewFile());
+
+		//Make sure the change is visible even on file systems with coarse timestamps
+		assertTrue(inboxDir.setLastModified(inboxDir.lastModified() + 2000));
+
+		SortedMap<Integer, MailMessage> messages = rootMessageBank.listMessages();
+		assertEquals(2, messages.size());
+		assertTrue(messages.get(17).flags.isSeen());
+	}
+
+	@Test
+	public void ownChangesDontCauseRescan() throws IOException, InterruptedException {
+		assertNotNull(rootMessageBank.createMessage());
+		assertEquals(1, rootMessageBank.listMessages().size());
+
+		//Add a file without changing the folder timestamp, so it is only seen by a rescan
+		File inboxDir = new File(accountDir, "inbox");
+		long lastModified = inboxDir.lastModified();
+		assertTrue(new File(inboxDir, "42").createNewFile());
+		assertTrue(inboxDir.setLastModified(lastModified));
+
+		//Make sure the changes below give the folder a new timestamp
+		Thread.sleep(50);
+
+		MailMessage msg = rootMessageBank.createMessage();
+		msg.flags.setSeen();
+		msg.storeFlags();
+		rootMessageBank.listMessages().get(1).delete();
+
+		SortedMap<Integer, MailMessage> messages = rootMessageBank.listMessages();
+		assertEquals(1, messages.size());
+		assertTrue(messages.get(2).flags.isSeen());
+	}
+
+	@Test
+	public void externalChangeIsSeenAfterFolderChange() throws IOException {
+		assertNotNull(rootMessageBank.createMessage());
+		assertEquals(1, rootMessageBank.listMessages().size());
+
+		File inboxDir = new File(accountDir, "inbox");
+		assertTrue(new File(inboxDir, "42").createNewFile());
+		assertTrue(inboxDir.setLastModified(inboxDir.lastModified() + 2000));
+
+		//Creating the subfolder must not hide the file added before it
+		assertNotNull(rootMessageBank.makeSubFolder("sub"));
+		assertTrue(rootMessageBank.listMessages().containsKey(42));
+	}
+
+	@Test
+	public void newKeywordDoesntCauseRescan() throws IOException, InterruptedException {
+		MailMessage msg = rootMessageBank.createMessage();
+		assertEquals(1, rootMessageBank.listMessages().size());
+
+		File inboxDir = new File(accountDir, "inbox");
+		long lastModified = inboxDir.lastModified();
+		assertTrue(new File(inboxDir, "42").createNewFile());
+		assertTrue(inboxDir.setLastModified(lastModified));
+		Thread.sleep(50);
+
+		//The first keyword creates the keywords file in the folder
+		msg.flags.set("Work", true);
+		assertEquals(1, rootMessageBank.listMessages().size());
+	}
+
+	@Test
+	public void sizeIsKeptInIndex() throws IOException {
+		MailMessage msg = rootMessageBank.createMessage();
+		PrintStream ps = msg.getRawStream();
+		ps.print("Subject: Test\nLine\r\nLast line");
+		ps.close();
+		msg.commit();
+
+		//Each line is sent with \r\n, including the unterminated last one
+		long expected = "Subject: Test\r\nLine\r\nLast line\r\n".length();
+		assertEquals(expected, msg.getSize());
+
+		//A new MessageBank must get the size from the index
+		MessageBank inbox = new MessageBank(new FreemailAccount(TestId1Data.Identity.ID, accountDir, null, null));
+		assertEquals(expected, inbox.listMessages().get(1).getSize());
+
+		//Without the index the size is computed from the file
+		assertTrue(new File(new File(accountDir, "inbox"), ".index").delete());
+		assertEquals(expected, rootMessageBank.listMessages().get(1).getSize());
+	}
+
+	@Test
+	public void listMessagesInRanges() {
+		for(int i = 0; i < 6; i++) {
+			assertNotNull(rootMessageBank.createMessage());
+		}
+		rootMessageBank.listMessages().get(3).delete();
+
+		//By uid, the deleted uid 3 is skipped and the sequence numbers follow the folder
+		SortedMap<Integer, MailMessage> messages = rootMessageBank.listMessages(
+				new int[] {2, 5}, new int[] {4, Integer.MAX_VALUE}, true);
+		assertEquals(4, messages.size());
+		assertEquals(2, messages.get(2).getSeqNum());
+		assertEquals(3, messages.get(4).getSeqNum());
+		assertEquals(4, messages.get(5).getSeqNum());
+		assertEquals(5, messages.get(6).getSeqNum());
+
+		//By sequence number, numbers past the end are ignored
+		messages = rootMessageBank.listMessages(new int[] {1, 3}, new int[] {1, 7}, false);
+		assertEquals(4, messages.size());
+		assertEquals(1, messages.get(1).getSeqNum());
+		assertEquals(3, messages.get(4).getSeqNum());
+		assertEquals(5, messages.get(6).getSeqNum());
+		assertFalse(messages.containsKey(2));
+	}
 }
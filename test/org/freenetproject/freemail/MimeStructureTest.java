@@ -0,0 +1,181 @@
+/*
+ * MimeStructureTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class MimeStructureTest {
+	private static final String MESSAGE_DIR = "msg_dir";
+
+	private static final String MULTIPART_MESSAGE =
+			"Subject: Test\r\n"
+			+ "Content-Type: multipart/mixed;\r\n"
+			+ " boundary=\"outer\"\r\n"
+			+ "\r\n"
+			+ "Preamble\r\n"
+			+ "--outer\r\n"
+			+ "\r\n"
+			+ "First part\r\n"
+			+ "--outer\r\n"
+			+ "Content-Type: multipart/alternative; boundary=inner\r\n"
+			+ "\r\n"
+			+ "--inner\r\n"
+			+ "Content-Type: text/html; charset=UTF-8\r\n"
+			+ "\r\n"
+			+ "<p>Second</p>\r\n"
+			+ "--inner--\r\n"
+			+ "--outer\r\n"
+			+ "Content-Type: message/rfc822\r\n"
+			+ "Content-Disposition: attachment; filename=\"forwarded.eml\"\r\n"
+			+ "\r\n"
+			+ "Subject: Enclosed\r\n"
+			+ "\r\n"
+			+ "Enclosed body\r\n"
+			+ "--outer--\r\n"
+			+ "Epilogue\r\n";
+
+	private File msgDir = null;
+
+	@Before
+	public void before() {
+		msgDir = new File(MESSAGE_DIR);
+		if(msgDir.exists()) {
+			System.out.println("WARNING: Message directory exists, deleting");
+			Utils.delete(msgDir);
+		}
+
+		if(!msgDir.mkdir()) {
+			System.out.println("WARNING: Could not create message directory, tests will probably fail");
+		}
+	}
+
+	@After
+	public void after() {
+		Utils.delete(msgDir);
+	}
+
+	@Test
+	public void singlePartMessage() throws IOException {
+		String message = "Subject: Test\r\n\r\nLine 1\r\nLine 2\r\n";
+		MimeStructure structure = parse(message);
+
+		MimeStructure.Part root = structure.getRoot();
+		assertEquals("text", root.getType());
+		assertEquals("plain", root.getSubtype());
+		assertEquals("us-ascii", root.getParams().get("charset"));
+		assertEquals("7BIT", root.getEncoding());
+		assertEquals(16, root.getSize());
+		assertEquals(2, root.getLines());
+
+		assertEquals("Subject: Test\r\n\r\n", section(message, structure, "HEADER"));
+		assertEquals("Line 1\r\nLine 2\r\n", section(message, structure, "TEXT"));
+		assertEquals("Line 1\r\nLine 2\r\n", section(message, structure, "1"));
+		assertEquals(message, section(message, structure, ""));
+		assertNull(structure.getSectionRange("2"));
+	}
+
+	@Test
+	public void multipartMessage() throws IOException {
+		MimeStructure structure = parse(MULTIPART_MESSAGE);
+
+		MimeStructure.Part root = structure.getRoot();
+		assertTrue(root.isMultipart());
+		assertEquals("mixed", root.getSubtype());
+		assertEquals("outer", root.getParams().get("boundary"));
+
+		List<MimeStructure.Part> parts = root.getChildren();
+		assertEquals(3, parts.size());
+		assertEquals("plain", parts.get(0).getSubtype());
+		assertEquals(1, parts.get(0).getLines());
+		assertEquals("alternative", parts.get(1).getSubtype());
+		assertEquals("html", parts.get(1).getChildren().get(0).getSubtype());
+		assertEquals("UTF-8", parts.get(1).getChildren().get(0).getParams().get("charset"));
+		assertEquals("attachment", parts.get(2).getDisposition());
+		assertEquals("forwarded.eml", parts.get(2).getDispositionParams().get("filename"));
+
+		assertEquals("First part", section(MULTIPART_MESSAGE, structure, "1"));
+		assertEquals("<p>Second</p>", section(MULTIPART_MESSAGE, structure, "2.1"));
+		assertEquals("Content-Type: text/html; charset=UTF-8\r\n\r\n",
+				section(MULTIPART_MESSAGE, structure, "2.1.MIME"));
+		assertEquals("Subject: Enclosed\r\n\r\n", section(MULTIPART_MESSAGE, structure, "3.HEADER"));
+		assertEquals("Enclosed body", section(MULTIPART_MESSAGE, structure, "3.TEXT"));
+		assertEquals("Enclosed body", section(MULTIPART_MESSAGE, structure, "3.1"));
+		assertNull(structure.getSectionRange("1.HEADER"));
+		assertNull(structure.getSectionRange("4"));
+	}
+
+	@Test
+	public void structureIsStoredWithMessage() throws IOException {
+		File messageFile = new File(msgDir, "1");
+		MailMessage msg = new MailMessage(messageFile, 1);
+		PrintStream ps = msg.getRawStream();
+		//Written with LF line endings, which are stored as CRLF
+		ps.print(MULTIPART_MESSAGE.replace("\r\n", "\n"));
+		msg.commit();
+
+		MimeStructure stored = MimeStructure.read(messageFile, msg.getSize());
+		assertNotNull(stored);
+		assertEquals(3, stored.getRoot().getChildren().size());
+
+		ByteArrayOutputStream part = new ByteArrayOutputStream();
+		long[] range = new MailMessage(messageFile, 1).getSectionRange("2.1");
+		msg.transferTo(range[0], range[1] - range[0], Channels.newChannel(part));
+		assertEquals("<p>Second</p>", part.toString("UTF-8"));
+
+		msg.delete();
+		assertNull(MimeStructure.read(messageFile, msg.getSize()));
+	}
+
+	@Test
+	public void staleStructureIsIgnored() throws IOException {
+		File messageFile = new File(msgDir, "1");
+		MailMessage msg = new MailMessage(messageFile, 1);
+		msg.getRawStream().print("Subject: Test\r\n\r\nBody\r\n");
+		msg.commit();
+
+		assertNotNull(MimeStructure.read(messageFile, msg.getSize()));
+		assertNull(MimeStructure.read(messageFile, msg.getSize() + 1));
+	}
+
+	private static MimeStructure parse(String message) throws IOException {
+		MimeStructure.Parser parser = new MimeStructure.Parser(new ByteArrayOutputStream());
+		parser.write(message.getBytes("UTF-8"));
+		return parser.finish();
+	}
+
+	private static String section(String message, MimeStructure structure, String section) {
+		long[] range = structure.getSectionRange(section);
+		assertNotNull(range);
+		return message.substring((int)range[0], (int)range[1]);
+	}
+}
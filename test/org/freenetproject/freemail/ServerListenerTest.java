@@ -0,0 +1,180 @@
+/*
+ * ServerListenerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ServerListenerTest {
+	private EchoListener listener;
+	private Thread listenerThread;
+
+	@After
+	public void after() throws InterruptedException {
+		if(listener != null) {
+			listener.kill();
+			listenerThread.join();
+			listener.joinClientThreads();
+		}
+	}
+
+	/*
+	 * With a single worker thread the second client can only be served if the first one has
+	 * released the worker while it is idle.
+	 */
+	@Test(timeout = 10000)
+	public void selectorServesIdleClientsWithOneWorker() throws Exception {
+		start(ServerListener.ENGINE_SELECTOR, 0, 1);
+
+		Client first = new Client();
+		Client second = new Client();
+		Client third = new Client();
+		assertEquals("hello", first.command("hello"));
+		assertEquals("world", second.command("world"));
+		assertEquals("again", first.command("again"));
+		assertEquals("third", third.command("third"));
+		assertEquals("more", second.command("more"));
+
+		first.close();
+		second.close();
+		third.close();
+	}
+
+	@Test(timeout = 10000)
+	public void threadEngineServesClients() throws Exception {
+		start(ServerListener.ENGINE_THREAD, 0, 1);
+
+		Client first = new Client();
+		Client second = new Client();
+		assertEquals("hello", first.command("hello"));
+		assertEquals("world", second.command("world"));
+
+		first.close();
+		second.close();
+	}
+
+	@Test(timeout = 10000)
+	public void connectionLimitIsEnforced() throws Exception {
+		start(ServerListener.ENGINE_SELECTOR, 1, 2);
+
+		Client first = new Client();
+		assertEquals("hello", first.command("hello"));
+
+		Client second = new Client();
+		assertNull(second.reader.readLine());
+		second.close();
+
+		assertEquals("still here", first.command("still here"));
+		first.close();
+	}
+
+	private void start(String engine, int maxConnections, int workerThreads) throws InterruptedException {
+		listener = new EchoListener();
+		listener.setEngine(engine);
+		listener.setMaxConnections(maxConnections);
+		listener.setWorkerThreads(workerThreads);
+
+		listenerThread = new Thread(listener);
+		listenerThread.start();
+
+		while(listener.sock == null || !listener.sock.isBound()) {
+			Thread.sleep(10);
+		}
+	}
+
+	private class Client {
+		private final Socket socket;
+		private final PrintStream ps;
+		private final BufferedReader reader;
+
+		private Client() throws IOException {
+			socket = new Socket("127.0.0.1", listener.sock.getLocalPort());
+			ps = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+			reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		}
+
+		private String command(String line) throws IOException {
+			ps.print(line + "\r\n");
+			return reader.readLine();
+		}
+
+		private void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	private static class EchoListener extends ServerListener implements Runnable {
+		@Override
+		public void run() {
+			try {
+				acceptConnections("Echo", "127.0.0.1", 0, 0);
+			} catch(IOException e) {
+				fail(e.toString());
+			}
+		}
+
+		@Override
+		protected ServerHandler createHandler(Socket client) throws IOException {
+			return new EchoHandler(client);
+		}
+	}
+
+	private static class EchoHandler extends ServerHandler {
+		private final PrintStream ps;
+		private final BufferedReader reader;
+
+		private EchoHandler(Socket client) throws IOException {
+			super(client);
+			ps = new PrintStream(client.getOutputStream(), false, "UTF-8");
+			reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(!stopping && !client.isClosed()) {
+					if(!reader.ready()) {
+						ps.flush();
+						if(park()) {
+							return;
+						}
+					}
+
+					String line = reader.readLine();
+					if(line == null) {
+						break;
+					}
+					ps.print(line + "\r\n");
+				}
+				client.close();
+			} catch(IOException e) {
+				kill();
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * FCPConnectionPoolTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import org.freenetproject.freemail.config.Configurator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fakes.FakeFCPNode;
+
+public class FCPConnectionPoolTest {
+	private FakeFCPNode node;
+	private FCPContext ctx;
+	private FCPConnectionPool pool;
+
+	@Before
+	public void before() throws Exception {
+		node = new FakeFCPNode();
+
+		ctx = new FCPContext();
+		ctx.setConfigProp(Configurator.FCP_HOST, "127.0.0.1");
+		ctx.setConfigProp(Configurator.FCP_PORT, Integer.toString(node.getPort()));
+	}
+
+	@After
+	public void after() throws Exception {
+		if(pool != null) {
+			pool.kill();
+			pool.join();
+		}
+		node.close();
+	}
+
+	@Test(timeout = 10000)
+	public void fetchesGoToLeastLoadedConnection() throws Exception {
+		pool = new FCPConnectionPool(ctx, 2, 1);
+		pool.start();
+
+		FCPConnection first = pool.getFetchConnection();
+		first.submit(first.getMessage("ClientGet"));
+		assertEquals(1, first.getInFlight());
+
+		FCPConnection second = pool.getFetchConnection();
+		assertNotSame(first, second);
+		second.submit(second.getMessage("ClientGet"));
+
+		FCPConnection third = pool.getFetchConnection();
+		assertTrue(third == first || third == second);
+		assertEquals(2, pool.getInFlight());
+	}
+
+	@Test(timeout = 10000)
+	public void insertsUseSeparateConnection() throws Exception {
+		pool = new FCPConnectionPool(ctx, 2, 1);
+		pool.start();
+
+		FCPConnection insert = pool.getInsertConnection();
+		assertNotSame(insert, pool.getFetchConnection());
+		insert.submit(insert.getMessage("ClientPut"));
+
+		//The insert connection is busy, but it is the only one for inserts
+		assertSame(insert, pool.getInsertConnection());
+		assertEquals(0, pool.getFetchConnection().getInFlight());
+	}
+
+	@Test(timeout = 10000)
+	public void insertsShareFetchConnectionsIfNoneAreConfigured() throws Exception {
+		pool = new FCPConnectionPool(ctx, 1, 0);
+		pool.start();
+
+		assertSame(pool.getFetchConnection(), pool.getInsertConnection());
+	}
+
+	@Test(timeout = 10000)
+	public void connectedConnectionIsPreferred() throws Exception {
+		pool = new FCPConnectionPool(ctx, 2, 0);
+		pool.start();
+
+		FCPConnection busy = pool.getFetchConnection();
+		busy.submit(busy.getMessage("ClientGet"));
+		FCPConnection idle = pool.getFetchConnection();
+		assertNotSame(busy, idle);
+
+		idle.kill();
+		assertSame(busy, pool.getFetchConnection());
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * FCPConnectionTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.config.Configurator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.io.BucketTools;
+
+public class FCPConnectionTest {
+	private ServerSocket nodeSocket;
+	private FCPConnection conn;
+	private Thread connThread;
+	private Socket node;
+	private BufferedReader nodeReader;
+	private OutputStream nodeOut;
+
+	@Before
+	public void before() throws Exception {
+		nodeSocket = new ServerSocket(0);
+		connect(false);
+	}
+
+	private void connect(boolean persistentRequests) throws Exception {
+		FCPContext ctx = new FCPContext();
+		ctx.setConfigProp(Configurator.FCP_HOST, "127.0.0.1");
+		ctx.setConfigProp(Configurator.FCP_PORT, Integer.toString(nodeSocket.getLocalPort()));
+		ctx.setConfigProp(Configurator.FCP_PERSISTENT_REQUESTS, Boolean.toString(persistentRequests));
+
+		//The connection sends ClientHello from the constructor, so answer it from another thread
+		Thread hello = new Thread() {
+			@Override
+			public void run() {
+				try {
+					node = nodeSocket.accept();
+					nodeReader = new BufferedReader(new InputStreamReader(node.getInputStream(), "UTF-8"));
+					nodeOut = node.getOutputStream();
+					readRequest();
+					send("NodeHello", "1");
+				} catch(IOException e) {
+					throw new AssertionError(e);
+				}
+			}
+		};
+		hello.start();
+		conn = new FCPConnection(ctx);
+		hello.join();
+
+		connThread = new Thread(conn);
+		connThread.start();
+	}
+
+	@After
+	public void after() throws Exception {
+		conn.kill();
+		connThread.interrupt();
+		connThread.join();
+		nodeSocket.close();
+	}
+
+	@Test(timeout = 10000)
+	public void repliesAreMatchedByIdentifier() throws Exception {
+		List<Future<FCPMessage>> replies = new ArrayList<Future<FCPMessage>>();
+		List<String> ids = new ArrayList<String>();
+		for(int i = 0; i < 3; i++) {
+			FCPMessage msg = conn.getMessage("ClientGet");
+			msg.headers.put("URI", "KSK@test-" + i);
+			replies.add(conn.submit(msg));
+			ids.add(readRequest());
+		}
+
+		//Answer in reverse order
+		for(int i = 2; i >= 0; i--) {
+			send("GetFailed", ids.get(i), "Code=28");
+		}
+
+		for(int i = 0; i < 3; i++) {
+			FCPMessage reply = replies.get(i).get(5, TimeUnit.SECONDS);
+			assertEquals("GetFailed", reply.getType());
+			assertEquals(ids.get(i), reply.getId());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void lostConnectionCompletesOutstandingRequests() throws Exception {
+		FCPMessage msg = conn.getMessage("ClientGet");
+		msg.headers.put("URI", "KSK@test");
+		Future<FCPMessage> reply = conn.submit(msg);
+		readRequest();
+
+		node.close();
+
+		FCPMessage closed = reply.get(5, TimeUnit.SECONDS);
+		assertEquals("ConnectionClosed", closed.getType());
+		assertEquals(msg.getId(), closed.getId());
+	}
+
+	@Test(timeout = 10000)
+	public void cancelledRequestIsForgotten() throws Exception {
+		FCPMessage first = conn.getMessage("ClientGet");
+		first.headers.put("URI", "KSK@first");
+		Future<FCPMessage> firstReply = conn.submit(first);
+		String firstId = readRequest();
+
+		FCPMessage second = conn.getMessage("ClientGet");
+		second.headers.put("URI", "KSK@second");
+		Future<FCPMessage> secondReply = conn.submit(second);
+		String secondId = readRequest();
+
+		assertTrue(firstReply.cancel(false));
+		send("GetFailed", firstId, "Code=28");
+		send("GetFailed", secondId, "Code=28");
+
+		assertEquals(secondId, secondReply.get(5, TimeUnit.SECONDS).getId());
+		assertTrue(firstReply.isCancelled());
+	}
+
+	@Test(timeout = 10000)
+	public void listenerRunsWhenReplyArrives() throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		FCPMessage msg = conn.getMessage("ClientGet");
+		msg.headers.put("URI", "KSK@test");
+		Future<FCPMessage> reply = conn.submit(msg, new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		String id = readRequest();
+
+		assertFalse(reply.isDone());
+		send("GetFailed", id, "Code=28");
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("GetFailed", reply.get().getType());
+	}
+
+	@Test(timeout = 10000)
+	public void removedRequestIsRemovedFromNode() throws Exception {
+		FCPMessage msg = conn.getMessage("ClientGet");
+		msg.headers.put("URI", "KSK@test");
+		Future<FCPMessage> reply = conn.submit(msg);
+		String id = readRequest();
+
+		conn.removeRequest(msg);
+		assertEquals("RemoveRequest", nodeReader.readLine());
+		assertEquals(id, readRequest());
+
+		//The node confirms the removal, which nobody is waiting for
+		send("PersistentRequestRemoved", id);
+		assertFalse(reply.isDone());
+	}
+
+	@Test(timeout = 10000)
+	public void persistentRequestIsPickedUpAfterReconnect() throws Exception {
+		reconnect(true);
+		assertEquals("WatchGlobal", nodeReader.readLine());
+		readRequest();
+
+		FCPMessage msg = conn.getPersistentMessage("ClientGet");
+		msg.headers.put("URI", "KSK@test");
+		Future<FCPMessage> reply = conn.submit(msg);
+		assertEquals("ClientGet", nodeReader.readLine());
+		String id = readRequest();
+
+		//The node keeps the request, so the client isn't told that the connection was lost
+		acceptReconnect();
+		assertFalse(reply.isDone());
+		assertEquals("WatchGlobal", nodeReader.readLine());
+		readRequest();
+		assertEquals("ListPersistentRequests", nodeReader.readLine());
+		readRequest();
+
+		send("PersistentGet", id, "Global=true");
+		send("DataFound", id, "Global=true");
+		send("EndListPersistentRequests", null);
+
+		//The data has to be asked for
+		assertEquals("GetRequestStatus", nodeReader.readLine());
+		assertEquals(id, readRequest());
+		sendAllData(id, "hello");
+
+		FCPMessage result = reply.get(5, TimeUnit.SECONDS);
+		assertEquals("AllData", result.getType());
+		assertEquals("hello", new String(BucketTools.toByteArray(result.getData()), "UTF-8"));
+
+		//Finished requests are removed from the global queue
+		assertEquals("RemoveRequest", nodeReader.readLine());
+		assertEquals(id, readRequest());
+	}
+
+	@Test(timeout = 10000)
+	public void lostPersistentRequestIsSentAgain() throws Exception {
+		reconnect(true);
+		assertEquals("WatchGlobal", nodeReader.readLine());
+		readRequest();
+
+		FCPMessage msg = conn.getPersistentMessage("ClientGet");
+		msg.headers.put("URI", "KSK@test");
+		Future<FCPMessage> reply = conn.submit(msg);
+		assertEquals("ClientGet", nodeReader.readLine());
+		String id = readRequest();
+
+		acceptReconnect();
+		assertEquals("WatchGlobal", nodeReader.readLine());
+		readRequest();
+		assertEquals("ListPersistentRequests", nodeReader.readLine());
+		readRequest();
+		send("EndListPersistentRequests", null);
+
+		assertEquals("ClientGet", nodeReader.readLine());
+		assertEquals(id, readRequest());
+		assertFalse(reply.isDone());
+	}
+
+	@Test(timeout = 10000)
+	public void persistentRequestIsRemovedOnKill() throws Exception {
+		reconnect(true);
+		assertEquals("WatchGlobal", nodeReader.readLine());
+		readRequest();
+
+		FCPMessage msg = conn.getPersistentMessage("ClientGet");
+		msg.headers.put("URI", "KSK@test");
+		Future<FCPMessage> reply = conn.submit(msg);
+		assertEquals("ClientGet", nodeReader.readLine());
+		String id = readRequest();
+
+		//The next run of Freemail can't pick the request up, so it must not stay on the node
+		conn.kill();
+		assertEquals("RemoveRequest", nodeReader.readLine());
+		assertEquals(id, readRequest());
+
+		FCPMessage result = reply.get(5, TimeUnit.SECONDS);
+		assertEquals("ConnectionClosed", result.getType());
+	}
+
+	/**
+	 * Replaces the connection with one that reconnects quickly.
+	 */
+	private void reconnect(boolean persistentRequests) throws Exception {
+		after();
+		nodeSocket = new ServerSocket(0);
+		connect(persistentRequests);
+		conn.setReconnectDelay(100);
+	}
+
+	/**
+	 * Closes the connection from the node side and accepts the new connection.
+	 */
+	private void acceptReconnect() throws IOException {
+		node.close();
+		node = nodeSocket.accept();
+		nodeReader = new BufferedReader(new InputStreamReader(node.getInputStream(), "UTF-8"));
+		nodeOut = node.getOutputStream();
+		readRequest();
+		send("NodeHello", "1");
+	}
+
+	private void sendAllData(String id, String data) throws IOException {
+		byte[] bytes = data.getBytes("UTF-8");
+		String header = "AllData\r\nIdentifier=" + id + "\r\nGlobal=true\r\nDataLength=" + bytes.length + "\r\nData\r\n";
+		nodeOut.write(header.getBytes("UTF-8"));
+		nodeOut.write(bytes);
+		nodeOut.flush();
+	}
+
+	/**
+	 * Reads a message sent to the node and returns its identifier.
+	 */
+	private String readRequest() throws IOException {
+		String id = null;
+		String line;
+		while((line = nodeReader.readLine()) != null) {
+			if(line.startsWith("Identifier=")) {
+				id = line.substring("Identifier=".length());
+			}
+			if(line.equals("EndMessage")) {
+				break;
+			}
+		}
+		return id;
+	}
+
+	private void send(String type, String id, String... headers) throws IOException {
+		StringBuilder buf = new StringBuilder(type).append("\r\n");
+		if(id != null) {
+			buf.append("Identifier=").append(id).append("\r\n");
+		}
+		for(String header : headers) {
+			buf.append(header).append("\r\n");
+		}
+		buf.append("EndMessage\r\n");
+		nodeOut.write(buf.toString().getBytes("UTF-8"));
+		nodeOut.flush();
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * FCPMessageTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.freenetproject.freemail.support.io.BufferedLineReadingInputStream;
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileBucket;
+
+public class FCPMessageTest {
+	private static final String ALL_DATA =
+			"AllData\r\n"
+			+ "Identifier=1\r\n"
+			+ "DataLength=5\r\n"
+			+ "Data\r\n"
+			+ "hello"
+			+ "NodeHello\r\n"
+			+ "EndMessage\r\n";
+
+	@Test
+	public void smallPayloadIsKeptInMemory() throws IOException {
+		InputStream is = new BufferedLineReadingInputStream(new ByteArrayInputStream(ALL_DATA.getBytes("UTF-8")));
+		FCPMessage msg = new FCPMessage(is, 5);
+
+		assertEquals("AllData", msg.getType());
+		assertEquals("1", msg.getId());
+		assertTrue(msg.getData() instanceof ArrayBucket);
+		assertEquals("hello", new String(BucketTools.toByteArray(msg.getData()), "UTF-8"));
+
+		//The next message starts right after the payload
+		assertEquals("NodeHello", new FCPMessage(is, 5).getType());
+	}
+
+	@Test
+	public void largePayloadIsWrittenToDisk() throws IOException {
+		InputStream is = new BufferedLineReadingInputStream(new ByteArrayInputStream(ALL_DATA.getBytes("UTF-8")));
+		FCPMessage msg = new FCPMessage(is, 4);
+
+		Bucket data = msg.getData();
+		assertTrue(data instanceof FileBucket);
+		assertEquals("hello", new String(BucketTools.toByteArray(data), "UTF-8"));
+		assertEquals("NodeHello", new FCPMessage(is, 4).getType());
+
+		msg.release();
+		assertFalse(((FileBucket)data).getFile().exists());
+	}
+
+	@Test
+	public void payloadIsSentAfterHeaders() throws Exception {
+		FCPMessage msg = new FCPMessage(1, "ClientPut");
+		msg.headers.put("URI", "KSK@test");
+		msg.setData(new ArrayBucket("hello".getBytes("UTF-8")));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.writeto(out);
+
+		FCPMessage sent = new FCPMessage(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals("ClientPut", sent.getType());
+		assertEquals("KSK@test", sent.headers.get("URI"));
+		assertEquals("5", sent.headers.get("DataLength"));
+		assertEquals("hello", new String(BucketTools.toByteArray(sent.getData()), "UTF-8"));
+	}
+
+	@Test(expected = IOException.class)
+	public void negativeDataLengthIsAnError() throws IOException {
+		String allData = ALL_DATA.replace("DataLength=5", "DataLength=-5");
+		new FCPMessage(new BufferedLineReadingInputStream(new ByteArrayInputStream(allData.getBytes("UTF-8"))), 5);
+	}
+
+	@Test(expected = EOFException.class)
+	public void shortPayloadIsAnError() throws Exception {
+		FCPMessage msg = new FCPMessage(1, "ClientPut");
+		msg.setData(new ArrayBucket("hello".getBytes("UTF-8")) {
+			@Override
+			public long size() {
+				return 10;
+			}
+		});
+		msg.writeto(new ByteArrayOutputStream());
+	}
+}
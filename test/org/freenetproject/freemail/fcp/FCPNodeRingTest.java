@@ -0,0 +1,146 @@
+/*
+ * FCPNodeRingTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.freenetproject.freemail.config.Configurator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fakes.FakeFCPNode;
+
+public class FCPNodeRingTest {
+	private final List<FakeFCPNode> nodes = new ArrayList<FakeFCPNode>();
+	private final List<FCPNodeRing> rings = new ArrayList<FCPNodeRing>();
+
+	@Before
+	public void before() throws Exception {
+		for(int i = 0; i < 3; i++) {
+			nodes.add(new FakeFCPNode());
+		}
+	}
+
+	@After
+	public void after() throws Exception {
+		for(FCPNodeRing ring : rings) {
+			ring.kill();
+			ring.join();
+		}
+		for(FakeFCPNode node : nodes) {
+			node.close();
+		}
+	}
+
+	@Test
+	public void defaultNodeIsUsedIfNoneAreListed() {
+		FCPContext ctx = new FCPContext();
+		ctx.setConfigProp(Configurator.FCP_HOST, "localhost");
+		ctx.setConfigProp(Configurator.FCP_PORT, "9481");
+		ctx.setConfigProp(Configurator.FCP_NODES, "");
+
+		List<FCPContext> contexts = ctx.getNodeContexts();
+		assertEquals(1, contexts.size());
+		assertSame(ctx, contexts.get(0));
+	}
+
+	@Test
+	public void listedNodesAreParsed() {
+		FCPContext ctx = new FCPContext();
+		ctx.setConfigProp(Configurator.FCP_HOST, "localhost");
+		ctx.setConfigProp(Configurator.FCP_PORT, "9481");
+		ctx.setConfigProp(Configurator.FCP_NODES, "node1:9000, node2 ,node3:bad");
+
+		List<FCPContext> contexts = ctx.getNodeContexts();
+		assertEquals(2, contexts.size());
+		assertEquals("node1:9000", contexts.get(0).getAddress());
+		assertEquals("node2:9481", contexts.get(1).getAddress());
+	}
+
+	@Test(timeout = 10000)
+	public void keysAreSpreadOverNodes() throws Exception {
+		FCPNodeRing ring = startRing(2);
+
+		int[] counts = new int[2];
+		for(int i = 0; i < 200; i++) {
+			FCPConnectionPool pool = ring.getPool("account-" + i);
+			assertSame(pool, ring.getPool("account-" + i));
+			counts[ring.getPools().indexOf(pool)]++;
+		}
+		assertTrue(counts[0] > 40);
+		assertTrue(counts[1] > 40);
+	}
+
+	@Test(timeout = 10000)
+	public void addingNodeOnlyMovesKeysToNewNode() throws Exception {
+		FCPNodeRing small = startRing(2);
+		FCPNodeRing large = startRing(3);
+
+		int moved = 0;
+		for(int i = 0; i < 200; i++) {
+			String key = "account-" + i;
+			int before = small.getPools().indexOf(small.getPool(key));
+			int after = large.getPools().indexOf(large.getPool(key));
+			if(before != after) {
+				assertEquals(2, after);
+				moved++;
+			}
+		}
+		assertTrue(moved > 0);
+	}
+
+	@Test(timeout = 10000)
+	public void keyMovesToNextNodeWhileNodeIsDown() throws Exception {
+		FCPNodeRing ring = startRing(3);
+
+		String key = "account";
+		FCPConnectionPool primary = ring.getPool(key);
+		int index = ring.getPools().indexOf(primary);
+		nodes.get(index).close();
+		while(primary.isConnected()) {
+			Thread.sleep(10);
+		}
+
+		FCPConnectionPool backup = ring.getPool(key);
+		assertNotSame(primary, backup);
+		assertTrue(backup.isConnected());
+		assertSame(backup, ring.getPool(key));
+	}
+
+	private FCPNodeRing startRing(int nodeCount) {
+		StringBuilder list = new StringBuilder();
+		for(int i = 0; i < nodeCount; i++) {
+			list.append("127.0.0.1:").append(nodes.get(i).getPort()).append(",");
+		}
+
+		FCPContext ctx = new FCPContext();
+		ctx.setConfigProp(Configurator.FCP_NODES, list.toString());
+		ctx.setConfigProp(Configurator.FCP_INSERT_CONNECTIONS, "0");
+
+		FCPNodeRing ring = new FCPNodeRing(ctx.getNodeContexts());
+		ring.start();
+		rings.add(ring);
+		return ring;
+	}
+}
@@ -65,8 +65,7 @@ public class IMAPAppendTest extends IMAPTestWithMessages {
 	}
 
 	/*
-	 * The expectation here is that the custom flag is ignored since they aren't supported, but the
-	 * \Seen flag should still be saved.
+	 * The custom flag is stored as a keyword of the folder, next to the \Seen flag.
 	 */
 	@Test
 	public void appendWithCustomFlag() throws IOException {
@@ -80,7 +79,7 @@ public class IMAPAppendTest extends IMAPTestWithMessages {
 		                         "0003 OK APPEND completed"));
 		commands.add(new Command("0004 UID FETCH 10:* FLAGS",
 		                         "* 9 FETCH (FLAGS () UID 10)",
-		                         "* 10 FETCH (FLAGS (\\Seen \\Recent) UID 11)",
+		                         "* 10 FETCH (FLAGS (\\Seen \\Recent custom) UID 11)",
 		                         "0004 OK Fetch completed"));
 
 		runSimpleTest(commands);
@@ -19,10 +19,14 @@
 
 package org.freenetproject.freemail.imap;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.LinkedList;
 import java.util.List;
 
+import static org.junit.Assert.*;
+
 import org.junit.Test;
 
 import utils.TextProtocolTester.Command;
@@ -403,4 +407,101 @@ public class IMAPFetchTest extends IMAPTestWithMessages {
 
 		runSimpleTest(commands);
 	}
+
+	@Test
+	public void fetchBodyRangeAfterEnd() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 FETCH 1 (BODY.PEEK[]<100.10>)",
+				"* 1 FETCH (BODY[]<100> {0}",
+				")",
+				"0003 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void fetchRfc822() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 FETCH 1 (RFC822)",
+				"* 1 FETCH (RFC822 {32}",
+				"Subject: IMAP test message 0",
+				"",
+				")",
+				"0003 OK Fetch completed"));
+		commands.add(new Command("0004 FETCH 1 (FLAGS)",
+				"* 1 FETCH (FLAGS (\\Seen))",
+				"0004 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void fetchBodyStructure() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 FETCH 1 (BODYSTRUCTURE)",
+				"* 1 FETCH (BODYSTRUCTURE (\"TEXT\" \"PLAIN\" (\"CHARSET\" \"us-ascii\") NIL NIL \"7BIT\" 0 0 NIL NIL))",
+				"0003 OK Fetch completed"));
+		commands.add(new Command("0004 FETCH 1 (BODY)",
+				"* 1 FETCH (BODY (\"TEXT\" \"PLAIN\" (\"CHARSET\" \"us-ascii\") NIL NIL \"7BIT\" 0 0))",
+				"0004 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void fetchBodyPart() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 FETCH 1 (BODY.PEEK[1])",
+				"* 1 FETCH (BODY[1] {0}",
+				")",
+				"0003 OK Fetch completed"));
+		commands.add(new Command("0004 FETCH 1 (BODY.PEEK[2])",
+				"* 1 FETCH (BODY)",
+				"0004 BAD Unknown attribute in list or unterminated list"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void truncatedMessageIsPadded() throws IOException {
+		//Shorten the message without telling Freemail, so the recorded size is too large
+		File message = new File(new File(accountDirs.get(BASE64_USERNAME), "inbox"), "1");
+		RandomAccessFile file = new RandomAccessFile(message, "rw");
+		try {
+			file.setLength("Subject: IMAP".length());
+		} finally {
+			file.close();
+		}
+		assertTrue(message.length() < 32);
+
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		//The literal must still hold the announced number of bytes
+		commands.add(new Command("0003 FETCH 1 (BODY.PEEK[])",
+				"* 1 FETCH (BODY[] {32}",
+				"Subject: IMAP",
+				"                 )",
+				"0003 OK Fetch completed"));
+
+		runSimpleTest(commands);
+	}
 }
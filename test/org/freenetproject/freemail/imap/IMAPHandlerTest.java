@@ -39,7 +39,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 	@Test
 	public void imapGreeting() throws IOException {
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick.");
 
 		runSimpleTest(new LinkedList<String>(), expectedResponse);
 	}
@@ -50,7 +50,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 
 		runSimpleTest(commands, expectedResponse);
@@ -126,7 +126,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0002 SELECT ShouldNotExist\r\n");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("0002 NO No such mailbox");
 
@@ -139,7 +139,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 NoSuchCommand");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 NO Sorry - not implemented");
 
 		runSimpleTest(commands, expectedResponse);
@@ -159,7 +159,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 
 		int lineNum = 0;
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("* BYE");
 		expectedResponse.add("0001 OK Bye");
 		for(String response : expectedResponse) {
@@ -193,8 +193,8 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 CAPABILITY");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
-		expectedResponse.add("* CAPABILITY IMAP4rev1 CHILDREN NAMESPACE");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE");
 		expectedResponse.add("0001 OK Capability completed");
 
 		runSimpleTest(commands, expectedResponse);
@@ -206,7 +206,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 NOOP");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK NOOP completed");
 
 		runSimpleTest(commands, expectedResponse);
@@ -218,7 +218,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 LOGIN");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -230,7 +230,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0001 LOGIN " + IMAP_USERNAME);
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 BAD Not enough arguments");
 
 		runSimpleTest(commands, expectedResponse);
@@ -251,7 +251,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		expectedResponse.add("0003 OK Store completed");
 		expectedResponse.add("0004 OK Mailbox closed");
 		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
-		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
+		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent \\*)] Limited");
 		expectedResponse.add("* 8 EXISTS");
 		expectedResponse.add("* 0 RECENT");
 		expectedResponse.add("* OK [UIDVALIDITY 1] Ok");
@@ -273,7 +273,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		expectedResponse.add("* 1 FETCH FLAGS (\\Deleted)");
 		expectedResponse.add("0003 OK Store completed");
 		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
-		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
+		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent \\*)] Limited");
 		expectedResponse.add("* 9 EXISTS");
 		expectedResponse.add("* 0 RECENT");
 		expectedResponse.add("* OK [UIDVALIDITY 1] Ok");
@@ -322,7 +322,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		commands.add("0004 ShouldNotRun");
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("+ OK");
 		expectedResponse.add("0002 OK APPEND completed");
@@ -364,6 +364,7 @@ public class IMAPHandlerTest extends IMAPTestWithMessages {
 		expectedResponse.addAll(INITIAL_RESPONSES);
 		expectedResponse.add("+ OK");
 		expectedResponse.add("0002 OK APPEND completed");
+		expectedResponse.add("* 10 EXISTS");
 		expectedResponse.add("0003 OK NOOP completed");
 		expectedResponse.add("* SEARCH 11");
 		expectedResponse.add("0004 OK Search completed");
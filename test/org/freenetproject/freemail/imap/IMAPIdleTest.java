@@ -0,0 +1,172 @@
+/*
+ * IMAPIdleTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.SortedMap;
+
+import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.MessageBank;
+import org.junit.Test;
+
+import utils.TextProtocolTester;
+import utils.TextProtocolTester.Command;
+
+import fakes.ConfigurableAccountManager;
+import fakes.FakeSocket;
+
+public class IMAPIdleTest extends IMAPTestWithMessages {
+	@Test
+	public void idleWithoutSelectedMailbox() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(new Command("0002 IDLE", "0002 NO No mailbox selected"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void idleWithoutChanges() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 IDLE", "+ idling"));
+		commands.add(new Command("done", "0003 OK IDLE terminated"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void idleWithInvalidContinuation() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+		commands.add(new Command("0003 IDLE", "+ idling"));
+		commands.add(new Command("0004 NOOP", "0003 BAD Expected DONE"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void changesAreSentWhileIdling() throws IOException {
+		List<Command> before = new LinkedList<Command>();
+		before.addAll(connectSequence());
+		before.addAll(loginSequence("0001"));
+		before.addAll(selectInboxSequence("0002"));
+		before.add(new Command("0003 IDLE", "+ idling"));
+
+		List<Command> after = new LinkedList<Command>();
+		after.add(new Command(null,
+				"* 10 EXISTS",
+				"* 2 FETCH (FLAGS (\\Seen))",
+				"* 1 EXPUNGE"));
+		after.add(new Command("DONE", "0003 OK IDLE terminated"));
+
+		runIdleTest(before, new Runnable() {
+			@Override
+			public void run() {
+				MessageBank inbox = openInbox();
+				deliverMessage(inbox, "IMAP test message 10");
+
+				SortedMap<Integer, MailMessage> messages = inbox.listMessages();
+				messages.get(2).flags.set("\\Seen", true);
+				messages.get(2).storeFlags();
+				messages.get(1).delete();
+			}
+		}, after);
+	}
+
+	@Test
+	public void changesBeforeIdleAreSent() throws IOException {
+		List<Command> before = new LinkedList<Command>();
+		before.addAll(connectSequence());
+		before.addAll(loginSequence("0001"));
+		before.addAll(selectInboxSequence("0002"));
+
+		List<Command> after = new LinkedList<Command>();
+		after.add(new Command("0003 IDLE", "* 10 EXISTS", "+ idling"));
+		after.add(new Command("DONE", "0003 OK IDLE terminated"));
+
+		runIdleTest(before, new Runnable() {
+			@Override
+			public void run() {
+				deliverMessage(openInbox(), "IMAP test message 10");
+			}
+		}, after);
+	}
+
+	private MessageBank openInbox() {
+		return new ConfigurableAccountManager(accountManagerDir, false, accountDirs)
+				.authenticate(BASE64_USERNAME, "").getMessageBank();
+	}
+
+	private static void deliverMessage(MessageBank folder, String subject) {
+		MailMessage m = folder.createMessage();
+		m.addHeader("Subject", subject);
+		try {
+			m.writeHeadersAndGetStream();
+		} catch (FileNotFoundException e) {
+			fail(e.toString());
+		}
+		m.commit();
+	}
+
+	/**
+	 * Runs {@code before}, then {@code change} while the handler is still running, and then
+	 * {@code after}.
+	 */
+	private void runIdleTest(List<Command> before, Runnable change, List<Command> after) throws IOException {
+		FakeSocket sock = new FakeSocket();
+		AccountManager accManager = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+
+		IMAPHandler handler = new IMAPHandler(accManager, sock);
+		Thread imapThread = new Thread(handler);
+		imapThread.start();
+
+		try {
+			PrintWriter toHandler = new PrintWriter(sock.getOutputStreamOtherSide());
+			BufferedReader fromHandler = new BufferedReader(new InputStreamReader(sock.getInputStreamOtherSide()));
+			TextProtocolTester tester = new TextProtocolTester(toHandler, fromHandler);
+			tester.runProtocolTest(before);
+			change.run();
+			tester.runProtocolTest(after);
+		} finally {
+			handler.kill();
+			sock.close();
+			try {
+				imapThread.join();
+			} catch(InterruptedException e) {
+				fail("Caught unexpected InterruptedException");
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * IMAPMessageFlagsTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class IMAPMessageFlagsTest {
+	private static final String FOLDER_DIR = "flags_dir";
+
+	private File first;
+	private File second;
+
+	@Before
+	public void before() {
+		File dir = new File(FOLDER_DIR);
+		if(dir.exists()) {
+			System.out.println("WARNING: Folder directory exists, deleting");
+			Utils.delete(dir);
+		}
+
+		first = new File(dir, "first");
+		second = new File(dir, "second");
+		first.mkdirs();
+		second.mkdirs();
+		FolderKeywords.forget(first);
+		FolderKeywords.forget(second);
+	}
+
+	@After
+	public void after() {
+		FolderKeywords.forget(first);
+		FolderKeywords.forget(second);
+		Utils.delete(new File(FOLDER_DIR));
+	}
+
+	@Test
+	public void shortFlagsRoundTrip() {
+		IMAPMessageFlags flags = new IMAPMessageFlags("SXR");
+		assertTrue(flags.isSeen());
+		assertTrue(flags.isDeleted());
+		assertTrue(flags.isRecent());
+		assertFalse(flags.get("\\Flagged"));
+		assertEquals("SXR", flags.getShortFlagString());
+		assertEquals("\\Seen \\Deleted \\Recent", flags.getFlags());
+
+		flags.set("\\seen", false);
+		flags.set("\\FLAGGED", true);
+		assertEquals("FXR", flags.getShortFlagString());
+	}
+
+	@Test
+	public void keywordsAreIgnoredWithoutFolder() {
+		IMAPMessageFlags flags = new IMAPMessageFlags();
+		flags.set("custom", true);
+		assertFalse(flags.get("custom"));
+		assertEquals("", flags.getFlags());
+	}
+
+	@Test
+	public void keywordsAreStoredAsLowerCaseLetters() {
+		IMAPMessageFlags flags = new IMAPMessageFlags("", FolderKeywords.forDirectory(first));
+		flags.set("$Label1", true);
+		flags.set("Work", true);
+		flags.set("\\Seen", true);
+		assertEquals("Sab", flags.getShortFlagString());
+		assertEquals("\\Seen $Label1 Work", flags.getFlags());
+		assertTrue(flags.get("work"));
+
+		//The keyword table is read back from disk
+		FolderKeywords.forget(first);
+		IMAPMessageFlags read = new IMAPMessageFlags("b", FolderKeywords.forDirectory(first));
+		assertEquals("Work", read.getFlags());
+		assertEquals("$Label1 Work", FolderKeywords.forDirectory(first).getAllAsString());
+	}
+
+	@Test
+	public void invalidKeywordIsIgnored() {
+		IMAPMessageFlags flags = new IMAPMessageFlags("", FolderKeywords.forDirectory(first));
+		flags.set("\\Unknown", true);
+		flags.set("bad(keyword", true);
+		assertEquals("", flags.getShortFlagString());
+		assertEquals("", FolderKeywords.forDirectory(first).getAllAsString());
+	}
+
+	@Test
+	public void copiedKeywordsAreRenumbered() {
+		IMAPMessageFlags source = new IMAPMessageFlags("", FolderKeywords.forDirectory(first));
+		source.set("one", true);
+		source.set("two", true);
+		source.set("one", false);
+
+		IMAPMessageFlags target = new IMAPMessageFlags("", FolderKeywords.forDirectory(second));
+		target.copyFrom(source);
+		assertEquals("a", target.getShortFlagString());
+		assertEquals("two", target.getFlags());
+	}
+}
@@ -113,4 +113,49 @@ public class IMAPSearchTest extends IMAPTestWithMessages {
 
 		runSimpleTest(commands);
 	}
+
+	@Test
+	public void searchForSequenceSet() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 SEARCH 8:* 2:4");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* SEARCH");
+		expectedResponse.add("0003 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void searchForSequenceSetList() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 SEARCH 2:4,8:*");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* SEARCH 2 3 4 8 9");
+		expectedResponse.add("0003 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void uidSearchForUidSet() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 UID SEARCH UID 4:6");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* SEARCH 4 6");
+		expectedResponse.add("0003 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
 }
@@ -19,12 +19,15 @@
 
 package org.freenetproject.freemail.imap;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.junit.Test;
 
+import utils.TextProtocolTester.Command;
+
 public class IMAPStoreTest extends IMAPTestWithMessages {
 	@Test
 	public void storeWithoutArguments() throws IOException {
@@ -235,4 +238,39 @@ public class IMAPStoreTest extends IMAPTestWithMessages {
 
 		runSimpleTest(commands, expectedResponse);
 	}
+
+	@Test
+	public void storeFailsWhenKeywordsDontFit() throws IOException {
+		//Leave room for a single keyword
+		FolderKeywords keywords = FolderKeywords.forDirectory(new File(accountDirs.get(BASE64_USERNAME), "inbox"));
+		StringBuilder known = new StringBuilder();
+		for(int i = 0; i < FolderKeywords.MAX_KEYWORDS - 1; i++) {
+			keywords.getNumber("k" + i, true);
+			known.append(" k").append(i);
+		}
+
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.add(new Command("0002 SELECT INBOX",
+				"* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent" + known + ")",
+				"* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent" + known + " \\*)] Limited",
+				"* 9 EXISTS",
+				"* 9 RECENT",
+				"* OK [UIDVALIDITY 1] Ok",
+				"0002 OK [READ-WRITE] Done"));
+		commands.add(new Command("0003 STORE 1 +FLAGS (new1 new2)", "0003 NO Too many keywords in this folder"));
+		commands.add(new Command("0004 STORE 1 +FLAGS.SILENT (new1)", "0004 OK Store completed"));
+
+		//The folder is full now, so new keywords can't be created
+		commands.add(new Command("0005 SELECT INBOX",
+				"* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent" + known + " new1)",
+				"* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent" + known + " new1)] Limited",
+				"* 9 EXISTS",
+				"* 0 RECENT",
+				"* OK [UIDVALIDITY 1] Ok",
+				"0005 OK [READ-WRITE] Done"));
+
+		runSimpleTest(commands);
+	}
 }
@@ -42,10 +42,10 @@ public abstract class IMAPTestWithMessages extends IMAPTestBase {
 	protected static final List<String> INITIAL_RESPONSES;
 	static {
 		List<String> backing = new LinkedList<String>();
-		backing.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		backing.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick.");
 		backing.add("0001 OK Logged in");
 		backing.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
-		backing.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
+		backing.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent \\*)] Limited");
 		backing.add("* 9 EXISTS");
 		backing.add("* 9 RECENT");
 		backing.add("* OK [UIDVALIDITY 1] Ok");
@@ -55,7 +55,7 @@ public abstract class IMAPTestWithMessages extends IMAPTestBase {
 
 	protected static List<Command> connectSequence() {
 		List<Command> commands = new LinkedList<Command>();
-		commands.add(new Command(null, "* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick."));
+		commands.add(new Command(null, "* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE IDLE] Freemail ready - hit me with your rhythm stick."));
 		return commands;
 	}
 
@@ -70,7 +70,7 @@ public abstract class IMAPTestWithMessages extends IMAPTestBase {
 		List<Command> commands = new LinkedList<Command>();
 		commands.add(new Command(tag + "-1 SELECT INBOX",
 		                         "* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)",
-		                         "* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited",
+		                         "* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent \\*)] Limited",
 		                         "* 9 EXISTS",
 		                         "* 9 RECENT",
 		                         "* OK [UIDVALIDITY 1] Ok",
@@ -0,0 +1,79 @@
+/*
+ * SequenceSetTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class SequenceSetTest {
+	@Test
+	public void overlappingRangesAreMerged() {
+		SequenceSet set = new SequenceSet.Builder().add(10, 5).add(1, 3).add(4, 4).add(20, 20).build();
+		assertEquals("1:10,20", set.toString());
+		assertEquals(1, set.first());
+		assertEquals(20, set.last());
+	}
+
+	@Test
+	public void contains() {
+		SequenceSet set = new SequenceSet.Builder().add(3, 5).add(9, 9).build();
+		assertFalse(set.contains(2));
+		assertTrue(set.contains(3));
+		assertTrue(set.contains(5));
+		assertFalse(set.contains(6));
+		assertTrue(set.contains(9));
+		assertFalse(set.contains(10));
+	}
+
+	@Test
+	public void iteratesOverAllNumbers() {
+		SequenceSet set = new SequenceSet.Builder().add(1, 3).add(7, 8).build();
+		List<Integer> numbers = new ArrayList<Integer>();
+		for(Integer number : set) {
+			numbers.add(number);
+		}
+		assertEquals(Arrays.asList(1, 2, 3, 7, 8), numbers);
+	}
+
+	@Test
+	public void largeRangeIsCheap() {
+		SequenceSet set = new SequenceSet.Builder().add(1, Integer.MAX_VALUE).build();
+		assertTrue(set.contains(Integer.MAX_VALUE));
+		assertEquals("1:" + Integer.MAX_VALUE, set.toString());
+	}
+
+	@Test
+	public void retainKeys() {
+		SortedMap<Integer, String> map = new TreeMap<Integer, String>();
+		for(int i = 1; i <= 10; i++) {
+			map.put(i, "message " + i);
+		}
+
+		new SequenceSet.Builder().add(2, 3).add(6, 8).build().retainKeys(map);
+		assertEquals(Arrays.asList(2, 3, 6, 7, 8), new ArrayList<Integer>(map.keySet()));
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * BufferedLineReadingInputStreamTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.support.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class BufferedLineReadingInputStreamTest {
+	@Test
+	public void readsSameLinesAsUnbuffered() throws IOException {
+		byte[] input = "first\r\nsecond\n\r\n\nlast without newline".getBytes("UTF-8");
+		LineReadingInputStream plain = new LineReadingInputStream(new ByteArrayInputStream(input));
+		LineReadingInputStream buffered = new BufferedLineReadingInputStream(new TrickleInputStream(input, 3), 4);
+
+		String line;
+		do {
+			line = plain.readLine(200, 200, false);
+			assertEquals(line, buffered.readLine(200, 200, false));
+		} while(line != null);
+	}
+
+	@Test
+	public void countsBytesOfEachLine() throws IOException {
+		byte[] input = "abc\r\nde\nf".getBytes("UTF-8");
+		LineReadingInputStream buffered = new BufferedLineReadingInputStream(new TrickleInputStream(input, 2), 3);
+
+		assertEquals("abc", buffered.readLine(200, 200, false));
+		assertEquals(5, buffered.getLastBytesRead());
+		assertEquals("de", buffered.readLine(200, 200, false));
+		assertEquals(3, buffered.getLastBytesRead());
+		assertEquals("f", buffered.readLine(200, 200, false));
+		assertEquals(1, buffered.getLastBytesRead());
+	}
+
+	@Test
+	public void dataAfterLinesIsReadFromBuffer() throws IOException {
+		byte[] input = "Data\nabcdefgh\nNext\n".getBytes("UTF-8");
+		LineReadingInputStream buffered = new BufferedLineReadingInputStream(new ByteArrayInputStream(input));
+
+		assertEquals("Data", buffered.readLine(200, 200, false));
+		byte[] data = new byte[4];
+		assertEquals(4, buffered.read(data, 0, data.length));
+		assertEquals("abcd", new String(data, "UTF-8"));
+		assertEquals('e', buffered.read());
+		assertEquals(3, buffered.skip(3));
+		assertEquals("", buffered.readLine(200, 200, false));
+		assertEquals("Next", buffered.readLine(200, 200, false));
+		assertEquals(-1, buffered.read());
+	}
+
+	@Test(expected = TooLongException.class)
+	public void longLineIsRejected() throws IOException {
+		byte[] input = "0123456789\n".getBytes("UTF-8");
+		LineReadingInputStream buffered = new BufferedLineReadingInputStream(new ByteArrayInputStream(input), 4);
+		buffered.readLine(8, 8, false);
+	}
+
+	@Test
+	public void decodesUTF8() throws IOException {
+		byte[] input = "æøå\r\n".getBytes("UTF-8");
+		LineReadingInputStream buffered = new BufferedLineReadingInputStream(new TrickleInputStream(input, 1), 2);
+		assertEquals("æøå", buffered.readLine(200, 200, true));
+	}
+
+	/**
+	 * Stream that returns at most {@code chunk} bytes from each read.
+	 */
+	private static class TrickleInputStream extends InputStream {
+		private final ByteArrayInputStream in;
+		private final int chunk;
+
+		private TrickleInputStream(byte[] data, int chunk) {
+			this.in = new ByteArrayInputStream(data);
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int read() {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			return in.read(b, off, Math.min(len, chunk));
+		}
+	}
+}
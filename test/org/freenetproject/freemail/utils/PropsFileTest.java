@@ -0,0 +1,188 @@
+/*
+ * PropsFileTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class PropsFileTest {
+	private File dir;
+
+	@Before
+	public void before() {
+		dir = new File("propsfiletest");
+		if(dir.exists()) {
+			System.out.println("WARNING: Test directory exists, deleting");
+			Utils.delete(dir);
+		}
+		if(!dir.mkdir()) {
+			System.out.println("WARNING: Could not create test directory, tests will probably fail");
+		}
+	}
+
+	@After
+	public void after() {
+		Utils.delete(dir);
+	}
+
+	@Test
+	public void putIsWrittenImmediately() {
+		File f = new File(dir, "immediate");
+		PropsFile props = PropsFile.createPropsFile(f);
+		assertTrue(props.put("key", "value"));
+
+		assertTrue(f.exists());
+		assertFalse(new File(dir, "immediate.tmp").exists());
+		assertEquals("value", reread(f).getProperty("key"));
+	}
+
+	@Test
+	public void writeBehindIsWrittenOnFlush() {
+		File f = new File(dir, "writeBehind");
+		PropsFile props = PropsFile.createPropsFile(f);
+		props.setWriteBehind(true);
+		props.put("first", "1");
+		props.put("second", "2");
+
+		assertFalse(f.exists());
+		assertTrue(props.exists());
+		assertTrue(props.isDirty());
+
+		assertTrue(props.flush());
+		assertFalse(props.isDirty());
+		assertEquals("2", reread(f).getProperty("second"));
+	}
+
+	@Test(timeout = 10000)
+	public void writeBehindIsWrittenInBackground() throws InterruptedException {
+		File f = new File(dir, "background");
+		PropsFile props = PropsFile.createPropsFile(f);
+		props.setWriteBehind(true);
+		props.put("key", "value");
+
+		while(props.isDirty()) {
+			Thread.sleep(50);
+		}
+		assertEquals("value", reread(f).getProperty("key"));
+	}
+
+	@Test
+	public void transactionIsWrittenOnCommit() {
+		File f = new File(dir, "transaction");
+		PropsFile props = PropsFile.createPropsFile(f);
+		props.beginTransaction();
+		props.put("first", "1");
+		props.put("second", "2");
+		assertFalse(f.exists());
+
+		assertTrue(props.commit());
+		assertTrue(f.exists());
+		assertEquals("1", reread(f).getProperty("first"));
+	}
+
+	@Test(timeout = 10000)
+	public void deletedFileIsNotRecreated() throws InterruptedException {
+		File f = new File(dir, "deleted");
+		PropsFile props = PropsFile.createPropsFile(f);
+		props.put("key", "value");
+		props.setWriteBehind(true);
+		props.put("key", "other value");
+		assertTrue(f.delete());
+
+		while(props.isDirty()) {
+			Thread.sleep(50);
+		}
+		assertFalse(f.exists());
+	}
+
+	@Test
+	public void equivalentPathsShareInstance() {
+		File f = new File(dir, "shared");
+		PropsFile props = PropsFile.createPropsFile(f);
+
+		long hits = PropsFile.getCacheHits();
+		assertSame(props, PropsFile.createPropsFile(new File(dir, "./shared")));
+		assertSame(props, PropsFile.createPropsFile(new File(new File(dir, "sub"), "../shared")));
+		assertSame(props, PropsFile.createPropsFile(f.getAbsoluteFile()));
+		assertEquals(hits + 3, PropsFile.getCacheHits());
+	}
+
+	@Test
+	public void forgottenFileIsReadAgain() {
+		File f = new File(dir, "forgotten");
+		PropsFile props = PropsFile.createPropsFile(f);
+		props.put("key", "value");
+		assertTrue(f.delete());
+		PropsFile.forget(f);
+
+		long misses = PropsFile.getCacheMisses();
+		PropsFile other = PropsFile.createPropsFile(f);
+		assertNotSame(props, other);
+		assertNull(other.get("key"));
+		assertEquals(misses + 1, PropsFile.getCacheMisses());
+	}
+
+	@Test
+	public void readFromStreamStopsAtBlank() throws IOException {
+		byte[] data = "messagetype=message\r\nid=1\r\n\r\nbody\r\n".getBytes("UTF-8");
+		PropsFile props = PropsFile.createPropsFile(new ByteArrayInputStream(data), true);
+
+		assertEquals("message", props.get("messagetype"));
+		assertEquals("1", props.get("id"));
+		assertEquals("body", props.getReader().readLine());
+		props.closeReader();
+
+		//Changes are kept in memory only
+		assertTrue(props.put("id", "2"));
+		assertFalse(props.isDirty());
+		assertEquals("2", props.get("id"));
+	}
+
+	/**
+	 * Reads {@code f} from disk, bypassing the cached instance.
+	 */
+	private static Properties reread(File f) {
+		Properties props = new Properties();
+		try {
+			InputStream is = new FileInputStream(f);
+			try {
+				props.load(new InputStreamReader(is, "UTF-8"));
+			} finally {
+				is.close();
+			}
+		} catch(IOException e) {
+			throw new AssertionError(e);
+		}
+		return props;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * CachingWoTConnectionTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.wot;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import data.TestId1Data;
+
+import fakes.MockExecutor;
+import fakes.MockWoTConnection;
+import freenet.pluginmanager.PluginNotFoundException;
+
+public class CachingWoTConnectionTest {
+	private static final String TRUSTER = "truster";
+	private static final Identity identity = TestId1Data.Identity.newInstance();
+
+	private MockWoTConnection wotConnection;
+	private MockExecutor executor;
+	private CachingWoTConnection cache;
+
+	@Before
+	public void before() {
+		wotConnection = new MockWoTConnection(null, null);
+		executor = new MockExecutor();
+		cache = new CachingWoTConnection(wotConnection, executor, 1000);
+	}
+
+	@Test
+	public void listIsServedUntilRefreshed() throws PluginNotFoundException {
+		wotConnection.setTrustedIdentities(Collections.singleton(identity));
+		assertEquals(Collections.singleton(identity), cache.getAllTrustedIdentities(TRUSTER));
+
+		wotConnection.setTrustedIdentities(Collections.<Identity>emptySet());
+		assertEquals(Collections.singleton(identity), cache.getAllTrustedIdentities(TRUSTER));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+
+		executor.runNext();
+		assertEquals(Collections.<Identity>emptySet(), cache.getAllTrustedIdentities(TRUSTER));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getRefreshes());
+	}
+
+	@Test
+	public void unusedListIsDropped() throws PluginNotFoundException {
+		wotConnection.setUntrustedIdentities(Collections.singleton(identity));
+		cache.getAllUntrustedIdentities(TRUSTER);
+
+		//The first refresh keeps the list since it was used when it was fetched
+		executor.runNext();
+		executor.runNext();
+
+		cache.getAllUntrustedIdentities(TRUSTER);
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getHits());
+	}
+
+	@Test
+	public void errorsAreNotCached() throws PluginNotFoundException {
+		assertNull(cache.getAllTrustedIdentities(TRUSTER));
+
+		Set<Identity> trusted = Collections.singleton(identity);
+		wotConnection.setTrustedIdentities(trusted);
+		assertEquals(trusted, cache.getAllTrustedIdentities(TRUSTER));
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void invalidateDropsLists() throws PluginNotFoundException {
+		wotConnection.setOwnIdentities(Collections.<OwnIdentity>emptyList());
+		cache.getAllOwnIdentities();
+		cache.invalidate();
+		cache.getAllOwnIdentities();
+		assertEquals(2, cache.getMisses());
+
+		//The refresh scheduled for the dropped list does nothing
+		executor.runNext();
+		assertEquals(0, cache.getRefreshes());
+	}
+}
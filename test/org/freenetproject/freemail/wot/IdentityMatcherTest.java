@@ -24,7 +24,9 @@ import static org.junit.Assert.*;
 
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -35,6 +37,7 @@ import org.freenetproject.freemail.wot.IdentityMatcher;
 import org.freenetproject.freemail.wot.IdentityMatcher.MatchMethod;
 
 import data.TestId1Data;
+import data.TestId2Data;
 
 import fakes.MockWoTConnection;
 import freenet.pluginmanager.PluginNotFoundException;
@@ -105,6 +108,48 @@ public class IdentityMatcherTest {
 		assertEquals(0, matches.get(id).size());
 	}
 
+	@Test
+	public void partialMatchWithSeveralIdentities() throws PluginNotFoundException {
+		Identity other = TestId2Data.Identity.newInstance();
+		Set<Identity> trusted = new HashSet<Identity>();
+		trusted.add(identity);
+		trusted.add(other);
+
+		MockWoTConnection wotConnection = new MockWoTConnection(null, null);
+		wotConnection.setTrustedIdentities(trusted);
+		wotConnection.setUntrustedIdentities(Collections.<Identity>emptySet());
+		wotConnection.setOwnIdentities(Collections.<OwnIdentity>emptyList());
+
+		IdentityMatcher identityMatcher = new IdentityMatcher(wotConnection);
+
+		//The domain is compared in lower case, the nickname isn't
+		String partial = identity.getNickname() + "@" + identity.getBase32IdentityID().substring(0, 4).toUpperCase(Locale.ROOT);
+		String nickname = "testid";
+		String wrongCase = "TESTID";
+		Set<String> recipients = new HashSet<String>();
+		recipients.add(partial);
+		recipients.add(nickname);
+		recipients.add(wrongCase);
+
+		Map<String, List<Identity>> matches;
+		matches = identityMatcher.matchIdentities(recipients, identity.getIdentityID(), EnumSet.of(MatchMethod.PARTIAL_BASE32));
+
+		assertEquals(Collections.singletonList(identity), matches.get(partial));
+		assertEquals(trusted, new HashSet<Identity>(matches.get(nickname)));
+		assertEquals(0, matches.get(wrongCase).size());
+	}
+
+	@Test
+	public void indexIsReusedForSameLists() {
+		Set<Identity> trusted = Collections.singleton(identity);
+		Set<Identity> untrusted = Collections.<Identity>emptySet();
+		List<OwnIdentity> own = Collections.<OwnIdentity>emptyList();
+
+		IdentityIndex index = IdentityIndex.forTruster("truster", trusted, untrusted, own);
+		assertSame(index, IdentityIndex.forTruster("truster", trusted, untrusted, own));
+		assertNotSame(index, IdentityIndex.forTruster("truster", new HashSet<Identity>(trusted), untrusted, own));
+	}
+
 	@Test
 	public void errorReturnFromTrusted() throws PluginNotFoundException {
 		MockWoTConnection wotConnection = new MockWoTConnection(null, null);